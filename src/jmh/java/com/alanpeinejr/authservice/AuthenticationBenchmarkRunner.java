@@ -0,0 +1,32 @@
+package com.alanpeinejr.authservice;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the read path benchmarks once per thread count so throughput can be compared across core counts
+ * <p>
+ * Usage: java -cp target/benchmarks.jar com.alanpeinejr.authservice.AuthenticationBenchmarkRunner [threadCounts]
+ * where threadCounts is a comma separated list, 1,2,4,8 by default. Results are written to bench-threads-N.json.
+ */
+public class AuthenticationBenchmarkRunner {
+
+    private static final String DEFAULT_THREAD_COUNTS = "1,2,4,8";
+
+    public static void main(String[] args) throws RunnerException {
+        String threadCounts = args.length > 0 ? args[0] : DEFAULT_THREAD_COUNTS;
+        for (String threadCount : threadCounts.split(",")) {
+            int threads = Integer.parseInt(threadCount.trim());
+            Options options = new OptionsBuilder()
+                    .include(AuthenticationServiceBenchmark.class.getName() + "\\.(authorize|getAllRoles)$")
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("bench-threads-" + threads + ".json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.alanpeinejr.authservice;
+
+import com.alanpeinejr.exception.DuplicateRoleException;
+import com.alanpeinejr.exception.DuplicateUserException;
+import com.alanpeinejr.exception.ExpiredTokenException;
+import com.alanpeinejr.exception.NoSuchUserException;
+import com.alanpeinejr.manager.Role;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read path benchmarks, safe to run with any thread count (see AuthenticationBenchmarkRunner)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthenticationServiceBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Service {
+        @Param({"1000", "100000"})
+        public int userCount;
+
+        @Param({"1", "10", "50"})
+        public int rolesPerUser;
+
+        @Param({"false", "true"})
+        public boolean cacheTokens;
+
+        //0 for the plain service, compare with -p partitions=0,8
+        @Param({"0"})
+        public int partitions;
+
+        ServiceFixture fixture;
+
+        @Setup(Level.Trial)
+        public void setup() throws DuplicateRoleException, DuplicateUserException, NoSuchUserException {
+            fixture = new ServiceFixture(userCount, rolesPerUser, cacheTokens, partitions);
+        }
+    }
+
+    /**
+     * Each thread walks its own sequence of tokens and roles so threads don't all hammer the same entry
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            next = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
+        }
+
+        int next(int bound) {
+            next = (next + 1) & Integer.MAX_VALUE;
+            return next % bound;
+        }
+    }
+
+    @Benchmark
+    public boolean authorize(Service state, Cursor cursor) throws ExpiredTokenException {
+        ServiceFixture fixture = state.fixture;
+        String token = fixture.tokens[cursor.next(fixture.tokens.length)];
+        Role role = fixture.roles[cursor.next(fixture.roles.length)];
+        return fixture.service.authorize(token, role);
+    }
+
+    @Benchmark
+    public Role[] getAllRoles(Service state, Cursor cursor) throws ExpiredTokenException {
+        ServiceFixture fixture = state.fixture;
+        return fixture.service.getAllRoles(fixture.tokens[cursor.next(fixture.tokens.length)]);
+    }
+
+    @Benchmark
+    public String authenticate(Service state, Cursor cursor) throws NoSuchUserException {
+        ServiceFixture fixture = state.fixture;
+        return fixture.service.authenticate(ServiceFixture.username(cursor.next(fixture.users.length)), ServiceFixture.PASSWORD);
+    }
+}
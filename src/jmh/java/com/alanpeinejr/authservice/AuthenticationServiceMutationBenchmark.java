@@ -0,0 +1,108 @@
+package com.alanpeinejr.authservice;
+
+import com.alanpeinejr.exception.DuplicateRoleException;
+import com.alanpeinejr.exception.DuplicateUserException;
+import com.alanpeinejr.exception.NoSuchRoleException;
+import com.alanpeinejr.exception.NoSuchUserException;
+import com.alanpeinejr.manager.Role;
+import com.alanpeinejr.manager.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write path benchmarks
+ * <p>
+ * Pinned to a single thread because the bookkeeping that keeps iterations comparable, created users and role
+ * counters, is not thread safe.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class AuthenticationServiceMutationBenchmark {
+
+    //every ROLE_MEMBER_STRIDE'th user is given the role deleted by deleteRole
+    private static final int ROLE_MEMBER_STRIDE = 100;
+
+    @Param({"1000", "100000"})
+    public int userCount;
+
+    @Param({"1", "10", "50"})
+    public int rolesPerUser;
+
+    private ServiceFixture fixture;
+    private final List<User> createdUsers = new ArrayList<>();
+    private int nextUser;
+    private int nextToken;
+
+    @Setup(Level.Trial)
+    public void setup() throws DuplicateRoleException, DuplicateUserException, NoSuchUserException {
+        fixture = new ServiceFixture(userCount, rolesPerUser);
+    }
+
+    /**
+     * Drops the users createUser added so every iteration starts from the same userCount
+     */
+    @TearDown(Level.Iteration)
+    public void removeCreatedUsers() throws NoSuchUserException {
+        for (User user : createdUsers) {
+            fixture.service.deleteUser(user);
+        }
+        createdUsers.clear();
+    }
+
+    /**
+     * A fresh role held by a slice of the users, recreated before every deleteRole call
+     */
+    @State(Scope.Thread)
+    public static class PendingRole {
+        private int nextRole;
+        Role role;
+
+        @Setup(Level.Invocation)
+        public void createRole(AuthenticationServiceMutationBenchmark benchmark) throws DuplicateRoleException, NoSuchUserException {
+            ServiceFixture fixture = benchmark.fixture;
+            role = fixture.service.createRole("deleted" + nextRole++);
+            for (int i = 0; i < fixture.users.length; i += ROLE_MEMBER_STRIDE) {
+                fixture.service.assignRoleToUser(fixture.users[i], role);
+            }
+        }
+    }
+
+    @Benchmark
+    public User createUser() throws DuplicateUserException {
+        User user = fixture.service.createUser("created" + nextUser++, ServiceFixture.PASSWORD);
+        createdUsers.add(user);
+        return user;
+    }
+
+    @Benchmark
+    public void invalidate() {
+        nextToken = (nextToken + 1) % fixture.tokens.length;
+        fixture.service.invalidate(fixture.tokens[nextToken]);
+    }
+
+    @Benchmark
+    public void deleteRole(PendingRole pending) throws NoSuchRoleException {
+        fixture.service.deleteRole(pending.role);
+    }
+}
@@ -0,0 +1,69 @@
+package com.alanpeinejr.authservice;
+
+import com.alanpeinejr.encryption.EncryptionManager;
+import com.alanpeinejr.exception.DuplicateRoleException;
+import com.alanpeinejr.exception.DuplicateUserException;
+import com.alanpeinejr.exception.NoSuchUserException;
+import com.alanpeinejr.manager.Role;
+import com.alanpeinejr.manager.TokenCache;
+import com.alanpeinejr.manager.TokenFormat;
+import com.alanpeinejr.manager.User;
+
+/**
+ * Builds a populated AuthenticationService the same way MainApplication does, shared by the benchmarks
+ * <p>
+ * Every user gets the same password and rolesPerUser roles out of a catalogue of twice that size, so lookups hit both
+ * roles the user has and roles they don't.
+ */
+final class ServiceFixture {
+    static final String PASSWORD = "password";
+    //long enough that no token expires during a run
+    private static final int TOKEN_LIFETIME_IN_SECONDS = 24 * 60 * 60;
+
+    final AuthenticationService service;
+    final Role[] roles;
+    final User[] users;
+    final String[] tokens;
+
+    ServiceFixture(int userCount, int rolesPerUser) throws DuplicateRoleException, DuplicateUserException, NoSuchUserException {
+        this(userCount, rolesPerUser, false);
+    }
+
+    ServiceFixture(int userCount, int rolesPerUser, boolean cacheTokens) throws DuplicateRoleException, DuplicateUserException, NoSuchUserException {
+        this(userCount, rolesPerUser, cacheTokens, 0);
+    }
+
+    /**
+     * @param partitions partitions of a ShardedAuthenticationService, 0 for the plain service
+     */
+    ServiceFixture(int userCount, int rolesPerUser, boolean cacheTokens, int partitions) throws DuplicateRoleException, DuplicateUserException, NoSuchUserException {
+        AuthenticationServiceBuilder builder = partitions == 0
+                ? new AuthenticationServiceBuilder().createAuthenticationService().concurrentStorage()
+                : new AuthenticationServiceBuilder().createShardedAuthenticationService(partitions);
+        service = builder
+                .tokenManager(TOKEN_LIFETIME_IN_SECONDS, TokenFormat.JSON)
+                .encryptionManager(new EncryptionManager())
+                .build();
+        if (cacheTokens) {
+            service.setTokenCache(new TokenCache(userCount));
+        }
+
+        roles = new Role[Math.max(2, rolesPerUser * 2)];
+        for (int i = 0; i < roles.length; i++) {
+            roles[i] = service.createRole("role" + i);
+        }
+        users = new User[userCount];
+        tokens = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            users[i] = service.createUser(username(i), PASSWORD);
+            for (int r = 0; r < rolesPerUser; r++) {
+                service.assignRoleToUser(users[i], roles[(i + r) % roles.length]);
+            }
+            tokens[i] = service.authenticate(username(i), PASSWORD);
+        }
+    }
+
+    static String username(int i) {
+        return "user" + i;
+    }
+}
@@ -0,0 +1,80 @@
+package com.alanpeinejr.encryption;
+
+import com.alanpeinejr.exception.InvalidSignatureException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of checking a signed token against decoding an unsigned one. Run with -t 1, -t 2, ... -t cores to check
+ * verification scales with threads
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SigningBenchmark {
+
+    private final EncryptionManager encryptionManager = new EncryptionManager();
+    private SigningEncryptionManager signingManager;
+    private String unsignedToken;
+    private String signedToken;
+    private String forgedToken;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        byte[] key = new byte[SigningEncryptionManager.MIN_KEY_BYTES];
+        Arrays.fill(key, (byte) 7);
+        signingManager = new SigningEncryptionManager("bench", key);
+        byte[] token = "{\"username\":\"user500\",\"roles\":[{\"name\":\"role0\"}],\"expiration\":4102444800,\"session\":0,\"id\":12345}"
+                .getBytes(StandardCharsets.UTF_8);
+        unsignedToken = encryptionManager.encrypt(token);
+        signedToken = signingManager.encrypt(token);
+        forgedToken = signedToken.substring(0, signedToken.length() - 2) + (signedToken.endsWith("A=") ? "B=" : "A=");
+    }
+
+    @Benchmark
+    public ByteBuffer decodeUnsigned(ThreadBuffer buffer) {
+        return buffer.buffer = encryptionManager.decrypt(unsignedToken, buffer.buffer);
+    }
+
+    @Benchmark
+    public ByteBuffer verifyAndDecodeSigned(ThreadBuffer buffer) {
+        return buffer.buffer = signingManager.decrypt(signedToken, buffer.buffer);
+    }
+
+    @Benchmark
+    public boolean rejectForged() {
+        try {
+            signingManager.verify(forgedToken);
+            return false;
+        } catch (InvalidSignatureException e) {
+            return true;
+        }
+    }
+
+    @Benchmark
+    public String sign() {
+        return signingManager.encrypt(unsignedToken.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadBuffer {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+    }
+}
@@ -0,0 +1,78 @@
+package com.alanpeinejr.manager;
+
+import com.alanpeinejr.encryption.EncryptionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits AuthenticationService.validate into its two halves, reading the token and the storage lookups,
+ * so changes to either can be measured on their own
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenBenchmark {
+
+    @Param({"1000", "100000"})
+    public int userCount;
+
+    @Param({"1", "10", "50"})
+    public int rolesPerUser;
+
+    @Param({"JSON", "BINARY"})
+    public TokenFormat tokenFormat;
+
+    private final EncryptionManager encryptionManager = new EncryptionManager();
+    private TokenManager tokenManager;
+    private final HashMap<String, User> userStorage = new HashMap<>();
+    private String token;
+    private String username;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        tokenManager = new TokenManager(24 * 60 * 60, tokenFormat);
+        for (int i = 0; i < userCount; i++) {
+            User user = new User("user" + i, "password", 0);
+            for (int r = 0; r < rolesPerUser; r++) {
+                user.getRoles().add(new Role("role" + r));
+            }
+            user.setLoginTime(Instant.now());
+            userStorage.put(user.getUsername(), user);
+        }
+        username = "user" + (userCount / 2);
+        token = tokenManager.getTokenString(userStorage.get(username), encryptionManager);
+    }
+
+    @Benchmark
+    public Token readTokenString() {
+        return tokenManager.readTokenString(token, encryptionManager);
+    }
+
+    @Benchmark
+    public boolean userLookup() {
+        User user = userStorage.get(username);
+        return user != null && user.getSessionEpoch() == 0;
+    }
+
+    @Benchmark
+    public String getTokenString() {
+        return tokenManager.getTokenString(userStorage.get(username), encryptionManager);
+    }
+}
@@ -0,0 +1,79 @@
+package com.alanpeinejr.manager;
+
+import com.alanpeinejr.encryption.EncryptionManager;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reflective Gson parsing, as TokenManager used to do it, against the streaming TokenJsonParser on the same JSON bytes
+ * <p>
+ * Run main to get gc.alloc.rate.norm, the bytes allocated per parse, next to the timings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenParseBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int rolesPerUser;
+
+    private final Gson reflectiveGson = new GsonBuilder()
+            .registerTypeAdapter(Instant.class, (JsonDeserializer<Instant>) (json, type, context) -> Instant.ofEpochSecond(json.getAsLong()))
+            .create();
+    private RoleManager roleManager;
+    private byte[] json;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        roleManager = new RoleManager(new HashMap<>());
+        User user = new User("user", "password", 0);
+        for (int r = 0; r < rolesPerUser; r++) {
+            user.getRoles().add(roleManager.createRole("role" + r));
+        }
+        user.setLoginTime(Instant.now());
+        TokenManager tokenManager = new TokenManager(60, TokenFormat.JSON, roleManager);
+        json = new EncryptionManager().decryptToBytes(tokenManager.getTokenString(user, new EncryptionManager()));
+    }
+
+    @Benchmark
+    public Token reflectiveGson() {
+        return reflectiveGson.fromJson(new String(json, StandardCharsets.UTF_8), Token.class);
+    }
+
+    @Benchmark
+    public Token streamingParser() {
+        return TokenJsonParser.parse(json, 0, json.length, roleManager);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TokenParseBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -1,41 +1,137 @@
 package com.alanpeinejr;
 
 
+import com.alanpeinejr.authservice.AuthenticationHttpServer;
 import com.alanpeinejr.authservice.AuthenticationService;
 import com.alanpeinejr.authservice.AuthenticationServiceBuilder;
+import com.alanpeinejr.encryption.CredentialHashingPool;
 import com.alanpeinejr.encryption.EncryptionManager;
-import com.alanpeinejr.manager.Role;
-import com.alanpeinejr.manager.RoleManager;
-import com.alanpeinejr.manager.TokenManager;
-import com.alanpeinejr.manager.User;
-import com.alanpeinejr.manager.UserManager;
+import com.alanpeinejr.encryption.SigningEncryptionManager;
+import com.alanpeinejr.jfr.FlightRecording;
+import com.alanpeinejr.manager.RevocationList;
+import com.alanpeinejr.manager.TokenCache;
+import com.alanpeinejr.manager.TokenFormat;
+import com.alanpeinejr.metrics.ServiceMetrics;
+import com.alanpeinejr.scheduler.TimingWheel;
 
-import java.util.HashMap;
+import javax.management.JMException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class MainApplication {
+    private final static Logger LOGGER = Logger.getLogger(MainApplication.class.getName());
     //currently set to 2 hours
     private final static int TOKEN_LIFETIME_IN_SECONDS = 2 * 60 * 60;
+    private final static int TOKEN_CACHE_SIZE = 100_000;
+    private final static int DEFAULT_PORT = 8080;
+    //only used when the JDK has no virtual threads
+    private final static int HTTP_THREADS = 64;
+    //requests hashing a password at once, the rest of the request threads stay free for token checks
+    private final static int MAX_LOGINS_IN_FLIGHT = HTTP_THREADS / 4;
+    //logins waiting longer than this for a hashing thread are turned away
+    private final static Duration MAX_HASH_QUEUE_TIME = Duration.ofSeconds(2);
+    private final static int HASH_QUEUE_CAPACITY = 1_000;
+    private final static Path DATA_DIRECTORY = Path.of("data");
+    private final static Duration CHECKPOINT_INTERVAL = Duration.ofMinutes(5);
+    //one turn of the wheel covers a token lifetime, so sessions wait out no extra rounds
+    private final static Duration EXPIRY_TICK = Duration.ofSeconds(1);
+    private final static int EXPIRY_WHEEL_SIZE = 8192;
+    //revocations expected per token lifetime, more only make the Bloom filter less selective
+    private final static int EXPECTED_REVOCATIONS = 100_000;
+    private final static double REVOCATION_FALSE_POSITIVE_RATE = 0.001;
+    //file to flight record to with the auth-api.jfc profile, no recording when unset
+    private final static String RECORDING_PROPERTY = "auth.recording";
+    //Base64 HMAC key to sign tokens with, and its id, tokens are unsigned when no key is set
+    private final static String SIGNING_KEY_VARIABLE = "AUTH_SIGNING_KEY";
+    private final static String SIGNING_KEY_ID_VARIABLE = "AUTH_SIGNING_KEY_ID";
+    private final static String DEFAULT_SIGNING_KEY_ID = "1";
+    //port to stream changes to followers on, and host:port of the leader to follow, a node is at most one of them
+    private final static String REPLICATION_PORT_PROPERTY = "auth.replication.port";
+    private final static String REPLICATION_LEADER_PROPERTY = "auth.replication.leader";
 
-    public static void main(String[] args) {
+    /**
+     * Start with -Dauth.recording=auth.jfr to flight record the auth pipeline to auth.jfr. Start one node with
+     * -Dauth.replication.port=9090 and the others with -Dauth.replication.leader=host:9090 to replicate between them
+     *
+     * @param args optional port to listen on, 8080 otherwise
+     */
+    public static void main(String[] args) throws IOException, JMException {
 
+        String recording = System.getProperty(RECORDING_PROPERTY);
+        if (recording != null) {
+            FlightRecording.start(Path.of(recording));
+        }
         AuthenticationService service = setupService();
 
-        //TODO this is where I'd setup a web service to provide the microservice via a REST api
-        //Not going to implement REST w/o Spring/jakarta
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        ExecutorService executor = AuthenticationHttpServer.defaultExecutor(HTTP_THREADS);
+        AuthenticationHttpServer server = new AuthenticationHttpServer(service, new InetSocketAddress(port), executor, MAX_LOGINS_IN_FLIGHT);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            executor.shutdown();
+            service.getExpiryScheduler().close();
+            //each is closed even if one before it fails, so the log is still flushed
+            close(service.getReplicationLeader(), "replication leader");
+            close(service.getReplicationFollower(), "replication follower");
+            close(service.getPersistentStorage(), "persistent storage");
+        }));
+        service.getMetrics().register();
+        server.start();
+    }
+
+    private static void close(Closeable closeable, String name) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to close the " + name + " on shutdown", e);
+        }
     }
 
     private static AuthenticationService setupService() {
-        HashMap<String, User> userHashMap = new HashMap<>();
-        HashMap<String, Role> roleHashMap = new HashMap<>();
-        return new AuthenticationServiceBuilder()
+        TimingWheel expiryScheduler = new TimingWheel(EXPIRY_TICK, EXPIRY_WHEEL_SIZE);
+        String replicationPort = System.getProperty(REPLICATION_PORT_PROPERTY);
+        String replicationLeader = System.getProperty(REPLICATION_LEADER_PROPERTY);
+        AuthenticationServiceBuilder builder = new AuthenticationServiceBuilder()
                 .createAuthenticationService()
-                .setupUserStorage(userHashMap)
-                .setupRoleStorage(roleHashMap)
-                .userManager(new UserManager(userHashMap))
-                .roleManager(new RoleManager(roleHashMap))
-                .tokenManager(new TokenManager(TOKEN_LIFETIME_IN_SECONDS))
-                .encryptionManager(new EncryptionManager())
-                .build();
+                .concurrentStorage()
+                .expiryScheduler(expiryScheduler)
+                .revocationList(new RevocationList(EXPECTED_REVOCATIONS, REVOCATION_FALSE_POSITIVE_RATE, Duration.ofSeconds(TOKEN_LIFETIME_IN_SECONDS), expiryScheduler))
+                .tokenManager(TOKEN_LIFETIME_IN_SECONDS, TokenFormat.JSON)
+                .sessionChanges();
+        //a follower gets everything from its leader, so only the leader saves storage
+        if (replicationLeader == null) {
+            builder.persistentStorage(DATA_DIRECTORY, CHECKPOINT_INTERVAL);
+        }
+        builder.encryptionManager(encryptionManager())
+                .tokenCache(new TokenCache(TOKEN_CACHE_SIZE))
+                .credentialHashingPool(new CredentialHashingPool(Runtime.getRuntime().availableProcessors(), HASH_QUEUE_CAPACITY, MAX_HASH_QUEUE_TIME))
+                .metrics(new ServiceMetrics());
+        if (replicationLeader != null) {
+            int colon = replicationLeader.lastIndexOf(':');
+            builder.replicationFollower(new InetSocketAddress(replicationLeader.substring(0, colon), Integer.parseInt(replicationLeader.substring(colon + 1))));
+        } else if (replicationPort != null) {
+            builder.replicationLeader(new InetSocketAddress(Integer.parseInt(replicationPort)));
+        }
+        return builder.build();
+    }
+
+    private static EncryptionManager encryptionManager() {
+        String key = System.getenv(SIGNING_KEY_VARIABLE);
+        if (key == null) {
+            return new EncryptionManager();
+        }
+        String keyId = System.getenv().getOrDefault(SIGNING_KEY_ID_VARIABLE, DEFAULT_SIGNING_KEY_ID);
+        return new SigningEncryptionManager(keyId, Base64.getDecoder().decode(key));
     }
 
 }
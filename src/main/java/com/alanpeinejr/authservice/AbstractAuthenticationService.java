@@ -1,5 +1,6 @@
 package com.alanpeinejr.authservice;
 
+import com.alanpeinejr.encryption.CredentialHashingPool;
 import com.alanpeinejr.encryption.EncryptionManager;
 
 import com.alanpeinejr.exception.DuplicateRoleException;
@@ -7,13 +8,24 @@ import com.alanpeinejr.exception.DuplicateUserException;
 import com.alanpeinejr.exception.ExpiredTokenException;
 import com.alanpeinejr.exception.NoSuchRoleException;
 import com.alanpeinejr.exception.NoSuchUserException;
+import com.alanpeinejr.manager.RevocationList;
 import com.alanpeinejr.manager.Role;
 import com.alanpeinejr.manager.RoleManager;
+import com.alanpeinejr.manager.SessionChanges;
+import com.alanpeinejr.manager.TokenCache;
 import com.alanpeinejr.manager.TokenManager;
 import com.alanpeinejr.manager.User;
 import com.alanpeinejr.manager.UserManager;
+import com.alanpeinejr.metrics.ServiceMetrics;
+import com.alanpeinejr.persistence.PersistentStorage;
+import com.alanpeinejr.replication.ReplicationFollower;
+import com.alanpeinejr.replication.ReplicationLeader;
+import com.alanpeinejr.scheduler.TimingWheel;
+import com.alanpeinejr.verifier.RevocationDigest;
 import com.google.gson.JsonSyntaxException;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -28,6 +40,15 @@ abstract class AbstractAuthenticationService implements IAuthenticationService {
     private RoleManager roleManager;
     private TokenManager tokenManager;
     private EncryptionManager encryptionManager;
+    private TokenCache tokenCache;
+    private CredentialHashingPool credentialHashingPool;
+    private PersistentStorage persistentStorage;
+    private TimingWheel expiryScheduler;
+    private RevocationList revocationList;
+    private ServiceMetrics metrics;
+    private SessionChanges sessionChanges;
+    private ReplicationLeader replicationLeader;
+    private ReplicationFollower replicationFollower;
 
     /**
      * Creates a new user
@@ -39,6 +60,15 @@ abstract class AbstractAuthenticationService implements IAuthenticationService {
      */
     abstract User createUser(String username, String password) throws DuplicateUserException;
 
+    /**
+     * Creates several users at once, either all of them or none
+     *
+     * @param passwords the desired password for each unique username
+     * @return Users created by the system, in the map's iteration order
+     * @throws DuplicateUserException If any username is taken, no user is created
+     */
+    abstract List<User> createUsers(Map<String, String> passwords) throws DuplicateUserException;
+
     /**
      * Deletes the user
      *
@@ -64,6 +94,36 @@ abstract class AbstractAuthenticationService implements IAuthenticationService {
      */
     abstract void deleteRole(Role role) throws NoSuchRoleException;
 
+    /**
+     * Makes the Role include another, so everyone holding it is authorized for the included Role and whatever that
+     * includes in turn. Tokens already issued are authorized by the new hierarchy at once
+     *
+     * @param role         Role that will include the other
+     * @param includedRole Role that will be included
+     * @throws NoSuchRoleException      If either role does not exist in the system
+     * @throws IllegalArgumentException If includedRole already includes role
+     */
+    abstract void includeRole(Role role, Role includedRole) throws NoSuchRoleException;
+
+    /**
+     * Undoes includeRole, holders of the Role keep the included Role only if they hold it some other way
+     *
+     * @param role         Role that includes the other
+     * @param includedRole Role that will no longer be included
+     * @throws NoSuchRoleException If either role does not exist in the system
+     */
+    abstract void excludeRole(Role role, Role includedRole) throws NoSuchRoleException;
+
+    /**
+     * Pages through the Users holding a Role, in username order
+     *
+     * @param role          Role whose members are wanted
+     * @param afterUsername username of the last User on the previous page, null for the first page
+     * @param limit         most Users to return
+     * @return up to limit Users holding the role, empty once every member has been returned
+     */
+    abstract List<User> getUsersWithRole(Role role, String afterUsername, int limit);
+
     /**
      * Assigns the Role to the provided User
      * <p>
@@ -76,6 +136,18 @@ abstract class AbstractAuthenticationService implements IAuthenticationService {
      */
     abstract void assignRoleToUser(User user, Role role) throws NoSuchUserException;
 
+    /**
+     * Assigns every Role to every User, each User is locked and updated once for all the roles
+     * <p>
+     * Every User is checked before any Role is assigned. A User deleted while the batch runs fails it part way through,
+     * leaving the Users before it with their new Roles.
+     *
+     * @param users Users that the roles will be added to
+     * @param roles Roles that will be added to each user
+     * @throws NoSuchUserException If any user does not exist
+     */
+    abstract void assignRoles(Collection<User> users, Collection<Role> roles) throws NoSuchUserException;
+
     /**
      * Returns a token if user exists, and their provided password is correct, otherwise throws an error or returns Invalid Password
      * <p>
@@ -85,11 +157,13 @@ abstract class AbstractAuthenticationService implements IAuthenticationService {
      * @param password password of the User attempting to login
      * @return Token representing the user's name, roles, and an expiration time of the token, "Invalid Password" if authentication fails.
      * @throws NoSuchUserException If the user does not exist
+     * @throws java.util.concurrent.RejectedExecutionException If a credential hashing pool is set and sheds the login
      */
     abstract String authenticate(String username, String password) throws NoSuchUserException;
 
     /**
-     * Invalidates the given token
+     * Invalidates the given token. With a revocation list only this token is revoked, otherwise, or for tokens issued
+     * without an id, every token of its user is invalidated as invalidateAll does
      *
      * @param token Token representing the user's name, roles, and an expiration time of the token
      * @throws JsonSyntaxException If token provided cannot be read
@@ -97,7 +171,15 @@ abstract class AbstractAuthenticationService implements IAuthenticationService {
     abstract void invalidate(String token) throws JsonSyntaxException;
 
     /**
-     * Checks if the user represented by the token has the given role
+     * Invalidates every token issued so far to the user the given token belongs to, logging them out everywhere
+     *
+     * @param token Token representing the user's name, roles, and an expiration time of the token
+     * @throws JsonSyntaxException If token provided cannot be read
+     */
+    abstract void invalidateAll(String token) throws JsonSyntaxException;
+
+    /**
+     * Checks if the user represented by the token has the given role, or a role that includes it
      *
      * @param token Token representing the user's name, roles, and an expiration time of the token
      * @param role  Role being checked for
@@ -108,7 +190,18 @@ abstract class AbstractAuthenticationService implements IAuthenticationService {
     abstract boolean authorize(String token, Role role) throws ExpiredTokenException, JsonSyntaxException;
 
     /**
-     * Returns all Roles user had when the token was generated
+     * Checks several roles against one token, reading and validating the token once
+     *
+     * @param token Token representing the user's name, roles, and an expiration time of the token
+     * @param roles Roles being checked for
+     * @return for each role in order, true if the user has it or a role that includes it
+     * @throws ExpiredTokenException If the token has been invalidated, or if the time is past
+     * @throws JsonSyntaxException   If token provided cannot be read
+     */
+    abstract boolean[] authorizeAll(String token, Role... roles) throws ExpiredTokenException, JsonSyntaxException;
+
+    /**
+     * Returns all Roles user had when the token was generated, not the Roles they include
      *
      * @param token Token representing the user's name, roles, and an expiration time of the token
      * @return An array of all Roles this user has within the token
@@ -117,6 +210,22 @@ abstract class AbstractAuthenticationService implements IAuthenticationService {
      */
     abstract Role[] getAllRoles(String token) throws ExpiredTokenException, JsonSyntaxException;
 
+    /**
+     * Returns the Roles for many tokens at once, one bad token does not fail the others
+     *
+     * @param tokens Tokens representing users' names, roles, and expiration times
+     * @return for each token in order, the Roles it holds, or null if it is expired, invalidated or unreadable
+     */
+    abstract List<Role[]> getAllRoles(List<String> tokens);
+
+    /**
+     * Gathers what token verifiers need to turn away tokens revoked since they were signed
+     *
+     * @return tokens revoked one at a time and users logged out everywhere or deleted within the last token lifetime
+     * @throws IllegalStateException If session changes aren't tracked
+     */
+    abstract RevocationDigest getRevocationDigest();
+
     public Map<String, User> getUserStorage() {
         return userStorage;
     }
@@ -170,4 +279,112 @@ abstract class AbstractAuthenticationService implements IAuthenticationService {
     public void setEncryptionManager(EncryptionManager encryptionManager) {
         this.encryptionManager = encryptionManager;
     }
+
+    /**
+     * @return the cache of read tokens, or null if tokens are read on every call
+     */
+    public TokenCache getTokenCache() {
+        return tokenCache;
+    }
+
+    @Override
+    public void setTokenCache(TokenCache tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+
+    /**
+     * @return the pool passwords are hashed on, or null if they are hashed on the calling thread
+     */
+    public CredentialHashingPool getCredentialHashingPool() {
+        return credentialHashingPool;
+    }
+
+    @Override
+    public void setCredentialHashingPool(CredentialHashingPool credentialHashingPool) {
+        this.credentialHashingPool = credentialHashingPool;
+    }
+
+    /**
+     * @return where storage is saved, or null if it only lives in memory
+     */
+    public PersistentStorage getPersistentStorage() {
+        return persistentStorage;
+    }
+
+    @Override
+    public void setPersistentStorage(PersistentStorage persistentStorage) {
+        this.persistentStorage = persistentStorage;
+    }
+
+    /**
+     * @return the scheduler that expires sessions, or null if expired sessions are only noticed when a token is used
+     */
+    public TimingWheel getExpiryScheduler() {
+        return expiryScheduler;
+    }
+
+    @Override
+    public void setExpiryScheduler(TimingWheel expiryScheduler) {
+        this.expiryScheduler = expiryScheduler;
+    }
+
+    /**
+     * @return the tokens revoked one at a time, or null if invalidating a token invalidates all of its user's tokens
+     */
+    public RevocationList getRevocationList() {
+        return revocationList;
+    }
+
+    @Override
+    public void setRevocationList(RevocationList revocationList) {
+        this.revocationList = revocationList;
+    }
+
+    /**
+     * @return where call latencies and outcomes are recorded, or null if they aren't
+     */
+    public ServiceMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void setMetrics(ServiceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the users whose sessions changed recently, or null if they aren't tracked and there is no revocation digest
+     */
+    public SessionChanges getSessionChanges() {
+        return sessionChanges;
+    }
+
+    @Override
+    public void setSessionChanges(SessionChanges sessionChanges) {
+        this.sessionChanges = sessionChanges;
+    }
+
+    /**
+     * @return what streams changes to follower nodes, or null if this node isn't a replication leader
+     */
+    public ReplicationLeader getReplicationLeader() {
+        return replicationLeader;
+    }
+
+    @Override
+    public void setReplicationLeader(ReplicationLeader replicationLeader) {
+        this.replicationLeader = replicationLeader;
+    }
+
+    /**
+     * @return what copies storage from the leader, or null if this node isn't a replication follower
+     */
+    public ReplicationFollower getReplicationFollower() {
+        return replicationFollower;
+    }
+
+    @Override
+    public void setReplicationFollower(ReplicationFollower replicationFollower) {
+        this.replicationFollower = replicationFollower;
+    }
 }
@@ -0,0 +1,142 @@
+package com.alanpeinejr.authservice;
+
+import com.alanpeinejr.manager.Role;
+import com.alanpeinejr.manager.User;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non blocking view of an AuthenticationService, built with AuthenticationServiceBuilder.buildAsync
+ * <p>
+ * Calls that hash a password (createUser, createUsers, authenticate) run on the credential executor, everything else on
+ * the service executor, so the calling thread never does either. Checked exceptions the service throws complete the
+ * future exceptionally, as does an executor rejecting the call. See AbstractAuthenticationService for what each call
+ * does.
+ */
+public class AsyncAuthenticationService {
+
+    private final AuthenticationService service;
+    private final Executor credentialExecutor;
+    private final Executor serviceExecutor;
+
+    /**
+     * @param credentialExecutor runs the calls that hash passwords
+     * @param serviceExecutor    runs every other call, Runnable::run keeps the cheap token checks on the caller's thread
+     */
+    AsyncAuthenticationService(AuthenticationService service, Executor credentialExecutor, Executor serviceExecutor) {
+        this.service = service;
+        this.credentialExecutor = credentialExecutor;
+        this.serviceExecutor = serviceExecutor;
+    }
+
+    public CompletableFuture<User> createUser(String username, String password) {
+        return call(credentialExecutor, () -> service.createUser(username, password));
+    }
+
+    public CompletableFuture<List<User>> createUsers(Map<String, String> passwords) {
+        return call(credentialExecutor, () -> service.createUsers(passwords));
+    }
+
+    public CompletableFuture<Void> deleteUser(User user) {
+        return run(() -> service.deleteUser(user));
+    }
+
+    public CompletableFuture<Role> createRole(String roleName) {
+        return call(serviceExecutor, () -> service.createRole(roleName));
+    }
+
+    public CompletableFuture<Void> deleteRole(Role role) {
+        return run(() -> service.deleteRole(role));
+    }
+
+    public CompletableFuture<Void> includeRole(Role role, Role includedRole) {
+        return run(() -> service.includeRole(role, includedRole));
+    }
+
+    public CompletableFuture<Void> excludeRole(Role role, Role includedRole) {
+        return run(() -> service.excludeRole(role, includedRole));
+    }
+
+    public CompletableFuture<List<User>> getUsersWithRole(Role role, String afterUsername, int limit) {
+        return call(serviceExecutor, () -> service.getUsersWithRole(role, afterUsername, limit));
+    }
+
+    public CompletableFuture<Void> assignRoleToUser(User user, Role role) {
+        return run(() -> service.assignRoleToUser(user, role));
+    }
+
+    public CompletableFuture<Void> assignRoles(Collection<User> users, Collection<Role> roles) {
+        return run(() -> service.assignRoles(users, roles));
+    }
+
+    public CompletableFuture<String> authenticate(String username, String password) {
+        return call(credentialExecutor, () -> service.authenticate(username, password));
+    }
+
+    public CompletableFuture<Void> invalidate(String token) {
+        return run(() -> service.invalidate(token));
+    }
+
+    public CompletableFuture<Void> invalidateAll(String token) {
+        return run(() -> service.invalidateAll(token));
+    }
+
+    public CompletableFuture<Boolean> authorize(String token, Role role) {
+        return call(serviceExecutor, () -> service.authorize(token, role));
+    }
+
+    public CompletableFuture<boolean[]> authorizeAll(String token, Role... roles) {
+        return call(serviceExecutor, () -> service.authorizeAll(token, roles));
+    }
+
+    public CompletableFuture<Role[]> getAllRoles(String token) {
+        return call(serviceExecutor, () -> service.getAllRoles(token));
+    }
+
+    public CompletableFuture<List<Role[]>> getAllRoles(List<String> tokens) {
+        return call(serviceExecutor, () -> service.getAllRoles(tokens));
+    }
+
+    /**
+     * @return the service the calls are made on, for code that wants to block
+     */
+    public AuthenticationService getService() {
+        return service;
+    }
+
+    private CompletableFuture<Void> run(ServiceRun run) {
+        return call(serviceExecutor, () -> {
+            run.run();
+            return null;
+        });
+    }
+
+    private static <T> CompletableFuture<T> call(Executor executor, ServiceCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private interface ServiceCall<T> {
+        T call() throws Exception;
+    }
+
+    private interface ServiceRun {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,429 @@
+package com.alanpeinejr.authservice;
+
+import com.alanpeinejr.exception.DuplicateRoleException;
+import com.alanpeinejr.exception.DuplicateUserException;
+import com.alanpeinejr.exception.ExpiredTokenException;
+import com.alanpeinejr.exception.NoSuchRoleException;
+import com.alanpeinejr.exception.NoSuchUserException;
+import com.alanpeinejr.manager.Role;
+import com.alanpeinejr.manager.User;
+import com.alanpeinejr.replication.ReplicationFollower;
+import com.alanpeinejr.replication.ReplicationLeader;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves an AuthenticationService over HTTP with the JDK's built in server
+ * <p>
+ * Every call is a POST of a flat JSON object to the path named after the service method, and answers with JSON:
+ * <pre>
+ * /createUser       {"username","password"}  201 {"username"}
+ * /deleteUser       {"username"}             204
+ * /createRole       {"role"}                 201 {"role"}
+ * /deleteRole       {"role"}                 204
+ * /assignRoleToUser {"username","role"}      204
+ * /includeRole      {"role","includedRole"}  204
+ * /excludeRole      {"role","includedRole"}  204
+ * /authenticate     {"username","password"}  200 {"token"}
+ * /invalidate       {"token"}                204
+ * /invalidateAll    {"token"}                204
+ * /authorize        {"token","role"}         200 {"authorized"}
+ * /getAllRoles      {"token"}                200 {"roles":["name"]}
+ * /revocationDigest {}                       200 RevocationDigest JSON, for TokenVerifiers
+ * /replicationStatus {}                      200 {"node":"leader","sequence","followers"} or
+ *                                                {"node":"follower","synced","appliedSequence","leaderSequence","lagMillis"}
+ * </pre>
+ * Errors come back as {"error":"message"}: 400 for unreadable bodies or tokens and for role inclusions that would loop,
+ * 401 for a wrong password or an expired token, 404 for unknown users and roles, 405 for anything but POST, 409 for
+ * duplicates, 421 for changes sent to a replication follower, 501 for /revocationDigest on a service that doesn't track
+ * session changes and /replicationStatus on one that isn't replicated, and 503 for logins shed by the credential
+ * hashing pool or turned away because too many are already in flight.
+ * Anything else is a 500, with the exception logged at WARNING as the response doesn't carry it.
+ * <p>
+ * Request bodies are read straight off the stream and every response has a Content-Length, so connections are kept
+ * alive between calls.
+ * <p>
+ * A call that hashes a password (createUser and authenticate) holds its request thread until the hash is done, even
+ * when the hashing runs on a CredentialHashingPool. Only a few such calls are let in at once, the rest are answered 503
+ * straight away, so a burst of logins can't tie up every request thread and leave none for token checks.
+ */
+public class AuthenticationHttpServer {
+
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+    private static final String INVALID_PASSWORD = "Invalid Password";
+    public static final int DEFAULT_MAX_LOGINS_IN_FLIGHT = 16;
+    private static final Logger LOGGER = Logger.getLogger(AuthenticationHttpServer.class.getName());
+
+    private final AuthenticationService service;
+    private final HttpServer server;
+    private final Semaphore loginPermits;
+
+    /**
+     * @param address  where to listen, port 0 picks a free port
+     * @param executor runs the handlers, see defaultExecutor
+     */
+    public AuthenticationHttpServer(AuthenticationService service, InetSocketAddress address, Executor executor) throws IOException {
+        this(service, address, executor, DEFAULT_MAX_LOGINS_IN_FLIGHT);
+    }
+
+    /**
+     * @param maxLoginsInFlight most calls hashing a password at once, well below the executor's threads
+     */
+    public AuthenticationHttpServer(AuthenticationService service, InetSocketAddress address, Executor executor, int maxLoginsInFlight) throws IOException {
+        if (maxLoginsInFlight <= 0) {
+            throw new IllegalArgumentException("Logins in flight must be positive");
+        }
+        this.service = service;
+        this.loginPermits = new Semaphore(maxLoginsInFlight);
+        this.server = HttpServer.create(address, 0);
+        this.server.setExecutor(executor);
+        route("/createUser", leaderOnly(hashing(this::createUser)));
+        route("/deleteUser", leaderOnly(this::deleteUser));
+        route("/createRole", leaderOnly(this::createRole));
+        route("/deleteRole", leaderOnly(this::deleteRole));
+        route("/assignRoleToUser", leaderOnly(this::assignRoleToUser));
+        route("/includeRole", leaderOnly(this::includeRole));
+        route("/excludeRole", leaderOnly(this::excludeRole));
+        route("/authenticate", hashing(this::authenticate));
+        route("/invalidate", leaderOnly(this::invalidate));
+        route("/invalidateAll", leaderOnly(this::invalidateAll));
+        route("/authorize", this::authorize);
+        route("/getAllRoles", this::getAllRoles);
+        route("/revocationDigest", this::revocationDigest);
+        route("/replicationStatus", this::replicationStatus);
+    }
+
+    /**
+     * Uses a virtual thread per request when the JDK has them, otherwise a fixed pool
+     *
+     * @param threads size of the fixed pool, ignored for virtual threads
+     */
+    public static ExecutorService defaultExecutor(int threads) {
+        try {
+            return (ExecutorService) MethodHandles.publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class))
+                    .invoke();
+        } catch (Throwable e) {
+            //not there before JDK 21, or still a disabled preview
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, the executor is left for its owner to shut down
+     *
+     * @param delaySeconds most time to let requests in flight finish
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private Response createUser(Request request) throws Exception {
+        User user = service.createUser(request.require(request.username, "username"), request.require(request.password, "password"));
+        return Response.json(201, "username", user.getUsername());
+    }
+
+    private Response deleteUser(Request request) throws Exception {
+        service.deleteUser(findUser(request.require(request.username, "username")));
+        return Response.NO_CONTENT;
+    }
+
+    private Response createRole(Request request) throws Exception {
+        Role role = service.createRole(request.require(request.role, "role"));
+        return Response.json(201, "role", role.getName());
+    }
+
+    private Response deleteRole(Request request) throws Exception {
+        service.deleteRole(findRole(request.require(request.role, "role")));
+        return Response.NO_CONTENT;
+    }
+
+    private Response assignRoleToUser(Request request) throws Exception {
+        User user = findUser(request.require(request.username, "username"));
+        service.assignRoleToUser(user, findRole(request.require(request.role, "role")));
+        return Response.NO_CONTENT;
+    }
+
+    private Response includeRole(Request request) throws Exception {
+        service.includeRole(findRole(request.require(request.role, "role")), findRole(request.require(request.includedRole, "includedRole")));
+        return Response.NO_CONTENT;
+    }
+
+    private Response excludeRole(Request request) throws Exception {
+        service.excludeRole(findRole(request.require(request.role, "role")), findRole(request.require(request.includedRole, "includedRole")));
+        return Response.NO_CONTENT;
+    }
+
+    private Response authenticate(Request request) throws Exception {
+        String token = service.authenticate(request.require(request.username, "username"), request.require(request.password, "password"));
+        if (INVALID_PASSWORD.equals(token)) {
+            return Response.error(401, INVALID_PASSWORD);
+        }
+        return Response.json(200, "token", token);
+    }
+
+    private Response invalidate(Request request) {
+        service.invalidate(request.require(request.token, "token"));
+        return Response.NO_CONTENT;
+    }
+
+    private Response invalidateAll(Request request) {
+        service.invalidateAll(request.require(request.token, "token"));
+        return Response.NO_CONTENT;
+    }
+
+    private Response authorize(Request request) throws Exception {
+        String roleName = request.require(request.role, "role");
+        Role role = service.getRoleManager().getRole(roleName);
+        boolean authorized = service.authorize(request.require(request.token, "token"), role == null ? new Role(roleName) : role);
+        StringWriter body = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(body)) {
+            writer.beginObject().name("authorized").value(authorized).endObject();
+        }
+        return new Response(200, body.toString());
+    }
+
+    private Response getAllRoles(Request request) throws Exception {
+        Role[] roles = service.getAllRoles(request.require(request.token, "token"));
+        StringWriter body = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(body)) {
+            writer.beginObject().name("roles").beginArray();
+            for (Role role : roles) {
+                writer.value(role.getName());
+            }
+            writer.endArray().endObject();
+        }
+        return new Response(200, body.toString());
+    }
+
+    private Response revocationDigest(Request request) {
+        if (service.getSessionChanges() == null) {
+            return Response.error(501, "Session changes are not tracked, see AuthenticationServiceBuilder.sessionChanges");
+        }
+        return new Response(200, service.getRevocationDigest().toJson());
+    }
+
+    private Response replicationStatus(Request request) throws IOException {
+        ReplicationLeader leader = service.getReplicationLeader();
+        ReplicationFollower follower = service.getReplicationFollower();
+        if (leader == null && follower == null) {
+            return Response.error(501, "Not replicated, see AuthenticationServiceBuilder.replicationLeader");
+        }
+        StringWriter body = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(body)) {
+            if (leader != null) {
+                writer.beginObject().name("node").value("leader")
+                        .name("sequence").value(leader.getSequence())
+                        .name("followers").value(leader.getFollowerCount()).endObject();
+            } else {
+                writer.beginObject().name("node").value("follower")
+                        .name("synced").value(follower.isSynced())
+                        .name("appliedSequence").value(follower.getAppliedSequence())
+                        .name("leaderSequence").value(follower.getLeaderSequence())
+                        .name("lagMillis").value(follower.getLag().toMillis()).endObject();
+            }
+        }
+        return new Response(200, body.toString());
+    }
+
+    /**
+     * Turns away changes on a replication follower, they would never reach the leader or the other followers
+     */
+    private Handler leaderOnly(Handler handler) {
+        return request -> service.getReplicationFollower() == null ? handler.handle(request)
+                : Response.error(421, "This node is a replication follower, send changes to the leader");
+    }
+
+    private Handler hashing(Handler handler) {
+        return request -> {
+            if (!loginPermits.tryAcquire()) {
+                throw new RejectedExecutionException("Too many logins in flight");
+            }
+            try {
+                return handler.handle(request);
+            } finally {
+                loginPermits.release();
+            }
+        };
+    }
+
+    private User findUser(String username) throws NoSuchUserException {
+        service.getUserManager(username).awaitUser(username);
+        User user = service.getUserStorage().get(username);
+        if (user == null) {
+            throw new NoSuchUserException("No Such User Exists");
+        }
+        return user;
+    }
+
+    private Role findRole(String roleName) throws NoSuchRoleException {
+        Role role = service.getRoleManager().getRole(roleName);
+        if (role == null) {
+            throw new NoSuchRoleException("No Such Role Exists");
+        }
+        return role;
+    }
+
+    private void route(String path, Handler handler) {
+        server.createContext(path, exchange -> {
+            Response response;
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    response = Response.error(405, "Only POST is supported");
+                } else if (!path.equals(exchange.getRequestURI().getPath())) {
+                    response = Response.error(404, "No such endpoint");
+                } else {
+                    response = handler.handle(Request.read(exchange.getRequestBody()));
+                }
+            } catch (DuplicateUserException | DuplicateRoleException e) {
+                response = Response.error(409, e.getMessage());
+            } catch (NoSuchUserException | NoSuchRoleException e) {
+                response = Response.error(404, e.getMessage());
+            } catch (ExpiredTokenException e) {
+                response = Response.error(401, e.getMessage());
+            } catch (RejectedExecutionException e) {
+                response = Response.error(503, e.getMessage());
+            } catch (JsonParseException | IllegalArgumentException | IOException e) {
+                response = Response.error(400, e.getMessage());
+            } catch (Exception e) {
+                //the client only hears there was an error, the cause is kept for whoever runs the server
+                LOGGER.log(Level.WARNING, "Failed to handle " + path, e);
+                response = Response.error(500, "Internal error");
+            }
+            send(exchange, response);
+        });
+    }
+
+    private static void send(HttpExchange exchange, Response response) throws IOException {
+        //the body has to be read to the end before the connection can carry the next request
+        try (InputStream requestBody = exchange.getRequestBody()) {
+            requestBody.transferTo(OutputStream.nullOutputStream());
+        }
+        if (response.body == null) {
+            exchange.sendResponseHeaders(response.status, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", JSON_CONTENT_TYPE);
+        exchange.sendResponseHeaders(response.status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private interface Handler {
+        Response handle(Request request) throws Exception;
+    }
+
+    /**
+     * The fields any call can send, anything else in the body is skipped
+     */
+    private static final class Request {
+        private String username;
+        private String password;
+        private String role;
+        private String includedRole;
+        private String token;
+
+        static Request read(InputStream body) throws IOException {
+            Request request = new Request();
+            JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() != JsonToken.STRING) {
+                    reader.skipValue();
+                    continue;
+                }
+                switch (name) {
+                    case "username":
+                        request.username = reader.nextString();
+                        break;
+                    case "password":
+                        request.password = reader.nextString();
+                        break;
+                    case "role":
+                        request.role = reader.nextString();
+                        break;
+                    case "includedRole":
+                        request.includedRole = reader.nextString();
+                        break;
+                    case "token":
+                        request.token = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return request;
+        }
+
+        String require(String value, String name) {
+            if (value == null) {
+                throw new IllegalArgumentException("Missing string field " + name);
+            }
+            return value;
+        }
+    }
+
+    private static final class Response {
+        private static final Response NO_CONTENT = new Response(204, null);
+
+        private final int status;
+        private final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        static Response json(int status, String name, String value) throws IOException {
+            StringWriter body = new StringWriter();
+            try (JsonWriter writer = new JsonWriter(body)) {
+                writer.beginObject().name(name).value(value).endObject();
+            }
+            return new Response(status, body.toString());
+        }
+
+        static Response error(int status, String message) {
+            try {
+                return json(status, "error", message);
+            } catch (IOException e) {
+                //StringWriter never throws
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -1,28 +1,59 @@
 package com.alanpeinejr.authservice;
 
+import com.alanpeinejr.encryption.CredentialHashingPool;
+import com.alanpeinejr.encryption.IEncrypt;
 import com.alanpeinejr.exception.DuplicateRoleException;
 import com.alanpeinejr.exception.DuplicateUserException;
 import com.alanpeinejr.exception.ExpiredTokenException;
 import com.alanpeinejr.exception.NoSuchRoleException;
 import com.alanpeinejr.exception.NoSuchUserException;
+import com.alanpeinejr.jfr.UserLookupEvent;
+import com.alanpeinejr.manager.OffHeapUserStorage;
+import com.alanpeinejr.manager.RevocationList;
 import com.alanpeinejr.manager.Role;
+import com.alanpeinejr.manager.RoleManager;
+import com.alanpeinejr.manager.SessionChanges;
 import com.alanpeinejr.manager.Token;
+import com.alanpeinejr.manager.TokenCache;
 import com.alanpeinejr.manager.User;
+import com.alanpeinejr.manager.UserManager;
+import com.alanpeinejr.metrics.Operation;
+import com.alanpeinejr.metrics.Outcome;
+import com.alanpeinejr.metrics.ServiceMetrics;
+import com.alanpeinejr.scheduler.TimingWheel;
+import com.alanpeinejr.verifier.RevocationDigest;
 import com.google.gson.JsonSyntaxException;
 
 import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AuthenticationService extends AbstractAuthenticationService {
 
+    private static final String INVALID_PASSWORD = "Invalid Password";
+
+    //the pending expiry of each user's latest login, so a new login cancels the one before. Not kept with off-heap
+    //storage, there a replaced expiry is left to fire and finds a newer login
+    private final Map<String, TimingWheel.Timeout> sessionExpiries = new ConcurrentHashMap<>();
 
     @Override
     User createUser(String username, String password) throws DuplicateUserException {
-        return this.getUserManager().createUser(username, password, this.getEncryptionManager());
+        return this.getUserManager(username).createUser(username, password, credentialEncryptor());
+    }
+
+    @Override
+    List<User> createUsers(Map<String, String> passwords) throws DuplicateUserException {
+        return this.getUserManager().createUsers(passwords, credentialEncryptor());
     }
 
     @Override
     void deleteUser(User user) throws NoSuchUserException {
-        this.getUserManager().deleteUser(user.getUsername());
+        this.getUserManager(user.getUsername()).deleteUser(user.getUsername());
+        uncacheUser(user.getUsername());
     }
 
     @Override
@@ -33,47 +64,304 @@ public class AuthenticationService extends AbstractAuthenticationService {
     @Override
     void deleteRole(Role role) throws NoSuchRoleException {
         this.getRoleManager().deleteRole(role.getName());
-        this.getUserManager().removeRoleFromAllUsers(role);
+        for (UserManager userManager : getUserManagers()) {
+            userManager.removeRoleFromMembers(role);
+        }
+        if (getTokenCache() != null) {
+            getTokenCache().invalidateRole(role);
+        }
+    }
+
+    @Override
+    void includeRole(Role role, Role includedRole) throws NoSuchRoleException {
+        this.getRoleManager().includeRole(role.getName(), includedRole.getName());
+    }
+
+    @Override
+    void excludeRole(Role role, Role includedRole) throws NoSuchRoleException {
+        this.getRoleManager().excludeRole(role.getName(), includedRole.getName());
+    }
+
+    @Override
+    List<User> getUsersWithRole(Role role, String afterUsername, int limit) {
+        return this.getUserManager().getUsersWithRole(role, afterUsername, limit);
     }
 
     @Override
     void assignRoleToUser(User user, Role role) throws NoSuchUserException {
-        this.getUserManager().addRoleToUser(user, role);
+        this.getUserManager(user.getUsername()).addRoleToUser(user, role);
+        uncacheUser(user.getUsername());
+    }
+
+    @Override
+    void assignRoles(Collection<User> users, Collection<Role> roles) throws NoSuchUserException {
+        for (User user : users) {
+            getUserManager(user.getUsername()).awaitUser(user.getUsername());
+            if (!getUserStorage(user.getUsername()).containsKey(user.getUsername())) {
+                throw new NoSuchUserException("Cannot add Role to a user that doesn't exist");
+            }
+        }
+        for (User user : users) {
+            this.getUserManager(user.getUsername()).addRolesToUser(user, roles);
+            uncacheUser(user.getUsername());
+        }
     }
 
     @Override
     String authenticate(String username, String password) throws NoSuchUserException {
-        if (this.getUserManager().authenticate(username, password, this.getEncryptionManager())) {
-            return this.getTokenManager().getTokenString(getUserStorage().get(username), this.getEncryptionManager());
+        long start = System.nanoTime();
+        try {
+            String token = login(username, password);
+            record(Operation.AUTHENTICATE, INVALID_PASSWORD.equals(token) ? Outcome.INVALID_PASSWORD : Outcome.SUCCESS, start);
+            return token;
+        } catch (NoSuchUserException | RuntimeException e) {
+            record(Operation.AUTHENTICATE, Outcome.of(e), start);
+            throw e;
         }
-        return "Invalid Password";
     }
 
     @Override
     void invalidate(String tokenString) throws JsonSyntaxException {
-        Token token = this.getTokenManager().readTokenString(tokenString, this.getEncryptionManager());
-        this.getUserManager().invalidate(token.getUsername());
+        long start = System.nanoTime();
+        try {
+            Token token = readToken(tokenString);
+            RevocationList revocationList = getRevocationList();
+            if (revocationList == null || token.getId() == 0) {
+                invalidateAll(token);
+            } else {
+                revocationList.revoke(token);
+            }
+            record(Operation.INVALIDATE, Outcome.SUCCESS, start);
+        } catch (RuntimeException e) {
+            record(Operation.INVALIDATE, Outcome.of(e), start);
+            throw e;
+        }
+    }
+
+    @Override
+    void invalidateAll(String tokenString) throws JsonSyntaxException {
+        long start = System.nanoTime();
+        try {
+            invalidateAll(readToken(tokenString));
+            record(Operation.INVALIDATE, Outcome.SUCCESS, start);
+        } catch (RuntimeException e) {
+            record(Operation.INVALIDATE, Outcome.of(e), start);
+            throw e;
+        }
     }
 
     @Override
     boolean authorize(String tokenString, Role role) throws ExpiredTokenException, JsonSyntaxException {
-        return validate(tokenString).getRoles().contains(role);
+        long start = System.nanoTime();
+        try {
+            boolean authorized = getRoleManager().grants(validate(tokenString), role);
+            record(Operation.AUTHORIZE, Outcome.SUCCESS, start);
+            return authorized;
+        } catch (ExpiredTokenException | RuntimeException e) {
+            record(Operation.AUTHORIZE, Outcome.of(e), start);
+            throw e;
+        }
+    }
+
+    @Override
+    boolean[] authorizeAll(String tokenString, Role... roles) throws ExpiredTokenException, JsonSyntaxException {
+        long start = System.nanoTime();
+        try {
+            Token token = validate(tokenString);
+            RoleManager roleManager = getRoleManager();
+            boolean[] authorized = new boolean[roles.length];
+            for (int i = 0; i < roles.length; i++) {
+                authorized[i] = roleManager.grants(token, roles[i]);
+            }
+            record(Operation.AUTHORIZE, Outcome.SUCCESS, start);
+            return authorized;
+        } catch (ExpiredTokenException | RuntimeException e) {
+            record(Operation.AUTHORIZE, Outcome.of(e), start);
+            throw e;
+        }
     }
 
     @Override
     Role[] getAllRoles(String token) throws ExpiredTokenException, JsonSyntaxException {
-        return validate(token).getRoles().toArray(new Role[0]);
+        long start = System.nanoTime();
+        try {
+            Role[] roles = validate(token).getRoles().toArray(new Role[0]);
+            record(Operation.GET_ALL_ROLES, Outcome.SUCCESS, start);
+            return roles;
+        } catch (ExpiredTokenException | RuntimeException e) {
+            record(Operation.GET_ALL_ROLES, Outcome.of(e), start);
+            throw e;
+        }
+    }
+
+    @Override
+    List<Role[]> getAllRoles(List<String> tokens) {
+        Instant now = Clock.systemUTC().instant();
+        List<Role[]> roles = new ArrayList<>(tokens.size());
+        for (String token : tokens) {
+            try {
+                roles.add(validate(token, now).getRoles().toArray(new Role[0]));
+            } catch (ExpiredTokenException | JsonSyntaxException | IllegalArgumentException e) {
+                //IllegalArgumentException is what bad Base64 throws
+                roles.add(null);
+            }
+        }
+        return roles;
+    }
+
+    @Override
+    RevocationDigest getRevocationDigest() {
+        SessionChanges sessionChanges = getSessionChanges();
+        if (sessionChanges == null) {
+            throw new IllegalStateException("Session changes are not tracked, see AuthenticationServiceBuilder.sessionChanges");
+        }
+        RevocationList revocationList = getRevocationList();
+        return new RevocationDigest(Clock.systemUTC().instant(), sessionChanges.getTrackingSince(),
+                sessionChanges.getTokenLifetime().getSeconds(),
+                revocationList == null ? new long[0] : revocationList.getRevokedIds(), sessionChanges.snapshot(),
+                getRoleManager().getIncludingRoles());
+    }
+
+    /**
+     * @return the manager holding the user, the service's one UserManager unless it is sharded
+     */
+    public UserManager getUserManager(String username) {
+        return getUserManager();
+    }
+
+    /**
+     * @return the storage holding the user, the service's one user storage unless it is sharded
+     */
+    public Map<String, User> getUserStorage(String username) {
+        return getUserStorage();
+    }
+
+    /**
+     * @return every UserManager the service's users are split between, in partition order
+     */
+    public List<UserManager> getUserManagers() {
+        return List.of(getUserManager());
+    }
+
+    /**
+     * Helper to check the password and issue a token, authenticate without the timing
+     */
+    private String login(String username, String password) throws NoSuchUserException {
+        if (this.getUserManager(username).authenticate(username, password, credentialEncryptor())) {
+            User user = getUserStorage(username).get(username);
+            //deleted by another thread since the password was checked
+            if (user == null) {
+                throw new NoSuchUserException("No Such User Exists");
+            }
+            String token = this.getTokenManager().getTokenString(user, this.getEncryptionManager());
+            scheduleSessionExpiry(user);
+            return token;
+        }
+        return INVALID_PASSWORD;
     }
 
     /**
      * Helper to handle validating token
      */
     private Token validate(String tokenString) throws ExpiredTokenException, JsonSyntaxException {
-        Token token = this.getTokenManager().readTokenString(tokenString, this.getEncryptionManager());
-        User user = getUserStorage().get(token.getUsername());
-        if (token.getExpiration().isBefore(Clock.systemUTC().instant()) || user == null || user.getLoginTime() == null) {
+        return validate(tokenString, Clock.systemUTC().instant());
+    }
+
+    private Token validate(String tokenString, Instant now) throws ExpiredTokenException, JsonSyntaxException {
+        Token token = readToken(tokenString);
+        UserLookupEvent event = new UserLookupEvent();
+        event.begin();
+        getUserManager(token.getUsername()).awaitUser(token.getUsername());
+        long sessionEpoch = sessionEpoch(getUserStorage(token.getUsername()), token.getUsername());
+        RevocationList revocationList = getRevocationList();
+        boolean found = sessionEpoch != OffHeapUserStorage.NO_SESSION_EPOCH;
+        boolean expired = token.getExpiration().isBefore(now) || !found || sessionEpoch != token.getSession()
+                || (revocationList != null && revocationList.isRevoked(token));
+        event.end(found, !expired);
+        if (expired) {
             throw new ExpiredTokenException("Token has expired");
         }
         return token;
     }
+
+    /**
+     * Helper to look up only a user's session epoch, which off-heap storage reads without building the whole User
+     *
+     * @return the epoch, or OffHeapUserStorage.NO_SESSION_EPOCH if there is no such user
+     */
+    private static long sessionEpoch(Map<String, User> userStorage, String username) {
+        if (userStorage instanceof OffHeapUserStorage) {
+            return ((OffHeapUserStorage) userStorage).getSessionEpoch(username);
+        }
+        User user = userStorage.get(username);
+        return user == null ? OffHeapUserStorage.NO_SESSION_EPOCH : user.getSessionEpoch();
+    }
+
+    /**
+     * Helper to read a token, going through the token cache when there is one
+     */
+    private Token readToken(String tokenString) throws JsonSyntaxException {
+        TokenCache tokenCache = getTokenCache();
+        if (tokenCache == null) {
+            return this.getTokenManager().readTokenString(tokenString, this.getEncryptionManager());
+        }
+        Token token = tokenCache.get(tokenString);
+        if (token == null) {
+            token = this.getTokenManager().readTokenString(tokenString, this.getEncryptionManager());
+            tokenCache.put(tokenString, token);
+        }
+        return token;
+    }
+
+    /**
+     * Helper to hash passwords on the credential hashing pool when there is one
+     */
+    IEncrypt credentialEncryptor() {
+        CredentialHashingPool pool = getCredentialHashingPool();
+        return pool == null ? this.getEncryptionManager() : pool.encryptor(this.getEncryptionManager());
+    }
+
+    /**
+     * Helper to forget the login once its tokens expire, replacing the expiry of the user's previous login
+     */
+    private void scheduleSessionExpiry(User user) {
+        TimingWheel scheduler = getExpiryScheduler();
+        Instant loginTime = user.getLoginTime();
+        if (scheduler == null || loginTime == null) {
+            return;
+        }
+        String username = user.getUsername();
+        TimingWheel.Timeout timeout = scheduler.schedule(loginTime.plusSeconds(getTokenManager().getTokenLifeTimeSeconds()), () -> {
+            if (getUserManager(username).expireSession(username, loginTime)) {
+                uncacheUser(username);
+            }
+            //leaves a newer login's expiry in place
+            sessionExpiries.computeIfPresent(username, (name, scheduled) -> scheduled.isExpired() ? null : scheduled);
+        });
+        if (getUserStorage() instanceof OffHeapUserStorage) {
+            return;
+        }
+        TimingWheel.Timeout previous = sessionExpiries.put(username, timeout);
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    private void record(Operation operation, Outcome outcome, long startNanos) {
+        ServiceMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.record(operation, outcome, startNanos);
+        }
+    }
+
+    private void invalidateAll(Token token) {
+        this.getUserManager(token.getUsername()).invalidate(token.getUsername());
+        uncacheUser(token.getUsername());
+    }
+
+    private void uncacheUser(String username) {
+        if (getTokenCache() != null) {
+            getTokenCache().invalidateUser(username);
+        }
+    }
 }
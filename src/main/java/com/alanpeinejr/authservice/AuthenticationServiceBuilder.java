@@ -1,9 +1,22 @@
 package com.alanpeinejr.authservice;
 
+import com.alanpeinejr.encryption.CredentialHashingPool;
 import com.alanpeinejr.encryption.EncryptionManager;
 import com.alanpeinejr.manager.*;
+import com.alanpeinejr.metrics.ServiceMetrics;
+import com.alanpeinejr.persistence.PersistentStorage;
+import com.alanpeinejr.replication.ReplicationFollower;
+import com.alanpeinejr.replication.ReplicationLeader;
+import com.alanpeinejr.scheduler.TimingWheel;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * Builder class to create AuthenticationService from an easy-to-use API, must call .build() at the end
@@ -11,16 +24,103 @@ import java.util.Map;
 public class AuthenticationServiceBuilder {
 
     private AuthenticationService service;
+    private Executor credentialExecutor;
+    private Executor serviceExecutor;
 
     public AuthenticationService build(){
         return this.service;
     }
 
+    /**
+     * Builds the service behind a CompletableFuture API, using the executors given to the builder
+     *
+     * @throws IllegalStateException If credentialExecutor or serviceExecutor wasn't called
+     */
+    public AsyncAuthenticationService buildAsync(){
+        if (credentialExecutor == null || serviceExecutor == null) {
+            throw new IllegalStateException("An async service needs a credential executor and a service executor");
+        }
+        return new AsyncAuthenticationService(this.service, credentialExecutor, serviceExecutor);
+    }
+
     public AuthenticationServiceBuilder createAuthenticationService() {
         service = new AuthenticationService();
         return this;
     }
+
+    /**
+     * Creates a ShardedAuthenticationService, with its users split between partitions of thread safe storage and
+     * thread safe role storage shared by all of them, in place of createAuthenticationService and concurrentStorage
+     *
+     * @param partitionCount how many partitions users are split between, about one per core
+     */
+    public AuthenticationServiceBuilder createShardedAuthenticationService(int partitionCount) {
+        service = new ShardedAuthenticationService(partitionCount);
+        ConcurrentHashMap<String, Role> roles = new ConcurrentHashMap<>();
+        service.setRoleStorage(roles);
+        service.setRoleManager(new RoleManager(roles));
+        return this;
+    }
+    /**
+     * Sets up thread safe user and role storage and the managers over it, in place of setupUserStorage,
+     * setupRoleStorage, userManager and roleManager. Use this when the service is called from more than one thread.
+     *
+     * @throws IllegalStateException If the service is sharded, its partitions already hold the user storage
+     */
+    public AuthenticationServiceBuilder concurrentStorage() {
+        requireUnsharded("concurrentStorage");
+        ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, Role> roles = new ConcurrentHashMap<>();
+        service.setUserStorage(users);
+        service.setRoleStorage(roles);
+        service.setUserManager(new UserManager(users));
+        service.setRoleManager(new RoleManager(roles));
+        return this;
+    }
+
+    /**
+     * Like concurrentStorage, but keeps users in off-heap arenas so heap size doesn't grow with the number of users.
+     * The user manager keeps no role index, listing a role's users scans storage
+     *
+     * @param arenaBytes size of each off-heap arena, see OffHeapUserStorage.DEFAULT_ARENA_BYTES
+     * @throws IllegalStateException If the service is sharded
+     */
+    public AuthenticationServiceBuilder offHeapStorage(int arenaBytes) {
+        requireUnsharded("offHeapStorage");
+        ConcurrentHashMap<String, Role> roles = new ConcurrentHashMap<>();
+        RoleManager roleManager = new RoleManager(roles);
+        OffHeapUserStorage users = new OffHeapUserStorage(arenaBytes, roleManager::getRole);
+        service.setUserStorage(users);
+        service.setRoleStorage(roles);
+        service.setUserManager(new UserManager(users, false));
+        service.setRoleManager(roleManager);
+        return this;
+    }
+
+    /**
+     * Recovers users and roles saved in the directory and saves every change from now on, must come after the user
+     * and role managers are set up over empty storage. Revoked tokens and tracked session changes are saved too when the
+     * revocationList and sessionChanges steps come before this one. Close the service's PersistentStorage on shutdown.
+     *
+     * @param checkpointInterval time between background checkpoints, which keep the log and recovery time short
+     * @throws UncheckedIOException  If the saved storage can't be read
+     * @throws IllegalStateException If the service is sharded
+     */
+    public AuthenticationServiceBuilder persistentStorage(Path directory, Duration checkpointInterval) {
+        if (service instanceof ShardedAuthenticationService) {
+            throw new IllegalStateException("A sharded service can't be persistent, the log follows a single UserManager");
+        }
+        try {
+            service.setPersistentStorage(PersistentStorage.open(directory, service.getUserManager(), service.getRoleManager(),
+                    service.getRevocationList(), service.getSessionChanges(), checkpointInterval));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
     public AuthenticationServiceBuilder setupUserStorage(Map<String, User> users){
+        requireUnsharded("setupUserStorage");
         service.setUserStorage(users);
         return this;
     }
@@ -29,6 +129,7 @@ public class AuthenticationServiceBuilder {
         return this;
     }
     public  AuthenticationServiceBuilder userManager(UserManager userManager){
+        requireUnsharded("userManager");
         service.setUserManager(userManager);
         return this;
     }
@@ -40,9 +141,144 @@ public class AuthenticationServiceBuilder {
         service.setTokenManager(tokenManager);
         return this;
     }
+
+    /**
+     * Creates a TokenManager that resolves roles through the role manager already given to the builder
+     */
+    public  AuthenticationServiceBuilder tokenManager(int tokenLifeTimeSeconds, TokenFormat tokenFormat){
+        service.setTokenManager(new TokenManager(tokenLifeTimeSeconds, tokenFormat, service.getRoleManager()));
+        return this;
+    }
     public  AuthenticationServiceBuilder encryptionManager(EncryptionManager encryptionManager){
         service.setEncryptionManager(encryptionManager);
         return this;
     }
 
+    /**
+     * Optional, without a cache every call reads the token again
+     */
+    public  AuthenticationServiceBuilder tokenCache(TokenCache tokenCache){
+        service.setTokenCache(tokenCache);
+        return this;
+    }
+
+    /**
+     * Optional, without a pool passwords are hashed on the thread calling createUser or authenticate
+     */
+    public  AuthenticationServiceBuilder credentialHashingPool(CredentialHashingPool credentialHashingPool){
+        service.setCredentialHashingPool(credentialHashingPool);
+        return this;
+    }
+
+    /**
+     * Optional, expires sessions in the background once their tokens would have. Close the scheduler on shutdown
+     */
+    public  AuthenticationServiceBuilder expiryScheduler(TimingWheel expiryScheduler){
+        service.setExpiryScheduler(expiryScheduler);
+        return this;
+    }
+
+    /**
+     * Optional, lets invalidate revoke a single token. Without it invalidating a token logs its user out everywhere.
+     * Must come before persistentStorage, so revocations are recovered and saved along with storage
+     *
+     * @throws IllegalStateException If persistentStorage was already called
+     */
+    public  AuthenticationServiceBuilder revocationList(RevocationList revocationList){
+        if (service.getPersistentStorage() != null) {
+            throw new IllegalStateException("Set the revocation list before persistent storage, or its revocations would be lost on restart");
+        }
+        service.setRevocationList(revocationList);
+        return this;
+    }
+
+    /**
+     * Optional, tracks the session changes in the revocation digest token verifiers pull, must come after the user and
+     * token managers are set up and before persistentStorage, so tracking carries on across restarts
+     *
+     * @throws IllegalStateException If persistentStorage was already called
+     */
+    public  AuthenticationServiceBuilder sessionChanges(){
+        if (service.getPersistentStorage() != null) {
+            throw new IllegalStateException("Track session changes before persistent storage, or tracking would start over on restart");
+        }
+        SessionChanges sessionChanges = new SessionChanges(Duration.ofSeconds(service.getTokenManager().getTokenLifeTimeSeconds()));
+        for (UserManager userManager : service.getUserManagers()) {
+            userManager.addListener(sessionChanges);
+        }
+        service.setSessionChanges(sessionChanges);
+        return this;
+    }
+
+    /**
+     * Optional, makes this node the replication leader: every change to user and role storage, and every token revoked,
+     * is streamed to followers connecting to the address. Must come after the managers and any revocation list are set
+     * up. Close the service's ReplicationLeader on shutdown.
+     *
+     * @param address where followers connect, port 0 picks a free port
+     * @throws UncheckedIOException  If the address can't be listened on
+     * @throws IllegalStateException If the service is sharded
+     */
+    public  AuthenticationServiceBuilder replicationLeader(InetSocketAddress address){
+        if (service instanceof ShardedAuthenticationService) {
+            throw new IllegalStateException("A sharded service can't replicate, the stream follows a single UserManager");
+        }
+        try {
+            service.setReplicationLeader(ReplicationLeader.start(address, service.getUserManager(), service.getRoleManager(), service.getRevocationList()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Optional, makes this node a replication follower that keeps its storage a copy of the leader's and serves logins
+     * and token checks from it. Writes must go to the leader. Must come after the managers and any revocation list are
+     * set up over empty storage. Close the service's ReplicationFollower on shutdown.
+     *
+     * @param leaderAddress where the leader listens for followers
+     * @throws IllegalStateException If the service is sharded
+     */
+    public  AuthenticationServiceBuilder replicationFollower(InetSocketAddress leaderAddress){
+        if (service instanceof ShardedAuthenticationService) {
+            throw new IllegalStateException("A sharded service can't replicate, the stream follows a single UserManager");
+        }
+        service.setReplicationFollower(ReplicationFollower.start(leaderAddress, service.getUserManager(), service.getRoleManager(), service.getRevocationList()));
+        return this;
+    }
+
+    /**
+     * Optional, times authenticate, authorize, getAllRoles and invalidate and counts how they end
+     */
+    public  AuthenticationServiceBuilder metrics(ServiceMetrics metrics){
+        service.setMetrics(metrics);
+        return this;
+    }
+
+    /**
+     * Required by buildAsync, runs the async calls that hash passwords. There is no default: the common ForkJoinPool is
+     * shared with the rest of the JVM, and a burst of logins parked on it would stall parallel streams and other futures
+     */
+    public  AuthenticationServiceBuilder credentialExecutor(Executor credentialExecutor){
+        this.credentialExecutor = credentialExecutor;
+        return this;
+    }
+
+    /**
+     * Required by buildAsync, runs every other async call, Runnable::run keeps them on the caller's thread
+     */
+    public  AuthenticationServiceBuilder serviceExecutor(Executor serviceExecutor){
+        this.serviceExecutor = serviceExecutor;
+        return this;
+    }
+
+    /**
+     * @throws IllegalStateException If the service is sharded, as the step would replace the partitions' user storage
+     */
+    private void requireUnsharded(String step) {
+        if (service instanceof ShardedAuthenticationService) {
+            throw new IllegalStateException(step + " can't be used on a sharded service, its partitions hold the users");
+        }
+    }
+
 }
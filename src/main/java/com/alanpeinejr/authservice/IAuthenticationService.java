@@ -1,11 +1,20 @@
 package com.alanpeinejr.authservice;
 
+import com.alanpeinejr.encryption.CredentialHashingPool;
 import com.alanpeinejr.encryption.EncryptionManager;
+import com.alanpeinejr.manager.RevocationList;
 import com.alanpeinejr.manager.Role;
 import com.alanpeinejr.manager.RoleManager;
+import com.alanpeinejr.manager.SessionChanges;
+import com.alanpeinejr.manager.TokenCache;
 import com.alanpeinejr.manager.TokenManager;
 import com.alanpeinejr.manager.User;
 import com.alanpeinejr.manager.UserManager;
+import com.alanpeinejr.metrics.ServiceMetrics;
+import com.alanpeinejr.persistence.PersistentStorage;
+import com.alanpeinejr.replication.ReplicationFollower;
+import com.alanpeinejr.replication.ReplicationLeader;
+import com.alanpeinejr.scheduler.TimingWheel;
 
 import java.util.Map;
 
@@ -24,4 +33,22 @@ public interface IAuthenticationService {
 
     void setEncryptionManager(EncryptionManager encryptionManager);
 
+    void setTokenCache(TokenCache tokenCache);
+
+    void setCredentialHashingPool(CredentialHashingPool credentialHashingPool);
+
+    void setPersistentStorage(PersistentStorage persistentStorage);
+
+    void setExpiryScheduler(TimingWheel expiryScheduler);
+
+    void setRevocationList(RevocationList revocationList);
+
+    void setMetrics(ServiceMetrics metrics);
+
+    void setSessionChanges(SessionChanges sessionChanges);
+
+    void setReplicationLeader(ReplicationLeader replicationLeader);
+
+    void setReplicationFollower(ReplicationFollower replicationFollower);
+
 }
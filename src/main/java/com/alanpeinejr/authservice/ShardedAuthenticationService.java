@@ -0,0 +1,200 @@
+package com.alanpeinejr.authservice;
+
+import com.alanpeinejr.exception.DuplicateUserException;
+import com.alanpeinejr.exception.NoSuchUserException;
+import com.alanpeinejr.manager.Role;
+import com.alanpeinejr.manager.User;
+import com.alanpeinejr.manager.UserManager;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * AuthenticationService with its users split by username hash between independent partitions, each with its own user
+ * storage and UserManager, and so its own locks and session epochs. Roles, tokens and everything else are shared.
+ * Calls about one user, including every token call, only touch that user's partition, so logins and writes to
+ * different users don't meet on any shared lock or map.
+ * <p>
+ * getUserStorage is a read only view over every partition. There is no single UserManager, so getUserManager() is null:
+ * use getUserManager with a username or getUserManagers. The builder steps that set up user storage or a UserManager
+ * are rejected, and since the write-ahead log and replication follow one UserManager the service can't use them.
+ */
+public class ShardedAuthenticationService extends AuthenticationService {
+
+    private final Partition[] partitions;
+    private final List<UserManager> userManagers;
+    private final Map<String, User> userStorage;
+
+    /**
+     * @param partitionCount how many partitions users are split between, about one per core
+     */
+    public ShardedAuthenticationService(int partitionCount) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("Need at least one partition");
+        }
+        partitions = new Partition[partitionCount];
+        List<UserManager> managers = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition();
+            managers.add(partitions[i].userManager);
+        }
+        userManagers = List.copyOf(managers);
+        userStorage = new PartitionedUsers(partitions);
+    }
+
+    @Override
+    List<User> createUsers(Map<String, String> passwords) throws DuplicateUserException {
+        List<Map<String, String>> byPartition = new ArrayList<>(partitions.length);
+        for (int i = 0; i < partitions.length; i++) {
+            byPartition.add(new LinkedHashMap<>());
+        }
+        passwords.forEach((username, password) -> byPartition.get(partitionIndex(username)).put(username, password));
+        Map<String, User> created = new LinkedHashMap<>();
+        for (int i = 0; i < partitions.length; i++) {
+            if (byPartition.get(i).isEmpty()) {
+                continue;
+            }
+            try {
+                for (User user : partitions[i].userManager.createUsers(byPartition.get(i), credentialEncryptor())) {
+                    created.put(user.getUsername(), user);
+                }
+            } catch (DuplicateUserException e) {
+                //each partition creates all or none, undo the partitions before the one that failed
+                for (String username : created.keySet()) {
+                    try {
+                        getUserManager(username).deleteUser(username);
+                    } catch (NoSuchUserException deleted) {
+                        //already deleted by another call
+                    }
+                }
+                throw e;
+            }
+        }
+        List<User> users = new ArrayList<>(passwords.size());
+        for (String username : passwords.keySet()) {
+            users.add(created.get(username));
+        }
+        return users;
+    }
+
+    @Override
+    List<User> getUsersWithRole(Role role, String afterUsername, int limit) {
+        List<User> page = new ArrayList<>();
+        for (Partition partition : partitions) {
+            page.addAll(partition.userManager.getUsersWithRole(role, afterUsername, limit));
+        }
+        page.sort(Comparator.comparing(User::getUsername));
+        return page.size() > limit ? new ArrayList<>(page.subList(0, limit)) : page;
+    }
+
+    @Override
+    public UserManager getUserManager(String username) {
+        return partitions[partitionIndex(username)].userManager;
+    }
+
+    @Override
+    public Map<String, User> getUserStorage(String username) {
+        return partitions[partitionIndex(username)].users;
+    }
+
+    @Override
+    public List<UserManager> getUserManagers() {
+        return userManagers;
+    }
+
+    /**
+     * @return a read only view of every partition's users
+     */
+    @Override
+    public Map<String, User> getUserStorage() {
+        return userStorage;
+    }
+
+    /**
+     * @return null, users are split between partitions, see getUserManager(String) and getUserManagers
+     */
+    @Override
+    public UserManager getUserManager() {
+        return null;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    private int partitionIndex(String username) {
+        return partitionIndex(username, partitions.length);
+    }
+
+    private static int partitionIndex(String username, int partitionCount) {
+        int hash = username.hashCode();
+        //String hashes of similar names differ mostly in the low bits, mix the high ones in
+        return Math.floorMod(hash ^ (hash >>> 16), partitionCount);
+    }
+
+    private static final class Partition {
+        private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+        private final UserManager userManager = new UserManager(users);
+    }
+
+    /**
+     * Every partition's users as one map, lookups go straight to the user's partition
+     */
+    private static final class PartitionedUsers extends AbstractMap<String, User> {
+        private final Partition[] partitions;
+
+        PartitionedUsers(Partition[] partitions) {
+            this.partitions = partitions;
+        }
+
+        @Override
+        public User get(Object key) {
+            return key instanceof String ? partition((String) key).get(key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && partition((String) key).containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (Partition partition : partitions) {
+                size += partition.users.size();
+            }
+            return size;
+        }
+
+        @Override
+        public Set<Entry<String, User>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, User>> iterator() {
+                    return Arrays.stream(partitions)
+                            .flatMap(partition -> partition.users.entrySet().stream())
+                            .<Entry<String, User>>map(SimpleImmutableEntry::new)
+                            .iterator();
+                }
+
+                @Override
+                public int size() {
+                    return PartitionedUsers.this.size();
+                }
+            };
+        }
+
+        private Map<String, User> partition(String username) {
+            return partitions[partitionIndex(username, partitions.length)].users;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.alanpeinejr.encryption;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed set of threads that password hashing is confined to, so a burst of logins can't take the threads token checks
+ * run on
+ * <p>
+ * Hashes wait in a bounded queue. A hash that finds the queue full, or that waited longer than the queue time limit
+ * before a thread picked it up, fails with a RejectedExecutionException instead of being hashed, shedding logins the
+ * caller would have given up on anyway.
+ */
+public class CredentialHashingPool {
+
+    private final ThreadPoolExecutor executor;
+    private final long maxQueueNanos;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * @param threads       most hashes running at once
+     * @param queueCapacity most hashes waiting for a thread
+     * @param maxQueueTime  longest a hash may wait for a thread
+     */
+    public CredentialHashingPool(int threads, int queueCapacity, Duration maxQueueTime) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.maxQueueNanos = maxQueueTime.toNanos();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "credential-hashing-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, pool) -> {
+                    rejected.increment();
+                    throw new RejectedExecutionException("Credential hashing queue is full");
+                });
+    }
+
+    /**
+     * Hashes on the pool, blocking the caller until it is done
+     *
+     * @throws RejectedExecutionException If the queue was full, the hash waited too long or the caller was interrupted
+     */
+    public String encrypt(IEncrypt encryptor, String value) {
+        long queuedAt = System.nanoTime();
+        Future<String> result = executor.submit(() -> {
+            if (System.nanoTime() - queuedAt > maxQueueNanos) {
+                expired.increment();
+                throw new RejectedExecutionException("Waited too long for credential hashing");
+            }
+            return encryptor.encrypt(value);
+        });
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted waiting for credential hashing", e);
+        }
+    }
+
+    /**
+     * @return an IEncrypt that hashes with the given one on this pool
+     */
+    public IEncrypt encryptor(IEncrypt encryptor) {
+        return value -> encrypt(encryptor, value);
+    }
+
+    /**
+     * @return hashes waiting for a thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return hashes turned away because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return hashes dropped because they waited longer than the queue time limit
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Lets queued hashes finish and refuses new ones
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -1,20 +1,120 @@
 package com.alanpeinejr.encryption;
 
+import com.alanpeinejr.jfr.TokenDecodeEvent;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Base64;
 
 /**
  * Main class for handling "encryption"
  * Should use cipher, secretkey, ivParameters, but the tokens aren't being signed anyways and wire is assumed safe
+ * <p>
+ * Strings are UTF-8 on both sides whatever the platform charset. Decoding reads the token's chars straight into the
+ * output bytes, rather than copying them to a byte array for java.util.Base64 first.
  */
 public class EncryptionManager implements IEncrypt, IDecrypt {
 
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    private static final int[] VALUES = new int[128];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        for (int i = 0; i < ALPHABET.length(); i++) {
+            VALUES[ALPHABET.charAt(i)] = i;
+        }
+    }
+
     @Override
     public String decrypt(String string) {
-        return new String(Base64.getDecoder().decode(string));
+        return new String(decryptToBytes(string), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] decryptToBytes(String string) {
+        //a new buffer is allocated at exactly the decoded length
+        return decrypt(string, null).array();
+    }
+
+    /**
+     * Decodes standard Base64, with or without padding, as java.util.Base64's basic decoder does
+     *
+     * @throws IllegalArgumentException If the string is not Base64
+     */
+    @Override
+    public ByteBuffer decrypt(String string, ByteBuffer buffer) {
+        return decode(string, 0, string.length(), buffer);
+    }
+
+    /**
+     * Decodes the Base64 in string[start, end) into the buffer if it has room, a new buffer if not
+     *
+     * @return the decoded bytes from position 0 to the limit
+     * @throws IllegalArgumentException If that part of the string is not Base64
+     */
+    protected ByteBuffer decode(String string, int start, int end, ByteBuffer buffer) {
+        TokenDecodeEvent event = new TokenDecodeEvent();
+        event.begin();
+        int encodedLength = end - start;
+        int decodedLength = -1;
+        try {
+            if (end - start > 0 && (end - start) % 4 == 0 && string.charAt(end - 1) == '=') {
+                end -= string.charAt(end - 2) == '=' ? 2 : 1;
+            }
+            int remainder = (end - start) % 4;
+            if (remainder == 1) {
+                throw new IllegalArgumentException("Last unit does not have enough valid bits");
+            }
+            int length = (end - start) / 4 * 3 + (remainder == 0 ? 0 : remainder - 1);
+            ByteBuffer target = buffer != null && buffer.hasArray() && buffer.capacity() >= length ? buffer : ByteBuffer.allocate(length);
+            byte[] out = target.array();
+            int position = target.arrayOffset();
+            int i = start;
+            for (; i + 4 <= end; i += 4) {
+                int bits = value(string, i) << 18 | value(string, i + 1) << 12 | value(string, i + 2) << 6 | value(string, i + 3);
+                out[position++] = (byte) (bits >> 16);
+                out[position++] = (byte) (bits >> 8);
+                out[position++] = (byte) bits;
+            }
+            if (remainder > 0) {
+                int bits = value(string, i) << 18 | value(string, i + 1) << 12 | (remainder == 3 ? value(string, i + 2) << 6 : 0);
+                out[position++] = (byte) (bits >> 16);
+                if (remainder == 3) {
+                    out[position] = (byte) (bits >> 8);
+                }
+            }
+            target.clear();
+            target.limit(length);
+            decodedLength = length;
+            return target;
+        } finally {
+            event.end(encodedLength, decodedLength);
+        }
     }
 
     @Override
     public String encrypt(String string) {
-        return Base64.getEncoder().encodeToString(string.getBytes());
+        return Base64.getEncoder().encodeToString(string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String encrypt(byte[] bytes) {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    @Override
+    public String encrypt(ByteBuffer bytes) {
+        ByteBuffer encoded = Base64.getEncoder().encode(bytes);
+        return new String(encoded.array(), encoded.arrayOffset(), encoded.remaining(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static int value(String string, int index) {
+        char c = string.charAt(index);
+        int value = c < VALUES.length ? VALUES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Illegal base64 character " + Integer.toHexString(c));
+        }
+        return value;
     }
 }
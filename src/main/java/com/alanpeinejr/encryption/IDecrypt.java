@@ -1,7 +1,33 @@
 package com.alanpeinejr.encryption;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 public interface IDecrypt {
 
     String decrypt(String string);
 
+    /**
+     * Decrypts to raw bytes, the counterpart of IEncrypt.encrypt(byte[])
+     */
+    default byte[] decryptToBytes(String string) {
+        return decrypt(string).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decrypts to raw bytes in a buffer the caller can hand back on the next call, so a hot path decrypts without
+     * allocating once the buffer is big enough. The default decrypts to a new array and copies it in.
+     *
+     * @param buffer buffer to reuse if it has room, its contents are overwritten, may be null
+     * @return the decrypted bytes from position 0 to the limit, in the given buffer if it had room or a new one if not
+     */
+    default ByteBuffer decrypt(String string, ByteBuffer buffer) {
+        byte[] bytes = decryptToBytes(string);
+        ByteBuffer target = buffer != null && buffer.capacity() >= bytes.length ? buffer : ByteBuffer.allocate(bytes.length);
+        target.clear();
+        target.put(bytes);
+        target.flip();
+        return target;
+    }
+
 }
@@ -1,6 +1,27 @@
 package com.alanpeinejr.encryption;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 public interface IEncrypt {
 
     String encrypt(String string);
+
+    /**
+     * Encrypts raw bytes, implementations working on bytes should override this to skip the String round trip.
+     * The default maps each byte to one char so any String based encryptor can carry binary data losslessly.
+     */
+    default String encrypt(byte[] bytes) {
+        return encrypt(new String(bytes, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Encrypts the bytes remaining in the buffer, moving its position to the limit. The default copies them out for
+     * encrypt(byte[])
+     */
+    default String encrypt(ByteBuffer bytes) {
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.get(copy);
+        return encrypt(copy);
+    }
 }
@@ -0,0 +1,234 @@
+package com.alanpeinejr.encryption;
+
+import com.alanpeinejr.exception.InvalidSignatureException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * EncryptionManager that signs tokens with HMAC-SHA256, so anyone holding the key can trust a token without asking
+ * this service
+ * <p>
+ * A signed token is {@code <Base64 token>.<key id>.<Base64 signature>}, the signature covering everything before the
+ * last dot. Decrypting checks the signature before decoding anything, so a forged token costs one HMAC and never
+ * reaches a parser. Several keys can be given, each token names the one that signed it; new tokens are signed with the
+ * active key and tokens signed with any other key given still verify, which lets keys be rotated.
+ * <p>
+ * Only bytes are signed, which is how TokenManager writes tokens. Strings, which UserManager hashes passwords through,
+ * are encoded as EncryptionManager does so rotating keys doesn't lock users out. Each key keeps a pool of Macs with
+ * their buffers, taken for one signature and put back, so verifying doesn't allocate once the pool holds as many as
+ * there are concurrent checks. A pool rather than one per thread, as a virtual thread per request would never reuse
+ * its own.
+ */
+public class SigningEncryptionManager extends EncryptionManager {
+
+    public static final String ALGORITHM = "HmacSHA256";
+    public static final int MIN_KEY_BYTES = 32;
+    private static final int MAC_BYTES = 32;
+    private static final int SIGNATURE_CHARS = 44;
+    private static final int MAX_KEY_ID_LENGTH = 32;
+
+    private final SigningKey activeKey;
+    private final SigningKey[] keys;
+
+    public SigningEncryptionManager(String keyId, byte[] key) {
+        this(keyId, Map.of(keyId, key));
+    }
+
+    /**
+     * @param activeKeyId key new tokens are signed with
+     * @param keys        every key tokens may be signed with, by id. Ids are letters, digits, '-' and '_'
+     * @throws IllegalArgumentException If a key is shorter than MIN_KEY_BYTES, an id is malformed, or the active key is
+     *                                  missing
+     */
+    public SigningEncryptionManager(String activeKeyId, Map<String, byte[]> keys) {
+        Map<String, SigningKey> signingKeys = new LinkedHashMap<>();
+        keys.forEach((id, key) -> signingKeys.put(id, new SigningKey(id, key)));
+        if (!signingKeys.containsKey(activeKeyId)) {
+            throw new IllegalArgumentException("No key given for the active key id " + activeKeyId);
+        }
+        this.activeKey = signingKeys.get(activeKeyId);
+        this.keys = signingKeys.values().toArray(new SigningKey[0]);
+    }
+
+    public String getActiveKeyId() {
+        return activeKey.id;
+    }
+
+    @Override
+    public String encrypt(byte[] bytes) {
+        return sign(super.encrypt(bytes));
+    }
+
+    @Override
+    public String encrypt(ByteBuffer bytes) {
+        return sign(super.encrypt(bytes));
+    }
+
+    /**
+     * @throws InvalidSignatureException If the token isn't signed by one of the keys
+     */
+    @Override
+    public ByteBuffer decrypt(String token, ByteBuffer buffer) {
+        return decode(token, 0, verify(token), buffer);
+    }
+
+    /**
+     * Checks the token's signature without decoding it
+     *
+     * @return where the Base64 token before the key id ends
+     * @throws InvalidSignatureException If the token isn't signed by one of the keys
+     */
+    public int verify(String token) {
+        int signatureStart = token.lastIndexOf('.') + 1;
+        int keyIdStart = signatureStart < 2 ? 0 : token.lastIndexOf('.', signatureStart - 2) + 1;
+        if (keyIdStart == 0 || token.length() - signatureStart != SIGNATURE_CHARS) {
+            throw new InvalidSignatureException("Token is not signed");
+        }
+        SigningKey key = find(token, keyIdStart, signatureStart - 1);
+        if (key == null) {
+            throw new InvalidSignatureException("Token is signed with an unknown key");
+        }
+        Signer signer = key.take();
+        try {
+            byte[] expected = signer.mac(token, signatureStart - 1);
+            ByteBuffer signature;
+            try {
+                signature = decode(token, signatureStart, token.length(), signer.signature);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidSignatureException("Token signature is not Base64");
+            }
+            //every byte is compared so the time taken doesn't show how much of a forged signature was right
+            int difference = signature.remaining() ^ MAC_BYTES;
+            for (int i = 0; i < MAC_BYTES && i < signature.remaining(); i++) {
+                difference |= expected[i] ^ signature.get(i);
+            }
+            if (difference != 0) {
+                throw new InvalidSignatureException("Token signature does not match");
+            }
+            return keyIdStart - 1;
+        } finally {
+            key.putBack(signer);
+        }
+    }
+
+    private String sign(String encoded) {
+        String signed = encoded + '.' + activeKey.id;
+        Signer signer = activeKey.take();
+        try {
+            return signed + '.' + Base64.getEncoder().encodeToString(signer.mac(signed, signed.length()));
+        } finally {
+            activeKey.putBack(signer);
+        }
+    }
+
+    private SigningKey find(String token, int start, int end) {
+        for (SigningKey key : keys) {
+            if (key.id.length() == end - start && token.regionMatches(start, key.id, 0, end - start)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A Mac for one key and the buffers a signature is worked out in, used by one thread at a time
+     */
+    private static final class Signer {
+        private final Mac mac;
+        private byte[] chars = new byte[512];
+        private final byte[] result = new byte[MAC_BYTES];
+        private final ByteBuffer signature = ByteBuffer.allocate(MAC_BYTES);
+
+        private Signer(Mac mac) {
+            this.mac = mac;
+        }
+
+        /**
+         * @return the MAC of string[0, end), in the result array
+         */
+        private byte[] mac(String string, int end) {
+            if (chars.length < end) {
+                chars = new byte[Math.max(end, chars.length * 2)];
+            }
+            for (int i = 0; i < end; i++) {
+                char c = string.charAt(i);
+                if (c > 0x7F) {
+                    throw new InvalidSignatureException("Token is not signed");
+                }
+                chars[i] = (byte) c;
+            }
+            mac.update(chars, 0, end);
+            try {
+                mac.doFinal(result, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            return result;
+        }
+    }
+
+    private static final class SigningKey {
+        private final String id;
+        private final SecretKeySpec key;
+        //initialised once, new Signers get a clone of it rather than looking up and initialising a Mac again
+        private final Mac prototype;
+        private final ConcurrentLinkedQueue<Signer> signers = new ConcurrentLinkedQueue<>();
+
+        private SigningKey(String id, byte[] key) {
+            if (id.isEmpty() || id.length() > MAX_KEY_ID_LENGTH || !id.chars().allMatch(SigningKey::isKeyIdChar)) {
+                throw new IllegalArgumentException("Key ids are 1 to " + MAX_KEY_ID_LENGTH + " letters, digits, '-' or '_'");
+            }
+            if (key.length < MIN_KEY_BYTES) {
+                throw new IllegalArgumentException("Signing keys must be at least " + MIN_KEY_BYTES + " bytes");
+            }
+            this.id = id;
+            this.key = new SecretKeySpec(key, ALGORITHM);
+            this.prototype = newMac();
+        }
+
+        /**
+         * @return a pooled Signer, or a new one if every one is in use. Give it back with putBack
+         */
+        private Signer take() {
+            Signer signer = signers.poll();
+            return signer == null ? new Signer(copyMac()) : signer;
+        }
+
+        private void putBack(Signer signer) {
+            signers.offer(signer);
+        }
+
+        private Mac copyMac() {
+            //Mac isn't thread safe, not even for cloning
+            synchronized (prototype) {
+                try {
+                    return (Mac) prototype.clone();
+                } catch (CloneNotSupportedException e) {
+                    //the provider's Mac can't be cloned
+                }
+            }
+            return newMac();
+        }
+
+        private Mac newMac() {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            }
+        }
+
+        private static boolean isKeyIdChar(int c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.alanpeinejr.exception;
+
+/**
+ * A token that isn't signed, or whose signature doesn't match, an IllegalArgumentException like any other unreadable
+ * token
+ */
+public class InvalidSignatureException extends IllegalArgumentException {
+    public InvalidSignatureException(String errorMessage) {
+        super(errorMessage);
+    }
+
+    /**
+     * Thrown for every forged token, so the stack trace isn't worth filling in
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,57 @@
+package com.alanpeinejr.jfr;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+/**
+ * Starts Flight Recorder from inside the application with the auth-api.jfc profile, so a production process can be
+ * profiled without attaching an agent or shipping the profile separately
+ */
+public final class FlightRecording {
+
+    private static final String PROFILE = "auth-api.jfc";
+
+    private FlightRecording() {
+    }
+
+    /**
+     * @return the auth-api.jfc profile bundled with the application
+     */
+    public static Configuration configuration() {
+        try (InputStream in = FlightRecording.class.getResourceAsStream(PROFILE)) {
+            if (in == null) {
+                throw new IllegalStateException(PROFILE + " is missing from the classpath");
+            }
+            try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+                return Configuration.create(reader);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ParseException e) {
+            throw new IllegalStateException(PROFILE + " is not a valid recording profile", e);
+        }
+    }
+
+    /**
+     * Starts recording with the bundled profile, written to the destination when the recording is stopped or the JVM
+     * exits
+     */
+    public static Recording start(Path destination) throws IOException {
+        Recording recording = new Recording(configuration());
+        recording.setName("auth-api");
+        recording.setToDisk(true);
+        recording.setDumpOnExit(true);
+        recording.setDestination(destination);
+        recording.start();
+        return recording;
+    }
+}
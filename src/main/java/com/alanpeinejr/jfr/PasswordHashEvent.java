@@ -0,0 +1,41 @@
+package com.alanpeinejr.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Hashing a password to check it at login, including any wait for the credential hashing pool
+ */
+@Name("com.alanpeinejr.PasswordHash")
+@Label("Password Hash")
+@Description("Hashing a password at login, queueing for the hashing pool included")
+@Category({"Auth API", "Credentials"})
+@Enabled(false)
+@Threshold("1 ms")
+@StackTrace(false)
+public class PasswordHashEvent extends jdk.jfr.Event {
+
+    public static final String MATCHED = "MATCHED";
+    public static final String MISMATCHED = "MISMATCHED";
+    public static final String FAILED = "FAILED";
+
+    @Label("Outcome")
+    @Description("MATCHED, MISMATCHED, or FAILED if the hashing pool turned the login away")
+    String outcome;
+
+    /**
+     * Ends the event and commits it if it is enabled and took longer than its threshold
+     */
+    public void end(String outcome) {
+        end();
+        if (shouldCommit()) {
+            this.outcome = outcome;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.alanpeinejr.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Base64 decoding of a token in EncryptionManager
+ */
+@Name("com.alanpeinejr.TokenDecode")
+@Label("Token Decode")
+@Description("Base64 decoding of a token string")
+@Category({"Auth API", "Token"})
+@Enabled(false)
+@Threshold("100 us")
+@StackTrace(false)
+public class TokenDecodeEvent extends jdk.jfr.Event {
+
+    @Label("Token Length")
+    @Description("Characters in the encoded token")
+    @DataAmount(DataAmount.BYTES)
+    int tokenLength;
+
+    @Label("Decoded Length")
+    @DataAmount(DataAmount.BYTES)
+    int decodedLength;
+
+    @Label("Outcome")
+    @Description("DECODED, or INVALID if the token is not Base64")
+    String outcome;
+
+    /**
+     * Ends the event and commits it if it is enabled and took longer than its threshold
+     *
+     * @param decodedLength bytes decoded, -1 if decoding failed
+     */
+    public void end(int tokenLength, int decodedLength) {
+        end();
+        if (shouldCommit()) {
+            this.tokenLength = tokenLength;
+            this.decodedLength = Math.max(0, decodedLength);
+            this.outcome = decodedLength < 0 ? "INVALID" : "DECODED";
+            commit();
+        }
+    }
+}
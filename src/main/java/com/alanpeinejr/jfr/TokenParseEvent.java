@@ -0,0 +1,54 @@
+package com.alanpeinejr.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Reading a decoded token into a Token in TokenManager
+ */
+@Name("com.alanpeinejr.TokenParse")
+@Label("Token Parse")
+@Description("Reading a decoded JSON or binary token")
+@Category({"Auth API", "Token"})
+@Enabled(false)
+@Threshold("100 us")
+@StackTrace(false)
+public class TokenParseEvent extends jdk.jfr.Event {
+
+    @Label("Format")
+    @Description("JSON or BINARY")
+    String format;
+
+    @Label("Token Size")
+    @DataAmount(DataAmount.BYTES)
+    int tokenSize;
+
+    @Label("Role Count")
+    int roleCount;
+
+    @Label("Outcome")
+    @Description("PARSED, or INVALID if the token could not be read")
+    String outcome;
+
+    /**
+     * Ends the event and commits it if it is enabled and took longer than its threshold
+     *
+     * @param roleCount roles in the token read, -1 if it could not be read
+     */
+    public void end(String format, int tokenSize, int roleCount) {
+        end();
+        if (shouldCommit()) {
+            this.format = format;
+            this.tokenSize = tokenSize;
+            this.roleCount = Math.max(0, roleCount);
+            this.outcome = roleCount < 0 ? "INVALID" : "PARSED";
+            commit();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.alanpeinejr.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Looking up a token's user and checking the token against it when a token is validated
+ */
+@Name("com.alanpeinejr.UserLookup")
+@Label("User Lookup")
+@Description("Finding a token's user and checking the token is still live")
+@Category({"Auth API", "Storage"})
+@Enabled(false)
+@Threshold("100 us")
+@StackTrace(false)
+public class UserLookupEvent extends jdk.jfr.Event {
+
+    @Label("User Found")
+    boolean userFound;
+
+    @Label("Outcome")
+    @Description("VALID, or EXPIRED if the token has expired, been invalidated or its user is gone")
+    String outcome;
+
+    /**
+     * Ends the event and commits it if it is enabled and took longer than its threshold
+     */
+    public void end(boolean userFound, boolean valid) {
+        end();
+        if (shouldCommit()) {
+            this.userFound = userFound;
+            this.outcome = valid ? "VALID" : "EXPIRED";
+            commit();
+        }
+    }
+}
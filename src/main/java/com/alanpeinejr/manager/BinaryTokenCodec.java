@@ -0,0 +1,284 @@
+package com.alanpeinejr.manager;
+
+import com.google.gson.JsonSyntaxException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes the binary token layouts
+ * <p>
+ * All lengths and counts are unsigned varints. Version 1 names every role:
+ * <pre>
+ * version byte (0x01) | username length | username UTF-8 | expiration epoch seconds (zigzag varint)
+ * | role count | per role: name length | name UTF-8
+ * </pre>
+ * Version 2 refers to roles by their RoleManager id, as the words of a RoleBits, so it can only be read back with the
+ * RoleManager that wrote it:
+ * <pre>
+ * version byte (0x02) | username length | username UTF-8 | expiration epoch seconds (zigzag varint)
+ * | word count | per word: varint
+ * </pre>
+ * Both versions end with the user's session epoch as a varint, then the token id as 8 big-endian bytes.
+ * Version bytes can never be '{', which is how TokenManager tells binary tokens from JSON ones.
+ * Malformed input is reported as a JsonSyntaxException so readers only have one failure to handle.
+ */
+final class BinaryTokenCodec {
+
+    static final byte VERSION_1 = 0x01;
+    static final byte VERSION_2 = 0x02;
+
+    private BinaryTokenCodec() {
+    }
+
+    static boolean isBinary(byte[] bytes) {
+        return isBinary(bytes, 0, bytes.length);
+    }
+
+    static boolean isBinary(byte[] bytes, int offset, int length) {
+        return length > 0 && (bytes[offset] == VERSION_1 || bytes[offset] == VERSION_2);
+    }
+
+    /**
+     * Writes version 2 when allowed and every role in the token has an id, version 1 otherwise
+     *
+     * @param roleIds whether the reader will have the RoleManager needed to resolve role ids
+     */
+    static byte[] encode(Token token, boolean roleIds) {
+        return roleIds && token.isRolesIndexed() ? encodeRoleIds(token) : encodeRoleNames(token);
+    }
+
+    private static byte[] encodeRoleIds(Token token) {
+        byte[] username = token.getUsername().getBytes(StandardCharsets.UTF_8);
+        RoleBits roleBits = token.getRoleBits();
+        long expiration = zigZag(token.getExpiration().getEpochSecond());
+
+        int size = 1 + varIntSize(username.length) + username.length + varIntSize(expiration) + varIntSize(roleBits.wordCount());
+        for (int i = 0; i < roleBits.wordCount(); i++) {
+            size += varIntSize(roleBits.word(i));
+        }
+        size += varIntSize(token.getSession()) + Long.BYTES;
+
+        Writer writer = new Writer(new byte[size]);
+        writer.bytes[writer.position++] = VERSION_2;
+        writer.writeBytes(username);
+        writer.writeVarInt(expiration);
+        writer.writeVarInt(roleBits.wordCount());
+        for (int i = 0; i < roleBits.wordCount(); i++) {
+            writer.writeVarInt(roleBits.word(i));
+        }
+        writer.writeVarInt(token.getSession());
+        writer.writeLong(token.getId());
+        return writer.bytes;
+    }
+
+    private static byte[] encodeRoleNames(Token token) {
+        byte[] username = token.getUsername().getBytes(StandardCharsets.UTF_8);
+        List<Role> roles = token.getRoles();
+        byte[][] roleNames = new byte[roles.size()][];
+        long expiration = zigZag(token.getExpiration().getEpochSecond());
+
+        int size = 1 + varIntSize(username.length) + username.length + varIntSize(expiration) + varIntSize(roleNames.length);
+        for (int i = 0; i < roleNames.length; i++) {
+            roleNames[i] = roles.get(i).getName().getBytes(StandardCharsets.UTF_8);
+            size += varIntSize(roleNames[i].length) + roleNames[i].length;
+        }
+        size += varIntSize(token.getSession()) + Long.BYTES;
+
+        Writer writer = new Writer(new byte[size]);
+        writer.bytes[writer.position++] = VERSION_1;
+        writer.writeBytes(username);
+        writer.writeVarInt(expiration);
+        writer.writeVarInt(roleNames.length);
+        for (byte[] roleName : roleNames) {
+            writer.writeBytes(roleName);
+        }
+        writer.writeVarInt(token.getSession());
+        writer.writeLong(token.getId());
+        return writer.bytes;
+    }
+
+    /**
+     * @param roleManager used to find stored Roles by name, null to always create new Roles
+     */
+    static Token decode(byte[] bytes, RoleManager roleManager) throws JsonSyntaxException {
+        return decode(bytes, 0, bytes.length, roleManager);
+    }
+
+    /**
+     * Decodes the token in bytes[offset, offset + length), the rest of the array is never read
+     *
+     * @param roleManager used to find stored Roles by name, null to always create new Roles
+     */
+    static Token decode(byte[] bytes, int offset, int length, RoleManager roleManager) throws JsonSyntaxException {
+        if (!isBinary(bytes, offset, length)) {
+            throw new JsonSyntaxException("Unsupported binary token version");
+        }
+        int limit = offset + length;
+        Reader reader = new Reader(bytes, offset + 1, limit);
+        String username = reader.readString();
+        Instant expiration = Instant.ofEpochSecond(unZigZag(reader.readVarInt()));
+        List<Role> roles;
+        RoleBits roleBits = null;
+        if (bytes[offset] == VERSION_1) {
+            roles = readRoleNames(reader, roleManager);
+        } else {
+            roleBits = readRoleBits(reader, roleManager);
+            roles = resolveRoleIds(roleBits, roleManager);
+        }
+        long session = reader.readVarInt();
+        long id = reader.readLong();
+        if (reader.position != limit) {
+            throw new JsonSyntaxException("Trailing bytes after binary token");
+        }
+        return roleBits == null
+                ? new Token(username, roles, expiration, session, id)
+                : new Token(username, roles, roleBits, expiration, session, id);
+    }
+
+    private static List<Role> readRoleNames(Reader reader, RoleManager roleManager) {
+        int roleCount = reader.readLength();
+        List<Role> roles = new ArrayList<>(roleCount);
+        for (int i = 0; i < roleCount; i++) {
+            roles.add(reader.readRole(roleManager));
+        }
+        return roles;
+    }
+
+    private static RoleBits readRoleBits(Reader reader, RoleManager roleManager) {
+        if (roleManager == null) {
+            throw new JsonSyntaxException("Binary token refers to roles by id but no RoleManager is available");
+        }
+        long[] words = new long[reader.readLength()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = reader.readVarInt();
+        }
+        return RoleBits.fromWords(words);
+    }
+
+    /**
+     * Roles deleted since the token was written drop out of the role list, their bits stay so they are never granted
+     * to a role created later
+     */
+    private static List<Role> resolveRoleIds(RoleBits roleBits, RoleManager roleManager) {
+        List<Role> roles = new ArrayList<>();
+        for (int id = roleBits.nextId(0); id >= 0; id = roleBits.nextId(id + 1)) {
+            Role role = roleManager.getRole(id);
+            if (role != null) {
+                roles.add(role);
+            }
+        }
+        return roles;
+    }
+
+    static int varIntSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class Writer {
+        private final byte[] bytes;
+        private int position;
+
+        Writer(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        void writeVarInt(long value) {
+            while ((value & ~0x7FL) != 0) {
+                bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[position++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeBytes(byte[] value) {
+            writeVarInt(value.length);
+            System.arraycopy(value, 0, bytes, position, value.length);
+            position += value.length;
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private final int limit;
+        private int position;
+
+        Reader(byte[] bytes, int position, int limit) {
+            this.bytes = bytes;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        long readVarInt() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= limit) {
+                    throw new JsonSyntaxException("Truncated binary token");
+                }
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new JsonSyntaxException("Malformed varint in binary token");
+        }
+
+        long readLong() {
+            if (limit - position < Long.BYTES) {
+                throw new JsonSyntaxException("Truncated binary token");
+            }
+            long value = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                value = (value << 8) | (bytes[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        int readLength() {
+            long length = readVarInt();
+            if (length > limit - position) {
+                throw new JsonSyntaxException("Truncated binary token");
+            }
+            return (int) length;
+        }
+
+        Role readRole(RoleManager roleManager) {
+            int length = readLength();
+            Role role = roleManager == null ? null : roleManager.internRole(bytes, position, length);
+            if (role == null) {
+                role = new Role(new String(bytes, position, length, StandardCharsets.UTF_8));
+            }
+            position += length;
+            return role;
+        }
+
+        String readString() {
+            int length = readLength();
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.alanpeinejr.manager;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * A few reusable objects shared by every thread, taken for one call and put back
+ * <p>
+ * Unlike a ThreadLocal the same objects keep being reused when every call runs on a new thread, as with a virtual
+ * thread per request, and no more than the pool's capacity are kept however many threads have used it. A take that
+ * finds the pool empty makes a new object, and one put back to a full pool is left for the garbage collector.
+ */
+final class ObjectPool<T> {
+
+    //about as many as calls that can run at once without blocking
+    static final int DEFAULT_CAPACITY = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final AtomicReferenceArray<T> slots;
+    private final Supplier<T> factory;
+
+    ObjectPool(Supplier<T> factory) {
+        this(DEFAULT_CAPACITY, factory);
+    }
+
+    ObjectPool(int capacity, Supplier<T> factory) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Pool capacity must be positive");
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.factory = factory;
+    }
+
+    /**
+     * @return a pooled object, or a new one if every one is in use. Give it back with putBack
+     */
+    T take() {
+        int start = start();
+        for (int i = 0; i < slots.length(); i++) {
+            int slot = (start + i) % slots.length();
+            T value = slots.get(slot);
+            if (value != null && slots.compareAndSet(slot, value, null)) {
+                return value;
+            }
+        }
+        return factory.get();
+    }
+
+    /**
+     * @param value an object no longer used by the caller
+     */
+    void putBack(T value) {
+        int start = start();
+        for (int i = 0; i < slots.length(); i++) {
+            int slot = (start + i) % slots.length();
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return how many objects are waiting to be taken
+     */
+    int pooled() {
+        int pooled = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                pooled++;
+            }
+        }
+        return pooled;
+    }
+
+    //threads start looking at different slots so they rarely race for the same one
+    private int start() {
+        return (int) (Thread.currentThread().getId() % slots.length());
+    }
+}
@@ -0,0 +1,792 @@
+package com.alanpeinejr.manager;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * User storage kept outside the Java heap, for user counts where a User object each would mean a heap of many
+ * gigabytes and long collections
+ * <p>
+ * Each user is one record in a direct ByteBuffer arena, found through an open addressing index on the username that
+ * holds only a hash and an address per user. get hands out a new User read from the record, UserManager puts users
+ * back after changing them, which rewrites the record in place when it still fits. Freed records are reused by later
+ * records of the same size class, and freed records over MAX_POOLED_BYTES by the smallest that fits, split to size.
+ * <p>
+ * Roles are kept by id and read back through the role resolver, so a role deleted since it was stored is dropped.
+ * Roles without an id are kept by name. Values are compared by username, password and salt, a salt being random per
+ * user. Thread safe: users are split by username hash between segments, each with its own index and lock, where reads
+ * share the lock and changes take it exclusively. The arenas are shared by every segment, placing a record that
+ * doesn't fit where it was briefly takes the arenas' own lock.
+ * <p>
+ * Record layout:
+ * <pre>
+ * capacity (int) | username | password | salt (double) | session epoch (long) | login seconds (long)
+ * | login nanos (int, -1 for never) | role count (short) | per role: id (int), or -1 and name
+ * </pre>
+ * Strings are a short length and UTF-8 bytes.
+ */
+public class OffHeapUserStorage extends AbstractMap<String, User> implements ConcurrentMap<String, User> {
+
+    public static final int DEFAULT_ARENA_BYTES = 64 * 1024 * 1024;
+    //what getSessionEpoch returns for a user that isn't stored, session epochs are never negative
+    public static final long NO_SESSION_EPOCH = -1;
+    private static final int ALIGNMENT = 16;
+    //records up to this size go back on a free list of their size when they are replaced, larger ones are kept by size
+    private static final int MAX_POOLED_BYTES = 4096;
+    //segments are picked by the top bits of the hash, slots within a segment by the bottom bits
+    private static final int SEGMENT_BITS = 4;
+    private static final int INITIAL_SLOTS = 64;
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    private static final int NO_LOGIN = -1;
+    private static final int ITERATION_BATCH = 256;
+
+    private final int arenaBytes;
+    private final IntFunction<Role> roleResolver;
+    private final Arenas arenas = new Arenas();
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    /**
+     * @param arenaBytes   size of each off-heap arena, the largest record has to fit in one
+     * @param roleResolver the stored Role for an id, usually RoleManager::getRole
+     */
+    public OffHeapUserStorage(int arenaBytes, IntFunction<Role> roleResolver) {
+        if (arenaBytes < MAX_POOLED_BYTES) {
+            throw new IllegalArgumentException("Arenas must hold at least " + MAX_POOLED_BYTES + " bytes");
+        }
+        this.arenaBytes = arenaBytes;
+        this.roleResolver = roleResolver;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public OffHeapUserStorage(IntFunction<Role> roleResolver) {
+        this(DEFAULT_ARENA_BYTES, roleResolver);
+    }
+
+    @Override
+    public User get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String username = (String) key;
+        int hash = hash(username);
+        Segment segment = segment(hash);
+        segment.lock.readLock().lock();
+        try {
+            int slot = segment.find(username, hash);
+            return slot < 0 ? null : read(segment.addresses[slot]);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads only the user's session epoch from its record, for token checks that need nothing else
+     *
+     * @return the stored user's session epoch, or NO_SESSION_EPOCH if there is no such user
+     */
+    public long getSessionEpoch(String username) {
+        int hash = hash(username);
+        Segment segment = segment(hash);
+        segment.lock.readLock().lock();
+        try {
+            int slot = segment.find(username, hash);
+            if (slot < 0) {
+                return NO_SESSION_EPOCH;
+            }
+            long address = segment.addresses[slot];
+            ByteBuffer arena = arenas.arena(address);
+            int position = offset(address) + Integer.BYTES;
+            position += Short.BYTES + Short.toUnsignedInt(arena.getShort(position));
+            position += Short.BYTES + Short.toUnsignedInt(arena.getShort(position));
+            return arena.getLong(position + Double.BYTES);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof String)) {
+            return false;
+        }
+        String username = (String) key;
+        int hash = hash(username);
+        Segment segment = segment(hash);
+        segment.lock.readLock().lock();
+        try {
+            return segment.find(username, hash) >= 0;
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sums the segments one at a time, so while users are added or removed it may be off by those changes
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public User put(String username, User user) {
+        byte[] record = encode(username, user);
+        int hash = hash(username);
+        Segment segment = segment(hash);
+        segment.lock.writeLock().lock();
+        try {
+            int slot = segment.find(username, hash);
+            if (slot >= 0) {
+                User previous = read(segment.addresses[slot]);
+                segment.addresses[slot] = store(segment.addresses[slot], record);
+                return previous;
+            }
+            segment.insert(hash, store(EMPTY, record));
+            return null;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public User putIfAbsent(String username, User user) {
+        byte[] record = encode(username, user);
+        int hash = hash(username);
+        Segment segment = segment(hash);
+        segment.lock.writeLock().lock();
+        try {
+            int slot = segment.find(username, hash);
+            if (slot >= 0) {
+                return read(segment.addresses[slot]);
+            }
+            segment.insert(hash, store(EMPTY, record));
+            return null;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public User remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String username = (String) key;
+        int hash = hash(username);
+        Segment segment = segment(hash);
+        segment.lock.writeLock().lock();
+        try {
+            int slot = segment.find(username, hash);
+            if (slot < 0) {
+                return null;
+            }
+            User previous = read(segment.addresses[slot]);
+            segment.delete(slot);
+            return previous;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the user only if the stored record has the given user's password and salt
+     */
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (!(key instanceof String) || !(value instanceof User)) {
+            return false;
+        }
+        String username = (String) key;
+        int hash = hash(username);
+        Segment segment = segment(hash);
+        segment.lock.writeLock().lock();
+        try {
+            int slot = segment.find(username, hash);
+            if (slot < 0 || !sameUser(read(segment.addresses[slot]), (User) value)) {
+                return false;
+            }
+            segment.delete(slot);
+            return true;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(String username, User oldUser, User newUser) {
+        byte[] record = encode(username, newUser);
+        int hash = hash(username);
+        Segment segment = segment(hash);
+        segment.lock.writeLock().lock();
+        try {
+            int slot = segment.find(username, hash);
+            if (slot < 0 || !sameUser(read(segment.addresses[slot]), oldUser)) {
+                return false;
+            }
+            segment.addresses[slot] = store(segment.addresses[slot], record);
+            return true;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public User replace(String username, User user) {
+        byte[] record = encode(username, user);
+        int hash = hash(username);
+        Segment segment = segment(hash);
+        segment.lock.writeLock().lock();
+        try {
+            int slot = segment.find(username, hash);
+            if (slot < 0) {
+                return null;
+            }
+            User previous = read(segment.addresses[slot]);
+            segment.addresses[slot] = store(segment.addresses[slot], record);
+            return previous;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops every user and gives the arenas back
+     */
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.lock.writeLock().lock();
+        }
+        try {
+            for (Segment segment : segments) {
+                segment.clear();
+            }
+            arenas.clear();
+        } finally {
+            for (Segment segment : segments) {
+                segment.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Calls the action for each user without holding a lock, so the action may change storage. Like the iterators of
+     * the concurrent collections this never fails, users changed meanwhile may be seen before or after the change,
+     * and if a segment's index is rebuilt meanwhile the walk of that segment starts over and some users are seen twice.
+     */
+    @Override
+    public void forEach(BiConsumer<? super String, ? super User> action) {
+        for (Entry<String, User> entry : entrySet()) {
+            action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Set<Entry<String, User>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, User>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return OffHeapUserStorage.this.size();
+            }
+        };
+    }
+
+    /**
+     * @return off-heap bytes reserved by the arenas
+     */
+    public long getReservedBytes() {
+        return (long) arenas.count() * arenaBytes;
+    }
+
+    /**
+     * @return off-heap bytes held by stored users' records
+     */
+    public long getLiveBytes() {
+        return arenas.liveBytes();
+    }
+
+    private Segment segment(int hash) {
+        return segments[hash >>> (Integer.SIZE - SEGMENT_BITS)];
+    }
+
+    private static int hash(String username) {
+        int hash = username.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean sameUser(User stored, User user) {
+        return Objects.equals(stored.getPassword(), user.getPassword()) && stored.getSalt() == user.getSalt();
+    }
+
+    /**
+     * Callers hold the write lock of the record's segment. Writes the record over the old one when it fits, otherwise
+     * somewhere new
+     *
+     * @param address the record being replaced, or EMPTY
+     * @return the record's address
+     */
+    private long store(long address, byte[] record) {
+        int capacity = align(record.length);
+        if (address != EMPTY) {
+            ByteBuffer arena = arenas.arena(address);
+            int offset = offset(address);
+            int oldCapacity = arena.getInt(offset);
+            if (capacity <= oldCapacity) {
+                write(arena, offset, record, oldCapacity);
+                return address;
+            }
+        }
+        long allocated = arenas.allocate(capacity, address);
+        write(arenas.arena(allocated), offset(allocated), record, capacity);
+        return allocated;
+    }
+
+    private static void write(ByteBuffer arena, int offset, byte[] record, int capacity) {
+        ByteBuffer target = arena.duplicate();
+        target.position(offset);
+        target.put(record);
+        arena.putInt(offset, capacity);
+    }
+
+    private static int align(int length) {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private boolean usernameMatches(long address, String username) {
+        ByteBuffer arena = arenas.arena(address);
+        int position = offset(address) + Integer.BYTES;
+        int length = Short.toUnsignedInt(arena.getShort(position));
+        position += Short.BYTES;
+        if (length == username.length()) {
+            boolean ascii = true;
+            for (int i = 0; i < length; i++) {
+                char c = username.charAt(i);
+                if (c >= 0x80) {
+                    ascii = false;
+                    break;
+                }
+                if (arena.get(position + i) != c) {
+                    return false;
+                }
+            }
+            if (ascii) {
+                return true;
+            }
+        }
+        byte[] bytes = username.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (arena.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encode(String username, User user) {
+        Objects.requireNonNull(username, "username");
+        byte[] name = utf8(username);
+        byte[] password = utf8(user.getPassword());
+        List<Role> roles = user.getRoles();
+        if (roles.size() > 0xFFFF) {
+            throw new IllegalArgumentException("Too many roles to store for " + username);
+        }
+        byte[][] roleNames = new byte[roles.size()][];
+        int length = Integer.BYTES + Short.BYTES + name.length + Short.BYTES + password.length
+                + Double.BYTES + Long.BYTES + Long.BYTES + Integer.BYTES + Short.BYTES;
+        for (int i = 0; i < roles.size(); i++) {
+            length += Integer.BYTES;
+            if (roles.get(i).getId() == Role.UNASSIGNED_ID) {
+                roleNames[i] = utf8(roles.get(i).getName());
+                length += Short.BYTES + roleNames[i].length;
+            }
+        }
+        Instant loginTime = user.getLoginTime();
+        ByteBuffer record = ByteBuffer.allocate(length);
+        //capacity, filled in when the record is placed
+        record.putInt(0);
+        record.putShort((short) name.length).put(name);
+        record.putShort((short) password.length).put(password);
+        record.putDouble(user.getSalt());
+        record.putLong(user.getSessionEpoch());
+        record.putLong(loginTime == null ? 0 : loginTime.getEpochSecond());
+        record.putInt(loginTime == null ? NO_LOGIN : loginTime.getNano());
+        record.putShort((short) roles.size());
+        for (int i = 0; i < roles.size(); i++) {
+            record.putInt(roles.get(i).getId());
+            if (roleNames[i] != null) {
+                record.putShort((short) roleNames[i].length).put(roleNames[i]);
+            }
+        }
+        return record.array();
+    }
+
+    private static byte[] utf8(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("String too long to store: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * Callers hold the lock of the record's segment
+     */
+    private User read(long address) {
+        ByteBuffer record = arenas.arena(address).duplicate();
+        record.position(offset(address) + Integer.BYTES);
+        String username = readString(record);
+        String password = readString(record);
+        double salt = record.getDouble();
+        long sessionEpoch = record.getLong();
+        long loginSeconds = record.getLong();
+        int loginNanos = record.getInt();
+        int roleCount = Short.toUnsignedInt(record.getShort());
+        List<Role> roles = new ArrayList<>(roleCount);
+        for (int i = 0; i < roleCount; i++) {
+            int id = record.getInt();
+            Role role = id == Role.UNASSIGNED_ID ? new Role(readString(record)) : roleResolver.apply(id);
+            if (role != null) {
+                roles.add(role);
+            }
+        }
+        User user = new User(username, password, salt, roles);
+        user.setSessionEpoch(sessionEpoch);
+        if (loginNanos != NO_LOGIN) {
+            user.setLoginTime(Instant.ofEpochSecond(loginSeconds, loginNanos));
+        }
+        return user;
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[Short.toUnsignedInt(record.getShort())];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Walks each segment's index in turn, a batch of slots at a time, reading each batch under the segment's read lock
+     */
+    private final class EntryIterator implements Iterator<Entry<String, User>> {
+        private final List<Entry<String, User>> batch = new ArrayList<>(ITERATION_BATCH);
+        private int batchPosition;
+        private int segmentIndex;
+        private int nextSlot;
+        private int version;
+        private boolean started;
+
+        @Override
+        public boolean hasNext() {
+            while (batchPosition == batch.size()) {
+                if (!fill()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Entry<String, User> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.get(batchPosition++);
+        }
+
+        private boolean fill() {
+            batch.clear();
+            batchPosition = 0;
+            if (segmentIndex == segments.length) {
+                return false;
+            }
+            Segment segment = segments[segmentIndex];
+            segment.lock.readLock().lock();
+            try {
+                if (!started) {
+                    started = true;
+                    version = segment.indexVersion;
+                } else if (version != segment.indexVersion) {
+                    version = segment.indexVersion;
+                    nextSlot = 0;
+                }
+                long[] addresses = segment.addresses;
+                while (nextSlot < addresses.length && batch.size() < ITERATION_BATCH) {
+                    long address = addresses[nextSlot++];
+                    if (address != EMPTY && address != DELETED) {
+                        User user = read(address);
+                        batch.add(new SimpleImmutableEntry<>(user.getUsername(), user));
+                    }
+                }
+                if (nextSlot >= addresses.length) {
+                    segmentIndex++;
+                    nextSlot = 0;
+                    started = false;
+                }
+                return true;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * The users whose hashes share top bits: an open addressing index of their records' addresses, and the lock
+     * guarding it and the records themselves
+     */
+    private final class Segment {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        //index slots, an address of (arena + 1) << 32 | offset, or EMPTY or DELETED
+        private long[] addresses = new long[INITIAL_SLOTS];
+        private int[] hashes = new int[INITIAL_SLOTS];
+        private int size;
+        private int deleted;
+        //moves on whenever the index is rebuilt, so iterators know their slot positions are stale
+        private int indexVersion;
+
+        /**
+         * Callers hold the lock
+         *
+         * @return the slot holding the username, or -1
+         */
+        private int find(String username, int hash) {
+            int mask = addresses.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                long address = addresses[slot];
+                if (address == EMPTY) {
+                    return -1;
+                }
+                if (address != DELETED && hashes[slot] == hash && usernameMatches(address, username)) {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * Callers hold the write lock and know the username is not stored
+         */
+        private void insert(int hash, long address) {
+            if ((size + deleted + 1) * 10L > addresses.length * 7L) {
+                //grow when mostly live, otherwise just clear out the deleted slots
+                rebuildIndex(size * 2L > addresses.length ? addresses.length * 2 : addresses.length);
+            }
+            int mask = addresses.length - 1;
+            int slot = hash & mask;
+            while (addresses[slot] != EMPTY && addresses[slot] != DELETED) {
+                slot = (slot + 1) & mask;
+            }
+            if (addresses[slot] == DELETED) {
+                deleted--;
+            }
+            addresses[slot] = address;
+            hashes[slot] = hash;
+            size++;
+        }
+
+        /**
+         * Callers hold the write lock. Slots are marked deleted rather than emptied so live users never move between
+         * rebuilds, which keeps iteration by slot from skipping them.
+         */
+        private void delete(int slot) {
+            arenas.free(addresses[slot]);
+            addresses[slot] = DELETED;
+            size--;
+            deleted++;
+        }
+
+        private void rebuildIndex(int slots) {
+            long[] oldAddresses = addresses;
+            int[] oldHashes = hashes;
+            addresses = new long[slots];
+            hashes = new int[slots];
+            int mask = slots - 1;
+            for (int i = 0; i < oldAddresses.length; i++) {
+                long address = oldAddresses[i];
+                if (address != EMPTY && address != DELETED) {
+                    int slot = oldHashes[i] & mask;
+                    while (addresses[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    addresses[slot] = address;
+                    hashes[slot] = oldHashes[i];
+                }
+            }
+            deleted = 0;
+            indexVersion++;
+        }
+
+        /**
+         * Callers hold the write lock
+         */
+        private void clear() {
+            addresses = new long[INITIAL_SLOTS];
+            hashes = new int[INITIAL_SLOTS];
+            size = 0;
+            deleted = 0;
+            indexVersion++;
+        }
+    }
+
+    /**
+     * The off-heap arenas every segment's records are placed in, and the free lists of records given back
+     * <p>
+     * Placing and freeing records is guarded by this object's monitor. Reading and writing a record is left to the lock
+     * of the segment that owns it, which sees the arena it was placed in as a new arena is published before any
+     * address in it is handed out.
+     */
+    private final class Arenas {
+        private final LongStack[] freeRecords = new LongStack[MAX_POOLED_BYTES / ALIGNMENT + 1];
+        private final TreeMap<Integer, LongStack> largeFreeRecords = new TreeMap<>();
+        private volatile ByteBuffer[] buffers = new ByteBuffer[0];
+        private int position;
+        private long liveBytes;
+
+        ByteBuffer arena(long address) {
+            return buffers[(int) (address >>> 32) - 1];
+        }
+
+        int count() {
+            return buffers.length;
+        }
+
+        synchronized long liveBytes() {
+            return liveBytes;
+        }
+
+        /**
+         * @param replaced a record that didn't fit and is given back, or EMPTY
+         * @return the address of a record of the given capacity
+         */
+        synchronized long allocate(int capacity, long replaced) {
+            if (capacity > arenaBytes) {
+                throw new IllegalArgumentException("User record of " + capacity + " bytes is larger than an arena");
+            }
+            if (replaced != EMPTY) {
+                free(replaced);
+            }
+            liveBytes += capacity;
+            if (capacity <= MAX_POOLED_BYTES) {
+                LongStack free = freeRecords[capacity / ALIGNMENT];
+                if (free != null && !free.isEmpty()) {
+                    return free.pop();
+                }
+            } else {
+                Map.Entry<Integer, LongStack> free = largeFreeRecords.ceilingEntry(capacity);
+                if (free != null) {
+                    long address = free.getValue().pop();
+                    if (free.getValue().isEmpty()) {
+                        largeFreeRecords.remove(free.getKey());
+                    }
+                    int spare = free.getKey() - capacity;
+                    if (spare > 0) {
+                        //the rest of the record is freed on its own, the arena offset of its end still fits an int
+                        long rest = address + capacity;
+                        arena(rest).putInt(offset(rest), spare);
+                        pushFree(rest, spare);
+                    }
+                    return address;
+                }
+            }
+            ByteBuffer[] current = buffers;
+            if (current.length == 0 || position + capacity > arenaBytes) {
+                current = Arrays.copyOf(current, current.length + 1);
+                current[current.length - 1] = ByteBuffer.allocateDirect(arenaBytes);
+                buffers = current;
+                position = 0;
+            }
+            long address = ((long) current.length << 32) | position;
+            position += capacity;
+            return address;
+        }
+
+        synchronized void free(long address) {
+            int capacity = arena(address).getInt(offset(address));
+            liveBytes -= capacity;
+            pushFree(address, capacity);
+        }
+
+        private void pushFree(long address, int capacity) {
+            if (capacity <= MAX_POOLED_BYTES) {
+                LongStack free = freeRecords[capacity / ALIGNMENT];
+                if (free == null) {
+                    free = freeRecords[capacity / ALIGNMENT] = new LongStack();
+                }
+                free.push(address);
+            } else {
+                largeFreeRecords.computeIfAbsent(capacity, size -> new LongStack()).push(address);
+            }
+        }
+
+        /**
+         * Callers hold every segment's write lock
+         */
+        synchronized void clear() {
+            Arrays.fill(freeRecords, null);
+            largeFreeRecords.clear();
+            buffers = new ByteBuffer[0];
+            position = 0;
+            liveBytes = 0;
+        }
+    }
+
+    /**
+     * Addresses of freed records of one capacity
+     */
+    private static final class LongStack {
+        private long[] values = new long[16];
+        private int size;
+
+        private void push(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private long pop() {
+            return values[--size];
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
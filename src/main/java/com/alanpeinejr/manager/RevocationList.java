@@ -0,0 +1,231 @@
+package com.alanpeinejr.manager;
+
+import com.alanpeinejr.scheduler.TimingWheel;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ids of single tokens that have been revoked before their expiration, see Token.getId
+ * <p>
+ * Nearly every token checked was never revoked, so the set is fronted by Bloom filters: a token whose id misses them
+ * costs a few bit probes and no map lookup. Filters can't forget, so there are two generations of them. New ids go in
+ * the current one, lookups check both, and once per token lifetime the older generation is dropped and a fresh one
+ * started. Any id in the dropped generation was revoked more than a lifetime ago, so its token has expired anyway.
+ * <p>
+ * Ids leave the set itself at their token's expiration, on the scheduler when there is one, otherwise at the next
+ * generation change. Thread safe.
+ */
+public class RevocationList {
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final Map<Long, Instant> revoked = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final int expectedRevocations;
+    private final double falsePositiveRate;
+    private final Duration tokenLifetime;
+    private final TimingWheel scheduler;
+    private final Clock clock;
+    private volatile Generations generations;
+
+    /**
+     * @param expectedRevocations revocations expected within one token lifetime, more only raise the false positive rate
+     * @param falsePositiveRate   share of unrevoked tokens that fall through to the map lookup
+     * @param scheduler           removes ids at their token's expiration, may be null
+     */
+    public RevocationList(int expectedRevocations, double falsePositiveRate, Duration tokenLifetime, TimingWheel scheduler) {
+        this(expectedRevocations, falsePositiveRate, tokenLifetime, scheduler, Clock.systemUTC());
+    }
+
+    RevocationList(int expectedRevocations, double falsePositiveRate, Duration tokenLifetime, TimingWheel scheduler, Clock clock) {
+        if (expectedRevocations <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Expected revocations must be positive and the false positive rate between 0 and 1");
+        }
+        this.expectedRevocations = expectedRevocations;
+        this.falsePositiveRate = falsePositiveRate;
+        this.tokenLifetime = tokenLifetime;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.generations = new Generations(newFilter(), newFilter(), clock.instant().plus(tokenLifetime));
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Revokes the token until it expires. Tokens without an id, or already expired, are left alone
+     *
+     * @return true if the token was revoked by this call
+     */
+    public boolean revoke(Token token) {
+        return revoke(token.getId(), token.getExpiration());
+    }
+
+    /**
+     * Revokes the token with the id until its expiration, used to bring back revocations sent from elsewhere
+     *
+     * @return true if the id was revoked by this call
+     */
+    public boolean revoke(long id, Instant expiration) {
+        Instant now = clock.instant();
+        if (id == 0 || expiration.isBefore(now)) {
+            return false;
+        }
+        //into the filter before the map, so a reader that finds it in the map always finds it in the filter
+        Generations current = currentGenerations(now);
+        current.current.add(id);
+        while (generations != current) {
+            //a generation change may have moved the filter just written to the older slot, write the new one too
+            current = generations;
+            current.current.add(id);
+        }
+        if (revoked.putIfAbsent(id, expiration) != null) {
+            return false;
+        }
+        if (scheduler != null) {
+            //a token is still good in the second it expires
+            scheduler.schedule(expiration.plusSeconds(1), () -> revoked.remove(id));
+        }
+        listeners.forEach(listener -> listener.revoked(id, expiration));
+        return true;
+    }
+
+    public boolean isRevoked(Token token) {
+        long id = token.getId();
+        if (id == 0) {
+            return false;
+        }
+        Generations current = currentGenerations(clock.instant());
+        if (!current.current.mightContain(id) && !current.previous.mightContain(id)) {
+            return false;
+        }
+        return revoked.containsKey(id);
+    }
+
+    /**
+     * @return revoked ids whose tokens have not yet been found expired
+     */
+    public int size() {
+        return revoked.size();
+    }
+
+    /**
+     * @return every id revoked and not yet purged, in no particular order
+     */
+    public long[] getRevokedIds() {
+        return revoked.keySet().stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * @return the expiration of every id revoked and not yet purged
+     */
+    public Map<Long, Instant> getRevocations() {
+        return new HashMap<>(revoked);
+    }
+
+    private Generations currentGenerations(Instant now) {
+        Generations current = generations;
+        if (now.isBefore(current.rotateAt)) {
+            return current;
+        }
+        synchronized (this) {
+            current = generations;
+            if (!now.isBefore(current.rotateAt)) {
+                current = new Generations(newFilter(), current.current, now.plus(tokenLifetime));
+                generations = current;
+                if (scheduler == null) {
+                    revoked.values().removeIf(expiration -> expiration.isBefore(now));
+                }
+            }
+            return current;
+        }
+    }
+
+    private BloomFilter newFilter() {
+        return new BloomFilter(expectedRevocations, falsePositiveRate);
+    }
+
+    /**
+     * Told about every id revoked, after it is revoked. Listeners must be quick, they run on the revoking thread
+     */
+    public interface Listener {
+        void revoked(long id, Instant expiration);
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * Filters for the current and previous token lifetime, swapped out whole so readers see a matching pair
+     */
+    private static final class Generations {
+        private final BloomFilter current;
+        private final BloomFilter previous;
+        private final Instant rotateAt;
+
+        private Generations(BloomFilter current, BloomFilter previous, Instant rotateAt) {
+            this.current = current;
+            this.previous = previous;
+            this.rotateAt = rotateAt;
+        }
+    }
+
+    /**
+     * Bits set with CAS so concurrent adds never lose each other, probes derived from two hashes of the id
+     */
+    private static final class BloomFilter {
+        private final AtomicLongArray words;
+        private final long bits;
+        private final int hashes;
+
+        private BloomFilter(int expected, double falsePositiveRate) {
+            long optimalBits = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (optimalBits + 63) / 64));
+            this.words = new AtomicLongArray(wordCount);
+            this.bits = (long) wordCount * 64;
+            this.hashes = (int) Math.max(1, Math.min(16, Math.round((double) bits / expected * Math.log(2))));
+        }
+
+        private void add(long id) {
+            long first = mix(id);
+            long second = mix(id + GOLDEN_GAMMA) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(first + i * second, bits);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long value = words.get(word);
+                while ((value & mask) == 0 && !words.compareAndSet(word, value, value | mask)) {
+                    value = words.get(word);
+                }
+            }
+        }
+
+        private boolean mightContain(long id) {
+            long first = mix(id);
+            long second = mix(id + GOLDEN_GAMMA) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(first + i * second, bits);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
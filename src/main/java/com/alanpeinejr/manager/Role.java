@@ -1,32 +1,47 @@
 package com.alanpeinejr.manager;
 
-import java.util.Objects;
-
 /**
  * Main API for the Role
- * Role is currently only a name. Other info could be added later, like an ID number
+ * Role is a name, plus the id RoleManager gave it when it was created. Roles built anywhere else have no id and are only
+ * compared by name.
  */
 public class Role {
+    public static final int UNASSIGNED_ID = -1;
+
     private final String name;
+    private final int id;
 
     public Role(String name) {
+        this(name, UNASSIGNED_ID);
+    }
+
+    Role(String name, int id) {
         this.name = name;
+        this.id = id;
     }
 
     public String getName() {
         return name;
     }
 
+    /**
+     * @return dense id assigned by RoleManager, UNASSIGNED_ID for roles it didn't create
+     */
+    public int getId() {
+        return id;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Role role = (Role) o;
-        return Objects.equals(name, role.name);
+        return name == null ? role.name == null : name.equals(role.name);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(name);
+        //String caches its hash, unlike Objects.hash this doesn't allocate
+        return name == null ? 0 : name.hashCode();
     }
 }
@@ -0,0 +1,173 @@
+package com.alanpeinejr.manager;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable set of role ids, one bit per id
+ * <p>
+ * Role ids are handed out densely by RoleManager, so a user or token holding any number of roles needs a handful of
+ * words and a membership check is one bit test. Changes return a new instance, which makes sharing between threads safe.
+ */
+public final class RoleBits {
+
+    public static final RoleBits EMPTY = new RoleBits(new long[0]);
+
+    private final long[] words;
+
+    private RoleBits(long[] words) {
+        this.words = words;
+    }
+
+    /**
+     * @return the ids of every role that has one, roles without an id are ignored
+     */
+    public static RoleBits of(List<Role> roles) {
+        long[] words = null;
+        for (Role role : roles) {
+            if (role != null && role.getId() != Role.UNASSIGNED_ID) {
+                words = set(words, role.getId());
+            }
+        }
+        return words == null ? EMPTY : new RoleBits(words);
+    }
+
+    /**
+     * @return the ids of the roles, or null if any of them has none
+     */
+    static RoleBits ofIndexed(List<Role> roles) {
+        long[] words = null;
+        for (Role role : roles) {
+            if (role == null || role.getId() == Role.UNASSIGNED_ID) {
+                return null;
+            }
+            words = set(words, role.getId());
+        }
+        return words == null ? EMPTY : new RoleBits(words);
+    }
+
+    /**
+     * Sets the id's bit in words, which are only copied when they have to grow
+     */
+    private static long[] set(long[] words, int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Role ids are never negative");
+        }
+        int word = id >>> 6;
+        if (words == null || word >= words.length) {
+            words = words == null ? new long[word + 1] : Arrays.copyOf(words, word + 1);
+        }
+        words[word] |= 1L << id;
+        return words;
+    }
+
+    static RoleBits fromWords(long[] words) {
+        int length = words.length;
+        while (length > 0 && words[length - 1] == 0) {
+            length--;
+        }
+        return length == 0 ? EMPTY : new RoleBits(Arrays.copyOf(words, length));
+    }
+
+    public boolean contains(int id) {
+        int word = id >>> 6;
+        return id >= 0 && word < words.length && (words[word] & (1L << id)) != 0;
+    }
+
+    public RoleBits with(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Role ids are never negative");
+        }
+        if (contains(id)) {
+            return this;
+        }
+        long[] updated = Arrays.copyOf(words, Math.max(words.length, (id >>> 6) + 1));
+        updated[id >>> 6] |= 1L << id;
+        return new RoleBits(updated);
+    }
+
+    public RoleBits without(int id) {
+        if (!contains(id)) {
+            return this;
+        }
+        long[] updated = words.clone();
+        updated[id >>> 6] &= ~(1L << id);
+        return fromWords(updated);
+    }
+
+    /**
+     * @return every id in either set
+     */
+    public RoleBits or(RoleBits other) {
+        if (other.words.length > words.length) {
+            return other.or(this);
+        }
+        long[] updated = null;
+        for (int i = 0; i < other.words.length; i++) {
+            if ((words[i] | other.words[i]) != words[i]) {
+                if (updated == null) {
+                    updated = words.clone();
+                }
+                updated[i] |= other.words[i];
+            }
+        }
+        return updated == null ? this : new RoleBits(updated);
+    }
+
+    /**
+     * @return true if any id is in both sets
+     */
+    public boolean intersects(RoleBits other) {
+        int length = Math.min(words.length, other.words.length);
+        for (int i = 0; i < length; i++) {
+            if ((words[i] & other.words[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return words.length == 0;
+    }
+
+    /**
+     * @return the next id in the set at or after fromId, or -1 if there isn't one
+     */
+    public int nextId(int fromId) {
+        int word = fromId >>> 6;
+        if (fromId < 0 || word >= words.length) {
+            return -1;
+        }
+        long remaining = words[word] & (-1L << fromId);
+        while (true) {
+            if (remaining != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(remaining);
+            }
+            if (++word == words.length) {
+                return -1;
+            }
+            remaining = words[word];
+        }
+    }
+
+    int wordCount() {
+        return words.length;
+    }
+
+    long word(int index) {
+        return words[index];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(words, ((RoleBits) o).words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+}
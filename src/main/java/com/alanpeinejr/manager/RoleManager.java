@@ -3,28 +3,469 @@ package com.alanpeinejr.manager;
 import com.alanpeinejr.exception.DuplicateRoleException;
 import com.alanpeinejr.exception.NoSuchRoleException;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Roles change rarely and are read on every token, so changes are serialized and lookups take no lock. Given a
+ * concurrent map for storage it is safe to share between threads. Every change is reported to the StorageListeners while
+ * changes are still serialized.
+ * <p>
+ * A role may include other roles, and whoever holds it holds those too, through any chain of inclusions. Tokens only
+ * carry the roles assigned directly. For each role the set of roles that include it is kept precomputed and updated on
+ * every change, so grants answers in a few word tests however deep the hierarchy is.
+ */
 public class RoleManager {
     private final Map<String, Role> roleStorage;
+    //same roles keyed by UTF-8 name, lets token readers find the canonical Role without building a String
+    private final Map<RoleName, Role> rolesByUtf8Name = new ConcurrentHashMap<>();
+    private final ObjectPool<RoleName> probes = new ObjectPool<>(RoleName::new);
+    //index is the role id. Ids are never reused, so a token holding the id of a deleted role can't gain a new one
+    private final List<Role> rolesById = new CopyOnWriteArrayList<>();
+    private final List<StorageListener> listeners = new CopyOnWriteArrayList<>();
+    //by role id, changed under this manager's lock: the roles each role includes directly, and through any chain
+    private RoleBits[] included = new RoleBits[0];
+    private RoleBits[] descendants = new RoleBits[0];
+    //by role id, the roles that include each role through any chain. Replaced whole on every change so it is read
+    //without a lock
+    private volatile RoleBits[] ancestors = new RoleBits[0];
 
     public RoleManager(Map<String, Role> roleStorage) {
         this.roleStorage = roleStorage;
     }
 
+    public void addListener(StorageListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(StorageListener listener) {
+        listeners.remove(listener);
+    }
+
     public Role createRole(String roleName) throws DuplicateRoleException {
-        if (roleStorage.containsKey(roleName)) {
-            throw new DuplicateRoleException("Role already exists");
+        Role role;
+        synchronized (this) {
+            if (roleStorage.containsKey(roleName)) {
+                throw new DuplicateRoleException("Role already exists");
+            }
+            role = new Role(roleName, rolesById.size());
+            rolesById.add(role);
+            roleStorage.put(roleName, role);
+            roleCreated(role);
         }
-        Role role = new Role(roleName);
-        roleStorage.put(roleName, role);
+        mutationComplete();
         return role;
     }
 
     public void deleteRole(String roleName) throws NoSuchRoleException {
-        if (!roleStorage.containsKey(roleName)) {
+        synchronized (this) {
+            Role role = roleStorage.remove(roleName);
+            if (role == null) {
+                throw new NoSuchRoleException("No Such Role Exists");
+            }
+            //a restore may have given the id to another role since, which keeps it
+            if (role.getId() != Role.UNASSIGNED_ID && rolesById.get(role.getId()) == role) {
+                rolesById.set(role.getId(), null);
+                dropInclusions(role.getId());
+            }
+            rolesByUtf8Name.remove(new RoleName(roleName.getBytes(StandardCharsets.UTF_8)));
+            listeners.forEach(listener -> listener.roleDeleted(role));
+        }
+        mutationComplete();
+    }
+
+    /**
+     * Stores a role under the id it was given when it was created, used to bring back roles that were saved or sent
+     * from elsewhere. Replaces any role with the same name, and removes any role holding the id under another name.
+     */
+    public Role restoreRole(String roleName, int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Role ids are never negative");
+        }
+        Role role = new Role(roleName, id);
+        synchronized (this) {
+            reserveRoleIds(id + 1);
+            Role holder = rolesById.get(id);
+            if (holder != null && !holder.getName().equals(roleName)) {
+                roleStorage.remove(holder.getName(), holder);
+                rolesByUtf8Name.remove(new RoleName(holder.getName().getBytes(StandardCharsets.UTF_8)));
+                dropInclusions(id);
+                listeners.forEach(listener -> listener.roleDeleted(holder));
+            }
+            Role replaced = roleStorage.put(roleName, role);
+            if (replaced != null && replaced.getId() != Role.UNASSIGNED_ID && replaced.getId() != id) {
+                rolesById.set(replaced.getId(), null);
+                dropInclusions(replaced.getId());
+            }
+            rolesById.set(id, role);
+            rolesByUtf8Name.remove(new RoleName(roleName.getBytes(StandardCharsets.UTF_8)));
+            roleCreated(role);
+        }
+        mutationComplete();
+        return role;
+    }
+
+    /**
+     * Makes everyone holding the role hold the included role too, along with every role that includes in turn. Does
+     * nothing if the role already includes it directly
+     *
+     * @throws NoSuchRoleException      If either role doesn't exist
+     * @throws IllegalArgumentException If the included role already includes the role, as a role can't include itself
+     */
+    public void includeRole(String roleName, String includedRoleName) throws NoSuchRoleException {
+        synchronized (this) {
+            Role role = findIndexedRole(roleName);
+            Role includedRole = findIndexedRole(includedRoleName);
+            int id = role.getId();
+            int includedId = includedRole.getId();
+            if (id == includedId || get(descendants, includedId).contains(id)) {
+                throw new IllegalArgumentException("Role " + includedRoleName + " already includes " + roleName);
+            }
+            if (get(included, id).contains(includedId)) {
+                return;
+            }
+            included = set(included, id, get(included, id).with(includedId));
+            //everything that reaches the role now reaches everything the included role reaches
+            RoleBits up = get(ancestors, id).with(id);
+            RoleBits down = get(descendants, includedId).with(includedId);
+            for (int a = up.nextId(0); a >= 0; a = up.nextId(a + 1)) {
+                descendants = set(descendants, a, get(descendants, a).or(down));
+            }
+            RoleBits[] updatedAncestors = Arrays.copyOf(ancestors, Math.max(ancestors.length, rolesById.size()));
+            for (int d = down.nextId(0); d >= 0; d = down.nextId(d + 1)) {
+                updatedAncestors[d] = get(updatedAncestors, d).or(up);
+            }
+            ancestors = updatedAncestors;
+            listeners.forEach(listener -> listener.roleIncluded(role, includedRole));
+        }
+        mutationComplete();
+    }
+
+    /**
+     * Undoes includeRole. Holders keep the included role if another chain of inclusions still gives it to them. Does
+     * nothing if the role doesn't include it directly
+     *
+     * @throws NoSuchRoleException If either role doesn't exist
+     */
+    public void excludeRole(String roleName, String includedRoleName) throws NoSuchRoleException {
+        synchronized (this) {
+            Role role = findIndexedRole(roleName);
+            Role includedRole = findIndexedRole(includedRoleName);
+            int id = role.getId();
+            int includedId = includedRole.getId();
+            if (!get(included, id).contains(includedId)) {
+                return;
+            }
+            RoleBits up = get(ancestors, id).with(id);
+            RoleBits down = get(descendants, includedId).with(includedId);
+            included = set(included, id, get(included, id).without(includedId));
+            recomputeInclusions(up, down);
+            listeners.forEach(listener -> listener.roleExcluded(role, includedRole));
+        }
+        mutationComplete();
+    }
+
+    /**
+     * @return the roles the role includes directly, in id order
+     * @throws NoSuchRoleException If the role doesn't exist
+     */
+    public synchronized List<Role> getIncludedRoles(String roleName) throws NoSuchRoleException {
+        Role role = roleStorage.get(roleName);
+        if (role == null) {
+            throw new NoSuchRoleException("No Such Role Exists");
+        }
+        List<Role> roles = new ArrayList<>();
+        if (role.getId() != Role.UNASSIGNED_ID) {
+            RoleBits ids = get(included, role.getId());
+            for (int id = ids.nextId(0); id >= 0; id = ids.nextId(id + 1)) {
+                roles.add(rolesById.get(id));
+            }
+        }
+        return roles;
+    }
+
+    /**
+     * @return the roles each role includes directly, for every role that includes any, in id order
+     */
+    public synchronized Map<Role, List<Role>> getInclusions() {
+        Map<Role, List<Role>> inclusions = new LinkedHashMap<>();
+        for (int id = 0; id < included.length; id++) {
+            RoleBits ids = get(included, id);
+            if (!ids.isEmpty()) {
+                List<Role> roles = new ArrayList<>();
+                for (int includedId = ids.nextId(0); includedId >= 0; includedId = ids.nextId(includedId + 1)) {
+                    roles.add(rolesById.get(includedId));
+                }
+                inclusions.put(rolesById.get(id), roles);
+            }
+        }
+        return inclusions;
+    }
+
+    /**
+     * @return the names of the roles that include each role through any chain, for every role included by another,
+     * each list in id order
+     */
+    public synchronized Map<String, List<String>> getIncludingRoles() {
+        Map<String, List<String>> including = new LinkedHashMap<>();
+        RoleBits[] current = ancestors;
+        for (int id = 0; id < current.length; id++) {
+            RoleBits ids = get(current, id);
+            if (!ids.isEmpty() && rolesById.get(id) != null) {
+                List<String> names = new ArrayList<>();
+                for (int ancestorId = ids.nextId(0); ancestorId >= 0; ancestorId = ids.nextId(ancestorId + 1)) {
+                    names.add(rolesById.get(ancestorId).getName());
+                }
+                including.put(rolesById.get(id).getName(), names);
+            }
+        }
+        return including;
+    }
+
+    /**
+     * Checks if the token's holder has the role, either assigned directly or through a role that includes it
+     */
+    public boolean grants(Token token, Role role) {
+        Role stored = role.getId() == Role.UNASSIGNED_ID ? roleStorage.get(role.getName()) : role;
+        if (stored == null || stored.getId() == Role.UNASSIGNED_ID) {
+            return token.hasRole(role);
+        }
+        if (token.hasRole(stored)) {
+            return true;
+        }
+        RoleBits granting = get(ancestors, stored.getId());
+        if (granting.isEmpty()) {
+            return false;
+        }
+        if (token.isRolesIndexed()) {
+            return token.getRoleBits().intersects(granting);
+        }
+        for (Role held : token.getRoles()) {
+            Role storedHeld = held == null || held.getId() != Role.UNASSIGNED_ID ? held : roleStorage.get(held.getName());
+            if (storedHeld != null && granting.contains(storedHeld.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes sure new roles get ids of at least idLimit, so ids of roles deleted before a restore are not reused
+     */
+    public synchronized void reserveRoleIds(int idLimit) {
+        while (rolesById.size() < idLimit) {
+            rolesById.add(null);
+        }
+    }
+
+    /**
+     * @return one more than the highest id ever handed out
+     */
+    public synchronized int getRoleIdLimit() {
+        return rolesById.size();
+    }
+
+    /**
+     * @return every stored role that has an id, in id order
+     */
+    public synchronized List<Role> getRoles() {
+        List<Role> roles = new ArrayList<>();
+        for (Role role : rolesById) {
+            if (role != null) {
+                roles.add(role);
+            }
+        }
+        return roles;
+    }
+
+    /**
+     * @return the stored Role with this name, or null if there isn't one
+     */
+    public Role getRole(String roleName) {
+        return roleStorage.get(roleName);
+    }
+
+    /**
+     * @return the stored Role with this id, or null if it was deleted or never existed
+     */
+    public Role getRole(int id) {
+        return id >= 0 && id < rolesById.size() ? rolesById.get(id) : null;
+    }
+
+    /**
+     * Looks up the stored Role whose name is the given UTF-8 bytes, without allocating once the role has been seen
+     *
+     * @return the stored Role, or null if there isn't one
+     */
+    Role internRole(byte[] bytes, int offset, int length) {
+        RoleName name = probes.take().wrap(bytes, offset, length);
+        Role role = rolesByUtf8Name.get(name);
+        name.clear();
+        probes.putBack(name);
+        if (role == null) {
+            String roleName = new String(bytes, offset, length, StandardCharsets.UTF_8);
+            role = roleStorage.get(roleName);
+            if (role != null) {
+                RoleName key = new RoleName(Arrays.copyOfRange(bytes, offset, offset + length));
+                rolesByUtf8Name.put(key, role);
+                //lost a race with deleteRole, don't leave the deleted role behind
+                if (roleStorage.get(roleName) != role) {
+                    rolesByUtf8Name.remove(key, role);
+                }
+            }
+        }
+        return role;
+    }
+
+    private Role findIndexedRole(String roleName) throws NoSuchRoleException {
+        Role role = roleStorage.get(roleName);
+        if (role == null) {
             throw new NoSuchRoleException("No Such Role Exists");
         }
-        roleStorage.remove(roleName);
+        if (role.getId() == Role.UNASSIGNED_ID) {
+            throw new IllegalArgumentException("Only roles created by RoleManager can include other roles");
+        }
+        return role;
+    }
+
+    /**
+     * Removes every inclusion to and from a role that is going away. Callers hold this manager's lock
+     */
+    private void dropInclusions(int id) {
+        RoleBits parents = RoleBits.EMPTY;
+        for (int parent = 0; parent < included.length; parent++) {
+            if (get(included, parent).contains(id)) {
+                parents = parents.with(parent);
+            }
+        }
+        if (parents.isEmpty() && get(included, id).isEmpty()) {
+            return;
+        }
+        RoleBits up = get(ancestors, id).with(id);
+        RoleBits down = get(descendants, id).with(id);
+        for (int parent = parents.nextId(0); parent >= 0; parent = parents.nextId(parent + 1)) {
+            included = set(included, parent, get(included, parent).without(id));
+        }
+        included = set(included, id, RoleBits.EMPTY);
+        recomputeInclusions(up, down);
+    }
+
+    /**
+     * Rebuilds the closures an inclusion being removed may have shrunk: what the roles in up include and what
+     * includes the roles in down. Callers hold this manager's lock
+     */
+    private void recomputeInclusions(RoleBits up, RoleBits down) {
+        for (int a = up.nextId(0); a >= 0; a = up.nextId(a + 1)) {
+            descendants = set(descendants, a, reachableFrom(a));
+        }
+        RoleBits[] updatedAncestors = Arrays.copyOf(ancestors, Math.max(ancestors.length, rolesById.size()));
+        for (int d = down.nextId(0); d >= 0; d = down.nextId(d + 1)) {
+            RoleBits reaching = RoleBits.EMPTY;
+            for (int a = 0; a < descendants.length; a++) {
+                if (get(descendants, a).contains(d)) {
+                    reaching = reaching.with(a);
+                }
+            }
+            updatedAncestors[d] = reaching;
+        }
+        ancestors = updatedAncestors;
+    }
+
+    private RoleBits reachableFrom(int id) {
+        RoleBits reached = RoleBits.EMPTY;
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(id);
+        while (!pending.isEmpty()) {
+            RoleBits next = get(included, pending.pop());
+            for (int child = next.nextId(0); child >= 0; child = next.nextId(child + 1)) {
+                if (!reached.contains(child)) {
+                    reached = reached.with(child);
+                    pending.push(child);
+                }
+            }
+        }
+        return reached;
+    }
+
+    private static RoleBits get(RoleBits[] bits, int id) {
+        RoleBits value = id < bits.length ? bits[id] : null;
+        return value == null ? RoleBits.EMPTY : value;
+    }
+
+    /**
+     * @return bits with the value at id, grown if needed
+     */
+    private static RoleBits[] set(RoleBits[] bits, int id, RoleBits value) {
+        RoleBits[] updated = id < bits.length ? bits : Arrays.copyOf(bits, id + 1);
+        updated[id] = value;
+        return updated;
+    }
+
+    /**
+     * Callers hold this manager's lock
+     */
+    private void roleCreated(Role role) {
+        listeners.forEach(listener -> listener.roleCreated(role));
+    }
+
+    private void mutationComplete() {
+        listeners.forEach(StorageListener::mutationComplete);
+    }
+
+    /**
+     * A role name as a range of UTF-8 bytes, mutable so pooled instances can be reused as lookup keys
+     */
+    private static final class RoleName {
+        private byte[] bytes;
+        private int offset;
+        private int length;
+        private int hash;
+
+        RoleName() {
+        }
+
+        RoleName(byte[] bytes) {
+            wrap(bytes, 0, bytes.length);
+        }
+
+        RoleName wrap(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            int h = 1;
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + bytes[i];
+            }
+            this.hash = h;
+            return this;
+        }
+
+        /**
+         * Drops the reference to the caller's buffer once a lookup is done
+         */
+        void clear() {
+            this.bytes = null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RoleName)) return false;
+            RoleName other = (RoleName) o;
+            return hash == other.hash && Arrays.equals(bytes, offset, offset + length, other.bytes, other.offset, other.offset + other.length);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
     }
 }
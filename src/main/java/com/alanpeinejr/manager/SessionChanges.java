@@ -0,0 +1,120 @@
+package com.alanpeinejr.manager;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Users whose tokens stopped being valid within the last token lifetime, because their session epoch changed or they
+ * were deleted, for the revocation digest token verifiers pull
+ * <p>
+ * Older changes are dropped: any token issued before them has expired since. A user created again after being deleted
+ * is tracked with their new epoch until the deletion ages out. Changes made before tracking started are unknown, see
+ * getTrackingSince. PersistentStorage saves the changes and when tracking started, so a restart carries on tracking
+ * rather than starting over.
+ */
+public class SessionChanges implements StorageListener {
+
+    /**
+     * Session epoch reported for deleted users, no token matches it
+     */
+    public static final long DELETED = -1;
+
+    private final Map<String, Change> changes = new ConcurrentHashMap<>();
+    private final Duration tokenLifetime;
+    private final Clock clock;
+    private volatile Instant trackingSince;
+
+    public SessionChanges(Duration tokenLifetime) {
+        this(tokenLifetime, Clock.systemUTC());
+    }
+
+    SessionChanges(Duration tokenLifetime, Clock clock) {
+        this.tokenLifetime = tokenLifetime;
+        this.clock = clock;
+        this.trackingSince = clock.instant();
+    }
+
+    @Override
+    public void userStored(String username, String password, double salt, List<Role> roles, long sessionEpoch) {
+        //a user never seen before has no old tokens to reject
+        changes.computeIfPresent(username, (name, change) -> new Change(sessionEpoch, clock.instant()));
+    }
+
+    @Override
+    public void userDeleted(String username) {
+        changes.put(username, new Change(DELETED, clock.instant()));
+    }
+
+    @Override
+    public void sessionEpochChanged(String username, long sessionEpoch) {
+        changes.put(username, new Change(sessionEpoch, clock.instant()));
+    }
+
+    /**
+     * @return the current session epoch, or DELETED, of each user changed within the last token lifetime
+     */
+    public Map<String, Long> snapshot() {
+        Instant cutoff = clock.instant().minus(tokenLifetime);
+        changes.values().removeIf(change -> change.changedAt.isBefore(cutoff));
+        Map<String, Long> epochs = new HashMap<>();
+        changes.forEach((username, change) -> epochs.put(username, change.sessionEpoch));
+        return epochs;
+    }
+
+    /**
+     * Brings back a change saved elsewhere, unless a later one for the user is already tracked
+     */
+    public void restoreChange(String username, long sessionEpoch, Instant changedAt) {
+        changes.merge(username, new Change(sessionEpoch, changedAt),
+                (tracked, restored) -> restored.changedAt.isAfter(tracked.changedAt) ? restored : tracked);
+    }
+
+    /**
+     * Moves the start of tracking back to when the saved changes being restored started to be tracked
+     */
+    public synchronized void restoreTrackingSince(Instant trackingSince) {
+        if (trackingSince.isBefore(this.trackingSince)) {
+            this.trackingSince = trackingSince;
+        }
+    }
+
+    /**
+     * Calls the visitor for each change tracked, including ones older than a token lifetime not yet dropped
+     */
+    public void forEachChange(ChangeVisitor visitor) {
+        changes.forEach((username, change) -> visitor.visit(username, change.sessionEpoch, change.changedAt));
+    }
+
+    /**
+     * @return when tracking started, tokens issued before then may belong to sessions changed without being tracked
+     */
+    public Instant getTrackingSince() {
+        return trackingSince;
+    }
+
+    public Duration getTokenLifetime() {
+        return tokenLifetime;
+    }
+
+    /**
+     * Sees a tracked change, see forEachChange
+     */
+    public interface ChangeVisitor {
+        void visit(String username, long sessionEpoch, Instant changedAt);
+    }
+
+    private static final class Change {
+        private final long sessionEpoch;
+        private final Instant changedAt;
+
+        private Change(long sessionEpoch, Instant changedAt) {
+            this.sessionEpoch = sessionEpoch;
+            this.changedAt = changedAt;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.alanpeinejr.manager;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Told about every change UserManager and RoleManager make to storage, after the change is made
+ * <p>
+ * Events for a user are sent while the user's lock is held and role events while the RoleManager's is, so a listener
+ * sees the changes to any one user or role in the order they were made. Listeners must be quick and must not call
+ * back into the managers. Once the changing thread has released its locks it calls mutationComplete, which is where a
+ * listener may block, for example until the change is on disk.
+ */
+public interface StorageListener {
+
+    default void roleCreated(Role role) {
+    }
+
+    default void roleDeleted(Role role) {
+    }
+
+    /**
+     * The role now includes includedRole. Inclusions to and from a deleted role go with it, without events
+     */
+    default void roleIncluded(Role role, Role includedRole) {
+    }
+
+    default void roleExcluded(Role role, Role includedRole) {
+    }
+
+    /**
+     * A user was created or restored with the given state, replacing any user with the same name
+     *
+     * @param password the salted and encrypted password
+     */
+    default void userStored(String username, String password, double salt, List<Role> roles, long sessionEpoch) {
+    }
+
+    default void userDeleted(String username) {
+    }
+
+    /**
+     * @param roles roles the user now has, some of which they may have had already
+     */
+    default void rolesAdded(String username, Collection<Role> roles) {
+    }
+
+    default void roleRemoved(String username, Role role) {
+    }
+
+    default void sessionEpochChanged(String username, long sessionEpoch) {
+    }
+
+    /**
+     * Called by the thread that made a change once it holds no locks, after the change's events
+     */
+    default void mutationComplete() {
+    }
+}
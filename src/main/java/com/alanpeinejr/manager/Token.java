@@ -9,12 +9,46 @@ public class Token {
     private final String username;
     private final List<Role> roles;
     private final Instant expiration;
+    //the user's session epoch when the token was issued, the token dies once the user's epoch moves on
+    private final long session;
+    //picked at random when the token is issued so this one token can be revoked, 0 for tokens issued without one
+    private final long id;
+    private final RoleBits roleBits;
+    //true when roleBits holds every role, so a missing bit means the role is missing
+    private final boolean rolesIndexed;
 
 
     public Token(String username, List<Role> roles, Instant expiration) {
+        this(username, roles, expiration, 0);
+    }
+
+    public Token(String username, List<Role> roles, Instant expiration, long session) {
+        this(username, roles, expiration, session, 0);
+    }
+
+    public Token(String username, List<Role> roles, Instant expiration, long session, long id) {
+        this.username = username;
+        this.roles = roles;
+        this.expiration = expiration;
+        this.session = session;
+        this.id = id;
+        //one pass over the roles in the usual case where they all have ids
+        RoleBits indexed = RoleBits.ofIndexed(roles);
+        this.roleBits = indexed == null ? RoleBits.of(roles) : indexed;
+        this.rolesIndexed = indexed != null;
+    }
+
+    /**
+     * @param roleBits ids of all the roles in roles, used as is
+     */
+    Token(String username, List<Role> roles, RoleBits roleBits, Instant expiration, long session, long id) {
         this.username = username;
         this.roles = roles;
         this.expiration = expiration;
+        this.session = session;
+        this.id = id;
+        this.roleBits = roleBits;
+        this.rolesIndexed = true;
     }
 
     public String getUsername() {
@@ -29,16 +63,42 @@ public class Token {
         return expiration;
     }
 
+    public long getSession() {
+        return session;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public RoleBits getRoleBits() {
+        return roleBits;
+    }
+
+    boolean isRolesIndexed() {
+        return rolesIndexed;
+    }
+
+    /**
+     * A bit test for roles created by RoleManager, falls back to comparing names for any other role
+     */
+    public boolean hasRole(Role role) {
+        if (rolesIndexed && role.getId() != Role.UNASSIGNED_ID) {
+            return roleBits.contains(role.getId());
+        }
+        return roles.contains(role);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Token token = (Token) o;
-        return Objects.equals(username, token.username) && Objects.equals(roles, token.roles) && Objects.equals(expiration, token.expiration);
+        return Objects.equals(username, token.username) && Objects.equals(roles, token.roles) && Objects.equals(expiration, token.expiration) && session == token.session && id == token.id;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(username, roles, expiration);
+        return Objects.hash(username, roles, expiration, session, id);
     }
 }
@@ -0,0 +1,134 @@
+package com.alanpeinejr.manager;
+
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded, thread safe cache of already read Tokens keyed by their token string
+ * <p>
+ * A token string always reads to the same Token, so a cached entry can never be wrong, only stale. The cache only saves
+ * decrypting and parsing; callers must still check the user behind the token is live. Entries leave the cache when their
+ * token expires, when the user they belong to changes, or when the cache is full.
+ * <p>
+ * A full cache is cut back by a tenth of its size at once, so the scan that finds expired tokens runs once per batch
+ * of puts rather than on every one. Puts racing an eviction may take the cache briefly over its size.
+ */
+public class TokenCache {
+
+    private final int maxSize;
+    //entries left after an eviction
+    private final int lowWaterMark;
+    private final Clock clock;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final Map<String, Token> tokens = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> tokensByUser = new ConcurrentHashMap<>();
+
+    public TokenCache(int maxSize) {
+        this(maxSize, Clock.systemUTC());
+    }
+
+    TokenCache(int maxSize, Clock clock) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache must hold at least one token");
+        }
+        this.maxSize = maxSize;
+        this.lowWaterMark = maxSize - Math.max(1, maxSize / 10);
+        this.clock = clock;
+    }
+
+    /**
+     * @return the cached Token, or null if it isn't cached or has expired
+     */
+    public Token get(String tokenString) {
+        Token token = tokens.get(tokenString);
+        if (token != null && isExpired(token)) {
+            remove(tokenString);
+            return null;
+        }
+        return token;
+    }
+
+    /**
+     * Caches the token, expired tokens are ignored
+     */
+    public void put(String tokenString, Token token) {
+        if (isExpired(token)) {
+            return;
+        }
+        if (tokens.size() >= maxSize) {
+            evict();
+        }
+        tokens.put(tokenString, token);
+        tokensByUser.compute(token.getUsername(), (username, userTokens) -> {
+            Set<String> updated = userTokens == null ? ConcurrentHashMap.newKeySet() : userTokens;
+            updated.add(tokenString);
+            return updated;
+        });
+    }
+
+    /**
+     * Drops every cached token belonging to the user
+     */
+    public void invalidateUser(String username) {
+        Set<String> userTokens = tokensByUser.remove(username);
+        if (userTokens != null) {
+            userTokens.forEach(tokens::remove);
+        }
+    }
+
+    /**
+     * Drops every cached token carrying the role
+     */
+    public void invalidateRole(Role role) {
+        tokens.forEach((tokenString, token) -> {
+            if (token.getRoles().contains(role)) {
+                remove(tokenString);
+            }
+        });
+    }
+
+    public int size() {
+        return tokens.size();
+    }
+
+    /**
+     * Cuts the cache back to the low water mark, expired tokens go first, then whatever the map iterates first. Only
+     * one thread evicts at a time, the others carry on with their puts
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            tokens.forEach((tokenString, token) -> {
+                if (isExpired(token)) {
+                    remove(tokenString);
+                }
+            });
+            Iterator<String> iterator = tokens.keySet().iterator();
+            while (tokens.size() > lowWaterMark && iterator.hasNext()) {
+                remove(iterator.next());
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private void remove(String tokenString) {
+        Token token = tokens.remove(tokenString);
+        if (token != null) {
+            tokensByUser.computeIfPresent(token.getUsername(), (username, userTokens) -> {
+                userTokens.remove(tokenString);
+                return userTokens.isEmpty() ? null : userTokens;
+            });
+        }
+    }
+
+    private boolean isExpired(Token token) {
+        return token.getExpiration().isBefore(clock.instant());
+    }
+}
@@ -0,0 +1,16 @@
+package com.alanpeinejr.manager;
+
+/**
+ * Wire formats TokenManager can write tokens in. Reading detects the format, so switching formats doesn't break tokens
+ * already handed out.
+ */
+public enum TokenFormat {
+    /**
+     * Gson serialized Token, readable by anyone with the decryptor
+     */
+    JSON,
+    /**
+     * Versioned binary layout, see BinaryTokenCodec. Smaller and cheaper to read than JSON
+     */
+    BINARY
+}
@@ -0,0 +1,350 @@
+package com.alanpeinejr.manager;
+
+import com.google.gson.JsonSyntaxException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a JSON token straight from its decrypted UTF-8 bytes
+ * <p>
+ * Gson reads through a Reader, a char buffer and reflection. This walks the bytes once, compares keys as bytes and
+ * hands role names to RoleManager so known roles come back as their stored instance. Parsers are pooled, so
+ * reading a token allocates only the Token, its username, its role list and its expiration.
+ * Unknown keys are skipped, so tokens with extra fields still read.
+ */
+final class TokenJsonParser {
+
+    private static final byte[] USERNAME = "username".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ROLES = "roles".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EXPIRATION = "expiration".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SESSION = "session".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ID = "id".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NAME = "name".getBytes(StandardCharsets.UTF_8);
+    private static final ObjectPool<TokenJsonParser> PARSERS = new ObjectPool<>(TokenJsonParser::new);
+
+    private byte[] bytes;
+    private int position;
+    private int end;
+    //bounds of the last string read, only valid until the next one
+    private int stringStart;
+    private int stringEnd;
+    private boolean stringEscaped;
+
+    private TokenJsonParser() {
+    }
+
+    /**
+     * @param roleManager used to find stored Roles by name, null to always create new Roles
+     * @throws JsonSyntaxException If the bytes are not a JSON token
+     */
+    static Token parse(byte[] bytes, int offset, int length, RoleManager roleManager) throws JsonSyntaxException {
+        TokenJsonParser parser = PARSERS.take();
+        parser.bytes = bytes;
+        parser.position = offset;
+        parser.end = offset + length;
+        try {
+            return parser.readToken(roleManager);
+        } finally {
+            parser.bytes = null;
+            PARSERS.putBack(parser);
+        }
+    }
+
+    private Token readToken(RoleManager roleManager) {
+        String username = null;
+        List<Role> roles = null;
+        Instant expiration = null;
+        long session = 0;
+        long id = 0;
+
+        expect('{');
+        if (!consumeIf('}')) {
+            do {
+                readString();
+                expect(':');
+                if (stringIs(USERNAME)) {
+                    username = readNullableString();
+                } else if (stringIs(ROLES)) {
+                    roles = readRoles(roleManager);
+                } else if (stringIs(EXPIRATION)) {
+                    expiration = isNull() ? null : Instant.ofEpochSecond(readLong());
+                } else if (stringIs(SESSION)) {
+                    session = readLong();
+                } else if (stringIs(ID)) {
+                    id = readLong();
+                } else {
+                    skipValue();
+                }
+            } while (consumeIf(','));
+            expect('}');
+        }
+        skipWhitespace();
+        if (position != end) {
+            throw syntaxError("Unexpected data after token");
+        }
+        if (username == null || expiration == null) {
+            throw new JsonSyntaxException("Token is missing its username or expiration");
+        }
+        return new Token(username, roles == null ? new ArrayList<>(0) : roles, expiration, session, id);
+    }
+
+    private List<Role> readRoles(RoleManager roleManager) {
+        if (isNull()) {
+            return null;
+        }
+        expect('[');
+        List<Role> roles = new ArrayList<>();
+        if (!consumeIf(']')) {
+            do {
+                roles.add(readRole(roleManager));
+            } while (consumeIf(','));
+            expect(']');
+        }
+        return roles;
+    }
+
+    private Role readRole(RoleManager roleManager) {
+        Role role = null;
+        expect('{');
+        if (!consumeIf('}')) {
+            do {
+                readString();
+                expect(':');
+                if (stringIs(NAME)) {
+                    role = isNull() ? null : readRoleName(roleManager);
+                } else {
+                    skipValue();
+                }
+            } while (consumeIf(','));
+            expect('}');
+        }
+        return role == null ? new Role(null) : role;
+    }
+
+    private Role readRoleName(RoleManager roleManager) {
+        readString();
+        Role role = null;
+        if (roleManager != null && !stringEscaped) {
+            role = roleManager.internRole(bytes, stringStart, stringEnd - stringStart);
+        }
+        return role == null ? new Role(decodeString()) : role;
+    }
+
+    private String readNullableString() {
+        if (isNull()) {
+            return null;
+        }
+        readString();
+        return decodeString();
+    }
+
+    /**
+     * Reads a string, leaving its raw bounds in stringStart and stringEnd
+     */
+    private void readString() {
+        expect('"');
+        stringStart = position;
+        stringEscaped = false;
+        while (true) {
+            byte b = next();
+            if (b == '"') {
+                stringEnd = position - 1;
+                return;
+            }
+            if (b == '\\') {
+                stringEscaped = true;
+                next();
+            }
+        }
+    }
+
+    private String decodeString() {
+        String raw = new String(bytes, stringStart, stringEnd - stringStart, StandardCharsets.UTF_8);
+        return stringEscaped ? unescape(raw) : raw;
+    }
+
+    private boolean stringIs(byte[] expected) {
+        if (stringEscaped) {
+            return decodeString().equals(new String(expected, StandardCharsets.UTF_8));
+        }
+        int length = stringEnd - stringStart;
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[stringStart + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long readLong() {
+        skipWhitespace();
+        boolean negative = consumeIf('-');
+        long value = 0;
+        int digits = 0;
+        while (position < end && bytes[position] >= '0' && bytes[position] <= '9') {
+            if (value > (Long.MAX_VALUE - 9) / 10) {
+                throw syntaxError("Number too large");
+            }
+            value = value * 10 + (bytes[position++] - '0');
+            digits++;
+        }
+        if (digits == 0) {
+            throw syntaxError("Expected a number");
+        }
+        return negative ? -value : value;
+    }
+
+    private void skipValue() {
+        skipWhitespace();
+        if (position >= end) {
+            throw syntaxError("Unexpected end of token");
+        }
+        byte b = bytes[position];
+        switch (b) {
+            case '"':
+                readString();
+                break;
+            case '{':
+            case '[':
+                skipNested();
+                break;
+            case 't':
+                skipLiteral("true");
+                break;
+            case 'f':
+                skipLiteral("false");
+                break;
+            case 'n':
+                skipLiteral("null");
+                break;
+            default:
+                int start = position;
+                while (position < end && "+-.0123456789eE".indexOf(bytes[position]) >= 0) {
+                    position++;
+                }
+                if (start == position) {
+                    throw syntaxError("Unexpected character");
+                }
+        }
+    }
+
+    private void skipNested() {
+        int depth = 0;
+        do {
+            byte b = next();
+            if (b == '"') {
+                position--;
+                readString();
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+            }
+        } while (depth > 0);
+    }
+
+    private void skipLiteral(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (next() != literal.charAt(i)) {
+                throw syntaxError("Unexpected character");
+            }
+        }
+    }
+
+    /**
+     * Consumes a null literal if one is next
+     */
+    private boolean isNull() {
+        skipWhitespace();
+        if (position < end && bytes[position] == 'n') {
+            skipLiteral("null");
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        skipWhitespace();
+        if (next() != c) {
+            throw syntaxError("Expected '" + c + "'");
+        }
+    }
+
+    private boolean consumeIf(char c) {
+        skipWhitespace();
+        if (position < end && bytes[position] == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private byte next() {
+        if (position >= end) {
+            throw syntaxError("Unexpected end of token");
+        }
+        return bytes[position++];
+    }
+
+    private void skipWhitespace() {
+        while (position < end && (bytes[position] == ' ' || bytes[position] == '\n' || bytes[position] == '\r' || bytes[position] == '\t')) {
+            position++;
+        }
+    }
+
+    private JsonSyntaxException syntaxError(String message) {
+        return new JsonSyntaxException(message + " at offset " + position);
+    }
+
+    private static String unescape(String raw) {
+        StringBuilder builder = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (++i >= raw.length()) {
+                throw new JsonSyntaxException("Unterminated escape");
+            }
+            char escaped = raw.charAt(i);
+            switch (escaped) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= raw.length()) {
+                        throw new JsonSyntaxException("Unterminated escape");
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException e) {
+                        throw new JsonSyntaxException("Malformed unicode escape", e);
+                    }
+                    i += 4;
+                    break;
+                default:
+                    builder.append(escaped);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package com.alanpeinejr.manager;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams Tokens and their Roles to JSON without reflection, reading them back is TokenJsonParser's job
+ * <p>
+ * Expiration is written as epoch seconds, and the id left out for tokens without one:
+ * {"username":"name","roles":[{"name":"role"}],"expiration":1700000000,"session":0,"id":-4962768465676381896}
+ */
+final class TokenJsonWriter {
+
+    private TokenJsonWriter() {
+    }
+
+    /**
+     * @return the token as UTF-8 JSON, null fields left out
+     */
+    static byte[] toJson(Token token) {
+        StringWriter json = new StringWriter();
+        JsonWriter out = new JsonWriter(json);
+        out.setSerializeNulls(false);
+        out.setHtmlSafe(true);
+        try {
+            write(out, token);
+        } catch (IOException e) {
+            //a StringWriter doesn't throw
+            throw new UncheckedIOException(e);
+        }
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void write(JsonWriter out, Token token) throws IOException {
+        if (token == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("username").value(token.getUsername());
+        out.name("roles");
+        if (token.getRoles() == null) {
+            out.nullValue();
+        } else {
+            out.beginArray();
+            for (Role role : token.getRoles()) {
+                writeRole(out, role);
+            }
+            out.endArray();
+        }
+        out.name("expiration");
+        if (token.getExpiration() == null) {
+            out.nullValue();
+        } else {
+            out.value(token.getExpiration().getEpochSecond());
+        }
+        out.name("session").value(token.getSession());
+        if (token.getId() != 0) {
+            out.name("id").value(token.getId());
+        }
+        out.endObject();
+    }
+
+    private static void writeRole(JsonWriter out, Role role) throws IOException {
+        if (role == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("name").value(role.getName());
+        out.endObject();
+    }
+}
@@ -2,61 +2,128 @@ package com.alanpeinejr.manager;
 
 import com.alanpeinejr.encryption.IDecrypt;
 import com.alanpeinejr.encryption.IEncrypt;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSerializer;
-import com.google.gson.JsonSerializationContext;
+import com.alanpeinejr.jfr.TokenParseEvent;
 import com.google.gson.JsonSyntaxException;
 
-
-import java.lang.reflect.Type;
-import java.time.Instant;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
 
 /**
  * Encrypts and decrypts, serializes, deserializes to give you tokens.
  */
 public class TokenManager {
 
-    private final Gson gson;
+    //buffers tokens are decrypted into, so reading a token allocates nothing but the Token
+    private static final ObjectPool<ByteBuffer> DECRYPT_BUFFERS = new ObjectPool<>(() -> ByteBuffer.allocate(512));
+    //a buffer grown for a huge token isn't kept
+    private static final int MAX_RETAINED_BUFFER_BYTES = 8192;
+
     private final int tokenLifeTimeSeconds;
+    private final TokenFormat tokenFormat;
+    private final RoleManager roleManager;
+    private LongSupplier tokenIds = TokenManager::randomTokenId;
 
     public TokenManager(int tokenLifeTimeSeconds) {
-        GsonBuilder gsonBuilder = new GsonBuilder();
-        gsonBuilder.registerTypeAdapter(Instant.class, new InstantTypeConverter());
-        gson = gsonBuilder.create();
+        this(tokenLifeTimeSeconds, TokenFormat.JSON);
+    }
+
+    /**
+     * @param tokenFormat format new tokens are written in, tokens in any format can still be read
+     */
+    public TokenManager(int tokenLifeTimeSeconds, TokenFormat tokenFormat) {
+        this(tokenLifeTimeSeconds, tokenFormat, null);
+    }
+
+    /**
+     * @param tokenFormat format new tokens are written in, tokens in any format can still be read
+     * @param roleManager Roles read from tokens are swapped for the instances it stores, may be null
+     */
+    public TokenManager(int tokenLifeTimeSeconds, TokenFormat tokenFormat, RoleManager roleManager) {
         this.tokenLifeTimeSeconds = tokenLifeTimeSeconds;
+        this.tokenFormat = tokenFormat;
+        this.roleManager = roleManager;
     }
 
     public String getTokenString(User user, IEncrypt encryptor) {
-        String jsonToken = gson.toJson(new Token(user.getUsername(), user.getRoles(), user.getLoginTime().plusSeconds(tokenLifeTimeSeconds)));
-        return encryptor.encrypt(jsonToken);
+        Token token = new Token(user.getUsername(), user.getRoles(), user.getLoginTime().plusSeconds(tokenLifeTimeSeconds), user.getSessionEpoch(), tokenIds.getAsLong());
+        if (tokenFormat == TokenFormat.BINARY) {
+            return encryptor.encrypt(BinaryTokenCodec.encode(token, roleManager != null));
+        }
+        return encryptor.encrypt(TokenJsonWriter.toJson(token));
     }
 
+    /**
+     * Reads a token written in any TokenFormat
+     *
+     * @throws JsonSyntaxException If token provided cannot be read
+     */
     public Token readTokenString(String token, IDecrypt decryptor) throws JsonSyntaxException {
-        return gson.fromJson(decryptor.decrypt(token), Token.class);
+        ByteBuffer pooled = DECRYPT_BUFFERS.take();
+        ByteBuffer decrypted = null;
+        try {
+            decrypted = decryptor.decrypt(token, pooled);
+            return readToken(decrypted);
+        } finally {
+            DECRYPT_BUFFERS.putBack(decrypted != null && decrypted.capacity() <= MAX_RETAINED_BUFFER_BYTES ? decrypted : pooled);
+        }
     }
 
-
     /**
-     * Private class to serialize instants into just an epoch sec long.
+     * Reads a token, already decrypted, in any TokenFormat from the buffer's remaining bytes. The buffer is not kept, so
+     * it can be reused as soon as this returns
+     *
+     * @throws JsonSyntaxException If token provided cannot be read
      */
-    private static class InstantTypeConverter
-            implements JsonSerializer<Instant>, JsonDeserializer<Instant> {
-        @Override
-        public JsonElement serialize(Instant src, Type srcType, JsonSerializationContext context) {
-            return new JsonPrimitive(src.getEpochSecond());
+    public Token readToken(ByteBuffer decrypted) throws JsonSyntaxException {
+        byte[] bytes;
+        int offset;
+        int length = decrypted.remaining();
+        if (decrypted.hasArray()) {
+            bytes = decrypted.array();
+            offset = decrypted.arrayOffset() + decrypted.position();
+        } else {
+            bytes = new byte[length];
+            offset = 0;
+            decrypted.duplicate().get(bytes);
         }
-
-        @Override
-        public Instant deserialize(JsonElement json, Type type, JsonDeserializationContext context)
-                throws JsonParseException {
-            return Instant.ofEpochSecond(json.getAsLong());
+        boolean binary = BinaryTokenCodec.isBinary(bytes, offset, length);
+        TokenParseEvent event = new TokenParseEvent();
+        event.begin();
+        Token parsed = null;
+        try {
+            parsed = binary ? BinaryTokenCodec.decode(bytes, offset, length, roleManager)
+                    : TokenJsonParser.parse(bytes, offset, length, roleManager);
+            return parsed;
+        } finally {
+            event.end((binary ? TokenFormat.BINARY : TokenFormat.JSON).name(), length, parsed == null ? -1 : parsed.getRoles().size());
         }
     }
 
+    /**
+     * Replaces the random token ids, for tests that need tokens to come out the same every time
+     */
+    void setTokenIds(LongSupplier tokenIds) {
+        this.tokenIds = tokenIds;
+    }
+
+    /**
+     * @return a random id, never 0 since that marks tokens issued without one
+     */
+    private static long randomTokenId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    public int getTokenLifeTimeSeconds() {
+        return tokenLifeTimeSeconds;
+    }
+
+    public TokenFormat getTokenFormat() {
+        return tokenFormat;
+    }
+
 }
@@ -3,6 +3,7 @@ package com.alanpeinejr.manager;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Main API for the User
@@ -14,15 +15,21 @@ import java.util.List;
 public class User {
 
     private final double salt;
-    private String username;
-    private String password;
-    private List<Role> roles;
-    private Instant loginTime;
+    private volatile String username;
+    private volatile String password;
+    //UserManager swaps in a new list rather than changing this one, so readers never see it mid change
+    private volatile List<Role> roles;
+    //ids of the roles above that have one, kept in step by UserManager
+    private volatile RoleBits roleBits;
+    private volatile Instant loginTime;
+    //bumped to invalidate every token issued so far, tokens carry the value they were issued under
+    private final AtomicLong sessionEpoch = new AtomicLong();
 
     public User(String username, String esPassword, double salt, List<Role> roles) {
         this.username = username;
         this.password = esPassword;
         this.roles = roles;
+        this.roleBits = RoleBits.of(roles);
         this.salt = salt;
     }
 
@@ -59,6 +66,14 @@ public class User {
         this.roles = roles;
     }
 
+    protected RoleBits getRoleBits() {
+        return roleBits;
+    }
+
+    protected void setRoleBits(RoleBits roleBits) {
+        this.roleBits = roleBits;
+    }
+
     public Instant getLoginTime() {
         return loginTime;
     }
@@ -66,4 +81,19 @@ public class User {
     protected void setLoginTime(Instant loginTime) {
         this.loginTime = loginTime;
     }
+
+    public long getSessionEpoch() {
+        return sessionEpoch.get();
+    }
+
+    /**
+     * @return the new epoch
+     */
+    protected long nextSessionEpoch() {
+        return sessionEpoch.incrementAndGet();
+    }
+
+    protected void setSessionEpoch(long sessionEpoch) {
+        this.sessionEpoch.set(sessionEpoch);
+    }
 }
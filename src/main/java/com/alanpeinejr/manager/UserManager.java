@@ -3,67 +3,585 @@ package com.alanpeinejr.manager;
 import com.alanpeinejr.encryption.IEncrypt;
 import com.alanpeinejr.exception.DuplicateUserException;
 import com.alanpeinejr.exception.NoSuchUserException;
+import com.alanpeinejr.jfr.PasswordHashEvent;
 
 import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * Changes to a user happen under a lock striped by username, so they are atomic against each other and, given a
+ * concurrent map for storage, safe to call from many threads. Password hashing happens outside the lock.
+ * Every change is reported to the StorageListeners, under the same lock.
+ * <p>
+ * Users are read from storage under their lock and put back after every change, so storage may hand out copies
+ * rather than keep the User objects themselves.
+ * <p>
+ * Users may still be loading, see setPendingUsers, while the manager is in use. Calls about one user then wait for
+ * that user and calls about many users wait for them all.
+ * <p>
+ * By default the manager keeps an index on the heap from each role to the usernames holding it. Without the index,
+ * for storage kept off the heap, finding a role's members scans storage instead.
+ */
 public class UserManager {
 
+    private static final int LOCK_STRIPES = 64;
+
     private final Map<String, User> userStorage;
+    //role name to the usernames holding it, sorted so members can be paged through. Null when not indexed
+    private final Map<String, NavigableSet<String>> roleMembers;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final List<StorageListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile PendingUsers pendingUsers;
 
+    /**
+     * @param userStorage may already hold users, their roles are indexed here. Must be a concurrent map if the
+     *                    manager is shared between threads
+     */
     public UserManager(Map<String, User> userStorage) {
+        this(userStorage, true);
+    }
+
+    /**
+     * @param indexRoleMembers false to keep no role index, so nothing is held on the heap per user
+     */
+    public UserManager(Map<String, User> userStorage, boolean indexRoleMembers) {
         this.userStorage = userStorage;
+        this.roleMembers = indexRoleMembers ? new ConcurrentHashMap<>() : null;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        if (indexRoleMembers) {
+            userStorage.forEach((username, user) -> user.getRoles().forEach(role -> indexMember(role, username)));
+        }
+    }
+
+    public void addListener(StorageListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(StorageListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Lets the manager be used while users are still being loaded into storage, with loadUser
+     *
+     * @param pendingUsers waits for the users still loading, null once they are all stored
+     */
+    public void setPendingUsers(PendingUsers pendingUsers) {
+        this.pendingUsers = pendingUsers;
+    }
+
+    /**
+     * Returns once the user is in storage if it is still loading, for callers that read storage directly
+     */
+    public void awaitUser(String username) {
+        PendingUsers pending = pendingUsers;
+        if (pending != null) {
+            pending.awaitUser(username);
+        }
+    }
+
+    /**
+     * Returns once every user still loading is in storage
+     */
+    public void awaitAllUsers() {
+        PendingUsers pending = pendingUsers;
+        if (pending != null) {
+            pending.awaitAll();
+        }
     }
 
     public User createUser(String username, String password, IEncrypt encryptor) throws DuplicateUserException {
+        awaitUser(username);
         if (userStorage.containsKey(username)) {
             throw new DuplicateUserException("User already exists");
         }
         double salt = Math.random();
         User user = new User(username, encryptor.encrypt(password + salt), salt);
-        userStorage.put(username, user);
+        user.setSessionEpoch(firstSessionEpoch());
+        synchronized (lockFor(username)) {
+            if (userStorage.putIfAbsent(username, user) != null) {
+                throw new DuplicateUserException("User already exists");
+            }
+            userStored(user);
+        }
+        mutationComplete();
         return user;
     }
 
+    /**
+     * Creates every user or none of them. Passwords are all hashed before any user is stored, if a username turns out
+     * to be taken the users already stored by this call are removed again.
+     *
+     * @param passwords password for each username, users are returned in the map's iteration order
+     */
+    public List<User> createUsers(Map<String, String> passwords, IEncrypt encryptor) throws DuplicateUserException {
+        for (String username : passwords.keySet()) {
+            awaitUser(username);
+            if (userStorage.containsKey(username)) {
+                throw new DuplicateUserException("User already exists");
+            }
+        }
+        List<User> users = new ArrayList<>(passwords.size());
+        passwords.forEach((username, password) -> {
+            double salt = Math.random();
+            User user = new User(username, encryptor.encrypt(password + salt), salt);
+            user.setSessionEpoch(firstSessionEpoch());
+            users.add(user);
+        });
+        for (int i = 0; i < users.size(); i++) {
+            User user = users.get(i);
+            boolean stored;
+            synchronized (lockFor(user.getUsername())) {
+                stored = userStorage.putIfAbsent(user.getUsername(), user) == null;
+                if (stored) {
+                    userStored(user);
+                }
+            }
+            if (!stored) {
+                for (User created : users.subList(0, i)) {
+                    synchronized (lockFor(created.getUsername())) {
+                        if (userStorage.remove(created.getUsername(), created)) {
+                            listeners.forEach(listener -> listener.userDeleted(created.getUsername()));
+                        }
+                    }
+                }
+                mutationComplete();
+                throw new DuplicateUserException("User already exists");
+            }
+        }
+        mutationComplete();
+        return users;
+    }
+
+    /**
+     * A new user's first session epoch, picked at random from 2^62 values. Tokens carry the epoch they were issued
+     * under, so a user deleted and created again under the same name doesn't take over the old user's tokens.
+     */
+    private static long firstSessionEpoch() {
+        //positive and far from the top, so invalidations can go on counting up
+        return ThreadLocalRandom.current().nextLong(1L << 62);
+    }
+
     public void deleteUser(String username) throws NoSuchUserException {
-        if (!userStorage.containsKey(username)) {
-            throw new NoSuchUserException("No Such User Exists");
+        awaitUser(username);
+        synchronized (lockFor(username)) {
+            User user = userStorage.remove(username);
+            if (user == null) {
+                throw new NoSuchUserException("No Such User Exists");
+            }
+            user.getRoles().forEach(role -> unindexMember(role, username));
+            listeners.forEach(listener -> listener.userDeleted(username));
         }
-        userStorage.remove(username);
+        mutationComplete();
+    }
+
+    /**
+     * Stores a user whose password is already salted and encrypted, replacing any user with the same name. Used to
+     * bring back users that were saved or sent from elsewhere.
+     *
+     * @param password     the salted and encrypted password
+     * @param sessionEpoch tokens issued for an earlier epoch stay invalid
+     */
+    public User restoreUser(String username, String password, double salt, List<Role> roles, long sessionEpoch) {
+        awaitUser(username);
+        User user = storeUser(username, password, salt, roles, sessionEpoch, true);
+        mutationComplete();
+        return user;
+    }
 
+    /**
+     * Stores a user that is being loaded, see setPendingUsers. As restoreUser, but not reported to the
+     * StorageListeners since it is already saved wherever it is loaded from
+     */
+    public void loadUser(String username, String password, double salt, List<Role> roles, long sessionEpoch) {
+        storeUser(username, password, salt, roles, sessionEpoch, false);
     }
 
-    public void addRoleToUser(User user, Role role) throws NoSuchUserException {
-        if (!user.getRoles().contains(role)) {
-            user.getRoles().add(role);
+    private User storeUser(String username, String password, double salt, List<Role> roles, long sessionEpoch, boolean report) {
+        User user = new User(username, password, salt, new ArrayList<>(roles));
+        user.setSessionEpoch(sessionEpoch);
+        synchronized (lockFor(username)) {
+            User replaced = userStorage.put(username, user);
+            if (replaced != null) {
+                replaced.getRoles().forEach(role -> unindexMember(role, username));
+            }
+            user.getRoles().forEach(role -> indexMember(role, username));
+            if (report) {
+                userStored(user);
+            }
         }
-        if (!userStorage.containsKey(user.getUsername())) {
+        return user;
+    }
+
+    public void addRoleToUser(User user, Role role) throws NoSuchUserException {
+        addRolesToUser(user, List.of(role));
+    }
+
+    /**
+     * Adds the roles under one lock, copying the user's role list once however many roles there are
+     */
+    public void addRolesToUser(User user, Collection<Role> roles) throws NoSuchUserException {
+        addRoles(user, roles);
+        mutationComplete();
+    }
+
+    /**
+     * Adds the roles to the stored user with this name
+     */
+    public void addRolesToUser(String username, Collection<Role> roles) throws NoSuchUserException {
+        awaitUser(username);
+        User user = userStorage.get(username);
+        if (user == null) {
             throw new NoSuchUserException("Cannot add Role to a user that doesn't exist");
         }
-        userStorage.put(user.getUsername(), user);
+        addRolesToUser(user, roles);
+    }
+
+    private void addRoles(User given, Collection<Role> roles) throws NoSuchUserException {
+        awaitUser(given.getUsername());
+        synchronized (lockFor(given.getUsername())) {
+            User user = userStorage.get(given.getUsername());
+            if (user == null) {
+                throw new NoSuchUserException("Cannot add Role to a user that doesn't exist");
+            }
+            List<Role> updatedRoles = null;
+            RoleBits updatedBits = user.getRoleBits();
+            for (Role role : roles) {
+                if (role.getId() != Role.UNASSIGNED_ID && updatedBits.contains(role.getId())) {
+                    continue;
+                }
+                List<Role> current = updatedRoles == null ? user.getRoles() : updatedRoles;
+                int index = current.indexOf(role);
+                //already held under the same name, only an id the held Role lacks needs recording
+                if (index < 0 || (role.getId() != Role.UNASSIGNED_ID && current.get(index).getId() == Role.UNASSIGNED_ID)) {
+                    if (updatedRoles == null) {
+                        updatedRoles = new ArrayList<>(user.getRoles());
+                    }
+                    if (index < 0) {
+                        updatedRoles.add(role);
+                    } else {
+                        updatedRoles.set(index, role);
+                    }
+                }
+                if (role.getId() != Role.UNASSIGNED_ID) {
+                    updatedBits = updatedBits.with(role.getId());
+                }
+            }
+            if (updatedRoles != null) {
+                user.setRoles(updatedRoles);
+            }
+            user.setRoleBits(updatedBits);
+            userStorage.put(user.getUsername(), user);
+            for (Role role : roles) {
+                indexMember(role, user.getUsername());
+            }
+            listeners.forEach(listener -> listener.rolesAdded(user.getUsername(), roles));
+        }
     }
 
+    /**
+     * Removes the role from every stored user, whether or not the role index knows about them
+     */
     public void removeRoleFromAllUsers(Role role) {
-        userStorage.forEach((s, user) -> user.getRoles().remove(role));
+        awaitAllUsers();
+        userStorage.forEach((username, seen) -> {
+            synchronized (lockFor(username)) {
+                User user = userStorage.get(username);
+                if (user != null) {
+                    removeRole(user, role);
+                }
+            }
+        });
+        if (roleMembers != null) {
+            roleMembers.remove(role.getName());
+        }
+        mutationComplete();
     }
 
+    /**
+     * Removes the role from one stored user
+     */
+    public void removeRoleFromUser(String username, Role role) throws NoSuchUserException {
+        awaitUser(username);
+        synchronized (lockFor(username)) {
+            User user = userStorage.get(username);
+            if (user == null) {
+                throw new NoSuchUserException("No Such User Exists");
+            }
+            removeRole(user, role);
+            unindexMember(role, username);
+        }
+        mutationComplete();
+    }
+
+    /**
+     * Removes the role from the users the role index lists as holding it, touching no other user. Without the index
+     * this is removeRoleFromAllUsers
+     */
+    public void removeRoleFromMembers(Role role) {
+        if (roleMembers == null) {
+            removeRoleFromAllUsers(role);
+            return;
+        }
+        awaitAllUsers();
+        NavigableSet<String> members = roleMembers.remove(role.getName());
+        if (members == null) {
+            return;
+        }
+        for (String username : members) {
+            synchronized (lockFor(username)) {
+                User user = userStorage.get(username);
+                if (user != null) {
+                    removeRole(user, role);
+                }
+            }
+        }
+        mutationComplete();
+    }
+
+    /**
+     * Pages through the users holding a role in username order
+     *
+     * @param afterUsername last username of the previous page, null for the first page
+     * @param limit         most users to return
+     * @return up to limit users holding the role, an empty list once there are no more
+     */
+    public List<User> getUsersWithRole(Role role, String afterUsername, int limit) {
+        awaitAllUsers();
+        List<User> page = new ArrayList<>();
+        NavigableSet<String> members = roleMembers == null ? scanMembers(role, afterUsername, limit) : roleMembers.get(role.getName());
+        if (members == null || limit <= 0) {
+            return page;
+        }
+        for (String username : afterUsername == null ? members : members.tailSet(afterUsername, false)) {
+            User user = userStorage.get(username);
+            if (user != null) {
+                page.add(user);
+                if (page.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Ends every session the user has by moving their session epoch on, tokens issued before are no longer valid
+     */
     public void invalidate(String user) {
-        User invalidUser = userStorage.get(user);
-        if (invalidUser != null) {
-            invalidUser.setLoginTime(null);
+        awaitUser(user);
+        synchronized (lockFor(user)) {
+            User invalidUser = userStorage.get(user);
+            if (invalidUser == null) {
+                return;
+            }
+            long sessionEpoch = invalidUser.nextSessionEpoch();
+            userStorage.put(user, invalidUser);
+            listeners.forEach(listener -> listener.sessionEpochChanged(user, sessionEpoch));
+        }
+        mutationComplete();
+    }
+
+    /**
+     * Forgets the user's login time once every token from that login has expired, unless they have logged in since.
+     * Login times are not saved, so this is not reported to the StorageListeners.
+     *
+     * @param loginTime the login whose tokens have expired
+     * @return true if the login time was cleared
+     */
+    public boolean expireSession(String username, Instant loginTime) {
+        awaitUser(username);
+        synchronized (lockFor(username)) {
+            User user = userStorage.get(username);
+            if (user == null || !loginTime.equals(user.getLoginTime())) {
+                return false;
+            }
+            user.setLoginTime(null);
+            userStorage.put(username, user);
+            return true;
         }
     }
 
+    /**
+     * Sets the session epoch of a stored user, used to bring back invalidations that were saved or sent from elsewhere
+     */
+    public void restoreSessionEpoch(String username, long sessionEpoch) throws NoSuchUserException {
+        awaitUser(username);
+        synchronized (lockFor(username)) {
+            User user = userStorage.get(username);
+            if (user == null) {
+                throw new NoSuchUserException("No Such User Exists");
+            }
+            user.setSessionEpoch(sessionEpoch);
+            userStorage.put(username, user);
+            listeners.forEach(listener -> listener.sessionEpochChanged(username, sessionEpoch));
+        }
+        mutationComplete();
+    }
+
+    /**
+     * Shows every stored user to the visitor, each one read under its lock so its fields are from one moment. Users
+     * changed while this runs may be seen before or after the change, and if storage is resized while this runs some
+     * users may be seen twice.
+     */
+    public void forEachUser(UserVisitor visitor) {
+        awaitAllUsers();
+        userStorage.forEach((username, seen) -> {
+            synchronized (lockFor(username)) {
+                User user = userStorage.get(username);
+                if (user != null) {
+                    visitor.visit(username, user.getPassword(), user.getSalt(), user.getRoles(), user.getSessionEpoch());
+                }
+            }
+        });
+    }
+
     public boolean authenticate(String username, String password, IEncrypt encryptor) throws NoSuchUserException {
+        awaitUser(username);
         User user = userStorage.get(username);
-        //user exists, and password is correct
-        if (user != null && user.getPassword().equals(encryptor.encrypt(password + user.getSalt()))) {
-            user.setLoginTime(Clock.systemUTC().instant());
-            return true;
-        } else if (user == null) {
+        if (user == null) {
             throw new NoSuchUserException("No Such User Exists");
         }
-        return false;
+        PasswordHashEvent event = new PasswordHashEvent();
+        event.begin();
+        String outcome = PasswordHashEvent.FAILED;
+        boolean matches;
+        try {
+            matches = user.getPassword().equals(encryptor.encrypt(password + user.getSalt()));
+            outcome = matches ? PasswordHashEvent.MATCHED : PasswordHashEvent.MISMATCHED;
+        } finally {
+            event.end(outcome);
+        }
+        if (matches) {
+            synchronized (lockFor(username)) {
+                User stored = userStorage.get(username);
+                if (stored != null) {
+                    stored.setLoginTime(Clock.systemUTC().instant());
+                    userStorage.put(username, stored);
+                }
+            }
+        }
+        return matches;
+    }
+
+    private Object lockFor(String username) {
+        return locks[(username.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    /**
+     * Callers hold the user's lock
+     */
+    private void removeRole(User user, Role role) {
+        boolean removed = false;
+        if (user.getRoles().contains(role)) {
+            List<Role> roles = new ArrayList<>(user.getRoles());
+            roles.remove(role);
+            user.setRoles(roles);
+            removed = true;
+        }
+        RoleBits roleBits = user.getRoleBits().without(role.getId());
+        if (roleBits != user.getRoleBits()) {
+            user.setRoleBits(roleBits);
+            removed = true;
+        }
+        if (removed) {
+            userStorage.put(user.getUsername(), user);
+            listeners.forEach(listener -> listener.roleRemoved(user.getUsername(), role));
+        }
+    }
+
+    /**
+     * Callers hold the user's lock
+     */
+    private void userStored(User user) {
+        for (StorageListener listener : listeners) {
+            listener.userStored(user.getUsername(), user.getPassword(), user.getSalt(), user.getRoles(), user.getSessionEpoch());
+        }
+    }
+
+    /**
+     * Callers hold no locks
+     */
+    private void mutationComplete() {
+        listeners.forEach(StorageListener::mutationComplete);
+    }
+
+    /**
+     * Without the index, the first usernames after afterUsername holding the role, at most limit of them
+     */
+    private NavigableSet<String> scanMembers(Role role, String afterUsername, int limit) {
+        NavigableSet<String> members = new TreeSet<>();
+        if (limit <= 0) {
+            return members;
+        }
+        userStorage.forEach((username, user) -> {
+            if ((afterUsername == null || username.compareTo(afterUsername) > 0) && user.getRoles().contains(role)
+                    && (members.size() < limit || username.compareTo(members.last()) < 0)) {
+                members.add(username);
+                if (members.size() > limit) {
+                    members.pollLast();
+                }
+            }
+        });
+        return members;
+    }
+
+    private void indexMember(Role role, String username) {
+        if (roleMembers == null) {
+            return;
+        }
+        roleMembers.compute(role.getName(), (name, members) -> {
+            NavigableSet<String> updated = members == null ? new ConcurrentSkipListSet<>() : members;
+            updated.add(username);
+            return updated;
+        });
+    }
+
+    private void unindexMember(Role role, String username) {
+        if (roleMembers == null) {
+            return;
+        }
+        roleMembers.computeIfPresent(role.getName(), (name, members) -> {
+            members.remove(username);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    /**
+     * Users still being loaded into storage, see setPendingUsers
+     */
+    public interface PendingUsers {
+        /**
+         * Returns once the user, if it is one still loading, is in storage
+         */
+        void awaitUser(String username);
+
+        /**
+         * Returns once every user still loading is in storage
+         */
+        void awaitAll();
+    }
+
+    /**
+     * Sees a stored user's state, see forEachUser
+     */
+    public interface UserVisitor {
+        /**
+         * @param password the salted and encrypted password
+         */
+        void visit(String username, String password, double salt, List<Role> roles, long sessionEpoch);
     }
 
 }
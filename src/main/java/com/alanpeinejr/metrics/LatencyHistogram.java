@@ -0,0 +1,125 @@
+package com.alanpeinejr.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of durations in nanoseconds, cheap enough to record every call of a hot path from many threads
+ * <p>
+ * Buckets are log-linear: each power of two is split into 8 equal buckets, so any recorded value is known to within
+ * 12.5% whatever its size, with no range to configure. Each bucket is a LongAdder, which spreads concurrent increments
+ * over per-thread cells instead of fighting over one word. A snapshot sums the buckets without stopping recorders, so
+ * it may miss values recorded while it is taken, but never sees one twice.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //the largest positive long has its top bit at 62
+    static final int BUCKETS = (62 - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos duration to record, negative durations count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucket(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public Snapshot snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+        }
+        return new Snapshot(snapshot, sum.sum(), max.get());
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value that falls in the bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Counts as they stood when the snapshot was taken
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long sum, long max) {
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the smallest value at least that share of the recorded values are no more than, to within 12.5%, 0
+         * if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100");
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
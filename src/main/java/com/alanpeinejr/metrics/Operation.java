@@ -0,0 +1,17 @@
+package com.alanpeinejr.metrics;
+
+/**
+ * Service calls ServiceMetrics times
+ */
+public enum Operation {
+    AUTHENTICATE,
+    /**
+     * authorize and authorizeAll
+     */
+    AUTHORIZE,
+    GET_ALL_ROLES,
+    /**
+     * invalidate and invalidateAll
+     */
+    INVALIDATE
+}
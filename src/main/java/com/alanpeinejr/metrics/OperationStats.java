@@ -0,0 +1,71 @@
+package com.alanpeinejr.metrics;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latencies and outcomes of one operation as they stood when ServiceMetrics.snapshot was called, durations in
+ * nanoseconds. Getters are what JMX shows for each operation
+ */
+public class OperationStats {
+
+    private final Operation operation;
+    private final LatencyHistogram.Snapshot latency;
+    private final Map<Outcome, Long> outcomes;
+
+    OperationStats(Operation operation, LatencyHistogram.Snapshot latency, EnumMap<Outcome, Long> outcomes) {
+        this.operation = operation;
+        this.latency = latency;
+        this.outcomes = Collections.unmodifiableMap(outcomes);
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public LatencyHistogram.Snapshot getLatency() {
+        return latency;
+    }
+
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    /**
+     * @return how many calls ended with the outcome
+     */
+    public long getCount(Outcome outcome) {
+        return outcomes.getOrDefault(outcome, 0L);
+    }
+
+    public double getMeanNanos() {
+        return latency.getMean();
+    }
+
+    public long getMedianNanos() {
+        return latency.getPercentile(50);
+    }
+
+    public long getP99Nanos() {
+        return latency.getPercentile(99);
+    }
+
+    public long getP999Nanos() {
+        return latency.getPercentile(99.9);
+    }
+
+    public long getMaxNanos() {
+        return latency.getMax();
+    }
+
+    /**
+     * @return calls by outcome name, for JMX
+     */
+    public Map<String, Long> getOutcomes() {
+        Map<String, Long> byName = new LinkedHashMap<>();
+        outcomes.forEach((outcome, count) -> byName.put(outcome.name(), count));
+        return byName;
+    }
+}
@@ -0,0 +1,49 @@
+package com.alanpeinejr.metrics;
+
+import com.alanpeinejr.exception.ExpiredTokenException;
+import com.alanpeinejr.exception.NoSuchUserException;
+import com.google.gson.JsonParseException;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * How a timed service call ended
+ */
+public enum Outcome {
+    SUCCESS,
+    /**
+     * authenticate returned "Invalid Password"
+     */
+    INVALID_PASSWORD,
+    EXPIRED_TOKEN,
+    NO_SUCH_USER,
+    /**
+     * the token could not be decrypted or read
+     */
+    INVALID_TOKEN,
+    /**
+     * the credential hashing pool turned the call away
+     */
+    REJECTED,
+    FAILED;
+
+    /**
+     * @return the outcome of a call that threw the exception
+     */
+    public static Outcome of(Exception e) {
+        if (e instanceof ExpiredTokenException) {
+            return EXPIRED_TOKEN;
+        }
+        if (e instanceof NoSuchUserException) {
+            return NO_SUCH_USER;
+        }
+        if (e instanceof RejectedExecutionException) {
+            return REJECTED;
+        }
+        //IllegalArgumentException is what bad Base64 throws
+        if (e instanceof JsonParseException || e instanceof IllegalArgumentException) {
+            return INVALID_TOKEN;
+        }
+        return FAILED;
+    }
+}
@@ -0,0 +1,111 @@
+package com.alanpeinejr.metrics;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms and outcome counters for the service's token and login calls
+ * <p>
+ * Recording takes two clock reads and a few LongAdder increments and never locks, so metrics can stay on under full
+ * load. Read them through snapshot, or over JMX once registered.
+ */
+public class ServiceMetrics implements ServiceMetricsMXBean {
+
+    public static final String DEFAULT_OBJECT_NAME = "com.alanpeinejr:type=AuthenticationService,name=ServiceMetrics";
+
+    private final EnumMap<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final LongAdder[][] outcomes = new LongAdder[Operation.values().length][Outcome.values().length];
+
+    public ServiceMetrics() {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            for (Outcome outcome : Outcome.values()) {
+                outcomes[operation.ordinal()][outcome.ordinal()] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * Records a call that started at startNanos, a System.nanoTime reading, and ended now
+     */
+    public void record(Operation operation, Outcome outcome, long startNanos) {
+        latencies.get(operation).record(System.nanoTime() - startNanos);
+        outcomes[operation.ordinal()][outcome.ordinal()].increment();
+    }
+
+    public OperationStats snapshot(Operation operation) {
+        EnumMap<Outcome, Long> counts = new EnumMap<>(Outcome.class);
+        for (Outcome outcome : Outcome.values()) {
+            counts.put(outcome, outcomes[operation.ordinal()][outcome.ordinal()].sum());
+        }
+        return new OperationStats(operation, latencies.get(operation).snapshot(), counts);
+    }
+
+    /**
+     * @return every operation's stats, in Operation order
+     */
+    public Map<Operation, OperationStats> snapshot() {
+        Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, snapshot(operation));
+        }
+        return stats;
+    }
+
+    /**
+     * Publishes the metrics on the platform MBean server under DEFAULT_OBJECT_NAME
+     *
+     * @throws InstanceAlreadyExistsException If metrics are already registered under that name
+     */
+    public ObjectName register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(DEFAULT_OBJECT_NAME);
+        server.registerMBean(this, name);
+        return name;
+    }
+
+    @Override
+    public Map<String, OperationStats> getOperations() {
+        Map<String, OperationStats> byName = new LinkedHashMap<>();
+        snapshot().forEach((operation, stats) -> byName.put(operation.name(), stats));
+        return byName;
+    }
+
+    @Override
+    public long getExpiredTokenCount() {
+        return count(Outcome.EXPIRED_TOKEN);
+    }
+
+    @Override
+    public long getNoSuchUserCount() {
+        return count(Outcome.NO_SUCH_USER);
+    }
+
+    @Override
+    public long getInvalidPasswordCount() {
+        return count(Outcome.INVALID_PASSWORD);
+    }
+
+    @Override
+    public long getInvalidTokenCount() {
+        return count(Outcome.INVALID_TOKEN);
+    }
+
+    /**
+     * @return calls of any operation that ended with the outcome
+     */
+    public long count(Outcome outcome) {
+        long count = 0;
+        for (Operation operation : Operation.values()) {
+            count += outcomes[operation.ordinal()][outcome.ordinal()].sum();
+        }
+        return count;
+    }
+}
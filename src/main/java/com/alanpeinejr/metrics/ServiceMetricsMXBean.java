@@ -0,0 +1,22 @@
+package com.alanpeinejr.metrics;
+
+import java.util.Map;
+
+/**
+ * What ServiceMetrics publishes over JMX, durations in nanoseconds
+ */
+public interface ServiceMetricsMXBean {
+
+    /**
+     * @return latency percentiles and outcome counts by operation name
+     */
+    Map<String, OperationStats> getOperations();
+
+    long getExpiredTokenCount();
+
+    long getNoSuchUserCount();
+
+    long getInvalidPasswordCount();
+
+    long getInvalidTokenCount();
+}
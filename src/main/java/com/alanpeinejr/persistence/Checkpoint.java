@@ -0,0 +1,467 @@
+package com.alanpeinejr.persistence;
+
+import com.alanpeinejr.exception.NoSuchRoleException;
+import com.alanpeinejr.manager.RevocationList;
+import com.alanpeinejr.manager.Role;
+import com.alanpeinejr.manager.RoleManager;
+import com.alanpeinejr.manager.SessionChanges;
+import com.alanpeinejr.manager.UserManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * A copy of all user and role storage, the revoked tokens and the tracked session changes, taken while the write-ahead
+ * log keeps being written
+ * <p>
+ * Users are split into buckets by username hash and written in segments of a few hundred kilobytes, each with its own
+ * CRC32C and holding users of one bucket, and a footer at the end indexes them. Reading checks the segments and hands
+ * them to a CheckpointLoad, which stores the users bucket by bucket in the background while the service is already
+ * answering. Layout:
+ * <pre>
+ * magic (int) | version (int)
+ * | segments, per user: username | password | salt (double) | session epoch (long) | role count (short)
+ *   | per role: index in the footer's role table (int), or -1 | name | id
+ * | footer: LSN (long) | role id limit (int) | role count (int) | per role: name | id
+ *   | inclusion count (int) | per inclusion: role id (int) | included role id (int)
+ *   | bucket count (int) | segment count (int)
+ *   | per segment: bucket (int) | offset (long) | length (int) | user count (int) | CRC32C (int)
+ *   | revocation count (int) | per revocation: token id (long) | expiration second (long) | expiration nano (int)
+ *   | sessions tracked (byte) | if 1: tracking since second (long) | nano (int) | change count (int)
+ *   | per change: username | session epoch (long) | changed at second (long) | nano (int)
+ * | footer length (int) | footer CRC32C (int) | magic (int)
+ * </pre>
+ * Strings are a short length and UTF-8 bytes. The LSN is the first log record that may be missing from the copy,
+ * recovery replays the log from there. The file is written beside the old one and moved over it, so a crash leaves one
+ * or the other.
+ */
+final class Checkpoint {
+
+    static final String FILE_NAME = "checkpoint";
+    //a bucket's users are buffered until they fill a segment, so writing holds up to BUCKETS segments in memory
+    static final int DEFAULT_SEGMENT_BYTES = 256 * 1024;
+    static final int BUCKETS = 64;
+    private static final int MAGIC = 0x41555448;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int TRAILER_BYTES = 3 * Integer.BYTES;
+    private static final int UNLISTED_ROLE = -1;
+
+    private Checkpoint() {
+    }
+
+    /**
+     * @param revocationList may be null for none
+     * @param sessionChanges may be null if they aren't tracked
+     */
+    static void write(Path directory, long lsn, UserManager userManager, RoleManager roleManager, RevocationList revocationList,
+                      SessionChanges sessionChanges) throws IOException {
+        write(directory, lsn, userManager, roleManager, revocationList, sessionChanges, DEFAULT_SEGMENT_BYTES);
+    }
+
+    static void write(Path directory, long lsn, UserManager userManager, RoleManager roleManager, RevocationList revocationList,
+                      SessionChanges sessionChanges, int segmentBytes) throws IOException {
+        Path temp = directory.resolve(FILE_NAME + ".tmp");
+        int roleIdLimit = roleManager.getRoleIdLimit();
+        List<Role> roles = roleManager.getRoles();
+        Map<Role, List<Role>> inclusions = roleManager.getInclusions();
+        Map<Role, Integer> roleTable = new IdentityHashMap<>();
+        for (Role role : roles) {
+            roleTable.put(role, roleTable.size());
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip());
+            SegmentWriter segments = new SegmentWriter(channel, segmentBytes);
+            try {
+                userManager.forEachUser((username, password, salt, userRoles, sessionEpoch) -> {
+                    try {
+                        segments.writeUser(username, password, salt, userRoles, sessionEpoch, roleTable);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            segments.finishSegments();
+
+            ByteArrayOutputStream footerBytes = new ByteArrayOutputStream();
+            DataOutputStream footer = new DataOutputStream(footerBytes);
+            footer.writeLong(lsn);
+            footer.writeInt(roleIdLimit);
+            footer.writeInt(roles.size());
+            for (Role role : roles) {
+                writeString(footer, role.getName());
+                footer.writeInt(role.getId());
+            }
+            //roles created after the role table was taken are left to the log, along with their inclusions
+            List<int[]> listedInclusions = new ArrayList<>();
+            for (Map.Entry<Role, List<Role>> inclusion : inclusions.entrySet()) {
+                for (Role included : inclusion.getValue()) {
+                    if (roleTable.containsKey(inclusion.getKey()) && roleTable.containsKey(included)) {
+                        listedInclusions.add(new int[]{inclusion.getKey().getId(), included.getId()});
+                    }
+                }
+            }
+            footer.writeInt(listedInclusions.size());
+            for (int[] inclusion : listedInclusions) {
+                footer.writeInt(inclusion[0]);
+                footer.writeInt(inclusion[1]);
+            }
+            footer.writeInt(BUCKETS);
+            footer.writeInt(segments.index.size());
+            for (SegmentEntry entry : segments.index) {
+                footer.writeInt(entry.bucket);
+                footer.writeLong(entry.offset);
+                footer.writeInt(entry.length);
+                footer.writeInt(entry.users);
+                footer.writeInt(entry.crc);
+            }
+            Map<Long, Instant> revocations = revocationList == null ? Map.of() : revocationList.getRevocations();
+            footer.writeInt(revocations.size());
+            for (Map.Entry<Long, Instant> revocation : revocations.entrySet()) {
+                footer.writeLong(revocation.getKey());
+                footer.writeLong(revocation.getValue().getEpochSecond());
+                footer.writeInt(revocation.getValue().getNano());
+            }
+            footer.writeByte(sessionChanges == null ? 0 : 1);
+            if (sessionChanges != null) {
+                writeSessionChanges(footer, sessionChanges);
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(footerBytes.toByteArray());
+            footer.writeInt(footerBytes.size());
+            footer.writeInt((int) crc.getValue());
+            footer.writeInt(MAGIC);
+            writeFully(channel, ByteBuffer.wrap(footerBytes.toByteArray()));
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the checkpoint's roles, revocations and session changes into the managers, which should be empty, and starts
+     * storing its users in the background. The user manager can be used straight away, see CheckpointLoad
+     *
+     * @param revocationList where to revoke the saved tokens that haven't expired since, may be null
+     * @param sessionChanges where to bring back the saved session changes and when tracking them started, may be null
+     * @param threads        background threads storing users, with none they are stored as they are asked for
+     * @return the LSN to replay the log from, 1 if there is no checkpoint, and the users still loading
+     */
+    static Contents read(Path directory, UserManager userManager, RoleManager roleManager, RevocationList revocationList,
+                         SessionChanges sessionChanges, int threads) throws IOException {
+        Path path = directory.resolve(FILE_NAME);
+        if (!Files.exists(path)) {
+            return new Contents(1, null);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES + TRAILER_BYTES) {
+                throw new IOException("Truncated checkpoint " + path);
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            int version = header.getInt(0) == MAGIC ? header.getInt(4) : 0;
+            if (version != VERSION) {
+                throw new IOException("Not a checkpoint file " + path);
+            }
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_BYTES, TRAILER_BYTES);
+            int footerLength = trailer.getInt();
+            int footerCrc = trailer.getInt();
+            if (trailer.getInt() != MAGIC || footerLength < 0 || footerLength > size - HEADER_BYTES - TRAILER_BYTES) {
+                throw new IOException("Truncated checkpoint " + path);
+            }
+            ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_BYTES - footerLength, footerLength);
+            if (checksum(footer) != footerCrc) {
+                throw new IOException("Checkpoint failed its checksum " + path);
+            }
+
+            long lsn = footer.getLong();
+            roleManager.reserveRoleIds(footer.getInt());
+            Role[] roleTable = new Role[footer.getInt()];
+            for (int i = 0; i < roleTable.length; i++) {
+                roleTable[i] = roleManager.restoreRole(readString(footer), footer.getInt());
+            }
+            int inclusionCount = footer.getInt();
+            for (int i = 0; i < inclusionCount; i++) {
+                Role role = roleManager.getRole(footer.getInt());
+                Role included = roleManager.getRole(footer.getInt());
+                if (role == null || included == null) {
+                    throw new IOException("Checkpoint inclusion of an unknown role " + path);
+                }
+                try {
+                    roleManager.includeRole(role.getName(), included.getName());
+                } catch (NoSuchRoleException e) {
+                    throw new IOException("Checkpoint inclusion of an unknown role " + path, e);
+                }
+            }
+            int bucketCount = footer.getInt();
+            if (bucketCount < 1) {
+                throw new IOException("Checkpoint without buckets " + path);
+            }
+            List<List<ByteBuffer>> buckets = new ArrayList<>(bucketCount);
+            List<List<SegmentEntry>> bucketEntries = new ArrayList<>(bucketCount);
+            for (int i = 0; i < bucketCount; i++) {
+                buckets.add(new ArrayList<>());
+                bucketEntries.add(new ArrayList<>());
+            }
+            int segmentCount = footer.getInt();
+            for (int i = 0; i < segmentCount; i++) {
+                SegmentEntry entry = new SegmentEntry(footer.getInt(), footer.getLong(), footer.getInt(), footer.getInt(), footer.getInt());
+                if (entry.bucket < 0 || entry.bucket >= bucketCount || entry.offset < HEADER_BYTES || entry.length < 0
+                        || entry.offset + entry.length > size - TRAILER_BYTES - footerLength) {
+                    throw new IOException("Checkpoint segment out of bounds " + path);
+                }
+                //mapped pages outlive the channel, and checking them all now finds a damaged file before anything answers
+                ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+                if (checksum(segment) != entry.crc) {
+                    throw new IOException("Checkpoint segment at " + entry.offset + " failed its checksum " + path);
+                }
+                buckets.get(entry.bucket).add(segment);
+                bucketEntries.get(entry.bucket).add(entry);
+            }
+            int revocationCount = footer.getInt();
+            for (int i = 0; i < revocationCount; i++) {
+                long id = footer.getLong();
+                Instant expiration = Instant.ofEpochSecond(footer.getLong(), footer.getInt());
+                if (revocationList != null) {
+                    revocationList.revoke(id, expiration);
+                }
+            }
+            if (footer.get() != 0 && sessionChanges != null) {
+                readSessionChanges(footer, sessionChanges);
+            }
+            List<CheckpointLoad.Bucket> loadBuckets = new ArrayList<>(bucketCount);
+            for (int i = 0; i < bucketCount; i++) {
+                List<ByteBuffer> segments = buckets.get(i);
+                List<SegmentEntry> entries = bucketEntries.get(i);
+                loadBuckets.add(store -> {
+                    for (int s = 0; s < segments.size(); s++) {
+                        decodeSegment(path, segments.get(s), entries.get(s), roleTable, roleManager, store);
+                    }
+                });
+            }
+            return new Contents(lsn, CheckpointLoad.start(path, userManager, loadBuckets, threads));
+        } catch (RuntimeException e) {
+            //a buffer underflow or bad value is a damaged file that happened to pass its checksum
+            throw new IOException("Unreadable checkpoint " + path, e);
+        }
+    }
+
+    private static void writeSessionChanges(DataOutputStream footer, SessionChanges sessionChanges) throws IOException {
+        //taken before the changes, so a change made meanwhile is never older than the start of tracking
+        Instant trackingSince = sessionChanges.getTrackingSince();
+        List<String> usernames = new ArrayList<>();
+        List<long[]> changes = new ArrayList<>();
+        sessionChanges.forEachChange((username, sessionEpoch, changedAt) -> {
+            usernames.add(username);
+            changes.add(new long[]{sessionEpoch, changedAt.getEpochSecond(), changedAt.getNano()});
+        });
+        footer.writeLong(trackingSince.getEpochSecond());
+        footer.writeInt(trackingSince.getNano());
+        footer.writeInt(changes.size());
+        for (int i = 0; i < changes.size(); i++) {
+            writeString(footer, usernames.get(i));
+            footer.writeLong(changes.get(i)[0]);
+            footer.writeLong(changes.get(i)[1]);
+            footer.writeInt((int) changes.get(i)[2]);
+        }
+    }
+
+    private static void readSessionChanges(ByteBuffer footer, SessionChanges sessionChanges) {
+        sessionChanges.restoreTrackingSince(Instant.ofEpochSecond(footer.getLong(), footer.getInt()));
+        int changeCount = footer.getInt();
+        for (int i = 0; i < changeCount; i++) {
+            String username = readString(footer);
+            long sessionEpoch = footer.getLong();
+            sessionChanges.restoreChange(username, sessionEpoch, Instant.ofEpochSecond(footer.getLong(), footer.getInt()));
+        }
+    }
+
+    /**
+     * Stores every user in the segment, already checked against its checksum
+     */
+    private static void decodeSegment(Path path, ByteBuffer mapped, SegmentEntry entry, Role[] roleTable, RoleManager roleManager,
+                                      UserManager.UserVisitor store) throws IOException {
+        ByteBuffer segment = mapped.duplicate();
+        try {
+            for (int i = 0; i < entry.users; i++) {
+                String username = readString(segment);
+                String password = readString(segment);
+                double salt = segment.getDouble();
+                long sessionEpoch = segment.getLong();
+                int roleCount = Short.toUnsignedInt(segment.getShort());
+                List<Role> roles = new ArrayList<>(roleCount);
+                for (int r = 0; r < roleCount; r++) {
+                    int index = segment.getInt();
+                    roles.add(index == UNLISTED_ROLE
+                            ? MutationRecord.resolveRole(roleManager, readString(segment), segment.getInt())
+                            : roleTable[index]);
+                }
+                store.visit(username, password, salt, roles, sessionEpoch);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable checkpoint segment at " + entry.offset + " " + path, e);
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("String too long for a checkpoint: " + bytes.length + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the bucket of buckets the user is written to
+     */
+    static int bucketOf(String username, int buckets) {
+        int hash = username.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), buckets);
+    }
+
+    /**
+     * What read found: where to replay the log from and the users still being stored
+     */
+    static final class Contents {
+        private final long lsn;
+        private final CheckpointLoad load;
+
+        private Contents(long lsn, CheckpointLoad load) {
+            this.lsn = lsn;
+            this.load = load;
+        }
+
+        long getLsn() {
+            return lsn;
+        }
+
+        /**
+         * @return null if there was no checkpoint
+         */
+        CheckpointLoad getLoad() {
+            return load;
+        }
+    }
+
+    /**
+     * Buffers each bucket's users until a segment is full, then writes it to the channel and notes where it went
+     */
+    private static final class SegmentWriter {
+        private final FileChannel channel;
+        private final int segmentBytes;
+        private final ByteArrayOutputStream[] bytes = new ByteArrayOutputStream[BUCKETS];
+        private final DataOutputStream[] streams = new DataOutputStream[BUCKETS];
+        private final int[] users = new int[BUCKETS];
+        private final List<SegmentEntry> index = new ArrayList<>();
+        private long position = HEADER_BYTES;
+
+        private SegmentWriter(FileChannel channel, int segmentBytes) {
+            this.channel = channel;
+            this.segmentBytes = segmentBytes;
+        }
+
+        private void writeUser(String username, String password, double salt, List<Role> roles, long sessionEpoch,
+                               Map<Role, Integer> roleTable) throws IOException {
+            if (roles.size() > 0xFFFF) {
+                throw new IOException("Too many roles for a checkpoint on " + username);
+            }
+            int bucket = bucketOf(username, BUCKETS);
+            if (streams[bucket] == null) {
+                bytes[bucket] = new ByteArrayOutputStream();
+                streams[bucket] = new DataOutputStream(bytes[bucket]);
+            }
+            DataOutputStream out = streams[bucket];
+            writeString(out, username);
+            writeString(out, password);
+            out.writeDouble(salt);
+            out.writeLong(sessionEpoch);
+            out.writeShort(roles.size());
+            for (Role role : roles) {
+                Integer index = roleTable.get(role);
+                if (index == null) {
+                    //created since the role table was taken, or a copy without an id
+                    out.writeInt(UNLISTED_ROLE);
+                    writeString(out, role.getName());
+                    out.writeInt(role.getId());
+                } else {
+                    out.writeInt(index);
+                }
+            }
+            users[bucket]++;
+            if (bytes[bucket].size() >= segmentBytes) {
+                finishSegment(bucket);
+            }
+        }
+
+        private void finishSegments() throws IOException {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                finishSegment(bucket);
+            }
+        }
+
+        private void finishSegment(int bucket) throws IOException {
+            if (users[bucket] == 0) {
+                return;
+            }
+            byte[] segment = bytes[bucket].toByteArray();
+            CRC32C crc = new CRC32C();
+            crc.update(segment);
+            writeFully(channel, ByteBuffer.wrap(segment));
+            index.add(new SegmentEntry(bucket, position, segment.length, users[bucket], (int) crc.getValue()));
+            position += segment.length;
+            bytes[bucket].reset();
+            users[bucket] = 0;
+        }
+    }
+
+    private static final class SegmentEntry {
+        private final int bucket;
+        private final long offset;
+        private final int length;
+        private final int users;
+        private final int crc;
+
+        private SegmentEntry(int bucket, long offset, int length, int users, int crc) {
+            this.bucket = bucket;
+            this.offset = offset;
+            this.length = length;
+            this.users = users;
+            this.crc = crc;
+        }
+    }
+}
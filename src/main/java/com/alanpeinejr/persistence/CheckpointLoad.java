@@ -0,0 +1,138 @@
+package com.alanpeinejr.persistence;
+
+import com.alanpeinejr.manager.UserManager;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores a checkpoint's users into the user manager after it has started answering
+ * <p>
+ * Users are in buckets by username hash. Background threads store the buckets one after another, and a caller
+ * touching a user whose bucket isn't stored yet stores that bucket itself first, so only the users not yet loaded are
+ * waited on. Once every bucket is stored the user manager stops asking. If a bucket can't be read the failure is
+ * logged and every later wait throws it, the service doesn't carry on with users missing.
+ */
+final class CheckpointLoad implements UserManager.PendingUsers {
+
+    private static final Logger LOGGER = Logger.getLogger(CheckpointLoad.class.getName());
+
+    private final Path path;
+    private final UserManager userManager;
+    private final List<Bucket> buckets;
+    private final Object[] locks;
+    private final AtomicIntegerArray stored;
+    private final AtomicInteger remaining;
+    private final AtomicInteger nextBucket = new AtomicInteger();
+    private volatile IOException failure;
+
+    private CheckpointLoad(Path path, UserManager userManager, List<Bucket> buckets) {
+        this.path = path;
+        this.userManager = userManager;
+        this.buckets = buckets;
+        this.locks = new Object[buckets.size()];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        this.stored = new AtomicIntegerArray(buckets.size());
+        this.remaining = new AtomicInteger(buckets.size());
+    }
+
+    /**
+     * Puts the load in front of the user manager and starts storing it
+     *
+     * @param buckets the checkpoint's buckets, indexed as Checkpoint.bucketOf
+     * @param threads background threads storing buckets, with none each is stored when first asked for
+     */
+    static CheckpointLoad start(Path path, UserManager userManager, List<Bucket> buckets, int threads) {
+        CheckpointLoad load = new CheckpointLoad(path, userManager, buckets);
+        userManager.setPendingUsers(load);
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(load::storeInOrder, "checkpoint-load-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return load;
+    }
+
+    @Override
+    public void awaitUser(String username) {
+        storeBucket(Checkpoint.bucketOf(username, buckets.size()));
+    }
+
+    @Override
+    public void awaitAll() {
+        for (int i = 0; i < buckets.size(); i++) {
+            storeBucket(i);
+        }
+    }
+
+    /**
+     * Stores whatever is left on the calling thread
+     *
+     * @throws IOException if a bucket couldn't be read
+     */
+    void awaitLoaded() throws IOException {
+        try {
+            awaitAll();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return true once every bucket is stored
+     */
+    boolean isLoaded() {
+        return remaining.get() == 0;
+    }
+
+    private void storeInOrder() {
+        try {
+            int bucket;
+            while ((bucket = nextBucket.getAndIncrement()) < buckets.size()) {
+                storeBucket(bucket);
+            }
+        } catch (UncheckedIOException e) {
+            //already logged, callers see it when they wait
+        }
+    }
+
+    private void storeBucket(int bucket) {
+        if (stored.get(bucket) == 0) {
+            synchronized (locks[bucket]) {
+                if (stored.get(bucket) == 0) {
+                    if (failure == null) {
+                        try {
+                            buckets.get(bucket).store(userManager::loadUser);
+                        } catch (IOException | RuntimeException e) {
+                            failure = e instanceof IOException ? (IOException) e : new IOException("Unreadable checkpoint " + path, e);
+                            LOGGER.log(Level.SEVERE, "Loading checkpoint " + path + " failed", e);
+                        }
+                    }
+                    stored.set(bucket, 1);
+                    if (remaining.decrementAndGet() == 0 && failure == null) {
+                        userManager.setPendingUsers(null);
+                    }
+                }
+            }
+        }
+        IOException failed = failure;
+        if (failed != null) {
+            throw new UncheckedIOException(failed);
+        }
+    }
+
+    /**
+     * One bucket's users in the checkpoint
+     */
+    interface Bucket {
+        void store(UserManager.UserVisitor store) throws IOException;
+    }
+}
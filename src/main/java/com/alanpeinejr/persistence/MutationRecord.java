@@ -0,0 +1,339 @@
+package com.alanpeinejr.persistence;
+
+import com.alanpeinejr.exception.NoSuchRoleException;
+import com.alanpeinejr.exception.NoSuchUserException;
+import com.alanpeinejr.manager.RevocationList;
+import com.alanpeinejr.manager.Role;
+import com.alanpeinejr.manager.RoleManager;
+import com.alanpeinejr.manager.UserManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One change to user or role storage, or one token revoked, as written to the write-ahead log
+ * <p>
+ * Roles are recorded by name and id. Applying a record is idempotent and tolerates the change already being there,
+ * so a log can be replayed over a checkpoint taken while it was being written.
+ */
+public final class MutationRecord {
+
+    public enum Type {
+        ROLE_CREATED(1),
+        ROLE_DELETED(2),
+        USER_STORED(3),
+        USER_DELETED(4),
+        ROLES_ADDED(5),
+        ROLE_REMOVED(6),
+        SESSION_EPOCH(7),
+        ROLE_INCLUDED(8),
+        ROLE_EXCLUDED(9),
+        REVOKED(10);
+
+        private final byte code;
+
+        Type(int code) {
+            this.code = (byte) code;
+        }
+
+        static Type of(byte code) throws IOException {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IOException("Unknown mutation record type " + code);
+        }
+    }
+
+    private final Type type;
+    private final String username;
+    private final String password;
+    private final double salt;
+    private final List<RoleRef> roles;
+    private final long sessionEpoch;
+    private final long revokedId;
+    private final Instant expiration;
+
+    private MutationRecord(Type type, String username, String password, double salt, List<RoleRef> roles, long sessionEpoch) {
+        this(type, username, password, salt, roles, sessionEpoch, 0, null);
+    }
+
+    private MutationRecord(Type type, String username, String password, double salt, List<RoleRef> roles, long sessionEpoch,
+                           long revokedId, Instant expiration) {
+        this.type = type;
+        this.username = username;
+        this.password = password;
+        this.salt = salt;
+        this.roles = roles;
+        this.sessionEpoch = sessionEpoch;
+        this.revokedId = revokedId;
+        this.expiration = expiration;
+    }
+
+    public static MutationRecord roleCreated(Role role) {
+        return new MutationRecord(Type.ROLE_CREATED, null, null, 0, List.of(RoleRef.of(role)), 0);
+    }
+
+    public static MutationRecord roleDeleted(Role role) {
+        return new MutationRecord(Type.ROLE_DELETED, null, null, 0, List.of(RoleRef.of(role)), 0);
+    }
+
+    public static MutationRecord roleIncluded(Role role, Role includedRole) {
+        return new MutationRecord(Type.ROLE_INCLUDED, null, null, 0, List.of(RoleRef.of(role), RoleRef.of(includedRole)), 0);
+    }
+
+    public static MutationRecord roleExcluded(Role role, Role includedRole) {
+        return new MutationRecord(Type.ROLE_EXCLUDED, null, null, 0, List.of(RoleRef.of(role), RoleRef.of(includedRole)), 0);
+    }
+
+    public static MutationRecord userStored(String username, String password, double salt, Collection<Role> roles, long sessionEpoch) {
+        return new MutationRecord(Type.USER_STORED, username, password, salt, RoleRef.of(roles), sessionEpoch);
+    }
+
+    public static MutationRecord userDeleted(String username) {
+        return new MutationRecord(Type.USER_DELETED, username, null, 0, Collections.emptyList(), 0);
+    }
+
+    public static MutationRecord rolesAdded(String username, Collection<Role> roles) {
+        return new MutationRecord(Type.ROLES_ADDED, username, null, 0, RoleRef.of(roles), 0);
+    }
+
+    public static MutationRecord roleRemoved(String username, Role role) {
+        return new MutationRecord(Type.ROLE_REMOVED, username, null, 0, List.of(RoleRef.of(role)), 0);
+    }
+
+    public static MutationRecord sessionEpoch(String username, long sessionEpoch) {
+        return new MutationRecord(Type.SESSION_EPOCH, username, null, 0, Collections.emptyList(), sessionEpoch);
+    }
+
+    public static MutationRecord revoked(long id, Instant expiration) {
+        return new MutationRecord(Type.REVOKED, null, null, 0, Collections.emptyList(), 0, id, expiration);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return names of the roles the record refers to, for inclusions the including role first
+     */
+    public List<String> getRoleNames() {
+        List<String> names = new ArrayList<>(roles.size());
+        for (RoleRef role : roles) {
+            names.add(role.name);
+        }
+        return names;
+    }
+
+    /**
+     * Makes the recorded change to the managers' storage, or nothing if it is already there. Revocations are skipped
+     */
+    public void applyTo(UserManager userManager, RoleManager roleManager) {
+        applyTo(userManager, roleManager, null);
+    }
+
+    /**
+     * As applyTo, also revoking recorded tokens in the revocation list
+     *
+     * @param revocationList may be null, revocations of tokens expired since are left out by the list itself
+     */
+    public void applyTo(UserManager userManager, RoleManager roleManager, RevocationList revocationList) {
+        try {
+            switch (type) {
+                case ROLE_CREATED:
+                    roleManager.restoreRole(roles.get(0).name, roles.get(0).id);
+                    break;
+                case ROLE_DELETED:
+                    if (roleManager.getRole(roles.get(0).name) != null) {
+                        roleManager.deleteRole(roles.get(0).name);
+                    }
+                    break;
+                case USER_STORED:
+                    userManager.restoreUser(username, password, salt, resolve(roleManager), sessionEpoch);
+                    break;
+                case USER_DELETED:
+                    userManager.deleteUser(username);
+                    break;
+                case ROLES_ADDED:
+                    userManager.addRolesToUser(username, resolve(roleManager));
+                    break;
+                case ROLE_REMOVED:
+                    userManager.removeRoleFromUser(username, resolve(roleManager).get(0));
+                    break;
+                case SESSION_EPOCH:
+                    userManager.restoreSessionEpoch(username, sessionEpoch);
+                    break;
+                case ROLE_INCLUDED:
+                    try {
+                        roleManager.includeRole(roles.get(0).name, roles.get(1).name);
+                    } catch (IllegalArgumentException e) {
+                        //the checkpoint already has the inclusion the other way round, made later in the log
+                    }
+                    break;
+                case ROLE_EXCLUDED:
+                    roleManager.excludeRole(roles.get(0).name, roles.get(1).name);
+                    break;
+                case REVOKED:
+                    if (revocationList != null) {
+                        revocationList.revoke(revokedId, expiration);
+                    }
+                    break;
+            }
+        } catch (NoSuchUserException | NoSuchRoleException e) {
+            //deleted again later in the log, or before the checkpoint being replayed over
+        }
+    }
+
+    private List<Role> resolve(RoleManager roleManager) {
+        List<Role> resolved = new ArrayList<>(roles.size());
+        for (RoleRef ref : roles) {
+            resolved.add(resolveRole(roleManager, ref.name, ref.id));
+        }
+        return resolved;
+    }
+
+    /**
+     * @return the stored Role a saved role refers to, or one without an id if that role is gone
+     */
+    static Role resolveRole(RoleManager roleManager, String name, int id) {
+        Role role = id == Role.UNASSIGNED_ID ? roleManager.getRole(name) : roleManager.getRole(id);
+        return role != null && role.getName().equals(name) ? role : new Role(name);
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type.code);
+            switch (type) {
+                case ROLE_CREATED:
+                case ROLE_DELETED:
+                case ROLE_INCLUDED:
+                case ROLE_EXCLUDED:
+                    writeRoles(out);
+                    break;
+                case USER_STORED:
+                    out.writeUTF(username);
+                    out.writeUTF(password);
+                    out.writeDouble(salt);
+                    out.writeLong(sessionEpoch);
+                    writeRoles(out);
+                    break;
+                case USER_DELETED:
+                    out.writeUTF(username);
+                    break;
+                case ROLES_ADDED:
+                case ROLE_REMOVED:
+                    out.writeUTF(username);
+                    writeRoles(out);
+                    break;
+                case SESSION_EPOCH:
+                    out.writeUTF(username);
+                    out.writeLong(sessionEpoch);
+                    break;
+                case REVOKED:
+                    out.writeLong(revokedId);
+                    out.writeLong(expiration.getEpochSecond());
+                    out.writeInt(expiration.getNano());
+                    break;
+            }
+        } catch (IOException e) {
+            //ByteArrayOutputStream never throws
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static MutationRecord decode(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        Type type = Type.of(in.readByte());
+        switch (type) {
+            case ROLE_CREATED:
+            case ROLE_DELETED:
+                return new MutationRecord(type, null, null, 0, readRoles(in), 0);
+            case ROLE_INCLUDED:
+            case ROLE_EXCLUDED:
+                List<RoleRef> pair = readRoles(in);
+                if (pair.size() != 2) {
+                    throw new IOException("Role inclusion record needs 2 roles, has " + pair.size());
+                }
+                return new MutationRecord(type, null, null, 0, pair, 0);
+            case USER_STORED:
+                String username = in.readUTF();
+                String password = in.readUTF();
+                double salt = in.readDouble();
+                long sessionEpoch = in.readLong();
+                return new MutationRecord(type, username, password, salt, readRoles(in), sessionEpoch);
+            case USER_DELETED:
+                return userDeleted(in.readUTF());
+            case ROLES_ADDED:
+            case ROLE_REMOVED:
+                return new MutationRecord(type, in.readUTF(), null, 0, readRoles(in), 0);
+            case REVOKED:
+                return revoked(in.readLong(), Instant.ofEpochSecond(in.readLong(), in.readInt()));
+            default:
+                return sessionEpoch(in.readUTF(), in.readLong());
+        }
+    }
+
+    private void writeRoles(DataOutputStream out) throws IOException {
+        out.writeInt(roles.size());
+        for (RoleRef role : roles) {
+            out.writeUTF(role.name);
+            out.writeInt(role.id);
+        }
+    }
+
+    private static List<RoleRef> readRoles(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Negative role count");
+        }
+        List<RoleRef> roles = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            roles.add(new RoleRef(in.readUTF(), in.readInt()));
+        }
+        return roles;
+    }
+
+    /**
+     * A role as it was when the record was made, Roles themselves are not kept so records don't pin deleted roles
+     */
+    private static final class RoleRef {
+        private final String name;
+        private final int id;
+
+        RoleRef(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+
+        static RoleRef of(Role role) {
+            return new RoleRef(role.getName(), role.getId());
+        }
+
+        static List<RoleRef> of(Collection<Role> roles) {
+            List<RoleRef> refs = new ArrayList<>(roles.size());
+            for (Role role : roles) {
+                refs.add(of(role));
+            }
+            return refs;
+        }
+    }
+}
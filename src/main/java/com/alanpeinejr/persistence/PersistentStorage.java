@@ -0,0 +1,170 @@
+package com.alanpeinejr.persistence;
+
+import com.alanpeinejr.manager.RevocationList;
+import com.alanpeinejr.manager.RoleManager;
+import com.alanpeinejr.manager.SessionChanges;
+import com.alanpeinejr.manager.UserManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps user and role storage, and any revoked tokens and tracked session changes, in a directory: a checkpoint of all
+ * of it, plus a write-ahead log of every change since
+ * <p>
+ * Opening loads the checkpoint and replays the log into the managers and revocation list, then logs every change
+ * they make from then on. Session changes come back from the checkpoint with when they were made, those replayed from
+ * the log are taken as made at startup, which only keeps them in the digest a little longer.
+ * The checkpoint's users are stored in the background once it is open, see awaitLoaded, and one asked for before its
+ * turn is loaded first, so start up doesn't wait on reading every user.
+ * A background thread takes a new checkpoint every interval. Writers are not stopped for it, the log is rolled to a
+ * new segment, storage is copied user by user, and once the copy is on disk the segments before it are deleted.
+ */
+public class PersistentStorage implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final Logger LOGGER = Logger.getLogger(PersistentStorage.class.getName());
+
+    private final Path directory;
+    private final UserManager userManager;
+    private final RoleManager roleManager;
+    private final RevocationList revocationList;
+    private final SessionChanges sessionChanges;
+    private final WriteAheadLog log;
+    private final ScheduledExecutorService checkpointer;
+    private final CheckpointLoad load;
+
+    private PersistentStorage(Path directory, UserManager userManager, RoleManager roleManager, RevocationList revocationList,
+                              SessionChanges sessionChanges, WriteAheadLog log, CheckpointLoad load, Duration checkpointInterval) {
+        this.directory = directory;
+        this.userManager = userManager;
+        this.roleManager = roleManager;
+        this.revocationList = revocationList;
+        this.sessionChanges = sessionChanges;
+        this.log = log;
+        this.load = load;
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMillis = checkpointInterval.toMillis();
+        checkpointer.scheduleWithFixedDelay(this::backgroundCheckpoint, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Recovers storage from the directory into the managers and starts logging their changes
+     *
+     * @param userManager        manager over empty storage
+     * @param roleManager        manager over empty storage
+     * @param checkpointInterval time between background checkpoints
+     */
+    public static PersistentStorage open(Path directory, UserManager userManager, RoleManager roleManager, Duration checkpointInterval) throws IOException {
+        return open(directory, userManager, roleManager, null, null, checkpointInterval, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public static PersistentStorage open(Path directory, UserManager userManager, RoleManager roleManager, Duration checkpointInterval, long maxSegmentBytes) throws IOException {
+        return open(directory, userManager, roleManager, null, null, checkpointInterval, maxSegmentBytes);
+    }
+
+    /**
+     * As open, also recovering revoked tokens that haven't expired into the revocation list and logging new ones, and
+     * recovering tracked session changes
+     *
+     * @param revocationList empty list, or null to keep no revocations
+     * @param sessionChanges changes tracked from the user manager, already listening to it so replayed changes are
+     *                       tracked, or null if they aren't tracked
+     */
+    public static PersistentStorage open(Path directory, UserManager userManager, RoleManager roleManager, RevocationList revocationList,
+                                         SessionChanges sessionChanges, Duration checkpointInterval) throws IOException {
+        return open(directory, userManager, roleManager, revocationList, sessionChanges, checkpointInterval, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public static PersistentStorage open(Path directory, UserManager userManager, RoleManager roleManager, RevocationList revocationList,
+                                         SessionChanges sessionChanges, Duration checkpointInterval, long maxSegmentBytes) throws IOException {
+        Files.createDirectories(directory);
+        Checkpoint.Contents checkpoint = Checkpoint.read(directory, userManager, roleManager, revocationList, sessionChanges,
+                Runtime.getRuntime().availableProcessors());
+        long checkpointLsn = checkpoint.getLsn();
+        long lastLsn;
+        try {
+            lastLsn = WriteAheadLog.replay(directory, checkpointLsn, record -> record.applyTo(userManager, roleManager, revocationList));
+        } catch (UncheckedIOException e) {
+            //a checkpoint bucket the replay needed couldn't be read
+            throw e.getCause();
+        }
+        WriteAheadLog log = new WriteAheadLog(directory, Math.max(lastLsn + 1, checkpointLsn), maxSegmentBytes);
+        userManager.addListener(log);
+        roleManager.addListener(log);
+        if (revocationList != null) {
+            revocationList.addListener(log);
+        }
+        return new PersistentStorage(directory, userManager, roleManager, revocationList, sessionChanges, log,
+                checkpoint.getLoad(), checkpointInterval);
+    }
+
+    /**
+     * Returns once every user in the checkpoint is stored, helping store them meanwhile
+     *
+     * @throws IOException if part of the checkpoint couldn't be read
+     */
+    public void awaitLoaded() throws IOException {
+        if (load != null) {
+            load.awaitLoaded();
+        }
+    }
+
+    /**
+     * Writes a checkpoint now and drops the log before it, changes carry on while it runs
+     */
+    public synchronized void checkpoint() throws IOException {
+        long lsn = log.roll();
+        Checkpoint.write(directory, lsn, userManager, roleManager, revocationList, sessionChanges);
+        log.truncateBefore(lsn);
+    }
+
+    public WriteAheadLog getLog() {
+        return log;
+    }
+
+    /**
+     * Stops logging, takes a last checkpoint and closes the log
+     */
+    @Override
+    public void close() throws IOException {
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        userManager.removeListener(log);
+        roleManager.removeListener(log);
+        if (revocationList != null) {
+            revocationList.removeListener(log);
+        }
+        try {
+            checkpoint();
+        } finally {
+            log.close();
+        }
+    }
+
+    private void backgroundCheckpoint() {
+        try {
+            checkpoint();
+        } catch (IOException | RuntimeException e) {
+            //the log still has everything, the next checkpoint can catch up
+            LOGGER.log(Level.WARNING, "Checkpoint failed", e);
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package com.alanpeinejr.persistence;
+
+import com.alanpeinejr.manager.RevocationList;
+import com.alanpeinejr.manager.Role;
+import com.alanpeinejr.manager.StorageListener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Appends every change the managers report, and every token revoked, to log files on disk, so storage can be rebuilt
+ * after a restart
+ * <p>
+ * Changes are numbered in the order they are reported (their log sequence number, LSN) and queued. One writer thread
+ * takes whatever has queued up, writes it and forces it to disk once for the whole batch, so threads changing
+ * storage at the same time share a single fsync. A changing thread waits for its own change to be on disk in
+ * mutationComplete, after it has released the managers' locks.
+ * <p>
+ * The log is split into segment files named after the first LSN they may hold. Each record is framed as
+ * <pre>
+ * payload length (int) | CRC32C of LSN and payload (int) | LSN (long) | payload (MutationRecord.encode)
+ * </pre>
+ * A record that fails its checksum at the end of the last segment is a write torn by a crash and is cut off on replay,
+ * anywhere else it is corruption and replay fails.
+ */
+public class WriteAheadLog implements StorageListener, RevocationList.Listener, Closeable {
+
+    static final String SEGMENT_PREFIX = "wal-";
+    static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_BYTES = Integer.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final Thread writer;
+
+    //guards nextLsn, pending and closed, and is what the writer waits on for work
+    private final Object appendLock = new Object();
+    private long nextLsn;
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private boolean closed;
+
+    //guards durableLsn and failure, and is what changing threads wait on
+    private final Object durableLock = new Object();
+    private long durableLsn;
+    private IOException failure;
+
+    //the LSN the current thread has to see on disk before mutationComplete returns, 0 for none
+    private final ThreadLocal<long[]> awaitedLsn = ThreadLocal.withInitial(() -> new long[1]);
+
+    //only touched by the writer thread
+    private FileChannel segment;
+    private long segmentBytes;
+    private final CRC32C crc = new CRC32C();
+
+    /**
+     * Starts a new segment, existing ones are left for replay and truncation
+     *
+     * @param nextLsn         LSN to give the first record, one more than the last one already in the log
+     * @param maxSegmentBytes size after which records go to a new segment
+     */
+    public WriteAheadLog(Path directory, long nextLsn, long maxSegmentBytes) throws IOException {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.nextLsn = nextLsn;
+        this.durableLsn = nextLsn - 1;
+        Files.createDirectories(directory);
+        openSegment(nextLsn);
+        this.writer = new Thread(this::writeLoop, "write-ahead-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a record, the calling thread will wait for it in mutationComplete
+     *
+     * @return the record's LSN
+     */
+    public long append(MutationRecord record) {
+        byte[] payload = record.encode();
+        long lsn;
+        synchronized (appendLock) {
+            if (closed) {
+                throw new IllegalStateException("Write-ahead log is closed");
+            }
+            lsn = nextLsn++;
+            pending.add(new Entry(Entry.RECORD, lsn, payload));
+            appendLock.notify();
+        }
+        awaitedLsn.get()[0] = lsn;
+        return lsn;
+    }
+
+    /**
+     * Blocks until every record up to and including lsn is on disk
+     *
+     * @throws UncheckedIOException If the log could not be written
+     */
+    public void awaitDurable(long lsn) {
+        synchronized (durableLock) {
+            boolean interrupted = false;
+            while (durableLsn < lsn && failure == null) {
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null && durableLsn < lsn) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+        }
+    }
+
+    /**
+     * Sends records appended from now on to a new segment
+     *
+     * @return the first LSN of the new segment, every record before it has already been appended
+     */
+    public long roll() {
+        synchronized (appendLock) {
+            pending.add(new Entry(Entry.ROLL, nextLsn, null));
+            appendLock.notify();
+            return nextLsn;
+        }
+    }
+
+    /**
+     * Deletes the segments holding only records before lsn, once the writer has finished with them
+     */
+    public void truncateBefore(long lsn) {
+        synchronized (appendLock) {
+            pending.add(new Entry(Entry.TRUNCATE, lsn, null));
+            appendLock.notify();
+        }
+    }
+
+    /**
+     * @return the LSN the next record will get
+     */
+    public long getNextLsn() {
+        synchronized (appendLock) {
+            return nextLsn;
+        }
+    }
+
+    /**
+     * Writes what is queued and stops the writer
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            appendLock.notify();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (durableLock) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Reads every record from fromLsn on, in order, cutting off a torn write at the end of the log
+     *
+     * @return the last LSN in the log, or fromLsn - 1 if there are no records from fromLsn on
+     * @throws IOException If a segment can't be read or a record before the end of the log is corrupt
+     */
+    public static long replay(Path directory, long fromLsn, Consumer<MutationRecord> consumer) throws IOException {
+        long lastLsn = fromLsn - 1;
+        List<Path> segments = segments(directory);
+        for (int i = 0; i < segments.size(); i++) {
+            boolean lastSegment = i == segments.size() - 1;
+            //a later segment starts at or before fromLsn, so everything in this one is older
+            if (!lastSegment && firstLsn(segments.get(i + 1)) <= fromLsn) {
+                continue;
+            }
+            lastLsn = Math.max(lastLsn, replaySegment(segments.get(i), fromLsn, lastSegment, consumer));
+        }
+        return lastLsn;
+    }
+
+    private static long replaySegment(Path path, long fromLsn, boolean lastSegment, Consumer<MutationRecord> consumer) throws IOException {
+        long lastLsn = fromLsn - 1;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            CRC32C crc = new CRC32C();
+            long position = 0;
+            while (true) {
+                header.clear();
+                if (readFully(channel, header, position) < HEADER_BYTES) {
+                    break;
+                }
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                long lsn = header.getLong();
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                if (readFully(channel, payload, position + HEADER_BYTES) < length) {
+                    break;
+                }
+                payload.flip();
+                crc.reset();
+                crc.update(header.array(), Integer.BYTES * 2, Long.BYTES);
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                if (lsn >= fromLsn) {
+                    consumer.accept(MutationRecord.decode(payload));
+                    lastLsn = lsn;
+                }
+                position += HEADER_BYTES + length;
+            }
+            if (position < channel.size()) {
+                if (!lastSegment) {
+                    throw new IOException("Corrupt record in " + path + " at offset " + position);
+                }
+                channel.truncate(position);
+                channel.force(true);
+            }
+        }
+        return lastLsn;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * @return the log's segments, oldest first
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        segments.sort((a, b) -> Long.compare(firstLsn(a), firstLsn(b)));
+        return segments;
+    }
+
+    static long firstLsn(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (true) {
+            boolean stop;
+            synchronized (appendLock) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        appendLock.wait();
+                    } catch (InterruptedException e) {
+                        //only close stops the writer
+                    }
+                }
+                batch.addAll(pending);
+                pending.clear();
+                stop = closed && batch.isEmpty();
+            }
+            if (stop) {
+                break;
+            }
+            try {
+                long batchLsn = writeBatch(batch, buffer);
+                synchronized (durableLock) {
+                    durableLsn = Math.max(durableLsn, batchLsn);
+                    durableLock.notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (durableLock) {
+                    failure = e;
+                    durableLock.notifyAll();
+                }
+                break;
+            }
+            batch.clear();
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            synchronized (durableLock) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the highest LSN written, all of the batch is on disk when this returns
+     */
+    private long writeBatch(List<Entry> batch, ByteBuffer buffer) throws IOException {
+        long lastLsn = 0;
+        buffer.clear();
+        for (Entry entry : batch) {
+            if (entry.kind == Entry.ROLL) {
+                flush(buffer);
+                segment.force(false);
+                segment.close();
+                openSegment(entry.lsn);
+            } else if (entry.kind == Entry.TRUNCATE) {
+                deleteSegmentsBefore(entry.lsn);
+            } else {
+                if (segmentBytes >= maxSegmentBytes) {
+                    flush(buffer);
+                    segment.force(false);
+                    segment.close();
+                    openSegment(entry.lsn);
+                }
+                int size = HEADER_BYTES + entry.payload.length;
+                if (buffer.remaining() < size) {
+                    flush(buffer);
+                    if (buffer.capacity() < size) {
+                        buffer = ByteBuffer.allocate(size);
+                    }
+                }
+                crc.reset();
+                crc.update(longBytes(entry.lsn));
+                crc.update(entry.payload);
+                buffer.putInt(entry.payload.length).putInt((int) crc.getValue()).putLong(entry.lsn).put(entry.payload);
+                segmentBytes += size;
+                lastLsn = entry.lsn;
+            }
+        }
+        flush(buffer);
+        segment.force(false);
+        return lastLsn;
+    }
+
+    private void flush(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void openSegment(long firstLsn) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstLsn, SEGMENT_SUFFIX));
+        segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentBytes = segment.size();
+    }
+
+    private void deleteSegmentsBefore(long lsn) throws IOException {
+        List<Path> segments = segments(directory);
+        //the last segment is the one being written to
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (firstLsn(segments.get(i + 1)) <= lsn) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    private static byte[] longBytes(long value) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+    }
+
+    @Override
+    public void roleCreated(Role role) {
+        append(MutationRecord.roleCreated(role));
+    }
+
+    @Override
+    public void roleDeleted(Role role) {
+        append(MutationRecord.roleDeleted(role));
+    }
+
+    @Override
+    public void roleIncluded(Role role, Role includedRole) {
+        append(MutationRecord.roleIncluded(role, includedRole));
+    }
+
+    @Override
+    public void roleExcluded(Role role, Role includedRole) {
+        append(MutationRecord.roleExcluded(role, includedRole));
+    }
+
+    @Override
+    public void userStored(String username, String password, double salt, List<Role> roles, long sessionEpoch) {
+        append(MutationRecord.userStored(username, password, salt, roles, sessionEpoch));
+    }
+
+    @Override
+    public void userDeleted(String username) {
+        append(MutationRecord.userDeleted(username));
+    }
+
+    @Override
+    public void rolesAdded(String username, Collection<Role> roles) {
+        append(MutationRecord.rolesAdded(username, roles));
+    }
+
+    @Override
+    public void roleRemoved(String username, Role role) {
+        append(MutationRecord.roleRemoved(username, role));
+    }
+
+    @Override
+    public void sessionEpochChanged(String username, long sessionEpoch) {
+        append(MutationRecord.sessionEpoch(username, sessionEpoch));
+    }
+
+    /**
+     * Revocations hold no locks while listeners run, so the revoking thread waits for the record to be on disk here
+     */
+    @Override
+    public void revoked(long id, Instant expiration) {
+        long lsn = append(MutationRecord.revoked(id, expiration));
+        awaitedLsn.get()[0] = 0;
+        awaitDurable(lsn);
+    }
+
+    @Override
+    public void mutationComplete() {
+        long[] awaited = awaitedLsn.get();
+        if (awaited[0] != 0) {
+            long lsn = awaited[0];
+            awaited[0] = 0;
+            awaitDurable(lsn);
+        }
+    }
+
+    private static final class Entry {
+        static final int RECORD = 0;
+        static final int ROLL = 1;
+        static final int TRUNCATE = 2;
+
+        private final int kind;
+        private final long lsn;
+        private final byte[] payload;
+
+        Entry(int kind, long lsn, byte[] payload) {
+            this.kind = kind;
+            this.lsn = lsn;
+            this.payload = payload;
+        }
+    }
+}
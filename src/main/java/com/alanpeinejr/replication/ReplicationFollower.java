@@ -0,0 +1,268 @@
+package com.alanpeinejr.replication;
+
+import com.alanpeinejr.exception.NoSuchRoleException;
+import com.alanpeinejr.exception.NoSuchUserException;
+import com.alanpeinejr.manager.RevocationList;
+import com.alanpeinejr.manager.Role;
+import com.alanpeinejr.manager.RoleManager;
+import com.alanpeinejr.manager.UserManager;
+import com.alanpeinejr.persistence.MutationRecord;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the managers' storage a copy of a ReplicationLeader's, so this node can log users in and check their tokens
+ * from local state
+ * <p>
+ * On connecting the leader sends a snapshot of its storage and then every change after it. Once the snapshot is in,
+ * anything stored here that it didn't hold is removed, so a follower that reconnects after missing changes ends up
+ * with the leader's storage. A lost or silent connection is dropped and made again after the reconnect delay, as is one
+ * carrying a change that fails to apply, so the next snapshot puts right whatever it left half done.
+ * <p>
+ * Changes should only be made on the leader, any made here are lost at the next snapshot and never reach other nodes.
+ */
+public class ReplicationFollower implements Closeable {
+
+    public static final Duration DEFAULT_RECONNECT_DELAY = Duration.ofSeconds(1);
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    //heartbeats a connection may miss before it is taken for dead
+    private static final int MISSED_HEARTBEATS = 4;
+    private static final Logger LOGGER = Logger.getLogger(ReplicationFollower.class.getName());
+
+    private final InetSocketAddress leaderAddress;
+    private final UserManager userManager;
+    private final RoleManager roleManager;
+    private final RevocationList revocationList;
+    private final long reconnectDelayMillis;
+    private final Thread receiver;
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    //only written by the receiver thread
+    private volatile boolean synced;
+    private volatile long appliedSequence;
+    private volatile long leaderSequence;
+    private volatile long heartbeatMillis;
+    private volatile long lastDelayMillis;
+    private volatile long lastContactMillis;
+
+    /**
+     * Starts following the leader, retrying until it can be reached
+     *
+     * @param userManager    manager over the storage to keep in step, changes to it are overwritten
+     * @param revocationList where to apply revocations, may be null
+     */
+    public static ReplicationFollower start(InetSocketAddress leaderAddress, UserManager userManager, RoleManager roleManager, RevocationList revocationList) {
+        return new ReplicationFollower(leaderAddress, userManager, roleManager, revocationList, DEFAULT_RECONNECT_DELAY);
+    }
+
+    public ReplicationFollower(InetSocketAddress leaderAddress, UserManager userManager, RoleManager roleManager, RevocationList revocationList,
+                               Duration reconnectDelay) {
+        this.leaderAddress = leaderAddress;
+        this.userManager = userManager;
+        this.roleManager = roleManager;
+        this.revocationList = revocationList;
+        this.reconnectDelayMillis = reconnectDelay.toMillis();
+        this.lastContactMillis = System.currentTimeMillis();
+        this.receiver = new Thread(this::receiveLoop, "replication-follower");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public InetSocketAddress getLeaderAddress() {
+        return leaderAddress;
+    }
+
+    /**
+     * @return true while connected with the leader's snapshot applied
+     */
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * @return the sequence number of the leader's latest change applied here
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * @return the latest sequence number the leader has been heard to reach
+     */
+    public long getLeaderSequence() {
+        return leaderSequence;
+    }
+
+    /**
+     * How far behind the leader local state may be: the time between the leader sending the last change or heartbeat
+     * and it being applied here, plus however long the next heartbeat is overdue. Before the first snapshot it is the
+     * time since following started. Leader and follower clocks are compared, so skew between them adds to it.
+     */
+    public Duration getLag() {
+        long overdue = System.currentTimeMillis() - lastContactMillis - heartbeatMillis;
+        return Duration.ofMillis(lastDelayMillis + Math.max(0, overdue));
+    }
+
+    /**
+     * Stops following, storage keeps what has been applied
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Socket current = socket;
+        if (current != null) {
+            current.close();
+        }
+        receiver.interrupt();
+        try {
+            receiver.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void receiveLoop() {
+        while (!closed) {
+            try (Socket connection = new Socket()) {
+                socket = connection;
+                if (closed) {
+                    return;
+                }
+                connection.connect(leaderAddress, (int) CONNECT_TIMEOUT.toMillis());
+                receive(new DataInputStream(new BufferedInputStream(connection.getInputStream())), connection);
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.log(Level.FINE, "Lost the leader at " + leaderAddress, e);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to apply a change from the leader at " + leaderAddress + ", resyncing", e);
+            } finally {
+                synced = false;
+                socket = null;
+            }
+            try {
+                Thread.sleep(reconnectDelayMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void receive(DataInputStream in, Socket connection) throws IOException {
+        Snapshot snapshot = new Snapshot();
+        while (true) {
+            ReplicationFrame frame = ReplicationFrame.read(in);
+            switch (frame.type) {
+                case ReplicationFrame.MUTATION:
+                    MutationRecord record = MutationRecord.decode(ByteBuffer.wrap(frame.payload));
+                    if (snapshot != null) {
+                        snapshot.add(record);
+                    }
+                    record.applyTo(userManager, roleManager);
+                    break;
+                case ReplicationFrame.REVOCATION:
+                    if (revocationList != null) {
+                        revocationList.revoke(frame.revokedId(), frame.revokedExpiration());
+                    }
+                    break;
+                case ReplicationFrame.HEARTBEAT:
+                    break;
+                case ReplicationFrame.SNAPSHOT_END:
+                    if (snapshot == null) {
+                        throw new IOException("Second snapshot end from the leader");
+                    }
+                    snapshot.dropEverythingElse();
+                    snapshot = null;
+                    heartbeatMillis = frame.longPayload();
+                    connection.setSoTimeout((int) Math.min(Integer.MAX_VALUE, heartbeatMillis * MISSED_HEARTBEATS));
+                    synced = true;
+                    break;
+                default:
+                    throw new IOException("Unknown replication frame type " + frame.type);
+            }
+            long now = System.currentTimeMillis();
+            lastContactMillis = now;
+            if (snapshot == null) {
+                lastDelayMillis = Math.max(0, now - frame.sentAtMillis);
+                appliedSequence = frame.sequence;
+                leaderSequence = Math.max(leaderSequence, frame.sequence);
+            }
+        }
+    }
+
+    /**
+     * What a snapshot held, so that whatever else is stored here can be removed once it is in
+     */
+    private final class Snapshot {
+        private final Set<String> users = new HashSet<>();
+        private final Set<String> roles = new HashSet<>();
+        private final Set<List<String>> inclusions = new HashSet<>();
+
+        void add(MutationRecord record) {
+            switch (record.getType()) {
+                case USER_STORED:
+                    users.add(record.getUsername());
+                    break;
+                case ROLE_CREATED:
+                    roles.add(record.getRoleNames().get(0));
+                    break;
+                case ROLE_INCLUDED:
+                    inclusions.add(record.getRoleNames());
+                    break;
+                default:
+                    //snapshots are only made of the above
+            }
+        }
+
+        void dropEverythingElse() {
+            List<String> staleUsers = new ArrayList<>();
+            userManager.forEachUser((username, password, salt, userRoles, sessionEpoch) -> {
+                if (!users.contains(username)) {
+                    staleUsers.add(username);
+                }
+            });
+            for (String username : staleUsers) {
+                try {
+                    userManager.deleteUser(username);
+                } catch (NoSuchUserException e) {
+                    //already gone
+                }
+            }
+            for (Map.Entry<Role, List<Role>> roleInclusions : roleManager.getInclusions().entrySet()) {
+                for (Role included : roleInclusions.getValue()) {
+                    if (!inclusions.contains(List.of(roleInclusions.getKey().getName(), included.getName()))) {
+                        try {
+                            roleManager.excludeRole(roleInclusions.getKey().getName(), included.getName());
+                        } catch (NoSuchRoleException e) {
+                            //already gone
+                        }
+                    }
+                }
+            }
+            for (Role role : roleManager.getRoles()) {
+                if (!roles.contains(role.getName())) {
+                    try {
+                        roleManager.deleteRole(role.getName());
+                    } catch (NoSuchRoleException e) {
+                        //already gone
+                    }
+                }
+            }
+        }
+    }
+}
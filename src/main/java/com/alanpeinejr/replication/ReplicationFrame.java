@@ -0,0 +1,94 @@
+package com.alanpeinejr.replication;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+/**
+ * One message from a ReplicationLeader to a follower, framed as
+ * <pre>
+ * type (byte) | sequence (long) | leader time sent, epoch millis (long) | payload length (int) | payload
+ * </pre>
+ */
+final class ReplicationFrame {
+
+    //payload is MutationRecord.encode
+    static final byte MUTATION = 1;
+    //payload is the revoked token's id (long) and expiration, epoch second (long) and nano (int)
+    static final byte REVOCATION = 2;
+    //no payload, the follower has been sent everything up to the sequence
+    static final byte HEARTBEAT = 3;
+    //payload is the leader's heartbeat interval in millis (long), the snapshot before it is complete up to the sequence
+    static final byte SNAPSHOT_END = 4;
+
+    private static final int REVOCATION_BYTES = Long.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int MAX_PAYLOAD_BYTES = 16 * 1024 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    final byte type;
+    final long sequence;
+    final long sentAtMillis;
+    final byte[] payload;
+
+    ReplicationFrame(byte type, long sequence, long sentAtMillis, byte[] payload) {
+        this.type = type;
+        this.sequence = sequence;
+        this.sentAtMillis = sentAtMillis;
+        this.payload = payload;
+    }
+
+    static ReplicationFrame heartbeat(long sequence) {
+        return new ReplicationFrame(HEARTBEAT, sequence, System.currentTimeMillis(), EMPTY);
+    }
+
+    static byte[] revocation(long id, Instant expiration) {
+        return ByteBuffer.allocate(REVOCATION_BYTES).putLong(id).putLong(expiration.getEpochSecond()).putInt(expiration.getNano()).array();
+    }
+
+    static byte[] longPayload(long value) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+    }
+
+    long revokedId() throws IOException {
+        return payload(REVOCATION_BYTES).getLong(0);
+    }
+
+    Instant revokedExpiration() throws IOException {
+        ByteBuffer buffer = payload(REVOCATION_BYTES);
+        return Instant.ofEpochSecond(buffer.getLong(Long.BYTES), buffer.getInt(2 * Long.BYTES));
+    }
+
+    long longPayload() throws IOException {
+        return payload(Long.BYTES).getLong(0);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeByte(type);
+        out.writeLong(sequence);
+        out.writeLong(sentAtMillis);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    static ReplicationFrame read(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        long sequence = in.readLong();
+        long sentAtMillis = in.readLong();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD_BYTES) {
+            throw new IOException("Bad replication frame payload length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new ReplicationFrame(type, sequence, sentAtMillis, payload);
+    }
+
+    private ByteBuffer payload(int bytes) throws IOException {
+        if (payload.length != bytes) {
+            throw new IOException("Replication frame of type " + type + " needs " + bytes + " payload bytes, has " + payload.length);
+        }
+        return ByteBuffer.wrap(payload);
+    }
+}
@@ -0,0 +1,324 @@
+package com.alanpeinejr.replication;
+
+import com.alanpeinejr.manager.RevocationList;
+import com.alanpeinejr.manager.Role;
+import com.alanpeinejr.manager.RoleManager;
+import com.alanpeinejr.manager.StorageListener;
+import com.alanpeinejr.manager.UserManager;
+import com.alanpeinejr.persistence.MutationRecord;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams every change the managers make, and every token revoked, to followers connected over TCP
+ * <p>
+ * Changes are numbered in the order they are reported and queued for each follower, one sender thread per follower
+ * writes its queue to the socket, so a slow follower never holds up the threads changing storage. A follower whose
+ * queue fills up is disconnected and catches up from a new snapshot when it reconnects.
+ * <p>
+ * A new follower's queue is registered before its snapshot is read, so every change made while the snapshot is sent
+ * is queued behind it. The snapshot is read without stopping writers and may already hold some of those changes,
+ * which is fine as applying a MutationRecord twice changes nothing. When the queue runs dry a heartbeat tells the
+ * follower how far it is caught up.
+ */
+public class ReplicationLeader implements StorageListener, RevocationList.Listener, Closeable {
+
+    public static final int DEFAULT_FOLLOWER_BACKLOG = 64 * 1024;
+    public static final Duration DEFAULT_HEARTBEAT_INTERVAL = Duration.ofMillis(500);
+    private static final Logger LOGGER = Logger.getLogger(ReplicationLeader.class.getName());
+
+    private final UserManager userManager;
+    private final RoleManager roleManager;
+    private final RevocationList revocationList;
+    private final int followerBacklog;
+    private final long heartbeatMillis;
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final Set<Follower> followers = ConcurrentHashMap.newKeySet();
+
+    //guarded by this, as is offering frames to the followers' queues so every queue is in sequence order
+    private long sequence;
+    private volatile boolean closed;
+
+    /**
+     * Starts listening for followers and streaming the managers' changes to them
+     *
+     * @param address        where to listen, port 0 picks a free port
+     * @param revocationList revocations to stream, may be null
+     */
+    public static ReplicationLeader start(InetSocketAddress address, UserManager userManager, RoleManager roleManager, RevocationList revocationList) throws IOException {
+        return new ReplicationLeader(address, userManager, roleManager, revocationList, DEFAULT_FOLLOWER_BACKLOG, DEFAULT_HEARTBEAT_INTERVAL);
+    }
+
+    /**
+     * @param followerBacklog   frames queued for a follower before it is disconnected as too far behind
+     * @param heartbeatInterval time a follower with nothing to send waits for a heartbeat
+     */
+    public ReplicationLeader(InetSocketAddress address, UserManager userManager, RoleManager roleManager, RevocationList revocationList,
+                             int followerBacklog, Duration heartbeatInterval) throws IOException {
+        if (followerBacklog <= 0 || heartbeatInterval.isNegative() || heartbeatInterval.isZero()) {
+            throw new IllegalArgumentException("Follower backlog and heartbeat interval must be positive");
+        }
+        this.userManager = userManager;
+        this.roleManager = roleManager;
+        this.revocationList = revocationList;
+        this.followerBacklog = followerBacklog;
+        this.heartbeatMillis = heartbeatInterval.toMillis();
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+        roleManager.addListener(this);
+        userManager.addListener(this);
+        if (revocationList != null) {
+            revocationList.addListener(this);
+        }
+        this.acceptor = new Thread(this::acceptLoop, "replication-leader");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * @return the sequence number of the latest change, 0 before the first
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public int getFollowerCount() {
+        return followers.size();
+    }
+
+    @Override
+    public void roleCreated(Role role) {
+        append(MutationRecord.roleCreated(role));
+    }
+
+    @Override
+    public void roleDeleted(Role role) {
+        append(MutationRecord.roleDeleted(role));
+    }
+
+    @Override
+    public void roleIncluded(Role role, Role includedRole) {
+        append(MutationRecord.roleIncluded(role, includedRole));
+    }
+
+    @Override
+    public void roleExcluded(Role role, Role includedRole) {
+        append(MutationRecord.roleExcluded(role, includedRole));
+    }
+
+    @Override
+    public void userStored(String username, String password, double salt, List<Role> roles, long sessionEpoch) {
+        append(MutationRecord.userStored(username, password, salt, roles, sessionEpoch));
+    }
+
+    @Override
+    public void userDeleted(String username) {
+        append(MutationRecord.userDeleted(username));
+    }
+
+    @Override
+    public void rolesAdded(String username, Collection<Role> roles) {
+        append(MutationRecord.rolesAdded(username, roles));
+    }
+
+    @Override
+    public void roleRemoved(String username, Role role) {
+        append(MutationRecord.roleRemoved(username, role));
+    }
+
+    @Override
+    public void sessionEpochChanged(String username, long sessionEpoch) {
+        append(MutationRecord.sessionEpoch(username, sessionEpoch));
+    }
+
+    @Override
+    public void revoked(long id, Instant expiration) {
+        append(ReplicationFrame.REVOCATION, ReplicationFrame.revocation(id, expiration));
+    }
+
+    private void append(MutationRecord record) {
+        append(ReplicationFrame.MUTATION, record.encode());
+    }
+
+    private void append(byte type, byte[] payload) {
+        synchronized (this) {
+            ReplicationFrame frame = new ReplicationFrame(type, ++sequence, System.currentTimeMillis(), payload);
+            for (Follower follower : followers) {
+                follower.offer(frame);
+            }
+        }
+    }
+
+    /**
+     * Stops listening and disconnects every follower, storage is left as it is
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        roleManager.removeListener(this);
+        userManager.removeListener(this);
+        if (revocationList != null) {
+            revocationList.removeListener(this);
+        }
+        serverSocket.close();
+        for (Follower follower : followers) {
+            follower.disconnect();
+        }
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Follower follower = new Follower(socket);
+                long snapshotSequence;
+                synchronized (this) {
+                    followers.add(follower);
+                    snapshotSequence = sequence;
+                }
+                Thread sender = new Thread(() -> follower.send(snapshotSequence), "replication-sender-" + socket.getRemoteSocketAddress());
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.log(Level.WARNING, "Failed to accept a follower", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A connected follower: its socket and the frames queued for it
+     */
+    private final class Follower {
+        private final Socket socket;
+        private final BlockingQueue<ReplicationFrame> queue = new ArrayBlockingQueue<>(followerBacklog);
+        private volatile boolean disconnected;
+
+        Follower(Socket socket) {
+            this.socket = socket;
+        }
+
+        //called holding the leader's lock
+        void offer(ReplicationFrame frame) {
+            if (!disconnected && !queue.offer(frame)) {
+                LOGGER.warning("Follower " + socket.getRemoteSocketAddress() + " is more than " + followerBacklog
+                        + " changes behind, disconnecting it to catch up from a snapshot");
+                disconnect();
+            }
+        }
+
+        void disconnect() {
+            disconnected = true;
+            followers.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //already closed
+            }
+        }
+
+        /**
+         * Runs on the follower's sender thread until the follower disconnects
+         */
+        void send(long snapshotSequence) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+                sendSnapshot(out, snapshotSequence);
+                while (!disconnected) {
+                    ReplicationFrame frame = queue.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                    if (frame == null) {
+                        frame = heartbeat();
+                        if (frame == null) {
+                            continue;
+                        }
+                    }
+                    frame.write(out);
+                    //write what else has queued up before flushing, so a burst of changes goes out in few packets
+                    while ((frame = queue.poll()) != null) {
+                        frame.write(out);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                if (!disconnected && !closed) {
+                    LOGGER.log(Level.INFO, "Lost follower " + socket.getRemoteSocketAddress(), e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                disconnect();
+            }
+        }
+
+        /**
+         * @return a heartbeat at the latest sequence, or null if a change queued since the poll, as the follower
+         * hasn't got everything up to the latest sequence yet
+         */
+        private ReplicationFrame heartbeat() {
+            synchronized (ReplicationLeader.this) {
+                return queue.isEmpty() ? ReplicationFrame.heartbeat(sequence) : null;
+            }
+        }
+
+        private void sendSnapshot(DataOutputStream out, long snapshotSequence) throws IOException {
+            for (Role role : roleManager.getRoles()) {
+                writeSnapshotRecord(out, snapshotSequence, MutationRecord.roleCreated(role).encode());
+            }
+            for (Map.Entry<Role, List<Role>> inclusions : roleManager.getInclusions().entrySet()) {
+                for (Role included : inclusions.getValue()) {
+                    writeSnapshotRecord(out, snapshotSequence, MutationRecord.roleIncluded(inclusions.getKey(), included).encode());
+                }
+            }
+            //users are read under their locks, so they are gathered first rather than written to a socket that may block
+            List<byte[]> users = new ArrayList<>();
+            userManager.forEachUser((username, password, salt, roles, sessionEpoch) ->
+                    users.add(MutationRecord.userStored(username, password, salt, roles, sessionEpoch).encode()));
+            for (byte[] user : users) {
+                writeSnapshotRecord(out, snapshotSequence, user);
+            }
+            if (revocationList != null) {
+                for (Map.Entry<Long, Instant> revocation : revocationList.getRevocations().entrySet()) {
+                    new ReplicationFrame(ReplicationFrame.REVOCATION, snapshotSequence, System.currentTimeMillis(),
+                            ReplicationFrame.revocation(revocation.getKey(), revocation.getValue())).write(out);
+                }
+            }
+            new ReplicationFrame(ReplicationFrame.SNAPSHOT_END, snapshotSequence, System.currentTimeMillis(),
+                    ReplicationFrame.longPayload(heartbeatMillis)).write(out);
+            out.flush();
+        }
+
+        private void writeSnapshotRecord(DataOutputStream out, long snapshotSequence, byte[] record) throws IOException {
+            new ReplicationFrame(ReplicationFrame.MUTATION, snapshotSequence, System.currentTimeMillis(), record).write(out);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.alanpeinejr.scheduler;
+
+import java.io.Closeable;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks at a deadline on one background thread, for the many small timeouts storage needs, such as session
+ * expiry, where a priority queue's log n insert and cancel would be paid on every login
+ * <p>
+ * A hashed timing wheel: a ring of buckets, one per tick, that the thread moves through a tick at a time. A task goes in
+ * the bucket its deadline falls in, with a count of how many turns of the ring to wait first. Scheduling and cancelling
+ * are O(1), new and cancelled tasks are queued and the thread moves them in or out at its next tick. Tasks run up to a
+ * tick late, never early, and should be short since they hold up every task behind them.
+ */
+public class TimingWheel implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(TimingWheel.class.getName());
+    //most new tasks moved into the ring per tick, so a burst of scheduling can't stall expiry
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final long startNanos;
+    private final Thread worker;
+    private volatile boolean closed;
+    //ticks the worker has finished, only the worker touches it
+    private long tick;
+
+    /**
+     * @param tick      how often the thread wakes, and so how late a task may run
+     * @param wheelSize buckets in the ring, rounded up to a power of two. Deadlines more than tick * wheelSize away
+     *                  wait out whole turns
+     */
+    public TimingWheel(Duration tick, int wheelSize) {
+        if (tick.isNegative() || tick.isZero() || wheelSize <= 0 || wheelSize > 1 << 30) {
+            throw new IllegalArgumentException("Tick must be positive and the wheel between 1 and 2^30 buckets");
+        }
+        this.tickNanos = tick.toNanos();
+        int size = Integer.highestOneBit(wheelSize) == wheelSize ? wheelSize : Integer.highestOneBit(wheelSize) << 1;
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+        this.worker = new Thread(this::run, "timing-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Runs the task once the delay has passed
+     */
+    public Timeout schedule(Duration delay, Runnable task) {
+        if (closed) {
+            throw new IllegalStateException("Timing wheel is closed");
+        }
+        long delayNanos;
+        try {
+            delayNanos = Math.max(0, delay.toNanos());
+        } catch (ArithmeticException e) {
+            delayNanos = Long.MAX_VALUE / 2;
+        }
+        long now = System.nanoTime() - startNanos;
+        //a deadline that overflows is as good as never
+        long deadline = now + delayNanos < now ? Long.MAX_VALUE : now + delayNanos;
+        Timeout timeout = new Timeout(this, task, deadline);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Runs the task at the deadline, by the UTC clock, or at the next tick if that has passed
+     */
+    public Timeout schedule(Instant deadline, Runnable task) {
+        return schedule(Duration.between(Clock.systemUTC().instant(), deadline), task);
+    }
+
+    /**
+     * @return tasks scheduled that have neither run nor been dropped after a cancel
+     */
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Stops the thread, tasks not yet run never will be
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(worker);
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos;
+            while (!closed && (sleepNanos = deadline - (System.nanoTime() - startNanos)) > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+            }
+            if (closed) {
+                return;
+            }
+            removeCancelled();
+            transferAdded();
+            buckets[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    private void transferAdded() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = added.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.isCancelled()) {
+                //cancelled before it reached a bucket, removeCancelled skipped it
+                pending.decrementAndGet();
+                continue;
+            }
+            long dueTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (dueTick - tick) / buckets.length;
+            //already due, goes in the bucket about to expire
+            Bucket bucket = buckets[(int) (Math.max(dueTick, tick) & mask)];
+            bucket.add(timeout);
+        }
+    }
+
+    private void expired(Timeout timeout) {
+        pending.decrementAndGet();
+        try {
+            timeout.task.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Timed task failed", e);
+        }
+    }
+
+    /**
+     * A scheduled task, which can be cancelled until it runs
+     */
+    public static final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        //nanos after the wheel started
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        //the rest is only touched by the wheel's thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the task already ran or was already cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * @return true once the task has started running
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    /**
+     * The tasks due in one tick of the ring, a doubly linked list so any one can be unlinked in O(1)
+     */
+    private final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        private void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                        expired(timeout);
+                    } else {
+                        //cancelled since removeCancelled ran, it finds nothing left to unlink
+                        pending.decrementAndGet();
+                    }
+                } else if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                tail = timeout.previous;
+            }
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.alanpeinejr.verifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Pulls the revocation digest from an AuthenticationHttpServer's /revocationDigest, with the JDK's HTTP client
+ */
+public class HttpDigestSource implements Supplier<RevocationDigest> {
+
+    private final HttpClient client;
+    private final HttpRequest request;
+
+    /**
+     * @param server  where the service is served, such as http://auth:8080/
+     * @param timeout most time to wait for the service to connect and answer
+     */
+    public HttpDigestSource(URI server, Duration timeout) {
+        this.client = HttpClient.newBuilder().connectTimeout(timeout).build();
+        this.request = HttpRequest.newBuilder(server.resolve("/revocationDigest"))
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{}"))
+                .build();
+    }
+
+    /**
+     * @throws UncheckedIOException If the service can't be reached or answers with anything but a digest
+     */
+    @Override
+    public RevocationDigest get() {
+        try {
+            HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            try (Reader body = new InputStreamReader(response.body(), StandardCharsets.UTF_8)) {
+                if (response.statusCode() != 200) {
+                    throw new IOException("Revocation digest request failed with status " + response.statusCode());
+                }
+                return RevocationDigest.fromJson(body);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new IOException("Interrupted fetching the revocation digest", e));
+        }
+    }
+}
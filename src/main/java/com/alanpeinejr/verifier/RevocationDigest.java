@@ -0,0 +1,233 @@
+package com.alanpeinejr.verifier;
+
+import com.alanpeinejr.manager.Role;
+import com.alanpeinejr.manager.Token;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * What a TokenVerifier needs from the service to turn away tokens that are signed and unexpired but no longer valid:
+ * single tokens revoked by id, and users whose session epoch changed or who were deleted within the last token
+ * lifetime. Tokens issued before the service began tracking changes are turned away too, since changes to them may have
+ * been missed. It also carries the role hierarchy, so the verifier grants roles held through an including role as
+ * AuthenticationService.authorize does.
+ * <p>
+ * Sent as JSON: {"generatedAt":millis,"trackingSince":millis,"tokenLifetimeSeconds":n,"revokedTokenIds":[id],
+ * "sessionEpochs":{"username":epoch},"includingRoles":{"role":["role including it"]}}, an epoch of -1 meaning the user
+ * was deleted.
+ */
+public final class RevocationDigest {
+
+    private final Instant generatedAt;
+    private final Instant trackingSince;
+    private final long tokenLifetimeSeconds;
+    private final long[] revokedTokenIds;
+    private final Map<String, Long> sessionEpochs;
+    private final Map<String, Set<String>> includingRoles;
+
+    /**
+     * @param revokedTokenIds ids of tokens revoked one at a time, in any order
+     * @param sessionEpochs   current session epoch of each user changed within a token lifetime, -1 if deleted
+     */
+    public RevocationDigest(Instant generatedAt, Instant trackingSince, long tokenLifetimeSeconds, long[] revokedTokenIds, Map<String, Long> sessionEpochs) {
+        this(generatedAt, trackingSince, tokenLifetimeSeconds, revokedTokenIds, sessionEpochs, Map.of());
+    }
+
+    /**
+     * @param includingRoles names of the roles that include each role through any chain, see
+     *                       RoleManager.getIncludingRoles
+     */
+    public RevocationDigest(Instant generatedAt, Instant trackingSince, long tokenLifetimeSeconds, long[] revokedTokenIds, Map<String, Long> sessionEpochs,
+                            Map<String, ? extends Collection<String>> includingRoles) {
+        this.generatedAt = generatedAt;
+        //token expirations are whole seconds
+        this.trackingSince = trackingSince.truncatedTo(ChronoUnit.SECONDS);
+        this.tokenLifetimeSeconds = tokenLifetimeSeconds;
+        this.revokedTokenIds = revokedTokenIds.clone();
+        Arrays.sort(this.revokedTokenIds);
+        this.sessionEpochs = Collections.unmodifiableMap(new HashMap<>(sessionEpochs));
+        Map<String, Set<String>> including = new HashMap<>();
+        includingRoles.forEach((role, roles) -> including.put(role, Collections.unmodifiableSet(new TreeSet<>(roles))));
+        this.includingRoles = Collections.unmodifiableMap(including);
+    }
+
+    /**
+     * @return true if the token was revoked, its user logged out everywhere or deleted, or it predates the service's
+     * tracking
+     */
+    public boolean isRevoked(Token token) {
+        if (token.getExpiration().minusSeconds(tokenLifetimeSeconds).isBefore(trackingSince)) {
+            return true;
+        }
+        if (token.getId() != 0 && Arrays.binarySearch(revokedTokenIds, token.getId()) >= 0) {
+            return true;
+        }
+        Long sessionEpoch = sessionEpochs.get(token.getUsername());
+        return sessionEpoch != null && sessionEpoch != token.getSession();
+    }
+
+    /**
+     * @return true if the token holds the role, either assigned directly or through a role that includes it
+     */
+    public boolean grants(Token token, String roleName) {
+        if (token.hasRole(new Role(roleName))) {
+            return true;
+        }
+        Set<String> including = includingRoles.get(roleName);
+        if (including == null) {
+            return false;
+        }
+        for (Role held : token.getRoles()) {
+            if (held != null && including.contains(held.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Instant getGeneratedAt() {
+        return generatedAt;
+    }
+
+    public Instant getTrackingSince() {
+        return trackingSince;
+    }
+
+    public long getTokenLifetimeSeconds() {
+        return tokenLifetimeSeconds;
+    }
+
+    public int getRevokedTokenCount() {
+        return revokedTokenIds.length;
+    }
+
+    public Map<String, Long> getSessionEpochs() {
+        return sessionEpochs;
+    }
+
+    public Map<String, Set<String>> getIncludingRoles() {
+        return includingRoles;
+    }
+
+    public String toJson() {
+        StringWriter json = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(json)) {
+            writer.beginObject();
+            writer.name("generatedAt").value(generatedAt.toEpochMilli());
+            writer.name("trackingSince").value(trackingSince.toEpochMilli());
+            writer.name("tokenLifetimeSeconds").value(tokenLifetimeSeconds);
+            writer.name("revokedTokenIds").beginArray();
+            for (long id : revokedTokenIds) {
+                writer.value(id);
+            }
+            writer.endArray();
+            writer.name("sessionEpochs").beginObject();
+            for (Map.Entry<String, Long> entry : sessionEpochs.entrySet()) {
+                writer.name(entry.getKey()).value(entry.getValue());
+            }
+            writer.endObject();
+            writer.name("includingRoles").beginObject();
+            for (Map.Entry<String, Set<String>> entry : includingRoles.entrySet()) {
+                writer.name(entry.getKey()).beginArray();
+                for (String including : entry.getValue()) {
+                    writer.value(including);
+                }
+                writer.endArray();
+            }
+            writer.endObject();
+            writer.endObject();
+        } catch (IOException e) {
+            //StringWriter never throws
+            throw new UncheckedIOException(e);
+        }
+        return json.toString();
+    }
+
+    public static RevocationDigest fromJson(String json) throws IOException {
+        return fromJson(new StringReader(json));
+    }
+
+    /**
+     * @throws IOException If the digest can't be read, including when a field is missing
+     */
+    public static RevocationDigest fromJson(Reader json) throws IOException {
+        Long generatedAt = null;
+        Long trackingSince = null;
+        Long tokenLifetimeSeconds = null;
+        long[] revokedTokenIds = new long[0];
+        Map<String, Long> sessionEpochs = new HashMap<>();
+        Map<String, List<String>> includingRoles = new HashMap<>();
+        JsonReader reader = new JsonReader(json);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "generatedAt":
+                    generatedAt = reader.nextLong();
+                    break;
+                case "trackingSince":
+                    trackingSince = reader.nextLong();
+                    break;
+                case "tokenLifetimeSeconds":
+                    tokenLifetimeSeconds = reader.nextLong();
+                    break;
+                case "revokedTokenIds":
+                    int count = 0;
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (count == revokedTokenIds.length) {
+                            revokedTokenIds = Arrays.copyOf(revokedTokenIds, Math.max(16, count * 2));
+                        }
+                        revokedTokenIds[count++] = reader.nextLong();
+                    }
+                    reader.endArray();
+                    revokedTokenIds = Arrays.copyOf(revokedTokenIds, count);
+                    break;
+                case "sessionEpochs":
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        sessionEpochs.put(reader.nextName(), reader.nextLong());
+                    }
+                    reader.endObject();
+                    break;
+                case "includingRoles":
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        List<String> including = new ArrayList<>();
+                        includingRoles.put(reader.nextName(), including);
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            including.add(reader.nextString());
+                        }
+                        reader.endArray();
+                    }
+                    reader.endObject();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (generatedAt == null || trackingSince == null || tokenLifetimeSeconds == null) {
+            throw new IOException("Revocation digest is missing generatedAt, trackingSince or tokenLifetimeSeconds");
+        }
+        return new RevocationDigest(Instant.ofEpochMilli(generatedAt), Instant.ofEpochMilli(trackingSince), tokenLifetimeSeconds, revokedTokenIds, sessionEpochs,
+                includingRoles);
+    }
+}
@@ -0,0 +1,140 @@
+package com.alanpeinejr.verifier;
+
+import com.alanpeinejr.encryption.SigningEncryptionManager;
+import com.alanpeinejr.exception.ExpiredTokenException;
+import com.alanpeinejr.manager.Token;
+import com.alanpeinejr.manager.TokenManager;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.Closeable;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks signed tokens in-process, for services that would otherwise call AuthenticationService.authorize on every
+ * request
+ * <p>
+ * A token is accepted if its signature matches one of the keys, it hasn't expired and the latest revocation digest
+ * doesn't revoke it. The digest is pulled again in the background every refresh interval, so a revocation reaches the
+ * verifier within about that long. If no digest has been pulled for maxDigestAge, say because the service is down,
+ * checks fail with IllegalStateException rather than trust tokens that may have been revoked since.
+ * <p>
+ * Tokens are read without the service's RoleManager, so they must be JSON or binary tokens that carry role names, not
+ * binary tokens written with role ids. Thread safe.
+ */
+public class TokenVerifier implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(TokenVerifier.class.getName());
+
+    private final SigningEncryptionManager keys;
+    private final TokenManager tokenManager = new TokenManager(0);
+    private final Supplier<RevocationDigest> digestSource;
+    private final Duration maxDigestAge;
+    private final Clock clock;
+    private final ScheduledExecutorService refresher;
+    private volatile RevocationDigest digest;
+    private volatile Instant digestPulledAt;
+
+    /**
+     * Pulls the first digest before returning, checks fail until one is pulled if that fails
+     *
+     * @param keys            the keys tokens are signed with
+     * @param digestSource    pulls the latest digest, such as an HttpDigestSource
+     * @param refreshInterval time between pulls
+     * @param maxDigestAge    longest a digest is trusted after it was pulled
+     */
+    public TokenVerifier(SigningEncryptionManager keys, Supplier<RevocationDigest> digestSource, Duration refreshInterval, Duration maxDigestAge) {
+        this(keys, digestSource, refreshInterval, maxDigestAge, Clock.systemUTC());
+    }
+
+    TokenVerifier(SigningEncryptionManager keys, Supplier<RevocationDigest> digestSource, Duration refreshInterval, Duration maxDigestAge, Clock clock) {
+        this.keys = keys;
+        this.digestSource = digestSource;
+        this.maxDigestAge = maxDigestAge;
+        this.clock = clock;
+        refreshQuietly();
+        this.refresher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "token-verifier-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalNanos = refreshInterval.toNanos();
+        refresher.scheduleWithFixedDelay(this::refreshQuietly, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the token, once checked
+     * @throws ExpiredTokenException         If the token has expired or been revoked
+     * @throws JsonSyntaxException           If the token can't be read
+     * @throws IllegalArgumentException      If the token isn't signed by one of the keys
+     * @throws IllegalStateException         If there is no recent digest to check revocations against
+     */
+    public Token verify(String tokenString) throws ExpiredTokenException, JsonSyntaxException {
+        Token token = tokenManager.readTokenString(tokenString, keys);
+        Instant now = clock.instant();
+        RevocationDigest current = currentDigest(now);
+        if (token.getExpiration().isBefore(now) || current.isRevoked(token)) {
+            throw new ExpiredTokenException("Token has expired");
+        }
+        return token;
+    }
+
+    /**
+     * Checks if the user represented by the token holds the role, either assigned or through a role that includes it as
+     * of the latest digest, like AuthenticationService.authorize
+     *
+     * @throws ExpiredTokenException If the token has expired or been revoked
+     * @throws JsonSyntaxException   If the token can't be read
+     */
+    public boolean authorize(String tokenString, String roleName) throws ExpiredTokenException, JsonSyntaxException {
+        Token token = verify(tokenString);
+        return digest.grants(token, roleName);
+    }
+
+    /**
+     * Pulls the digest now rather than waiting for the next refresh
+     *
+     * @throws RuntimeException whatever the digest source throws, the previous digest is kept
+     */
+    public void refresh() {
+        RevocationDigest pulled = digestSource.get();
+        digestPulledAt = clock.instant();
+        digest = pulled;
+    }
+
+    /**
+     * @return the latest digest pulled, null if none has been
+     */
+    public RevocationDigest getDigest() {
+        return digest;
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    private RevocationDigest currentDigest(Instant now) {
+        RevocationDigest current = digest;
+        Instant pulledAt = digestPulledAt;
+        if (current == null || pulledAt.plus(maxDigestAge).isBefore(now)) {
+            throw new IllegalStateException("No recent revocation digest, check the token with the service instead");
+        }
+        return current;
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not pull the revocation digest", e);
+        }
+    }
+}
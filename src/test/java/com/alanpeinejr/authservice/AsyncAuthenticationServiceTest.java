@@ -0,0 +1,112 @@
+package com.alanpeinejr.authservice;
+
+import com.alanpeinejr.encryption.EncryptionManager;
+import com.alanpeinejr.exception.*;
+import com.alanpeinejr.manager.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the API through its CompletableFuture facade
+ */
+public class AsyncAuthenticationServiceTest {
+
+    private static final int TOKEN_LIFETIME_IN_SECONDS = 60;
+    private AsyncAuthenticationService asyncService;
+    private ExecutorService credentialExecutor;
+    private ExecutorService serviceExecutor;
+    private AtomicInteger credentialCalls;
+
+    @Before()
+    public void before() {
+        credentialExecutor = Executors.newSingleThreadExecutor();
+        credentialCalls = new AtomicInteger();
+        serviceExecutor = Executors.newFixedThreadPool(2);
+        asyncService =
+                new AuthenticationServiceBuilder()
+                        .createAuthenticationService()
+                        .concurrentStorage()
+                        .tokenManager(TOKEN_LIFETIME_IN_SECONDS, TokenFormat.JSON)
+                        .encryptionManager(new EncryptionManager())
+                        .credentialExecutor(command -> {
+                            credentialCalls.incrementAndGet();
+                            credentialExecutor.execute(command);
+                        })
+                        .serviceExecutor(serviceExecutor)
+                        .buildAsync();
+    }
+
+    @After()
+    public void after() {
+        credentialExecutor.shutdownNow();
+        serviceExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testFullFlow() {
+        User user = asyncService.createUser("user", "password").join();
+        Role role = asyncService.createRole("role").join();
+        asyncService.assignRoleToUser(user, role).join();
+
+        String token = asyncService.authenticate("user", "password").join();
+
+        assertTrue(asyncService.authorize(token, role).join());
+        assertArrayEquals(new Role[]{role}, asyncService.getAllRoles(token).join());
+        assertEquals(List.of(user), asyncService.getUsersWithRole(role, null, 10).join());
+
+        asyncService.invalidate(token).join();
+        CompletionException expired = assertThrows(CompletionException.class, () -> asyncService.authorize(token, role).join());
+        assertTrue(expired.getCause() instanceof ExpiredTokenException);
+    }
+
+    @Test
+    public void testCheckedExceptionsCompleteExceptionally() {
+        asyncService.createUser("user", "password").join();
+
+        CompletionException duplicate = assertThrows(CompletionException.class, () -> asyncService.createUser("user", "password").join());
+        assertTrue(duplicate.getCause() instanceof DuplicateUserException);
+        CompletionException missing = assertThrows(CompletionException.class, () -> asyncService.authenticate("nobody", "password").join());
+        assertTrue(missing.getCause() instanceof NoSuchUserException);
+    }
+
+    @Test
+    public void testOnlyHashingRunsOnCredentialExecutor() {
+        User user = asyncService.createUser("user", "password").join();
+        Role role = asyncService.createRole("role").join();
+        asyncService.assignRoleToUser(user, role).join();
+        String token = asyncService.authenticate("user", "password").join();
+        asyncService.authorize(token, role).join();
+
+        assertEquals(2, credentialCalls.get());
+    }
+
+    @Test
+    public void testRejectedCall() {
+        credentialExecutor.shutdown();
+
+        CompletionException rejected = assertThrows(CompletionException.class, () -> asyncService.authenticate("user", "password").join());
+        assertTrue(rejected.getCause() instanceof RejectedExecutionException);
+    }
+
+    @Test
+    public void testExecutorsRequired() {
+        AuthenticationServiceBuilder builder = new AuthenticationServiceBuilder()
+                .createAuthenticationService()
+                .concurrentStorage()
+                .tokenManager(TOKEN_LIFETIME_IN_SECONDS, TokenFormat.JSON)
+                .encryptionManager(new EncryptionManager())
+                .serviceExecutor(serviceExecutor);
+
+        assertThrows(IllegalStateException.class, builder::buildAsync);
+    }
+}
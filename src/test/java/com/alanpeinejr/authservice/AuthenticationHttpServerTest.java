@@ -0,0 +1,267 @@
+package com.alanpeinejr.authservice;
+
+import com.alanpeinejr.encryption.EncryptionManager;
+import com.alanpeinejr.encryption.SigningEncryptionManager;
+import com.alanpeinejr.exception.ExpiredTokenException;
+import com.alanpeinejr.manager.RevocationList;
+import com.alanpeinejr.manager.TokenFormat;
+import com.alanpeinejr.verifier.HttpDigestSource;
+import com.alanpeinejr.verifier.TokenVerifier;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the service through its HTTP front end
+ */
+public class AuthenticationHttpServerTest {
+
+    private static final int TOKEN_LIFETIME_IN_SECONDS = 60;
+    private AuthenticationHttpServer server;
+    private ExecutorService executor;
+    private HttpClient client;
+
+    @Before()
+    public void before() throws Exception {
+        AuthenticationService authenticationService =
+                new AuthenticationServiceBuilder()
+                        .createAuthenticationService()
+                        .concurrentStorage()
+                        .tokenManager(TOKEN_LIFETIME_IN_SECONDS, TokenFormat.JSON)
+                        .encryptionManager(new EncryptionManager())
+                        .build();
+        executor = Executors.newFixedThreadPool(4);
+        server = new AuthenticationHttpServer(authenticationService, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), executor);
+        server.start();
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+
+    @After()
+    public void after() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testFullFlow() throws Exception {
+        assertEquals(201, post("/createUser", "{\"username\":\"user\",\"password\":\"password\"}").statusCode());
+        assertEquals(201, post("/createRole", "{\"role\":\"role1\"}").statusCode());
+        assertEquals(201, post("/createRole", "{\"role\":\"role2\"}").statusCode());
+        assertEquals(204, post("/assignRoleToUser", "{\"username\":\"user\",\"role\":\"role1\"}").statusCode());
+
+        HttpResponse<String> authenticated = post("/authenticate", "{\"username\":\"user\",\"password\":\"password\"}");
+        assertEquals(200, authenticated.statusCode());
+        String token = json(authenticated).get("token").getAsString();
+
+        assertTrue(json(post("/authorize", "{\"token\":\"" + token + "\",\"role\":\"role1\"}")).get("authorized").getAsBoolean());
+        assertFalse(json(post("/authorize", "{\"token\":\"" + token + "\",\"role\":\"role2\"}")).get("authorized").getAsBoolean());
+        assertFalse(json(post("/authorize", "{\"token\":\"" + token + "\",\"role\":\"unknown\"}")).get("authorized").getAsBoolean());
+        assertEquals("role1", json(post("/getAllRoles", "{\"token\":\"" + token + "\"}")).getAsJsonArray("roles").get(0).getAsString());
+
+        assertEquals(204, post("/invalidate", "{\"token\":\"" + token + "\"}").statusCode());
+        assertEquals(401, post("/authorize", "{\"token\":\"" + token + "\",\"role\":\"role1\"}").statusCode());
+
+        assertEquals(204, post("/deleteRole", "{\"role\":\"role1\"}").statusCode());
+        assertEquals(204, post("/deleteUser", "{\"username\":\"user\"}").statusCode());
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        post("/createUser", "{\"username\":\"user\",\"password\":\"password\"}");
+
+        assertEquals(409, post("/createUser", "{\"username\":\"user\",\"password\":\"other\"}").statusCode());
+        assertEquals(401, post("/authenticate", "{\"username\":\"user\",\"password\":\"wrong\"}").statusCode());
+        assertEquals(404, post("/authenticate", "{\"username\":\"nobody\",\"password\":\"password\"}").statusCode());
+        assertEquals(404, post("/assignRoleToUser", "{\"username\":\"user\",\"role\":\"missing\"}").statusCode());
+        assertEquals(400, post("/getAllRoles", "{\"token\":\"aW52YWxpZCB0b2tlbg==\"}").statusCode());
+        assertEquals(400, post("/createUser", "{\"username\":\"user2\"}").statusCode());
+        assertEquals(400, post("/createUser", "not json").statusCode());
+        assertEquals(404, post("/createUser/extra", "{}").statusCode());
+    }
+
+    @Test
+    public void testRoleInclusion() throws Exception {
+        post("/createUser", "{\"username\":\"user\",\"password\":\"password\"}");
+        post("/createRole", "{\"role\":\"admin\"}");
+        post("/createRole", "{\"role\":\"reader\"}");
+        post("/assignRoleToUser", "{\"username\":\"user\",\"role\":\"admin\"}");
+        String token = json(post("/authenticate", "{\"username\":\"user\",\"password\":\"password\"}")).get("token").getAsString();
+
+        assertEquals(204, post("/includeRole", "{\"role\":\"admin\",\"includedRole\":\"reader\"}").statusCode());
+        assertTrue(json(post("/authorize", "{\"token\":\"" + token + "\",\"role\":\"reader\"}")).get("authorized").getAsBoolean());
+        assertEquals(400, post("/includeRole", "{\"role\":\"reader\",\"includedRole\":\"admin\"}").statusCode());
+        assertEquals(404, post("/includeRole", "{\"role\":\"admin\",\"includedRole\":\"missing\"}").statusCode());
+
+        assertEquals(204, post("/excludeRole", "{\"role\":\"admin\",\"includedRole\":\"reader\"}").statusCode());
+        assertFalse(json(post("/authorize", "{\"token\":\"" + token + "\",\"role\":\"reader\"}")).get("authorized").getAsBoolean());
+    }
+
+    @Test
+    public void testOnlyPost() throws Exception {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri("/authenticate")).GET().build(), HttpResponse.BodyHandlers.ofString());
+
+        assertEquals(405, response.statusCode());
+        assertEquals("POST", response.headers().firstValue("Allow").orElse(null));
+    }
+
+    @Test
+    public void testUnknownFieldsIgnored() throws Exception {
+        assertEquals(201, post("/createRole", "{\"role\":\"role\",\"extra\":{\"nested\":[1,2]},\"count\":3}").statusCode());
+    }
+
+    @Test
+    public void testVerifierPullsRevocationDigest() throws Exception {
+        HttpResponse<String> untracked = post("/revocationDigest", "{}");
+        assertEquals(501, untracked.statusCode());
+        assertTrue(json(untracked).get("error").getAsString().contains("sessionChanges"));
+
+        SigningEncryptionManager keys = new SigningEncryptionManager("k1", new byte[SigningEncryptionManager.MIN_KEY_BYTES]);
+        server.stop(0);
+        AuthenticationService authenticationService =
+                new AuthenticationServiceBuilder()
+                        .createAuthenticationService()
+                        .concurrentStorage()
+                        .tokenManager(TOKEN_LIFETIME_IN_SECONDS, TokenFormat.JSON)
+                        .sessionChanges()
+                        .encryptionManager(keys)
+                        .revocationList(new RevocationList(100, 0.01, Duration.ofSeconds(TOKEN_LIFETIME_IN_SECONDS), null))
+                        .build();
+        server = new AuthenticationHttpServer(authenticationService, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), executor);
+        server.start();
+        post("/createUser", "{\"username\":\"user\",\"password\":\"password\"}");
+        post("/createRole", "{\"role\":\"role1\"}");
+        post("/assignRoleToUser", "{\"username\":\"user\",\"role\":\"role1\"}");
+        String token = json(post("/authenticate", "{\"username\":\"user\",\"password\":\"password\"}")).get("token").getAsString();
+
+        try (TokenVerifier verifier = new TokenVerifier(keys, new HttpDigestSource(uri("/"), Duration.ofSeconds(5)), Duration.ofHours(1), Duration.ofHours(1))) {
+            assertNotNull(verifier.getDigest());
+            assertTrue(verifier.authorize(token, "role1"));
+            assertFalse(verifier.authorize(token, "role2"));
+
+            assertEquals(204, post("/invalidate", "{\"token\":\"" + token + "\"}").statusCode());
+            verifier.refresh();
+            assertThrows(ExpiredTokenException.class, () -> verifier.verify(token));
+        }
+    }
+
+    @Test
+    public void testFollowerTurnsAwayChanges() throws Exception {
+        HttpResponse<String> unreplicated = post("/replicationStatus", "{}");
+        assertEquals(501, unreplicated.statusCode());
+        assertTrue(json(unreplicated).get("error").getAsString().contains("replicationLeader"));
+
+        AuthenticationService leader = new AuthenticationServiceBuilder()
+                .createAuthenticationService()
+                .concurrentStorage()
+                .tokenManager(TOKEN_LIFETIME_IN_SECONDS, TokenFormat.JSON)
+                .encryptionManager(new EncryptionManager())
+                .replicationLeader(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+                .build();
+        server.stop(0);
+        AuthenticationService follower = new AuthenticationServiceBuilder()
+                .createAuthenticationService()
+                .concurrentStorage()
+                .tokenManager(TOKEN_LIFETIME_IN_SECONDS, TokenFormat.JSON)
+                .encryptionManager(new EncryptionManager())
+                .replicationFollower(leader.getReplicationLeader().getAddress())
+                .build();
+        server = new AuthenticationHttpServer(follower, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), executor);
+        server.start();
+        try {
+            leader.createUser("user", "password");
+            long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+            while (!follower.getReplicationFollower().isSynced()
+                    || follower.getReplicationFollower().getAppliedSequence() < leader.getReplicationLeader().getSequence()) {
+                assertTrue("Follower did not catch up", System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+
+            assertEquals(421, post("/createUser", "{\"username\":\"other\",\"password\":\"password\"}").statusCode());
+            assertEquals(421, post("/deleteUser", "{\"username\":\"user\"}").statusCode());
+            assertEquals(200, post("/authenticate", "{\"username\":\"user\",\"password\":\"password\"}").statusCode());
+            JsonObject status = json(post("/replicationStatus", "{}"));
+            assertEquals("follower", status.get("node").getAsString());
+            assertTrue(status.get("synced").getAsBoolean());
+            assertEquals(leader.getReplicationLeader().getSequence(), status.get("appliedSequence").getAsLong());
+            assertTrue(status.has("lagMillis"));
+        } finally {
+            follower.getReplicationFollower().close();
+            leader.getReplicationLeader().close();
+        }
+    }
+
+    @Test
+    public void testLoginsInFlightBounded() throws Exception {
+        CountDownLatch hashing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        EncryptionManager stalling = new EncryptionManager() {
+            @Override
+            public String encrypt(String string) {
+                if (string.startsWith("slow")) {
+                    hashing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.encrypt(string);
+            }
+        };
+        server.stop(0);
+        AuthenticationService authenticationService =
+                new AuthenticationServiceBuilder()
+                        .createAuthenticationService()
+                        .concurrentStorage()
+                        .tokenManager(TOKEN_LIFETIME_IN_SECONDS, TokenFormat.JSON)
+                        .encryptionManager(stalling)
+                        .build();
+        server = new AuthenticationHttpServer(authenticationService, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), executor, 1);
+        server.start();
+        post("/createUser", "{\"username\":\"user\",\"password\":\"password\"}");
+        post("/createRole", "{\"role\":\"role1\"}");
+        String token = json(post("/authenticate", "{\"username\":\"user\",\"password\":\"password\"}")).get("token").getAsString();
+
+        CompletableFuture<HttpResponse<String>> stalled = client.sendAsync(HttpRequest.newBuilder(uri("/authenticate"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"username\":\"user\",\"password\":\"slow\"}")).build(), HttpResponse.BodyHandlers.ofString());
+        assertTrue(hashing.await(10, TimeUnit.SECONDS));
+
+        //the one permit is taken, so the next login is turned away while token checks go on being answered
+        assertEquals(503, post("/authenticate", "{\"username\":\"user\",\"password\":\"password\"}").statusCode());
+        assertEquals(503, post("/createUser", "{\"username\":\"other\",\"password\":\"password\"}").statusCode());
+        assertEquals(200, post("/authorize", "{\"token\":\"" + token + "\",\"role\":\"role1\"}").statusCode());
+
+        release.countDown();
+        assertEquals(401, stalled.get(10, TimeUnit.SECONDS).statusCode());
+        assertEquals(200, post("/authenticate", "{\"username\":\"user\",\"password\":\"password\"}").statusCode());
+    }
+
+    private HttpResponse<String> post(String path, String body) throws Exception {
+        return client.send(HttpRequest.newBuilder(uri(path)).POST(HttpRequest.BodyPublishers.ofString(body)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path);
+    }
+
+    private static JsonObject json(HttpResponse<String> response) {
+        return JsonParser.parseString(response.body()).getAsJsonObject();
+    }
+}
@@ -1,13 +1,22 @@
 package com.alanpeinejr.authservice;
 
+import com.alanpeinejr.encryption.CredentialHashingPool;
 import com.alanpeinejr.encryption.EncryptionManager;
 import com.alanpeinejr.exception.*;
 import com.alanpeinejr.manager.*;
+import com.alanpeinejr.metrics.Operation;
+import com.alanpeinejr.metrics.OperationStats;
+import com.alanpeinejr.metrics.Outcome;
+import com.alanpeinejr.metrics.ServiceMetrics;
+import com.alanpeinejr.scheduler.TimingWheel;
 import com.google.gson.JsonSyntaxException;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.time.Duration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -132,6 +141,41 @@ public class AuthenticationServiceTest {
 
     }
 
+    @Test
+    public void testAuthenticateOnCredentialHashingPool() throws DuplicateUserException, NoSuchUserException {
+        CredentialHashingPool pool = new CredentialHashingPool(1, 10, Duration.ofSeconds(5));
+        authenticationService.setCredentialHashingPool(pool);
+        try {
+            authenticationService.createUser("user", "password");
+
+            assertNotEquals("Invalid Password", authenticationService.authenticate("user", "password"));
+            assertEquals("Invalid Password", authenticationService.authenticate("user", "wrong"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSessionExpiresInBackground() throws Exception {
+        TimingWheel scheduler = new TimingWheel(Duration.ofMillis(10), 64);
+        authenticationService.setTokenManager(new TokenManager(1));
+        authenticationService.setExpiryScheduler(scheduler);
+        try {
+            authenticationService.createUser("user", "password");
+            authenticationService.authenticate("user", "password");
+            assertNotNull(userStorage.get("user").getLoginTime());
+
+            long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (userStorage.get("user").getLoginTime() != null && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            assertNull(userStorage.get("user").getLoginTime());
+            assertEquals(0, scheduler.getPendingCount());
+        } finally {
+            scheduler.close();
+        }
+    }
+
     @Test
     public void testAuthenticateError() {
         assertThrows(NoSuchUserException.class, () -> authenticationService.authenticate("user", "password"));
@@ -156,6 +200,38 @@ public class AuthenticationServiceTest {
 
     }
 
+    @Test
+    public void testAuthorizeRoleBuiltByCaller() throws DuplicateRoleException, NoSuchUserException, DuplicateUserException, ExpiredTokenException {
+        User user = authenticationService.createUser("user", "password");
+        Role role = authenticationService.createRole("role");
+        authenticationService.createRole("other");
+        authenticationService.assignRoleToUser(user, role);
+        String token = authenticationService.authenticate("user", "password");
+
+        assertTrue(authenticationService.authorize(token, new Role("role")));
+        assertFalse(authenticationService.authorize(token, new Role("other")));
+    }
+
+    @Test
+    public void testAuthorizeThroughIncludedRoles() throws Exception {
+        User user = authenticationService.createUser("user", "password");
+        Role admin = authenticationService.createRole("admin");
+        Role editor = authenticationService.createRole("editor");
+        Role reader = authenticationService.createRole("reader");
+        authenticationService.assignRoleToUser(user, admin);
+        String token = authenticationService.authenticate("user", "password");
+        assertFalse(authenticationService.authorize(token, reader));
+
+        //tokens carry only admin, the hierarchy is applied when they are checked
+        authenticationService.includeRole(admin, editor);
+        authenticationService.includeRole(editor, reader);
+        assertArrayEquals(new boolean[]{true, true, true}, authenticationService.authorizeAll(token, admin, editor, reader));
+        assertArrayEquals(new Role[]{admin}, authenticationService.getAllRoles(token));
+
+        authenticationService.excludeRole(admin, editor);
+        assertFalse(authenticationService.authorize(token, reader));
+    }
+
     @Test
     public void testAuthorizeNoSuchRole() throws DuplicateRoleException, NoSuchUserException, DuplicateUserException, ExpiredTokenException {
         authenticationService.createUser("user", "password");
@@ -181,6 +257,20 @@ public class AuthenticationServiceTest {
 
     }
 
+    @Test
+    public void testAuthorizeDeletedAndRecreatedUser() throws Exception {
+        User user = authenticationService.createUser("user", "password");
+        Role role = authenticationService.createRole("role");
+        authenticationService.assignRoleToUser(user, role);
+        String token = authenticationService.authenticate("user", "password");
+        authenticationService.deleteUser(user);
+
+        //a new account under the same name, which has never logged in, doesn't inherit the old account's tokens
+        authenticationService.createUser("user", "other");
+        assertThrows(ExpiredTokenException.class, () -> authenticationService.authorize(token, role));
+        assertThrows(ExpiredTokenException.class, () -> authenticationService.getAllRoles(token));
+    }
+
     @Test
     public void testAuthorizeOldToken() throws DuplicateRoleException, NoSuchUserException, DuplicateUserException {
         authenticationService.createUser("user", "password");
@@ -205,6 +295,66 @@ public class AuthenticationServiceTest {
         assertThrows(ExpiredTokenException.class, () -> authenticationService.authorize(token, role));
     }
 
+    @Test
+    public void testAuthorizeInvalidatedTokenAfterLogin() throws DuplicateRoleException, NoSuchUserException, DuplicateUserException, ExpiredTokenException {
+        User user = authenticationService.createUser("user", "password");
+        Role role = authenticationService.createRole("role");
+        authenticationService.assignRoleToUser(user, role);
+        String token = authenticationService.authenticate("user", "password");
+        authenticationService.invalidate(token);
+
+        sleep(10);
+        String newToken = authenticationService.authenticate("user", "password");
+
+        assertThrows(ExpiredTokenException.class, () -> authenticationService.authorize(token, role));
+        assertTrue(authenticationService.authorize(newToken, role));
+    }
+
+    @Test
+    public void testMetricsCountOutcomes() throws Exception {
+        ServiceMetrics metrics = new ServiceMetrics();
+        authenticationService.setMetrics(metrics);
+        User user = authenticationService.createUser("user", "password");
+        Role role = authenticationService.createRole("role");
+        authenticationService.assignRoleToUser(user, role);
+
+        String token = authenticationService.authenticate("user", "password");
+        authenticationService.authenticate("user", "wrong");
+        assertThrows(NoSuchUserException.class, () -> authenticationService.authenticate("nobody", "password"));
+        authenticationService.authorize(token, role);
+        authenticationService.getAllRoles(token);
+        authenticationService.invalidate(token);
+        assertThrows(ExpiredTokenException.class, () -> authenticationService.authorize(token, role));
+
+        OperationStats authenticate = metrics.snapshot(Operation.AUTHENTICATE);
+        assertEquals(3, authenticate.getCount());
+        assertEquals(1, authenticate.getCount(Outcome.SUCCESS));
+        assertEquals(1, authenticate.getCount(Outcome.INVALID_PASSWORD));
+        assertEquals(1, authenticate.getCount(Outcome.NO_SUCH_USER));
+        assertEquals(2, metrics.snapshot(Operation.AUTHORIZE).getCount());
+        assertEquals(1, metrics.getExpiredTokenCount());
+        assertEquals(1, metrics.snapshot(Operation.GET_ALL_ROLES).getCount(Outcome.SUCCESS));
+        assertEquals(1, metrics.snapshot(Operation.INVALIDATE).getCount(Outcome.SUCCESS));
+        assertTrue(authenticate.getMaxNanos() > 0);
+    }
+
+    @Test
+    public void testInvalidateRevokesOnlyThatToken() throws Exception {
+        authenticationService.setRevocationList(new RevocationList(100, 0.01, Duration.ofSeconds(TOKEN_LIFETIME_IN_SECONDS), null));
+        User user = authenticationService.createUser("user", "password");
+        Role role = authenticationService.createRole("role");
+        authenticationService.assignRoleToUser(user, role);
+        String stolen = authenticationService.authenticate("user", "password");
+        String other = authenticationService.authenticate("user", "password");
+
+        authenticationService.invalidate(stolen);
+        assertThrows(ExpiredTokenException.class, () -> authenticationService.authorize(stolen, role));
+        assertTrue(authenticationService.authorize(other, role));
+
+        authenticationService.invalidateAll(other);
+        assertThrows(ExpiredTokenException.class, () -> authenticationService.authorize(other, role));
+    }
+
     @Test
     public void testGetAllRolesValid() throws DuplicateRoleException, NoSuchUserException, DuplicateUserException, ExpiredTokenException {
         User user = authenticationService.createUser("user", "password");
@@ -224,6 +374,65 @@ public class AuthenticationServiceTest {
 
     }
 
+    @Test
+    public void testAuthorizeAll() throws DuplicateRoleException, NoSuchUserException, DuplicateUserException, ExpiredTokenException {
+        User user = authenticationService.createUser("user", "password");
+        Role role1 = authenticationService.createRole("role1");
+        Role role2 = authenticationService.createRole("role2");
+        Role role3 = authenticationService.createRole("role3");
+        authenticationService.assignRoleToUser(user, role1);
+        authenticationService.assignRoleToUser(user, role3);
+        String token = authenticationService.authenticate("user", "password");
+
+        assertArrayEquals(new boolean[]{true, false, true}, authenticationService.authorizeAll(token, role1, role2, role3));
+        authenticationService.invalidate(token);
+        assertThrows(ExpiredTokenException.class, () -> authenticationService.authorizeAll(token, role1));
+    }
+
+    @Test
+    public void testGetAllRolesForManyTokens() throws DuplicateRoleException, NoSuchUserException, DuplicateUserException {
+        User user1 = authenticationService.createUser("user1", "password");
+        authenticationService.createUser("user2", "password");
+        Role role = authenticationService.createRole("role");
+        authenticationService.assignRoleToUser(user1, role);
+        String token1 = authenticationService.authenticate("user1", "password");
+        String token2 = authenticationService.authenticate("user2", "password");
+        authenticationService.invalidate(token2);
+
+        List<Role[]> roles = authenticationService.getAllRoles(List.of(token1, token2, "aW52YWxpZCB0b2tlbg==", "not base64!"));
+
+        assertEquals(4, roles.size());
+        assertArrayEquals(new Role[]{role}, roles.get(0));
+        assertNull(roles.get(1));
+        assertNull(roles.get(2));
+        assertNull(roles.get(3));
+    }
+
+    @Test
+    public void testCreateUsersAndAssignRoles() throws DuplicateRoleException, NoSuchUserException, DuplicateUserException, ExpiredTokenException {
+        LinkedHashMap<String, String> passwords = new LinkedHashMap<>();
+        passwords.put("user1", "password1");
+        passwords.put("user2", "password2");
+        List<User> users = authenticationService.createUsers(passwords);
+        Role role1 = authenticationService.createRole("role1");
+        Role role2 = authenticationService.createRole("role2");
+
+        authenticationService.assignRoles(users, List.of(role1, role2));
+
+        String token = authenticationService.authenticate("user2", "password2");
+        assertArrayEquals(new boolean[]{true, true}, authenticationService.authorizeAll(token, role1, role2));
+        assertEquals(2, authenticationService.getUsersWithRole(role2, null, 10).size());
+    }
+
+    @Test
+    public void testAssignRolesChecksEveryUserFirst() throws DuplicateRoleException, DuplicateUserException {
+        User user = authenticationService.createUser("user", "password");
+        Role role = authenticationService.createRole("role");
+
+        assertThrows(NoSuchUserException.class, () -> authenticationService.assignRoles(List.of(user, new User("ghost", "password", 0)), List.of(role)));
+        assertTrue(authenticationService.getUsersWithRole(role, null, 10).isEmpty());
+    }
+
     @Test
     public void testGetAllRolesNoUser() throws DuplicateRoleException, NoSuchUserException, DuplicateUserException {
         User user = authenticationService.createUser("user", "password");
@@ -276,6 +485,89 @@ public class AuthenticationServiceTest {
         assertEquals(0, roleStorage.size());
     }
 
+    @Test
+    public void testGetUsersWithRole() throws DuplicateRoleException, DuplicateUserException, NoSuchUserException, NoSuchRoleException {
+        Role role = authenticationService.createRole("role");
+        User user1 = authenticationService.createUser("user1", "password");
+        User user2 = authenticationService.createUser("user2", "password");
+        authenticationService.createUser("user3", "password");
+        authenticationService.assignRoleToUser(user1, role);
+        authenticationService.assignRoleToUser(user2, role);
+
+        List<User> members = authenticationService.getUsersWithRole(role, null, 10);
+        assertEquals(2, members.size());
+        assertSame(user1, members.get(0));
+        assertSame(user2, members.get(1));
+
+        authenticationService.deleteRole(role);
+        assertTrue(authenticationService.getUsersWithRole(role, null, 10).isEmpty());
+    }
+
+    @Test
+    public void testCachedAuthorizeValid() throws DuplicateRoleException, NoSuchUserException, DuplicateUserException, ExpiredTokenException {
+        TokenCache tokenCache = useTokenCache();
+        User user = authenticationService.createUser("user", "password");
+        Role role = authenticationService.createRole("role");
+        authenticationService.assignRoleToUser(user, role);
+        String token = authenticationService.authenticate("user", "password");
+
+        assertTrue(authenticationService.authorize(token, role));
+        assertEquals(1, tokenCache.size());
+        assertTrue(authenticationService.authorize(token, role));
+        assertEquals(1, tokenCache.size());
+    }
+
+    @Test
+    public void testCachedAuthorizeInvalidatedToken() throws DuplicateRoleException, NoSuchUserException, DuplicateUserException, ExpiredTokenException {
+        TokenCache tokenCache = useTokenCache();
+        authenticationService.createUser("user", "password");
+        Role role = authenticationService.createRole("role");
+        String token = authenticationService.authenticate("user", "password");
+        assertFalse(authenticationService.authorize(token, role));
+
+        authenticationService.invalidate(token);
+
+        assertEquals(0, tokenCache.size());
+        assertThrows(ExpiredTokenException.class, () -> authenticationService.authorize(token, role));
+    }
+
+    @Test
+    public void testCachedAuthorizeNoUser() throws DuplicateRoleException, NoSuchUserException, DuplicateUserException, ExpiredTokenException {
+        TokenCache tokenCache = useTokenCache();
+        User user = authenticationService.createUser("user", "password");
+        Role role = authenticationService.createRole("role");
+        String token = authenticationService.authenticate("user", "password");
+        assertFalse(authenticationService.authorize(token, role));
+
+        authenticationService.deleteUser(user);
+
+        assertEquals(0, tokenCache.size());
+        assertThrows(ExpiredTokenException.class, () -> authenticationService.authorize(token, role));
+    }
+
+    @Test
+    public void testCachedTokenDroppedOnRoleChange() throws DuplicateRoleException, NoSuchUserException, DuplicateUserException, ExpiredTokenException, NoSuchRoleException {
+        TokenCache tokenCache = useTokenCache();
+        User user = authenticationService.createUser("user", "password");
+        Role role = authenticationService.createRole("role");
+        authenticationService.assignRoleToUser(user, role);
+        String token = authenticationService.authenticate("user", "password");
+        assertTrue(authenticationService.authorize(token, role));
+
+        authenticationService.deleteRole(role);
+        assertEquals(0, tokenCache.size());
+
+        authenticationService.getAllRoles(token);
+        authenticationService.assignRoleToUser(user, authenticationService.createRole("role2"));
+        assertEquals(0, tokenCache.size());
+    }
+
+    private TokenCache useTokenCache() {
+        TokenCache tokenCache = new TokenCache(100);
+        authenticationService.setTokenCache(tokenCache);
+        return tokenCache;
+    }
+
     private void sleep(long timeMilliS) {
         try {
             Thread.sleep(timeMilliS);
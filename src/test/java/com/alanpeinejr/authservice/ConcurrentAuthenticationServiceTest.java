@@ -0,0 +1,161 @@
+package com.alanpeinejr.authservice;
+
+import com.alanpeinejr.encryption.EncryptionManager;
+import com.alanpeinejr.exception.*;
+import com.alanpeinejr.manager.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hammers a service built with concurrentStorage from many threads at once
+ */
+public class ConcurrentAuthenticationServiceTest {
+
+    private static final int THREADS = 16;
+    private static final int TOKEN_LIFETIME_IN_SECONDS = 60;
+    private AuthenticationService authenticationService;
+    private ExecutorService executor;
+
+    @Before()
+    public void before() {
+        authenticationService =
+                new AuthenticationServiceBuilder()
+                        .createAuthenticationService()
+                        .concurrentStorage()
+                        .tokenManager(TOKEN_LIFETIME_IN_SECONDS, TokenFormat.BINARY)
+                        .encryptionManager(new EncryptionManager())
+                        .tokenCache(new TokenCache(1000))
+                        .build();
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After()
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCreateUserOnlyOnceUnderContention() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        AtomicInteger duplicates = new AtomicInteger();
+        runOnAllThreads(thread -> {
+            for (int i = 0; i < 200; i++) {
+                try {
+                    authenticationService.createUser("user" + i, "password");
+                    created.incrementAndGet();
+                } catch (DuplicateUserException e) {
+                    duplicates.incrementAndGet();
+                }
+            }
+            return null;
+        });
+
+        assertEquals(200, created.get());
+        assertEquals(200 * (THREADS - 1), duplicates.get());
+        assertEquals(200, authenticationService.getUserStorage().size());
+    }
+
+    @Test
+    public void testCreateRoleGivesUniqueIds() throws Exception {
+        runOnAllThreads(thread -> {
+            for (int i = 0; i < 50; i++) {
+                authenticationService.createRole("role" + thread + "-" + i);
+            }
+            return null;
+        });
+
+        Set<Integer> ids = new HashSet<>();
+        authenticationService.getRoleStorage().values().forEach(role -> ids.add(role.getId()));
+        assertEquals(THREADS * 50, ids.size());
+        for (Role role : authenticationService.getRoleStorage().values()) {
+            assertSame(role, authenticationService.getRoleManager().getRole(role.getId()));
+        }
+    }
+
+    @Test
+    public void testConcurrentRoleAssignmentKeepsEveryRole() throws Exception {
+        User user = authenticationService.createUser("user", "password");
+        List<Role> roles = new ArrayList<>();
+        for (int i = 0; i < THREADS * 20; i++) {
+            roles.add(authenticationService.createRole("role" + i));
+        }
+
+        runOnAllThreads(thread -> {
+            for (int i = thread; i < roles.size(); i += THREADS) {
+                authenticationService.assignRoleToUser(user, roles.get(i));
+                //readers while the role list changes underneath them
+                authenticationService.getAllRoles(authenticationService.authenticate("user", "password"));
+            }
+            return null;
+        });
+
+        String token = authenticationService.authenticate("user", "password");
+        assertEquals(roles.size(), authenticationService.getAllRoles(token).length);
+        for (Role role : roles) {
+            assertTrue(authenticationService.authorize(token, role));
+        }
+        assertSame(user, authenticationService.getUsersWithRole(roles.get(roles.size() - 1), null, 10).get(0));
+    }
+
+    @Test
+    public void testAuthorizeWhileUsersComeAndGo() throws Exception {
+        Role role = authenticationService.createRole("role");
+        User stable = authenticationService.createUser("stable", "password");
+        authenticationService.assignRoleToUser(stable, role);
+        String token = authenticationService.authenticate("stable", "password");
+
+        runOnAllThreads(thread -> {
+            for (int i = 0; i < 200; i++) {
+                if (thread % 2 == 0) {
+                    User user = authenticationService.createUser("churn" + thread + "-" + i, "password");
+                    authenticationService.assignRoleToUser(user, role);
+                    authenticationService.deleteUser(user);
+                } else {
+                    assertTrue(authenticationService.authorize(token, role));
+                }
+            }
+            return null;
+        });
+
+        assertEquals(1, authenticationService.getUserStorage().size());
+        assertEquals(1, authenticationService.getUsersWithRole(role, null, 10).size());
+    }
+
+    /**
+     * Starts the task on every thread together and rethrows the first failure
+     */
+    private void runOnAllThreads(ThreadTask task) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            int threadNumber = thread;
+            Callable<Void> callable = () -> {
+                start.await();
+                return task.run(threadNumber);
+            };
+            futures.add(executor.submit(callable));
+        }
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+
+    private interface ThreadTask {
+        Void run(int thread) throws Exception;
+    }
+}
@@ -0,0 +1,245 @@
+package com.alanpeinejr.authservice;
+
+import com.alanpeinejr.encryption.EncryptionManager;
+import com.alanpeinejr.exception.ExpiredTokenException;
+import com.alanpeinejr.manager.*;
+import com.alanpeinejr.replication.ReplicationFollower;
+import com.alanpeinejr.replication.ReplicationLeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a replication leader and its followers as loopback nodes in one JVM, changing storage on the leader and
+ * checking the followers log users in and check their tokens the same way
+ */
+public class ReplicatedAuthenticationServiceTest {
+
+    private static final int TOKEN_LIFETIME_IN_SECONDS = 60;
+    private static final long CATCH_UP_SECONDS = 10;
+    private AuthenticationService leader;
+    private final List<AuthenticationService> followers = new ArrayList<>();
+
+    @Before()
+    public void before() {
+        leader = node()
+                .replicationLeader(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+                .build();
+    }
+
+    @After()
+    public void after() throws Exception {
+        for (AuthenticationService follower : followers) {
+            follower.getReplicationFollower().close();
+        }
+        leader.getReplicationLeader().close();
+    }
+
+    @Test
+    public void testFollowerServesLeaderChanges() throws Exception {
+        AuthenticationService follower = follower();
+        Role reader = leader.createRole("reader");
+        Role writer = leader.createRole("writer");
+        leader.includeRole(writer, reader);
+        User user = leader.createUser("user", "password");
+        leader.assignRoleToUser(user, writer);
+        String token = leader.authenticate("user", "password");
+        awaitCaughtUp(follower);
+
+        Role followerReader = follower.getRoleManager().getRole("reader");
+        Role followerWriter = follower.getRoleManager().getRole("writer");
+        assertEquals(reader.getId(), followerReader.getId());
+        //binary tokens carry role ids, which mean the same on every node
+        assertTrue(follower.authorize(token, followerWriter));
+        assertTrue(follower.authorize(token, followerReader));
+        assertArrayEquals(new Role[]{followerWriter}, follower.getAllRoles(token));
+
+        String followerToken = follower.authenticate("user", "password");
+        assertTrue(leader.authorize(followerToken, writer));
+        assertEquals("Invalid Password", follower.authenticate("user", "wrong"));
+    }
+
+    @Test
+    public void testInvalidationsReplicate() throws Exception {
+        AuthenticationService follower = follower();
+        Role role = leader.createRole("role");
+        for (String username : List.of("revoked", "loggedOut", "deleted", "kept")) {
+            leader.assignRoleToUser(leader.createUser(username, "password"), role);
+        }
+        String revoked = leader.authenticate("revoked", "password");
+        String revokedSibling = leader.authenticate("revoked", "password");
+        String loggedOut = leader.authenticate("loggedOut", "password");
+        String deleted = leader.authenticate("deleted", "password");
+        String kept = leader.authenticate("kept", "password");
+        awaitCaughtUp(follower);
+        Role followerRole = follower.getRoleManager().getRole("role");
+        assertTrue(follower.authorize(revoked, followerRole));
+
+        leader.invalidate(revoked);
+        leader.invalidateAll(loggedOut);
+        leader.deleteUser(leader.getUserStorage().get("deleted"));
+        awaitCaughtUp(follower);
+
+        assertThrows(ExpiredTokenException.class, () -> follower.authorize(revoked, followerRole));
+        assertTrue(follower.authorize(revokedSibling, followerRole));
+        assertThrows(ExpiredTokenException.class, () -> follower.authorize(loggedOut, followerRole));
+        assertThrows(ExpiredTokenException.class, () -> follower.authorize(deleted, followerRole));
+        assertTrue(follower.authorize(kept, followerRole));
+
+        leader.deleteRole(role);
+        awaitCaughtUp(follower);
+        assertNull(follower.getRoleManager().getRole("role"));
+        assertEquals(0, follower.getAllRoles(follower.authenticate("kept", "password")).length);
+    }
+
+    @Test
+    public void testLateFollowerCatchesUpFromSnapshot() throws Exception {
+        Role role = leader.createRole("role");
+        for (int i = 0; i < 100; i++) {
+            leader.assignRoleToUser(leader.createUser("user" + i, "password"), role);
+        }
+        String revoked = leader.authenticate("user1", "password");
+        leader.invalidate(revoked);
+
+        AuthenticationService first = follower();
+        AuthenticationService second = follower();
+        awaitCaughtUp(first);
+        awaitCaughtUp(second);
+
+        assertEquals(2, leader.getReplicationLeader().getFollowerCount());
+        for (AuthenticationService follower : List.of(first, second)) {
+            assertEquals(100, follower.getUserStorage().size());
+            Role followerRole = follower.getRoleManager().getRole("role");
+            assertTrue(follower.authorize(follower.authenticate("user99", "password"), followerRole));
+            assertThrows(ExpiredTokenException.class, () -> follower.authorize(revoked, followerRole));
+        }
+    }
+
+    @Test
+    public void testReconnectDropsWhatWasMissed() throws Exception {
+        AuthenticationService follower = follower();
+        Role reader = leader.createRole("reader");
+        Role writer = leader.createRole("writer");
+        leader.includeRole(writer, reader);
+        leader.createUser("deleted", "password");
+        User kept = leader.createUser("kept", "password");
+        leader.assignRoleToUser(kept, writer);
+        awaitCaughtUp(follower);
+
+        //changes made while the follower is away
+        follower.getReplicationFollower().close();
+        leader.excludeRole(writer, reader);
+        leader.deleteUser(leader.getUserStorage().get("deleted"));
+        leader.deleteRole(reader);
+        leader.createUser("created", "password");
+        follower.setReplicationFollower(new ReplicationFollower(leader.getReplicationLeader().getAddress(),
+                follower.getUserManager(), follower.getRoleManager(), follower.getRevocationList(), Duration.ofMillis(50)));
+        awaitCaughtUp(follower);
+
+        assertEquals(List.of("created", "kept"), follower.getUserStorage().keySet().stream().sorted().collect(Collectors.toList()));
+        assertNull(follower.getRoleManager().getRole("reader"));
+        assertTrue(follower.getRoleManager().getInclusions().isEmpty());
+        assertTrue(follower.authorize(follower.authenticate("kept", "password"), follower.getRoleManager().getRole("writer")));
+    }
+
+    @Test
+    public void testLagReported() throws Exception {
+        ReplicationLeader replicationLeader = leader.getReplicationLeader();
+        AuthenticationService follower = follower();
+        leader.createUser("user", "password");
+        awaitCaughtUp(follower);
+
+        ReplicationFollower replicationFollower = follower.getReplicationFollower();
+        assertTrue(replicationFollower.isSynced());
+        assertEquals(replicationLeader.getSequence(), replicationFollower.getLeaderSequence());
+        assertTrue(replicationFollower.getLag().compareTo(Duration.ofSeconds(CATCH_UP_SECONDS)) < 0);
+
+        //heartbeats keep an idle follower caught up
+        Thread.sleep(ReplicationLeader.DEFAULT_HEARTBEAT_INTERVAL.toMillis() * 2);
+        assertTrue(replicationFollower.isSynced());
+        assertEquals(replicationLeader.getSequence(), replicationFollower.getAppliedSequence());
+
+        replicationLeader.close();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CATCH_UP_SECONDS);
+        while (replicationFollower.isSynced()) {
+            assertTrue("Follower did not notice the leader leave", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+        //once the leader has been silent longer than a heartbeat the lag grows with the silence
+        Thread.sleep(ReplicationLeader.DEFAULT_HEARTBEAT_INTERVAL.toMillis() * 3);
+        assertTrue(replicationFollower.getLag().compareTo(ReplicationLeader.DEFAULT_HEARTBEAT_INTERVAL) > 0);
+        //and goes on serving what it has
+        assertNotEquals("Invalid Password", follower.authenticate("user", "password"));
+    }
+
+    @Test
+    public void testFollowerResyncsAfterAChangeFailsToApply() throws Exception {
+        AtomicBoolean failNext = new AtomicBoolean(true);
+        ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>() {
+            @Override
+            public User put(String username, User user) {
+                if (username.equals("poison") && failNext.getAndSet(false)) {
+                    throw new IllegalStateException("Storage failed");
+                }
+                return super.put(username, user);
+            }
+        };
+        try (ReplicationFollower follower = new ReplicationFollower(leader.getReplicationLeader().getAddress(),
+                new UserManager(users), new RoleManager(new ConcurrentHashMap<>()), null, Duration.ofMillis(10))) {
+            leader.createUser("before", "password");
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CATCH_UP_SECONDS);
+            while (!follower.isSynced() || !users.containsKey("before")) {
+                assertTrue("Follower did not sync", System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+
+            //the change that fails drops the connection, the next snapshot brings the user back
+            leader.createUser("poison", "password");
+            leader.createUser("after", "password");
+            while (!follower.isSynced() || !users.containsKey("poison") || !users.containsKey("after")) {
+                assertTrue("Follower did not resync", System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+            assertFalse(failNext.get());
+        }
+    }
+
+    private static AuthenticationServiceBuilder node() {
+        return new AuthenticationServiceBuilder()
+                .createAuthenticationService()
+                .concurrentStorage()
+                .tokenManager(TOKEN_LIFETIME_IN_SECONDS, TokenFormat.BINARY)
+                .encryptionManager(new EncryptionManager())
+                .tokenCache(new TokenCache(1000))
+                .revocationList(new RevocationList(100, 0.01, Duration.ofSeconds(TOKEN_LIFETIME_IN_SECONDS), null));
+    }
+
+    private AuthenticationService follower() {
+        AuthenticationService follower = node()
+                .replicationFollower(leader.getReplicationLeader().getAddress())
+                .build();
+        followers.add(follower);
+        return follower;
+    }
+
+    private void awaitCaughtUp(AuthenticationService follower) throws InterruptedException {
+        ReplicationFollower replicationFollower = follower.getReplicationFollower();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CATCH_UP_SECONDS);
+        while (!replicationFollower.isSynced() || replicationFollower.getAppliedSequence() < leader.getReplicationLeader().getSequence()) {
+            assertTrue("Follower did not catch up", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.alanpeinejr.authservice;
+
+import com.alanpeinejr.encryption.EncryptionManager;
+import com.alanpeinejr.exception.*;
+import com.alanpeinejr.manager.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives a service whose users are split between partitions as callers would, and checks each partition only holds
+ * its own users
+ */
+public class ShardedAuthenticationServiceTest {
+
+    private static final int PARTITIONS = 4;
+    private static final int TOKEN_LIFETIME_IN_SECONDS = 60;
+    private ShardedAuthenticationService authenticationService;
+
+    @Before()
+    public void before() {
+        authenticationService = (ShardedAuthenticationService)
+                new AuthenticationServiceBuilder()
+                        .createShardedAuthenticationService(PARTITIONS)
+                        .tokenManager(TOKEN_LIFETIME_IN_SECONDS, TokenFormat.BINARY)
+                        .sessionChanges()
+                        .encryptionManager(new EncryptionManager())
+                        .tokenCache(new TokenCache(1000))
+                        .build();
+    }
+
+    @Test
+    public void testUsersAreSplitBetweenPartitions() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            authenticationService.createUser("user" + i, "password");
+        }
+
+        int stored = 0;
+        for (int i = 0; i < 100; i++) {
+            String username = "user" + i;
+            assertTrue(authenticationService.getUserManagers().contains(authenticationService.getUserManager(username)));
+            assertTrue(authenticationService.getUserStorage(username).containsKey(username));
+            assertSame(authenticationService.getUserStorage(username).get(username), authenticationService.getUserStorage().get(username));
+        }
+        for (UserManager userManager : authenticationService.getUserManagers()) {
+            List<String> usernames = new ArrayList<>();
+            userManager.forEachUser((username, password, salt, roles, sessionEpoch) -> usernames.add(username));
+            //every partition is used
+            assertFalse(usernames.isEmpty());
+            stored += usernames.size();
+        }
+        assertEquals(100, stored);
+        assertEquals(100, authenticationService.getUserStorage().size());
+        assertEquals(100, authenticationService.getUserStorage().entrySet().stream().count());
+        assertThrows(UnsupportedOperationException.class, () -> authenticationService.getUserStorage().put("user", null));
+    }
+
+    @Test
+    public void testFullFlowAcrossPartitions() throws Exception {
+        Role role = authenticationService.createRole("role");
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            User user = authenticationService.createUser("user" + i, "password");
+            authenticationService.assignRoleToUser(user, role);
+            tokens.add(authenticationService.authenticate("user" + i, "password"));
+        }
+        assertEquals("Invalid Password", authenticationService.authenticate("user0", "wrong"));
+        assertThrows(NoSuchUserException.class, () -> authenticationService.authenticate("nobody", "password"));
+
+        for (String token : tokens) {
+            assertTrue(authenticationService.authorize(token, role));
+            assertArrayEquals(new Role[]{role}, authenticationService.getAllRoles(token));
+        }
+
+        authenticationService.invalidateAll(tokens.get(3));
+        authenticationService.deleteUser(authenticationService.getUserStorage().get("user4"));
+        assertThrows(ExpiredTokenException.class, () -> authenticationService.authorize(tokens.get(3), role));
+        assertThrows(ExpiredTokenException.class, () -> authenticationService.authorize(tokens.get(4), role));
+        assertTrue(authenticationService.authorize(tokens.get(5), role));
+        //the digest gathers session changes from every partition
+        Map<String, Long> sessionEpochs = authenticationService.getRevocationDigest().getSessionEpochs();
+        assertEquals(Long.valueOf(authenticationService.getUserStorage().get("user3").getSessionEpoch()), sessionEpochs.get("user3"));
+        assertEquals(Long.valueOf(SessionChanges.DELETED), sessionEpochs.get("user4"));
+
+        authenticationService.deleteRole(role);
+        assertEquals(0, authenticationService.getAllRoles(authenticationService.authenticate("user5", "password")).length);
+        assertTrue(authenticationService.getUsersWithRole(role, null, 100).isEmpty());
+    }
+
+    @Test
+    public void testCreateUsersAllOrNothingAcrossPartitions() throws Exception {
+        authenticationService.createUser("user7", "password");
+        Map<String, String> passwords = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            passwords.put("user" + i, "password");
+        }
+
+        assertThrows(DuplicateUserException.class, () -> authenticationService.createUsers(passwords));
+        assertEquals(1, authenticationService.getUserStorage().size());
+
+        passwords.remove("user7");
+        List<User> created = authenticationService.createUsers(passwords);
+        assertEquals(19, created.size());
+        assertEquals("user0", created.get(0).getUsername());
+        assertEquals("user19", created.get(18).getUsername());
+        assertEquals(20, authenticationService.getUserStorage().size());
+    }
+
+    @Test
+    public void testGetUsersWithRolePagesInUsernameOrder() throws Exception {
+        Role role = authenticationService.createRole("role");
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            users.add(authenticationService.createUser(String.format("user%02d", i), "password"));
+        }
+        authenticationService.assignRoles(users, List.of(role));
+
+        List<String> paged = new ArrayList<>();
+        String after = null;
+        for (List<User> page = authenticationService.getUsersWithRole(role, null, 7); !page.isEmpty();
+             page = authenticationService.getUsersWithRole(role, after, 7)) {
+            assertTrue(page.size() <= 7);
+            for (User user : page) {
+                paged.add(user.getUsername());
+            }
+            after = paged.get(paged.size() - 1);
+        }
+        List<String> expected = new ArrayList<>();
+        for (User user : users) {
+            expected.add(user.getUsername());
+        }
+        assertEquals(expected, paged);
+    }
+
+    @Test
+    public void testConcurrentLoginsAndWrites() throws Exception {
+        Role role = authenticationService.createRole("role");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                int threadNumber = thread;
+                tasks.add(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        String username = "user" + threadNumber + "-" + i;
+                        User user = authenticationService.createUser(username, "password");
+                        authenticationService.assignRoleToUser(user, role);
+                        assertTrue(authenticationService.authorize(authenticationService.authenticate(username, "password"), role));
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> result : executor.invokeAll(tasks)) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(800, authenticationService.getUserStorage().size());
+        assertEquals(800, authenticationService.getUsersWithRole(role, null, 1000).size());
+    }
+
+    @Test
+    public void testNoSingleUserManager() {
+        assertEquals(PARTITIONS, authenticationService.getPartitionCount());
+        assertNull(authenticationService.getUserManager());
+        assertEquals(PARTITIONS, authenticationService.getUserManagers().size());
+        assertThrows(IllegalStateException.class, () -> new AuthenticationServiceBuilder()
+                .createShardedAuthenticationService(2)
+                .concurrentStorage());
+        assertThrows(IllegalStateException.class, () -> new AuthenticationServiceBuilder()
+                .createShardedAuthenticationService(2)
+                .userManager(new UserManager(new ConcurrentHashMap<>())));
+        assertThrows(IllegalStateException.class, () -> new AuthenticationServiceBuilder()
+                .createShardedAuthenticationService(2)
+                .persistentStorage(Path.of("unused"), Duration.ofMinutes(1)));
+        assertThrows(IllegalArgumentException.class, () -> new ShardedAuthenticationService(0));
+    }
+}
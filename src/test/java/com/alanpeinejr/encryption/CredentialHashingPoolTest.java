@@ -0,0 +1,96 @@
+package com.alanpeinejr.encryption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CredentialHashingPoolTest {
+
+    private CredentialHashingPool pool;
+    private ExecutorService callers;
+    private CountDownLatch started;
+    private CountDownLatch release;
+    private IEncrypt blockingEncryptor;
+
+    @Before()
+    public void before() {
+        pool = new CredentialHashingPool(1, 1, Duration.ofMillis(50));
+        callers = Executors.newCachedThreadPool();
+        started = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+        blockingEncryptor = string -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return string + "1";
+        };
+    }
+
+    @After()
+    public void after() {
+        release.countDown();
+        pool.shutdown();
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void testEncrypt() {
+        assertEquals(new EncryptionManager().encrypt("password"), pool.encryptor(new EncryptionManager()).encrypt("password"));
+    }
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws Exception {
+        Future<String> running = callers.submit(() -> pool.encrypt(blockingEncryptor, "running"));
+        started.await();
+        Future<String> queued = callers.submit(() -> pool.encrypt(blockingEncryptor, "queued"));
+        while (pool.getQueueDepth() == 0) {
+            Thread.sleep(1);
+        }
+
+        assertThrows(RejectedExecutionException.class, () -> pool.encrypt(blockingEncryptor, "rejected"));
+        assertEquals(1, pool.getRejectedCount());
+        assertEquals(1, pool.getQueueDepth());
+
+        release.countDown();
+        assertEquals("running1", running.get(1, TimeUnit.SECONDS));
+        queued.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testDropsHashesThatWaitedTooLong() throws Exception {
+        Future<String> running = callers.submit(() -> pool.encrypt(blockingEncryptor, "running"));
+        started.await();
+        Future<String> queued = callers.submit(() -> pool.encrypt(blockingEncryptor, "queued"));
+        while (pool.getQueueDepth() == 0) {
+            Thread.sleep(1);
+        }
+
+        Thread.sleep(100);
+        release.countDown();
+
+        assertEquals("running1", running.get(1, TimeUnit.SECONDS));
+        Exception e = assertThrows(Exception.class, () -> queued.get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+        assertEquals(1, pool.getExpiredCount());
+    }
+
+    @Test
+    public void testEncryptorExceptionsReachCaller() {
+        assertThrows(IllegalStateException.class, () -> pool.encrypt(string -> {
+            throw new IllegalStateException("broken");
+        }, "password"));
+    }
+}
@@ -3,8 +3,16 @@ package com.alanpeinejr.encryption;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
 
 public class EncryptionManagerTest {
 
@@ -26,4 +34,55 @@ public class EncryptionManagerTest {
         assertEquals("testString", encryptionManager.decrypt("dGVzdFN0cmluZw=="));
     }
 
+    @Test
+    public void testBytesRoundTrip() {
+        byte[] bytes = new byte[]{0x01, (byte) 0xFF, 0x00, (byte) 0x80};
+        assertArrayEquals(bytes, encryptionManager.decryptToBytes(encryptionManager.encrypt(bytes)));
+    }
+
+    @Test
+    public void testDecryptMatchesJavaBase64() {
+        Random random = new Random(42);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int length = 0; length < 64; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String encoded = Base64.getEncoder().encodeToString(bytes);
+
+            assertArrayEquals(bytes, encryptionManager.decryptToBytes(encoded));
+            assertArrayEquals(bytes, encryptionManager.decryptToBytes(encoded.replace("=", "")));
+            ByteBuffer decrypted = encryptionManager.decrypt(encoded, buffer);
+            if (length <= 16) {
+                assertSame(buffer, decrypted);
+            }
+            byte[] read = new byte[decrypted.remaining()];
+            decrypted.get(read);
+            assertArrayEquals(bytes, read);
+        }
+    }
+
+    @Test
+    public void testDecryptRejectsInvalidBase64() {
+        for (String invalid : new String[]{"a", "ab=c", "abc*", "ab\u00e9d", "=abc", "abcde"}) {
+            assertThrows(invalid, IllegalArgumentException.class, () -> encryptionManager.decryptToBytes(invalid));
+        }
+    }
+
+    @Test
+    public void testEncryptByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap("xxtestStringxx".getBytes(StandardCharsets.UTF_8), 2, 10);
+        assertEquals(encryptionManager.encrypt("testString"), encryptionManager.encrypt(buffer));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void testUtf8RoundTrip() {
+        assertEquals("r\u00f4le", encryptionManager.decrypt(encryptionManager.encrypt("r\u00f4le")));
+    }
+
+    @Test
+    public void testEncryptBytesMatchesEncryptString() {
+        assertEquals(encryptionManager.encrypt("testString"), encryptionManager.encrypt("testString".getBytes()));
+    }
+
 }
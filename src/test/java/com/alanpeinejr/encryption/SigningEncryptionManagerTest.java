@@ -0,0 +1,147 @@
+package com.alanpeinejr.encryption;
+
+import com.alanpeinejr.exception.InvalidSignatureException;
+import com.alanpeinejr.manager.Token;
+import com.alanpeinejr.manager.TokenFormat;
+import com.alanpeinejr.manager.TokenManager;
+import com.alanpeinejr.manager.User;
+import com.alanpeinejr.manager.UserManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class SigningEncryptionManagerTest {
+
+    private static final byte[] KEY_1 = key(1);
+    private static final byte[] KEY_2 = key(2);
+
+    private SigningEncryptionManager signingManager;
+
+    @Before()
+    public void before() {
+        signingManager = new SigningEncryptionManager("k1", KEY_1);
+    }
+
+    @Test
+    public void testSignedRoundTrip() {
+        byte[] bytes = "{\"username\":\"user\"}".getBytes(StandardCharsets.UTF_8);
+        String token = signingManager.encrypt(bytes);
+
+        assertTrue(token.startsWith(new EncryptionManager().encrypt(bytes) + ".k1."));
+        assertArrayEquals(bytes, signingManager.decryptToBytes(token));
+    }
+
+    @Test
+    public void testTamperedTokensAreRejected() {
+        String token = signingManager.encrypt("{\"username\":\"user\"}".getBytes(StandardCharsets.UTF_8));
+        String forgedPayload = new EncryptionManager().encrypt("{\"username\":\"admin\"}".getBytes(StandardCharsets.UTF_8));
+        String signature = token.substring(token.lastIndexOf('.'));
+
+        for (String forged : new String[]{
+                forgedPayload + ".k1" + signature,
+                new EncryptionManager().encrypt("{\"username\":\"user\"}"),
+                token.substring(0, token.length() - 2) + (token.charAt(token.length() - 2) == 'A' ? "B=" : "A="),
+                token.replace(".k1.", ".k2."),
+                token + "A",
+                "." + token,
+                ""}) {
+            assertThrows(forged, InvalidSignatureException.class, () -> signingManager.decryptToBytes(forged));
+        }
+    }
+
+    @Test
+    public void testRotatedKeysStillVerify() {
+        String oldToken = signingManager.encrypt(new byte[]{1, 2, 3});
+        Map<String, byte[]> keys = new LinkedHashMap<>();
+        keys.put("k1", KEY_1);
+        keys.put("k2", KEY_2);
+        SigningEncryptionManager rotated = new SigningEncryptionManager("k2", keys);
+        String newToken = rotated.encrypt(new byte[]{1, 2, 3});
+
+        assertTrue(newToken.contains(".k2."));
+        assertArrayEquals(new byte[]{1, 2, 3}, rotated.decryptToBytes(oldToken));
+        assertArrayEquals(new byte[]{1, 2, 3}, rotated.decryptToBytes(newToken));
+        assertThrows(InvalidSignatureException.class, () -> signingManager.decryptToBytes(newToken));
+        //the same id with a different key verifies nothing
+        assertThrows(InvalidSignatureException.class, () -> new SigningEncryptionManager("k1", KEY_2).decryptToBytes(oldToken));
+    }
+
+    @Test
+    public void testPasswordsAreNotSigned() {
+        assertEquals(new EncryptionManager().encrypt("password" + "salt"), signingManager.encrypt("password" + "salt"));
+    }
+
+    @Test
+    public void testKeysAreChecked() {
+        assertThrows(IllegalArgumentException.class, () -> new SigningEncryptionManager("k1", new byte[16]));
+        assertThrows(IllegalArgumentException.class, () -> new SigningEncryptionManager("k.1", KEY_1));
+        assertThrows(IllegalArgumentException.class, () -> new SigningEncryptionManager("k2", Map.of("k1", KEY_1)));
+    }
+
+    @Test
+    public void testSignatureCheckedBeforeParsing() throws Exception {
+        TokenManager tokenManager = new TokenManager(60, TokenFormat.BINARY);
+        Map<String, User> users = new HashMap<>();
+        UserManager userManager = new UserManager(users);
+        userManager.createUser("user", "password", signingManager);
+        assertTrue(userManager.authenticate("user", "password", signingManager));
+        String token = tokenManager.getTokenString(users.get("user"), signingManager);
+        Token read = tokenManager.readTokenString(token, signingManager);
+        assertEquals("user", read.getUsername());
+
+        String garbage = new EncryptionManager().encrypt(new byte[]{0x02, (byte) 0xFF}) + token.substring(token.indexOf('.'));
+        assertThrows(InvalidSignatureException.class, () -> tokenManager.readTokenString(garbage, signingManager));
+    }
+
+    @Test
+    public void testConcurrentVerify() throws Exception {
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            tokens.add(signingManager.encrypt(("token" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                tasks.add(() -> {
+                    for (int round = 0; round < 100; round++) {
+                        //a failed check puts its Mac back for the next one as well
+                        String forged = tokens.get(round).substring(1);
+                        assertThrows(InvalidSignatureException.class, () -> signingManager.verify(forged));
+                        for (int i = 0; i < tokens.size(); i++) {
+                            byte[] expected = ("token" + i).getBytes(StandardCharsets.UTF_8);
+                            if (!Arrays.equals(expected, signingManager.decryptToBytes(tokens.get(i)))) {
+                                return false;
+                            }
+                        }
+                    }
+                    return true;
+                });
+            }
+            for (Future<Boolean> result : executor.invokeAll(tasks)) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static byte[] key(int seed) {
+        byte[] key = new byte[SigningEncryptionManager.MIN_KEY_BYTES];
+        Arrays.fill(key, (byte) seed);
+        return key;
+    }
+}
@@ -0,0 +1,74 @@
+package com.alanpeinejr.jfr;
+
+import com.alanpeinejr.encryption.EncryptionManager;
+import com.alanpeinejr.manager.*;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class FlightRecordingTest {
+
+    private static final List<String> EVENTS = List.of("com.alanpeinejr.TokenDecode", "com.alanpeinejr.TokenParse", "com.alanpeinejr.PasswordHash");
+
+    @Test
+    public void testProfileEnablesEveryEvent() {
+        Map<String, String> settings = FlightRecording.configuration().getSettings();
+
+        for (String event : List.of("com.alanpeinejr.TokenDecode", "com.alanpeinejr.TokenParse",
+                "com.alanpeinejr.UserLookup", "com.alanpeinejr.PasswordHash")) {
+            assertEquals("true", settings.get(event + "#enabled"));
+            assertNotNull(settings.get(event + "#threshold"));
+        }
+    }
+
+    @Test
+    public void testPhasesAreRecordedWithoutUsernames() throws Exception {
+        Map<String, User> users = new HashMap<>();
+        RoleManager roleManager = new RoleManager(new HashMap<>());
+        UserManager userManager = new UserManager(users);
+        TokenManager tokenManager = new TokenManager(60, TokenFormat.JSON, roleManager);
+        EncryptionManager encryptionManager = new EncryptionManager();
+        Path file = Files.createTempFile("auth", ".jfr");
+
+        try (Recording recording = new Recording()) {
+            for (String event : EVENTS) {
+                recording.enable(event).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            userManager.createUser("secret-user", "password", encryptionManager);
+            assertTrue(userManager.authenticate("secret-user", "password", encryptionManager));
+            assertFalse(userManager.authenticate("secret-user", "wrong", encryptionManager));
+            String token = tokenManager.getTokenString(users.get("secret-user"), encryptionManager);
+            tokenManager.readTokenString(token, encryptionManager);
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+        Map<String, List<RecordedEvent>> byName = events.stream()
+                .collect(Collectors.groupingBy(event -> event.getEventType().getName()));
+        for (String event : EVENTS) {
+            assertTrue(event + " missing", byName.containsKey(event));
+        }
+        assertEquals(List.of("MATCHED", "MISMATCHED"), byName.get("com.alanpeinejr.PasswordHash").stream()
+                .map(event -> event.getString("outcome")).collect(Collectors.toList()));
+        RecordedEvent parse = byName.get("com.alanpeinejr.TokenParse").get(0);
+        assertEquals("JSON", parse.getString("format"));
+        assertEquals("PARSED", parse.getString("outcome"));
+        for (RecordedEvent event : events) {
+            assertFalse(event.toString().contains("secret-user"));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.alanpeinejr.manager;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ObjectPoolTest {
+
+    @Test
+    public void testReusedAcrossNewThreads() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        ObjectPool<Object> pool = new ObjectPool<>(4, () -> {
+            created.incrementAndGet();
+            return new Object();
+        });
+        AtomicReference<Object> first = new AtomicReference<>();
+        startVirtualThread(() -> {
+            first.set(pool.take());
+            pool.putBack(first.get());
+        }).join();
+        for (int i = 0; i < 100; i++) {
+            AtomicReference<Object> taken = new AtomicReference<>();
+            startVirtualThread(() -> taken.set(pool.take())).join();
+            assertSame(first.get(), taken.get());
+            pool.putBack(taken.get());
+        }
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void testBounded() {
+        ObjectPool<Object> pool = new ObjectPool<>(4, Object::new);
+        List<Object> taken = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            taken.add(pool.take());
+        }
+        taken.forEach(pool::putBack);
+        assertEquals(4, pool.pooled());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(taken.contains(pool.take()));
+        }
+        assertEquals(0, pool.pooled());
+        assertFalse(taken.contains(pool.take()));
+        assertThrows(IllegalArgumentException.class, () -> new ObjectPool<>(0, Object::new));
+    }
+
+    /**
+     * Runs the task on a new virtual thread when the JDK has them, otherwise on a new platform thread, either way a
+     * thread that has never run anything else
+     */
+    static Thread startVirtualThread(Runnable task) throws IllegalAccessException, InvocationTargetException {
+        try {
+            return (Thread) Thread.class.getMethod("startVirtualThread", Runnable.class).invoke(null, task);
+        } catch (NoSuchMethodException e) {
+            Thread thread = new Thread(task);
+            thread.start();
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.alanpeinejr.manager;
+
+import com.alanpeinejr.encryption.IEncrypt;
+import com.alanpeinejr.exception.DuplicateRoleException;
+import com.alanpeinejr.exception.DuplicateUserException;
+import com.alanpeinejr.exception.NoSuchRoleException;
+import com.alanpeinejr.exception.NoSuchUserException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class OffHeapUserStorageTest {
+
+    private static final int ARENA_BYTES = 4096;
+    private RoleManager roleManager;
+    private OffHeapUserStorage storage;
+    private UserManager userManager;
+    private IEncrypt encryptor;
+
+    @Before()
+    public void before() {
+        roleManager = new RoleManager(new ConcurrentHashMap<>());
+        storage = new OffHeapUserStorage(ARENA_BYTES, roleManager::getRole);
+        userManager = new UserManager(storage);
+        encryptor = string -> string + "encrypted";
+    }
+
+    @Test
+    public void testRecordRoundTrip() throws DuplicateRoleException {
+        Role admin = roleManager.createRole("admin");
+        User user = new User("us\u00e9r", "password", 0.25, new ArrayList<>(List.of(admin, new Role("unlisted"))));
+        user.setSessionEpoch(3);
+        user.setLoginTime(Instant.ofEpochSecond(100, 5));
+
+        assertNull(storage.put("us\u00e9r", user));
+        User read = storage.get("us\u00e9r");
+
+        assertNotSame(user, read);
+        assertEquals("us\u00e9r", read.getUsername());
+        assertEquals("password", read.getPassword());
+        assertEquals(0.25, read.getSalt(), 0);
+        assertEquals(3, read.getSessionEpoch());
+        assertEquals(Instant.ofEpochSecond(100, 5), read.getLoginTime());
+        assertSame(admin, read.getRoles().get(0));
+        assertEquals("unlisted", read.getRoles().get(1).getName());
+        assertTrue(read.getRoleBits().contains(admin.getId()));
+        assertNull(storage.get("user"));
+    }
+
+    @Test
+    public void testDeletedRoleIsDropped() throws DuplicateRoleException, NoSuchRoleException {
+        Role admin = roleManager.createRole("admin");
+        storage.put("user", new User("user", "password", 0.5, new ArrayList<>(List.of(admin))));
+        roleManager.deleteRole("admin");
+
+        assertTrue(storage.get("user").getRoles().isEmpty());
+    }
+
+    @Test
+    public void testManyUsersAcrossArenasAndResizes() {
+        for (int i = 0; i < 5000; i++) {
+            storage.put("user" + i, new User("user" + i, "password" + i, i));
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            assertNotNull(storage.remove("user" + i));
+        }
+
+        assertEquals(2500, storage.size());
+        assertTrue(storage.getReservedBytes() > ARENA_BYTES);
+        for (int i = 0; i < 5000; i++) {
+            User user = storage.get("user" + i);
+            if (i % 2 == 0) {
+                assertNull(user);
+            } else {
+                assertEquals("password" + i, user.getPassword());
+            }
+        }
+        Set<String> seen = new HashSet<>();
+        storage.forEach((username, user) -> seen.add(username));
+        assertEquals(2500, seen.size());
+    }
+
+    @Test
+    public void testReplacedRecordsAreReused() {
+        for (int i = 0; i < 100; i++) {
+            storage.put("user" + i, new User("user" + i, "password", 0.5));
+        }
+        long reserved = storage.getReservedBytes();
+        long live = storage.getLiveBytes();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 100; i++) {
+                storage.remove("user" + i);
+                storage.put("user" + i, new User("user" + i, "password", 0.5));
+            }
+        }
+
+        assertEquals(reserved, storage.getReservedBytes());
+        assertEquals(live, storage.getLiveBytes());
+    }
+
+    @Test
+    public void testLargeReplacedRecordsAreReused() {
+        OffHeapUserStorage large = new OffHeapUserStorage(64 * 1024, roleManager::getRole);
+        for (int i = 0; i < 4; i++) {
+            large.put("user" + i, new User("user" + i, "p".repeat(6000), 0.5));
+        }
+        long reserved = large.getReservedBytes();
+        long live = large.getLiveBytes();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 4; i++) {
+                large.remove("user" + i);
+                large.put("user" + i, new User("user" + i, "p".repeat(6000), 0.5));
+            }
+        }
+        assertEquals(reserved, large.getReservedBytes());
+        assertEquals(live, large.getLiveBytes());
+
+        //a smaller record takes the front of a freed one
+        large.remove("user0");
+        large.put("smaller", new User("smaller", "p".repeat(5000), 0.5));
+        assertEquals("p".repeat(5000), large.get("smaller").getPassword());
+        large.put("user0", new User("user0", "p".repeat(6000), 0.5));
+        assertEquals("p".repeat(6000), large.get("user0").getPassword());
+        assertEquals("p".repeat(5000), large.get("smaller").getPassword());
+    }
+
+    @Test
+    public void testUserManagerChangesArePutBack() throws Exception {
+        Role admin = roleManager.createRole("admin");
+        User created = userManager.createUser("user", "password", encryptor);
+        userManager.addRoleToUser(created, admin);
+        userManager.invalidate("user");
+        assertTrue(userManager.authenticate("user", "password", encryptor));
+
+        User stored = storage.get("user");
+        assertEquals(created.getSessionEpoch() + 1, stored.getSessionEpoch());
+        assertEquals(stored.getSessionEpoch(), storage.getSessionEpoch("user"));
+        assertEquals(OffHeapUserStorage.NO_SESSION_EPOCH, storage.getSessionEpoch("other"));
+        assertNotNull(stored.getLoginTime());
+        assertTrue(stored.getRoleBits().contains(admin.getId()));
+
+        userManager.removeRoleFromAllUsers(admin);
+        assertTrue(storage.get("user").getRoles().isEmpty());
+    }
+
+    @Test
+    public void testRoleMembersWithoutIndex() throws Exception {
+        UserManager unindexed = new UserManager(storage, false);
+        Role admin = roleManager.createRole("admin");
+        for (int i = 0; i < 30; i++) {
+            User user = unindexed.createUser(String.format("user%02d", i), "password", encryptor);
+            if (i % 3 == 0) {
+                unindexed.addRoleToUser(user, admin);
+            }
+        }
+
+        List<String> members = new ArrayList<>();
+        String after = null;
+        for (List<User> page = unindexed.getUsersWithRole(admin, null, 4); !page.isEmpty(); page = unindexed.getUsersWithRole(admin, after, 4)) {
+            for (User user : page) {
+                members.add(user.getUsername());
+            }
+            after = members.get(members.size() - 1);
+        }
+        assertEquals(List.of("user00", "user03", "user06", "user09", "user12", "user15", "user18", "user21", "user24", "user27"), members);
+
+        unindexed.removeRoleFromMembers(admin);
+        assertTrue(unindexed.getUsersWithRole(admin, null, 10).isEmpty());
+        assertTrue(storage.get("user00").getRoles().isEmpty());
+    }
+
+    @Test
+    public void testCreateUsersRollsBackCopies() throws DuplicateUserException {
+        userManager.createUser("user2", "password", encryptor);
+        LinkedHashMap<String, String> passwords = new LinkedHashMap<>();
+        passwords.put("user1", "password");
+        passwords.put("user2", "password");
+
+        assertThrows(DuplicateUserException.class, () -> userManager.createUsers(passwords, encryptor));
+        assertFalse(storage.containsKey("user1"));
+        assertThrows(NoSuchUserException.class, () -> userManager.authenticate("user1", "password", encryptor));
+    }
+
+    @Test
+    public void testConcurrentChangesAcrossSegments() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int thread = t;
+                writers.add(executor.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        String username = "user" + thread + "-" + i;
+                        User user = new User(username, "password", i);
+                        user.setSessionEpoch(i);
+                        storage.put(username, user);
+                        //a longer password no longer fits the record, so it is placed again
+                        storage.put(username, new User(username, "a much longer password than before", i));
+                        assertEquals(0, storage.getSessionEpoch(username));
+                        if (i % 3 == 0) {
+                            storage.remove(username);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int expected = 4 * (2000 - (2000 + 2) / 3);
+        assertEquals(expected, storage.size());
+        Set<String> seen = new HashSet<>();
+        storage.forEach((username, user) -> seen.add(username));
+        assertEquals(expected, seen.size());
+        assertEquals("a much longer password than before", storage.get("user3-1999").getPassword());
+    }
+}
@@ -0,0 +1,121 @@
+package com.alanpeinejr.manager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RevocationListTest {
+
+    private static final Duration LIFETIME = Duration.ofMinutes(10);
+    private MutableClock clock;
+    private RevocationList revocationList;
+
+    @Before()
+    public void before() {
+        clock = new MutableClock(Instant.EPOCH);
+        revocationList = new RevocationList(1000, 0.01, LIFETIME, null, clock);
+    }
+
+    @Test
+    public void testRevokesOnlyThatToken() {
+        Token stolen = token(1, LIFETIME);
+        Token other = token(2, LIFETIME);
+
+        assertTrue(revocationList.revoke(stolen));
+        assertFalse(revocationList.revoke(stolen));
+        assertTrue(revocationList.isRevoked(stolen));
+        assertFalse(revocationList.isRevoked(other));
+        assertEquals(1, revocationList.size());
+    }
+
+    @Test
+    public void testListenersToldOfNewRevocations() {
+        List<Long> told = new ArrayList<>();
+        revocationList.addListener((id, expiration) -> told.add(id));
+        Token token = token(5, LIFETIME);
+
+        revocationList.revoke(token);
+        revocationList.revoke(token);
+        revocationList.revoke(0, token.getExpiration());
+        //revocations sent from elsewhere are applied by id
+        assertTrue(revocationList.revoke(6, token.getExpiration()));
+
+        assertEquals(List.of(5L, 6L), told);
+        assertEquals(token.getExpiration(), revocationList.getRevocations().get(5L));
+        assertTrue(revocationList.isRevoked(token(6, LIFETIME)));
+    }
+
+    @Test
+    public void testTokensWithoutIdOrExpiredAreIgnored() {
+        assertFalse(revocationList.revoke(token(0, LIFETIME)));
+        assertFalse(revocationList.revoke(token(3, Duration.ofSeconds(-1))));
+        assertEquals(0, revocationList.size());
+    }
+
+    @Test
+    public void testRevokedUntilExpiryAcrossGenerations() {
+        Token token = token(4, LIFETIME);
+        revocationList.revoke(token);
+
+        //one generation change keeps the id in the older filter
+        clock.now = Instant.EPOCH.plus(LIFETIME).minusSeconds(1);
+        assertTrue(revocationList.isRevoked(token));
+        clock.now = Instant.EPOCH.plus(LIFETIME);
+        assertTrue(revocationList.isRevoked(token));
+        assertEquals(1, revocationList.size());
+
+        //by the next the token has expired, and the id is purged
+        clock.now = Instant.EPOCH.plus(LIFETIME.multipliedBy(2));
+        assertFalse(revocationList.isRevoked(token));
+        assertEquals(0, revocationList.size());
+    }
+
+    @Test
+    public void testUnrevokedTokensAreNeverReported() {
+        for (long id = 1; id <= 1000; id++) {
+            revocationList.revoke(token(id, LIFETIME));
+        }
+        for (long id = 1; id <= 1000; id++) {
+            assertTrue(revocationList.isRevoked(token(id, LIFETIME)));
+        }
+        for (long id = 1001; id <= 101_000; id++) {
+            assertFalse(revocationList.isRevoked(token(id, LIFETIME)));
+        }
+    }
+
+    private Token token(long id, Duration lifetime) {
+        return new Token("user", List.of(), clock.now.plus(lifetime), 0, id);
+    }
+
+    private static class MutableClock extends Clock {
+        private Instant now;
+
+        private MutableClock(Instant now) {
+            this.now = now;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.alanpeinejr.manager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RoleBitsTest {
+
+    @Test
+    public void testWithAndContains() {
+        RoleBits bits = RoleBits.EMPTY.with(3).with(64).with(200);
+        assertTrue(bits.contains(3));
+        assertTrue(bits.contains(64));
+        assertTrue(bits.contains(200));
+        assertFalse(bits.contains(4));
+        assertFalse(bits.contains(1000));
+        assertFalse(bits.contains(Role.UNASSIGNED_ID));
+    }
+
+    @Test
+    public void testImmutable() {
+        RoleBits bits = RoleBits.EMPTY.with(1);
+        RoleBits more = bits.with(2);
+        assertFalse(bits.contains(2));
+        assertTrue(more.contains(2));
+        assertTrue(RoleBits.EMPTY.isEmpty());
+    }
+
+    @Test
+    public void testWithout() {
+        RoleBits bits = RoleBits.EMPTY.with(1).with(130);
+        assertEquals(RoleBits.EMPTY.with(1), bits.without(130));
+        assertTrue(bits.without(130).without(1).isEmpty());
+        assertSame(bits, bits.without(5));
+    }
+
+    @Test
+    public void testOrAndIntersects() {
+        RoleBits low = RoleBits.EMPTY.with(1).with(2);
+        RoleBits high = RoleBits.EMPTY.with(2).with(130);
+
+        assertEquals(RoleBits.EMPTY.with(1).with(2).with(130), low.or(high));
+        assertEquals(low.or(high), high.or(low));
+        assertSame(low, low.or(RoleBits.EMPTY.with(1)));
+        assertTrue(low.intersects(high));
+        assertFalse(low.intersects(RoleBits.EMPTY.with(130)));
+        assertFalse(RoleBits.EMPTY.intersects(high));
+    }
+
+    @Test
+    public void testNextId() {
+        RoleBits bits = RoleBits.EMPTY.with(0).with(63).with(64).with(300);
+        List<Integer> ids = new ArrayList<>();
+        for (int id = bits.nextId(0); id >= 0; id = bits.nextId(id + 1)) {
+            ids.add(id);
+        }
+        assertEquals(List.of(0, 63, 64, 300), ids);
+    }
+
+    @Test
+    public void testOfIgnoresRolesWithoutIds() {
+        List<Role> roles = new ArrayList<>();
+        roles.add(new Role("a", 2));
+        roles.add(new Role("b"));
+        assertEquals(RoleBits.EMPTY.with(2), RoleBits.of(roles));
+        assertNull(RoleBits.ofIndexed(roles));
+    }
+
+    @Test
+    public void testOfIndexed() {
+        List<Role> roles = List.of(new Role("a", 130), new Role("b", 2), new Role("c", 64));
+        assertEquals(RoleBits.EMPTY.with(2).with(64).with(130), RoleBits.ofIndexed(roles));
+        assertEquals(RoleBits.of(roles), RoleBits.ofIndexed(roles));
+        assertSame(RoleBits.EMPTY, RoleBits.ofIndexed(List.of()));
+    }
+
+    @Test
+    public void testNegativeIdRejected() {
+        assertThrows(IllegalArgumentException.class, () -> RoleBits.EMPTY.with(Role.UNASSIGNED_ID));
+    }
+}
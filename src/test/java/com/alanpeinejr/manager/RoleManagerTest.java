@@ -5,7 +5,11 @@ import com.alanpeinejr.exception.NoSuchRoleException;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -41,9 +45,165 @@ public class RoleManagerTest {
         assertEquals(0, roleHashMap.size());
     }
 
+    @Test
+    public void testGetRole() throws DuplicateRoleException {
+        Role role = roleManager.createRole("testRole");
+        assertSame(role, roleManager.getRole("testRole"));
+        assertNull(roleManager.getRole("otherRole"));
+    }
+
+    @Test
+    public void testRoleIdsAreDenseAndNeverReused() throws DuplicateRoleException, NoSuchRoleException {
+        Role first = roleManager.createRole("first");
+        Role second = roleManager.createRole("second");
+        assertEquals(0, first.getId());
+        assertEquals(1, second.getId());
+
+        roleManager.deleteRole("first");
+        Role recreated = roleManager.createRole("first");
+        assertEquals(2, recreated.getId());
+        assertNull(roleManager.getRole(0));
+        assertSame(second, roleManager.getRole(1));
+        assertSame(recreated, roleManager.getRole(2));
+        assertNull(roleManager.getRole(3));
+    }
+
+    @Test
+    public void testInternRole() throws DuplicateRoleException, NoSuchRoleException {
+        Role role = roleManager.createRole("testRole");
+        byte[] name = "xtestRolex".getBytes(StandardCharsets.UTF_8);
+
+        assertSame(role, roleManager.internRole(name, 1, 8));
+        assertSame(role, roleManager.internRole(name, 1, 8));
+        assertNull(roleManager.internRole(name, 0, 8));
+
+        roleManager.deleteRole("testRole");
+        assertNull(roleManager.internRole(name, 1, 8));
+    }
+
+    @Test
+    public void testIncludedRolesAreGrantedTransitively() throws Exception {
+        Role admin = roleManager.createRole("admin");
+        Role editor = roleManager.createRole("editor");
+        Role reader = roleManager.createRole("reader");
+        Role other = roleManager.createRole("other");
+        roleManager.includeRole("admin", "editor");
+        roleManager.includeRole("editor", "reader");
+
+        Token adminToken = token(admin);
+        assertTrue(roleManager.grants(adminToken, admin));
+        assertTrue(roleManager.grants(adminToken, editor));
+        assertTrue(roleManager.grants(adminToken, reader));
+        assertFalse(roleManager.grants(adminToken, other));
+        assertTrue(roleManager.grants(token(editor), reader));
+        assertFalse(roleManager.grants(token(reader), editor));
+        //roles built by name are looked up, as are token roles read without this manager
+        assertTrue(roleManager.grants(adminToken, new Role("reader")));
+        assertTrue(roleManager.grants(new Token("user", List.of(new Role("admin")), Instant.now()), reader));
+        assertEquals(List.of(editor), roleManager.getIncludedRoles("admin"));
+    }
+
+    @Test
+    public void testIncludeRoleRejectsLoops() throws Exception {
+        roleManager.createRole("a");
+        roleManager.createRole("b");
+        roleManager.createRole("c");
+        roleManager.includeRole("a", "b");
+        roleManager.includeRole("b", "c");
+
+        assertThrows(IllegalArgumentException.class, () -> roleManager.includeRole("c", "a"));
+        assertThrows(IllegalArgumentException.class, () -> roleManager.includeRole("a", "a"));
+        assertThrows(NoSuchRoleException.class, () -> roleManager.includeRole("a", "missing"));
+        //already included, nothing changes
+        roleManager.includeRole("a", "b");
+        assertEquals(2, roleManager.getInclusions().size());
+    }
+
+    @Test
+    public void testExcludeRoleKeepsOtherChains() throws Exception {
+        Role admin = roleManager.createRole("admin");
+        roleManager.createRole("editor");
+        roleManager.createRole("auditor");
+        Role reader = roleManager.createRole("reader");
+        roleManager.includeRole("admin", "editor");
+        roleManager.includeRole("admin", "auditor");
+        roleManager.includeRole("editor", "reader");
+        roleManager.includeRole("auditor", "reader");
+
+        roleManager.excludeRole("editor", "reader");
+        assertTrue(roleManager.grants(token(admin), reader));
+
+        roleManager.excludeRole("auditor", "reader");
+        assertFalse(roleManager.grants(token(admin), reader));
+        assertTrue(roleManager.getIncludedRoles("editor").isEmpty());
+    }
+
+    @Test
+    public void testDeleteRoleDropsInclusions() throws Exception {
+        Role admin = roleManager.createRole("admin");
+        roleManager.createRole("editor");
+        Role reader = roleManager.createRole("reader");
+        roleManager.includeRole("admin", "editor");
+        roleManager.includeRole("editor", "reader");
+
+        roleManager.deleteRole("editor");
+        assertFalse(roleManager.grants(token(admin), reader));
+        assertTrue(roleManager.getInclusions().isEmpty());
+
+        roleManager.createRole("editor");
+        assertTrue(roleManager.getIncludedRoles("editor").isEmpty());
+    }
+
+    @Test
+    public void testRestoreRoleTakesIdFromAnotherName() throws Exception {
+        Role old = roleManager.restoreRole("old", 3);
+        Role reader = roleManager.createRole("reader");
+        roleManager.includeRole("old", "reader");
+
+        Role renamed = roleManager.restoreRole("new", 3);
+        assertNull(roleManager.getRole("old"));
+        assertFalse(roleHashMap.containsKey("old"));
+        assertSame(renamed, roleManager.getRole(3));
+        assertEquals(List.of(renamed, reader), roleManager.getRoles());
+        assertTrue(roleManager.getInclusions().isEmpty());
+
+        //deleting the evicted role finds it already gone and leaves the id's new holder alone
+        roleHashMap.put("old", old);
+        roleManager.deleteRole("old");
+        assertSame(renamed, roleManager.getRole(3));
+        assertSame(renamed, roleManager.getRole("new"));
+    }
+
+    @Test
+    public void testInclusionsAreReported() throws Exception {
+        List<String> events = new ArrayList<>();
+        roleManager.addListener(new StorageListener() {
+            @Override
+            public void roleIncluded(Role role, Role includedRole) {
+                events.add(role.getName() + "+" + includedRole.getName());
+            }
+
+            @Override
+            public void roleExcluded(Role role, Role includedRole) {
+                events.add(role.getName() + "-" + includedRole.getName());
+            }
+        });
+        roleManager.createRole("a");
+        roleManager.createRole("b");
+        roleManager.includeRole("a", "b");
+        roleManager.includeRole("a", "b");
+        roleManager.excludeRole("a", "b");
+        roleManager.excludeRole("a", "b");
+
+        assertEquals(List.of("a+b", "a-b"), events);
+    }
+
     @Test
     public void testDeleteUserUserDoesntExist() {
         assertThrows(NoSuchRoleException.class, () -> roleManager.deleteRole("testUser"));
     }
 
+    private static Token token(Role role) {
+        return new Token("user", List.of(role), Instant.now());
+    }
 }
@@ -0,0 +1,134 @@
+package com.alanpeinejr.manager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TokenCacheTest {
+
+    private static final Instant NOW = Instant.ofEpochSecond(1_000_000);
+    private TokenCache tokenCache;
+
+    @Before()
+    public void before() {
+        tokenCache = new TokenCache(3, Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    @Test
+    public void testGetCachedToken() {
+        Token token = token("user", NOW.plusSeconds(5));
+        tokenCache.put("token", token);
+        assertSame(token, tokenCache.get("token"));
+    }
+
+    @Test
+    public void testGetMissingToken() {
+        assertNull(tokenCache.get("token"));
+    }
+
+    @Test
+    public void testExpiredTokenNotCached() {
+        tokenCache.put("token", token("user", NOW.minusSeconds(1)));
+        assertNull(tokenCache.get("token"));
+        assertEquals(0, tokenCache.size());
+    }
+
+    @Test
+    public void testExpiredTokenDropped() {
+        Clock[] clock = {Clock.fixed(NOW, ZoneOffset.UTC)};
+        TokenCache cache = new TokenCache(3, new DelegatingClock(clock));
+        cache.put("token", token("user", NOW.plusSeconds(5)));
+
+        clock[0] = Clock.fixed(NOW.plusSeconds(6), ZoneOffset.UTC);
+        assertNull(cache.get("token"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        for (int i = 0; i < 10; i++) {
+            tokenCache.put("token" + i, token("user" + i, NOW.plusSeconds(5)));
+        }
+        assertTrue(tokenCache.size() <= 3);
+        assertNotNull(tokenCache.get("token9"));
+    }
+
+    @Test
+    public void testEvictsInBatches() {
+        TokenCache cache = new TokenCache(100, Clock.fixed(NOW, ZoneOffset.UTC));
+        for (int i = 0; i < 100; i++) {
+            cache.put("token" + i, token("user" + i, NOW.plusSeconds(5)));
+        }
+        assertEquals(100, cache.size());
+
+        //the put that finds the cache full makes room for a tenth of it
+        cache.put("token100", token("user100", NOW.plusSeconds(5)));
+        assertEquals(91, cache.size());
+        for (int i = 101; i < 110; i++) {
+            cache.put("token" + i, token("user" + i, NOW.plusSeconds(5)));
+        }
+        assertEquals(100, cache.size());
+        assertNotNull(cache.get("token109"));
+    }
+
+    @Test
+    public void testInvalidateUser() {
+        tokenCache.put("token1", token("user1", NOW.plusSeconds(5)));
+        tokenCache.put("token2", token("user1", NOW.plusSeconds(6)));
+        tokenCache.put("token3", token("user2", NOW.plusSeconds(5)));
+
+        tokenCache.invalidateUser("user1");
+        assertNull(tokenCache.get("token1"));
+        assertNull(tokenCache.get("token2"));
+        assertNotNull(tokenCache.get("token3"));
+    }
+
+    @Test
+    public void testInvalidateRole() {
+        List<Role> roles = new ArrayList<>();
+        roles.add(new Role("role"));
+        tokenCache.put("token1", new Token("user1", roles, NOW.plusSeconds(5)));
+        tokenCache.put("token2", token("user2", NOW.plusSeconds(5)));
+
+        tokenCache.invalidateRole(new Role("role"));
+        assertNull(tokenCache.get("token1"));
+        assertNotNull(tokenCache.get("token2"));
+    }
+
+    private static Token token(String username, Instant expiration) {
+        return new Token(username, new ArrayList<>(), expiration);
+    }
+
+    /**
+     * Lets a test move time forward under a cache that has already been built
+     */
+    private static class DelegatingClock extends Clock {
+        private final Clock[] clock;
+
+        DelegatingClock(Clock[] clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(java.time.ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return clock[0].instant();
+        }
+    }
+}
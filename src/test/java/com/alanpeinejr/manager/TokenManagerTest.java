@@ -6,10 +6,20 @@ import com.google.gson.JsonSyntaxException;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
 public class TokenManagerTest {
 
@@ -35,8 +45,9 @@ public class TokenManagerTest {
         User user = new User("testUser", "testPassword", 0);
         mockUserManager.addRole(user, new Role("testRole1"));
         mockUserManager.authenticate(user);
+        tokenManager.setTokenIds(() -> 7);
 
-        assertEquals("{\"username\":\"testUser\",\"roles\":[{\"name\":\"testRole1\"}],\"expiration\":" + user.getLoginTime().plusSeconds(TOKEN_LIFE).getEpochSecond() + "}1", tokenManager.getTokenString(user, mockEncryptor));
+        assertEquals("{\"username\":\"testUser\",\"roles\":[{\"name\":\"testRole1\"}],\"expiration\":" + user.getLoginTime().plusSeconds(TOKEN_LIFE).getEpochSecond() + ",\"session\":0,\"id\":7}1", tokenManager.getTokenString(user, mockEncryptor));
     }
 
     @Test
@@ -53,6 +64,199 @@ public class TokenManagerTest {
         assertThrows(JsonSyntaxException.class, () -> tokenManager.readTokenString("invalidToken", mockDecryptor));
     }
 
+    @Test
+    public void testBinaryTokenRoundTrip() {
+        TokenManager binaryTokenManager = new TokenManager(TOKEN_LIFE, TokenFormat.BINARY);
+        binaryTokenManager.setTokenIds(() -> 0);
+        User user = new User("testUser\u00e9", "testPassword", 0);
+        mockUserManager.addRole(user, new Role("testRole1"));
+        mockUserManager.addRole(user, new Role("testRole2"));
+        mockUserManager.authenticate(user);
+
+        String token = binaryTokenManager.getTokenString(user, mockEncryptor);
+        assertEquals(new Token("testUser\u00e9", user.getRoles(), user.getLoginTime().plusSeconds(TOKEN_LIFE)), binaryTokenManager.readTokenString(token, mockDecryptor));
+    }
+
+    @Test
+    public void testReadTokenFromBufferSlice() {
+        TokenManager binaryTokenManager = new TokenManager(TOKEN_LIFE, TokenFormat.BINARY);
+        User user = new User("testUser", "testPassword", 0);
+        mockUserManager.addRole(user, new Role("testRole1"));
+        mockUserManager.authenticate(user);
+        Token expected = binaryTokenManager.readTokenString(binaryTokenManager.getTokenString(user, mockEncryptor), mockDecryptor);
+
+        for (TokenManager manager : new TokenManager[]{tokenManager, binaryTokenManager}) {
+            String token = manager.getTokenString(user, mockEncryptor);
+            byte[] decrypted = mockDecryptor.decrypt(token).getBytes(StandardCharsets.ISO_8859_1);
+            //surrounded by bytes that aren't part of the token
+            ByteBuffer buffer = ByteBuffer.allocate(decrypted.length + 8);
+            buffer.put(new byte[]{'x', 'x', 'x', 'x'}).put(decrypted).put(new byte[]{'}', '}', '}', '}'});
+            buffer.position(4).limit(4 + decrypted.length);
+
+            Token read = manager.readToken(buffer.slice());
+            assertEquals(expected.getUsername(), read.getUsername());
+            assertEquals(expected.getRoles(), read.getRoles());
+            assertEquals(manager.readToken(ByteBuffer.allocateDirect(decrypted.length).put(decrypted).flip()), read);
+        }
+    }
+
+    @Test
+    public void testBinaryTokenSmallerThanJson() {
+        User user = new User("testUser", "testPassword", 0);
+        for (int i = 0; i < 20; i++) {
+            mockUserManager.addRole(user, new Role("testRole" + i));
+        }
+        mockUserManager.authenticate(user);
+
+        String json = tokenManager.getTokenString(user, mockEncryptor);
+        String binary = new TokenManager(TOKEN_LIFE, TokenFormat.BINARY).getTokenString(user, mockEncryptor);
+        assertTrue(binary.length() * 2 < json.length());
+    }
+
+    @Test
+    public void testReadDetectsFormat() {
+        User user = new User("testUser", "testPassword", 0);
+        mockUserManager.addRole(user, new Role("testRole1"));
+        mockUserManager.authenticate(user);
+        Token expected = new Token("testUser", user.getRoles(), user.getLoginTime().plusSeconds(TOKEN_LIFE));
+        TokenManager binaryTokenManager = new TokenManager(TOKEN_LIFE, TokenFormat.BINARY);
+        tokenManager.setTokenIds(() -> 0);
+        binaryTokenManager.setTokenIds(() -> 0);
+
+        assertEquals(expected, binaryTokenManager.readTokenString(tokenManager.getTokenString(user, mockEncryptor), mockDecryptor));
+        assertEquals(expected, tokenManager.readTokenString(binaryTokenManager.getTokenString(user, mockEncryptor), mockDecryptor));
+    }
+
+    @Test
+    public void testTokenCarriesSessionEpochAndId() {
+        User user = new User("testUser", "testPassword", 0);
+        mockUserManager.addRole(user, new Role("testRole1"));
+        mockUserManager.authenticate(user);
+        user.nextSessionEpoch();
+        user.nextSessionEpoch();
+        Token expected = new Token("testUser", user.getRoles(), user.getLoginTime().plusSeconds(TOKEN_LIFE), 2, -9);
+        TokenManager binaryTokenManager = new TokenManager(TOKEN_LIFE, TokenFormat.BINARY);
+        tokenManager.setTokenIds(() -> -9);
+        binaryTokenManager.setTokenIds(() -> -9);
+
+        assertEquals(expected, tokenManager.readTokenString(tokenManager.getTokenString(user, mockEncryptor), mockDecryptor));
+        assertEquals(expected, binaryTokenManager.readTokenString(binaryTokenManager.getTokenString(user, mockEncryptor), mockDecryptor));
+    }
+
+    @Test
+    public void testReadTruncatedBinaryToken() {
+        User user = new User("testUser", "testPassword", 0);
+        mockUserManager.addRole(user, new Role("testRole1"));
+        mockUserManager.authenticate(user);
+        String token = new TokenManager(TOKEN_LIFE, TokenFormat.BINARY).getTokenString(user, mockEncryptor);
+        String truncated = token.substring(0, token.length() - 4) + ENCRYPTED;
+
+        assertThrows(JsonSyntaxException.class, () -> tokenManager.readTokenString(truncated, mockDecryptor));
+    }
+
+    @Test
+    public void testReadInternsStoredRoles() throws Exception {
+        RoleManager roleManager = new RoleManager(new HashMap<>());
+        Role stored = roleManager.createRole("testRole1");
+        User user = new User("testUser", "testPassword", 0);
+        mockUserManager.addRole(user, new Role("testRole1"));
+        mockUserManager.addRole(user, new Role("unknownRole"));
+        mockUserManager.authenticate(user);
+
+        for (TokenFormat format : TokenFormat.values()) {
+            TokenManager interningTokenManager = new TokenManager(TOKEN_LIFE, format, roleManager);
+            Token token = interningTokenManager.readTokenString(interningTokenManager.getTokenString(user, mockEncryptor), mockDecryptor);
+            assertSame(stored, token.getRoles().get(0));
+            assertEquals(new Role("unknownRole"), token.getRoles().get(1));
+        }
+    }
+
+    @Test
+    public void testBinaryTokenWithRoleIds() throws Exception {
+        RoleManager roleManager = new RoleManager(new HashMap<>());
+        TokenManager binaryTokenManager = new TokenManager(TOKEN_LIFE, TokenFormat.BINARY, roleManager);
+        binaryTokenManager.setTokenIds(() -> 0);
+        User user = new User("testUser", "testPassword", 0);
+        for (int i = 0; i < 20; i++) {
+            mockUserManager.addRole(user, roleManager.createRole("testRole" + i));
+        }
+        mockUserManager.authenticate(user);
+
+        String token = binaryTokenManager.getTokenString(user, mockEncryptor);
+        Token read = binaryTokenManager.readTokenString(token, mockDecryptor);
+        assertEquals(new Token("testUser", user.getRoles(), user.getLoginTime().plusSeconds(TOKEN_LIFE)), read);
+        assertTrue(read.hasRole(roleManager.getRole("testRole7")));
+        assertTrue(token.length() < new TokenManager(TOKEN_LIFE, TokenFormat.BINARY).getTokenString(user, mockEncryptor).length());
+        assertThrows(JsonSyntaxException.class, () -> tokenManager.readTokenString(token, mockDecryptor));
+    }
+
+    @Test
+    public void testBinaryTokenDeletedRoleNotGrantedToNewRole() throws Exception {
+        RoleManager roleManager = new RoleManager(new HashMap<>());
+        TokenManager binaryTokenManager = new TokenManager(TOKEN_LIFE, TokenFormat.BINARY, roleManager);
+        User user = new User("testUser", "testPassword", 0);
+        mockUserManager.addRole(user, roleManager.createRole("deleted"));
+        mockUserManager.authenticate(user);
+        String token = binaryTokenManager.getTokenString(user, mockEncryptor);
+
+        roleManager.deleteRole("deleted");
+        Role recreated = roleManager.createRole("deleted");
+
+        Token read = binaryTokenManager.readTokenString(token, mockDecryptor);
+        assertEquals(0, read.getRoles().size());
+        assertFalse(read.hasRole(recreated));
+    }
+
+    @Test
+    public void testReadTokenWithEscapesAndUnknownFields() {
+        String encryptedToken = "{ \"extra\" : {\"nested\":[1, \"}\"]}, \"username\":\"test\\\"User\\u00e9\", \"roles\":[{\"name\":\"a\\/b\", \"id\": 4}],"
+                + "\"expiration\":5, \"flag\":true}1";
+        Token token = tokenManager.readTokenString(encryptedToken, mockDecryptor);
+        assertEquals("test\"User\u00e9", token.getUsername());
+        assertEquals(new Role("a/b"), token.getRoles().get(0));
+        assertEquals(Instant.ofEpochSecond(5), token.getExpiration());
+    }
+
+    @Test
+    public void testReadTokenMissingUsername() {
+        assertThrows(JsonSyntaxException.class, () -> tokenManager.readTokenString("{\"roles\":[],\"expiration\":5}1", mockDecryptor));
+    }
+
+    @Test
+    public void testReadTokenTrailingData() {
+        assertThrows(JsonSyntaxException.class, () -> tokenManager.readTokenString("{\"username\":\"a\",\"expiration\":5}}1", mockDecryptor));
+    }
+
+    @Test
+    public void testReadsOnNewThreadsReuseBuffers() throws Exception {
+        RoleManager roleManager = new RoleManager(new HashMap<>());
+        Role role = roleManager.createRole("testRole1");
+        TokenManager manager = new TokenManager(TOKEN_LIFE, TokenFormat.JSON, roleManager);
+        User user = new User("testUser", "testPassword", 0);
+        user.getRoles().add(role);
+        mockUserManager.authenticate(user);
+        String token = manager.getTokenString(user, mockEncryptor);
+        Set<ByteBuffer> buffers = Collections.newSetFromMap(new IdentityHashMap<>());
+        IDecrypt recordingDecryptor = new MockDecryptor() {
+            @Override
+            public ByteBuffer decrypt(String string, ByteBuffer buffer) {
+                synchronized (buffers) {
+                    buffers.add(buffer);
+                }
+                return super.decrypt(string, buffer);
+            }
+        };
+
+        //each read on a thread of its own, as with a virtual thread per request
+        int reads = 4 * ObjectPool.DEFAULT_CAPACITY;
+        for (int i = 0; i < reads; i++) {
+            AtomicReference<Token> read = new AtomicReference<>();
+            ObjectPoolTest.startVirtualThread(() -> read.set(manager.readTokenString(token, recordingDecryptor))).join();
+            assertSame(role, read.get().getRoles().get(0));
+        }
+        assertTrue(buffers.size() + " buffers for " + reads + " reads", buffers.size() <= ObjectPool.DEFAULT_CAPACITY);
+    }
+
     private static class MockEncryptor implements IEncrypt {
         @Override
         public String encrypt(String string) {
@@ -9,6 +9,8 @@ import org.junit.Test;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -53,6 +55,31 @@ public class UserManagerTest {
         assertNotEquals("testPassword" + ENCRYPTED, userHashMap.get("testUser").getPassword());
     }
 
+    @Test
+    public void testCreateUsers() throws DuplicateUserException {
+        LinkedHashMap<String, String> passwords = new LinkedHashMap<>();
+        passwords.put("testUser1", "testPassword1");
+        passwords.put("testUser2", "testPassword2");
+
+        List<User> users = userManager.createUsers(passwords, mockEncryptor);
+
+        assertEquals(2, users.size());
+        assertEquals("testUser1", users.get(0).getUsername());
+        assertSame(users.get(1), userHashMap.get("testUser2"));
+    }
+
+    @Test
+    public void testCreateUsersAllOrNothing() throws DuplicateUserException {
+        userManager.createUser("testUser2", "testPassword", mockEncryptor);
+        LinkedHashMap<String, String> passwords = new LinkedHashMap<>();
+        passwords.put("testUser1", "testPassword1");
+        passwords.put("testUser2", "testPassword2");
+
+        assertThrows(DuplicateUserException.class, () -> userManager.createUsers(passwords, mockEncryptor));
+        assertEquals(1, userHashMap.size());
+        assertFalse(userHashMap.containsKey("testUser1"));
+    }
+
     @Test
     public void testDeleteUserValidDelete() throws NoSuchUserException {
         userHashMap.put("testUser", new User("testUser", "testPassword", 0));
@@ -89,6 +116,35 @@ public class UserManagerTest {
         assertTrue(user.getRoles().contains(new Role("newRole")));
     }
 
+    @Test
+    public void testAddRoleToUserTracksRoleIds() throws NoSuchUserException {
+        User user = new User("testUser", "testPassword", 0);
+        userHashMap.put("testUser", user);
+        Role role = new Role("newRole", 5);
+
+        userManager.addRoleToUser(user, role);
+        userManager.addRoleToUser(user, role);
+
+        assertEquals(1, user.getRoles().size());
+        assertTrue(user.getRoleBits().contains(5));
+
+        userManager.removeRoleFromAllUsers(role);
+        assertTrue(user.getRoleBits().isEmpty());
+    }
+
+    @Test
+    public void testAddRolesToUser() throws NoSuchUserException {
+        User user = new User("testUser", "testPassword", 0);
+        userHashMap.put("testUser", user);
+        Role withId = new Role("idRole", 3);
+
+        userManager.addRolesToUser(user, List.of(withId, new Role("newRole"), new Role("newRole"), withId));
+
+        assertEquals(2, user.getRoles().size());
+        assertTrue(user.getRoleBits().contains(3));
+        assertEquals(1, userManager.getUsersWithRole(new Role("newRole"), null, 10).size());
+    }
+
     @Test
     public void testAddRoleToUserUserDoesntExist() {
         User user = new User("testUser", "testPassword", 0);
@@ -162,6 +218,66 @@ public class UserManagerTest {
 
     }
 
+    @Test
+    public void testRemoveRoleFromMembersOnlyTouchesMembers() throws NoSuchUserException {
+        Role role = new Role("role");
+        User member = new User("member", "testPassword", 0);
+        userHashMap.put("member", member);
+        userManager.addRoleToUser(member, role);
+        //added behind the manager's back, so not in the role index
+        ArrayList<Role> roles = new ArrayList<>();
+        roles.add(role);
+        User unindexed = new User("unindexed", "testPassword", 0, roles);
+        userHashMap.put("unindexed", unindexed);
+
+        userManager.removeRoleFromMembers(role);
+        assertEquals(0, member.getRoles().size());
+        assertEquals(1, unindexed.getRoles().size());
+        assertTrue(userManager.getUsersWithRole(role, null, 10).isEmpty());
+    }
+
+    @Test
+    public void testRoleIndexBuiltFromExistingStorage() {
+        ArrayList<Role> roles = new ArrayList<>();
+        roles.add(new Role("role"));
+        userHashMap.put("testUser", new User("testUser", "testPassword", 0, roles));
+
+        UserManager manager = new UserManager(userHashMap);
+        assertEquals(1, manager.getUsersWithRole(new Role("role"), null, 10).size());
+    }
+
+    @Test
+    public void testGetUsersWithRolePages() throws NoSuchUserException {
+        Role role = new Role("role");
+        for (int i = 0; i < 5; i++) {
+            User user = new User("user" + i, "testPassword", 0);
+            userHashMap.put(user.getUsername(), user);
+            userManager.addRoleToUser(user, role);
+        }
+        userHashMap.put("other", new User("other", "testPassword", 0));
+
+        List<User> first = userManager.getUsersWithRole(role, null, 2);
+        assertEquals("user0", first.get(0).getUsername());
+        assertEquals("user1", first.get(1).getUsername());
+        List<User> second = userManager.getUsersWithRole(role, "user1", 2);
+        assertEquals("user2", second.get(0).getUsername());
+        assertEquals("user3", second.get(1).getUsername());
+        List<User> last = userManager.getUsersWithRole(role, "user3", 2);
+        assertEquals(1, last.size());
+        assertTrue(userManager.getUsersWithRole(role, "user4", 2).isEmpty());
+    }
+
+    @Test
+    public void testDeleteUserLeavesRoleIndex() throws NoSuchUserException {
+        Role role = new Role("role");
+        User user = new User("testUser", "testPassword", 0);
+        userHashMap.put("testUser", user);
+        userManager.addRoleToUser(user, role);
+
+        userManager.deleteUser("testUser");
+        assertTrue(userManager.getUsersWithRole(role, null, 10).isEmpty());
+    }
+
     @Test
     public void testInvalidate() {
         ArrayList<Role> roles = new ArrayList<>();
@@ -170,10 +286,25 @@ public class UserManagerTest {
         userHashMap.put("testUser1", user);
 
         userManager.invalidate("testUser1");
-        assertNull(user.getLoginTime());
+        assertEquals(1, user.getSessionEpoch());
+        assertEquals(Instant.EPOCH, user.getLoginTime());
 
     }
 
+    @Test
+    public void testExpireSession() {
+        User user = new User("testUser1", "testPassword", 0, new ArrayList<>());
+        user.setLoginTime(Instant.EPOCH.plusSeconds(1));
+        userHashMap.put("testUser1", user);
+
+        //logged in again since the login that expired
+        assertFalse(userManager.expireSession("testUser1", Instant.EPOCH));
+        assertEquals(Instant.EPOCH.plusSeconds(1), user.getLoginTime());
+        assertTrue(userManager.expireSession("testUser1", Instant.EPOCH.plusSeconds(1)));
+        assertNull(user.getLoginTime());
+        assertFalse(userManager.expireSession("missing", Instant.EPOCH));
+    }
+
 
     private static class MockEncryptor implements IEncrypt {
         @Override
@@ -0,0 +1,77 @@
+package com.alanpeinejr.metrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValueWithinAnEighth() {
+        long previousHighest = -1;
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            long highest = LatencyHistogram.highestValue(bucket);
+            long lowest = previousHighest + 1;
+            assertEquals(bucket, LatencyHistogram.bucket(lowest));
+            assertEquals(bucket, LatencyHistogram.bucket(highest));
+            assertTrue(highest - lowest <= lowest / 8);
+            previousHighest = highest;
+        }
+        assertEquals(Long.MAX_VALUE, previousHighest);
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 1000; nanos++) {
+            histogram.record(nanos * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500_500, snapshot.getMean(), 0.001);
+        assertEquals(1_000_000, snapshot.getMax());
+        assertEquals(1_000_000, snapshot.getPercentile(100));
+        assertWithinAnEighth(500_000, snapshot.getPercentile(50));
+        assertWithinAnEighth(990_000, snapshot.getPercentile(99));
+        assertWithinAnEighth(1000, snapshot.getPercentile(0));
+    }
+
+    @Test
+    public void testEmptySnapshot() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMean(), 0);
+        assertEquals(0, snapshot.getPercentile(99));
+        assertThrows(IllegalArgumentException.class, () -> snapshot.getPercentile(101));
+    }
+
+    @Test
+    public void testConcurrentRecordsAreAllCounted() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(800_000, histogram.snapshot().getCount());
+        assertEquals(99_999, histogram.snapshot().getMax());
+    }
+
+    private static void assertWithinAnEighth(long expected, long actual) {
+        assertTrue(actual + " not within an eighth of " + expected, actual >= expected && actual <= expected + expected / 8);
+    }
+}
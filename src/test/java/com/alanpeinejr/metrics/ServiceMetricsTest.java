@@ -0,0 +1,35 @@
+package com.alanpeinejr.metrics;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class ServiceMetricsTest {
+
+    @Test
+    public void testPublishedOverJmx() throws Exception {
+        ServiceMetrics metrics = new ServiceMetrics();
+        long start = System.nanoTime();
+        metrics.record(Operation.AUTHORIZE, Outcome.SUCCESS, start);
+        metrics.record(Operation.AUTHORIZE, Outcome.EXPIRED_TOKEN, start);
+        metrics.record(Operation.AUTHENTICATE, Outcome.NO_SUCH_USER, start);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = metrics.register();
+        try {
+            assertEquals(1L, server.getAttribute(name, "ExpiredTokenCount"));
+            assertEquals(1L, server.getAttribute(name, "NoSuchUserCount"));
+            TabularData operations = (TabularData) server.getAttribute(name, "Operations");
+            CompositeData authorize = (CompositeData) operations.get(new Object[]{"AUTHORIZE"}).get("value");
+            assertEquals(2L, authorize.get("count"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
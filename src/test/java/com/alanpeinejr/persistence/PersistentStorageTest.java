@@ -0,0 +1,311 @@
+package com.alanpeinejr.persistence;
+
+import com.alanpeinejr.encryption.EncryptionManager;
+import com.alanpeinejr.exception.*;
+import com.alanpeinejr.manager.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Saves storage through one set of managers and recovers it into another, as a restart would
+ */
+public class PersistentStorageTest {
+
+    private static final Duration CHECKPOINT_INTERVAL = Duration.ofHours(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private EncryptionManager encryptionManager;
+    private List<PersistentStorage> opened;
+
+    @Before()
+    public void before() {
+        directory = folder.getRoot().toPath();
+        encryptionManager = new EncryptionManager();
+        opened = new ArrayList<>();
+    }
+
+    @After()
+    public void after() throws IOException {
+        for (PersistentStorage storage : opened) {
+            storage.getLog().close();
+        }
+    }
+
+    @Test
+    public void testRecoverAfterClose() throws Exception {
+        Managers first = open();
+        Role admin = first.roleManager.createRole("admin");
+        Role deleted = first.roleManager.createRole("deleted");
+        Role reader = first.roleManager.createRole("reader");
+        first.roleManager.deleteRole(deleted.getName());
+        User user = first.userManager.createUser("user", "password", encryptionManager);
+        first.userManager.addRoleToUser(user, admin);
+        first.userManager.addRoleToUser(user, reader);
+        first.userManager.invalidate("user");
+        long sessionEpoch = first.users.get("user").getSessionEpoch();
+        first.storage.close();
+        opened.remove(first.storage);
+
+        Managers second = open();
+        assertTrue(second.userManager.authenticate("user", "password", encryptionManager));
+        assertEquals(admin.getId(), second.roleManager.getRole("admin").getId());
+        assertEquals(reader.getId(), second.roleManager.getRole("reader").getId());
+        assertNull(second.roleManager.getRole("deleted"));
+        assertEquals(sessionEpoch, second.users.get("user").getSessionEpoch());
+        assertEquals(1, second.userManager.getUsersWithRole(admin, null, 10).size());
+        //ids of deleted roles are never handed out again
+        assertEquals(3, second.roleManager.createRole("new").getId());
+    }
+
+    @Test
+    public void testRecoverFromLogWithoutCheckpoint() throws Exception {
+        Managers first = open();
+        Role role = first.roleManager.createRole("role");
+        User user = first.userManager.createUser("user", "password", encryptionManager);
+        first.userManager.createUser("gone", "password", encryptionManager);
+        first.userManager.addRoleToUser(user, role);
+        first.userManager.deleteUser("gone");
+        //stop as a crash would, with nothing but the log on disk
+        first.storage.getLog().close();
+
+        Managers second = open();
+        assertTrue(second.userManager.authenticate("user", "password", encryptionManager));
+        assertFalse(second.users.containsKey("gone"));
+        assertEquals(1, second.userManager.getUsersWithRole(role, null, 10).size());
+    }
+
+    @Test
+    public void testRevocationsRecovered() throws Exception {
+        Instant expiration = Instant.now().plusSeconds(600);
+        Managers first = open();
+        first.revocationList.revoke(1, expiration);
+        first.revocationList.revoke(2, expiration);
+        //stop as a crash would, with nothing but the log on disk
+        first.storage.getLog().close();
+
+        Managers second = open();
+        assertEquals(expiration, second.revocationList.getRevocations().get(1L));
+        assertEquals(2, second.revocationList.size());
+        second.revocationList.revoke(3, expiration);
+        second.storage.close();
+        opened.remove(second.storage);
+
+        //from the checkpoint this time, the log before it is gone
+        Managers third = open();
+        assertEquals(3, third.revocationList.size());
+        assertEquals(expiration, third.revocationList.getRevocations().get(3L));
+    }
+
+    @Test
+    public void testSessionChangesRecovered() throws Exception {
+        Managers first = open();
+        first.userManager.createUser("loggedOut", "password", encryptionManager);
+        first.userManager.createUser("deleted", "password", encryptionManager);
+        first.userManager.invalidate("loggedOut");
+        first.userManager.deleteUser("deleted");
+        Instant trackingSince = first.sessionChanges.getTrackingSince();
+        long loggedOutEpoch = first.users.get("loggedOut").getSessionEpoch();
+        first.storage.close();
+        opened.remove(first.storage);
+
+        Managers second = open();
+        assertEquals(trackingSince, second.sessionChanges.getTrackingSince());
+        assertEquals(Long.valueOf(loggedOutEpoch), second.sessionChanges.snapshot().get("loggedOut"));
+        assertEquals(Long.valueOf(SessionChanges.DELETED), second.sessionChanges.snapshot().get("deleted"));
+        second.userManager.invalidate("loggedOut");
+        //stop as a crash would, the change since the checkpoint is only in the log
+        second.storage.getLog().close();
+
+        Managers third = open();
+        assertEquals(trackingSince, third.sessionChanges.getTrackingSince());
+        assertEquals(Long.valueOf(loggedOutEpoch + 1), third.sessionChanges.snapshot().get("loggedOut"));
+        assertEquals(Long.valueOf(SessionChanges.DELETED), third.sessionChanges.snapshot().get("deleted"));
+    }
+
+    @Test
+    public void testRoleInclusionsRecovered() throws Exception {
+        Managers first = open();
+        Role admin = first.roleManager.createRole("admin");
+        Role editor = first.roleManager.createRole("editor");
+        Role reader = first.roleManager.createRole("reader");
+        Role auditor = first.roleManager.createRole("auditor");
+        first.roleManager.includeRole("admin", "editor");
+        first.roleManager.includeRole("admin", "auditor");
+        first.storage.checkpoint();
+        first.roleManager.includeRole("editor", "reader");
+        first.roleManager.excludeRole("admin", "auditor");
+        first.storage.getLog().close();
+
+        Managers second = open();
+        assertEquals(List.of(second.roleManager.getRole("editor")), second.roleManager.getIncludedRoles("admin"));
+        assertEquals(List.of(second.roleManager.getRole("reader")), second.roleManager.getIncludedRoles("editor"));
+        Token token = new Token("user", List.of(second.roleManager.getRole("admin")), Instant.now());
+        assertTrue(second.roleManager.grants(token, reader));
+        assertFalse(second.roleManager.grants(token, auditor));
+        assertEquals(admin.getId(), second.roleManager.getRole("admin").getId());
+        assertEquals(editor.getId(), second.roleManager.getRole("editor").getId());
+    }
+
+    @Test
+    public void testCheckpointTruncatesLog() throws Exception {
+        Managers first = open();
+        for (int i = 0; i < 100; i++) {
+            first.userManager.createUser("user" + i, "password", encryptionManager);
+        }
+        first.storage.checkpoint();
+        first.userManager.createUser("after", "password", encryptionManager);
+        //truncation happens on the log's writer thread, the next record is written after it
+        first.userManager.invalidate("after");
+        long sessionEpoch = first.users.get("after").getSessionEpoch();
+        first.storage.getLog().close();
+
+        assertEquals(1, WriteAheadLog.segments(directory).size());
+        Managers second = open();
+        assertEquals(101, second.users.size());
+        assertEquals(sessionEpoch, second.users.get("after").getSessionEpoch());
+    }
+
+    @Test
+    public void testTornWriteIsCutOff() throws Exception {
+        Managers first = open();
+        first.userManager.createUser("user", "password", encryptionManager);
+        first.storage.getLog().close();
+        List<Path> segments = WriteAheadLog.segments(directory);
+        Files.write(segments.get(segments.size() - 1), new byte[]{0, 0, 0, 20, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        Managers second = open();
+        assertTrue(second.users.containsKey("user"));
+        second.userManager.createUser("next", "password", encryptionManager);
+        second.storage.getLog().close();
+        opened.remove(second.storage);
+
+        Managers third = open();
+        assertTrue(third.users.containsKey("next"));
+    }
+
+    @Test
+    public void testCorruptCheckpointFailsRecovery() throws Exception {
+        Managers first = open();
+        first.userManager.createUser("user", "password", encryptionManager);
+        first.storage.close();
+        opened.remove(first.storage);
+        Path checkpoint = directory.resolve(Checkpoint.FILE_NAME);
+        byte[] bytes = Files.readAllBytes(checkpoint);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(checkpoint, bytes);
+
+        assertThrows(IOException.class, this::open);
+    }
+
+    @Test
+    public void testCheckpointUsersLoadInBackground() throws Exception {
+        Managers first = new Managers();
+        Role admin = first.roleManager.createRole("admin");
+        for (int i = 0; i < 1000; i++) {
+            User user = first.userManager.createUser("user" + i, "password", encryptionManager);
+            if (i % 2 == 0) {
+                first.userManager.addRoleToUser(user, admin);
+            }
+        }
+        //a role the checkpoint's role table won't have
+        first.userManager.addRoleToUser(first.users.get("user1"), new Role("unlisted"));
+        Checkpoint.write(directory, 7, first.userManager, first.roleManager, null, null, 1024);
+
+        Managers second = new Managers();
+        Checkpoint.Contents contents = Checkpoint.read(directory, second.userManager, second.roleManager, null, null, 4);
+        assertEquals(7, contents.getLsn());
+        contents.getLoad().awaitLoaded();
+        assertTrue(contents.getLoad().isLoaded());
+        assertEquals(1000, second.users.size());
+        assertTrue(second.userManager.authenticate("user999", "password", encryptionManager));
+        assertEquals(500, second.userManager.getUsersWithRole(second.roleManager.getRole("admin"), null, 1000).size());
+        assertEquals(1, second.userManager.getUsersWithRole(new Role("unlisted"), null, 10).size());
+
+        //with no background threads the caller stores everything
+        Managers third = new Managers();
+        Checkpoint.read(directory, third.userManager, third.roleManager, null, null, 0).getLoad().awaitLoaded();
+        assertEquals(1000, third.users.size());
+    }
+
+    @Test
+    public void testCheckpointUsersLoadedWhenAskedFor() throws Exception {
+        Managers first = new Managers();
+        for (int i = 0; i < 1000; i++) {
+            first.userManager.createUser("user" + i, "password", encryptionManager);
+        }
+        Checkpoint.write(directory, 1, first.userManager, first.roleManager, null, null, 1024);
+
+        Managers second = new Managers();
+        CheckpointLoad load = Checkpoint.read(directory, second.userManager, second.roleManager, null, null, 0).getLoad();
+        assertTrue(second.users.isEmpty());
+        assertTrue(second.userManager.authenticate("user500", "password", encryptionManager));
+        assertTrue(second.users.containsKey("user500"));
+        assertTrue(second.users.size() < 1000);
+        assertFalse(load.isLoaded());
+        //a user the checkpoint doesn't have can't be created over one still loading
+        assertThrows(DuplicateUserException.class, () -> second.userManager.createUser("user7", "other", encryptionManager));
+
+        //walking every user waits for the rest
+        List<String> usernames = new ArrayList<>();
+        second.userManager.forEachUser((username, password, salt, roles, sessionEpoch) -> usernames.add(username));
+        assertEquals(1000, usernames.size());
+        assertTrue(load.isLoaded());
+    }
+
+    @Test
+    public void testCorruptCheckpointSegmentFailsRecovery() throws Exception {
+        Managers first = new Managers();
+        for (int i = 0; i < 1000; i++) {
+            first.userManager.createUser("user" + i, "password", encryptionManager);
+        }
+        Checkpoint.write(directory, 1, first.userManager, first.roleManager, null, null, 1024);
+        Path checkpoint = directory.resolve(Checkpoint.FILE_NAME);
+        byte[] bytes = Files.readAllBytes(checkpoint);
+        bytes[100] ^= 1;
+        Files.write(checkpoint, bytes);
+
+        Managers second = new Managers();
+        assertThrows(IOException.class, () -> Checkpoint.read(directory, second.userManager, second.roleManager, null, null, 4));
+        assertTrue(second.users.isEmpty());
+    }
+
+    private Managers open() throws IOException {
+        Managers managers = new Managers();
+        managers.storage = PersistentStorage.open(directory, managers.userManager, managers.roleManager, managers.revocationList,
+                managers.sessionChanges, CHECKPOINT_INTERVAL);
+        opened.add(managers.storage);
+        managers.storage.awaitLoaded();
+        return managers;
+    }
+
+    private static class Managers {
+        private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+        private final UserManager userManager = new UserManager(users);
+        private final RoleManager roleManager = new RoleManager(new ConcurrentHashMap<>());
+        private final RevocationList revocationList = new RevocationList(100, 0.01, Duration.ofHours(1), null);
+        private final SessionChanges sessionChanges = new SessionChanges(Duration.ofHours(1));
+        private PersistentStorage storage;
+
+        private Managers() {
+            userManager.addListener(sessionChanges);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.alanpeinejr.persistence;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testConcurrentAppendsAllDurable() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, 1, PersistentStorage.DEFAULT_SEGMENT_BYTES);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < 8; thread++) {
+            int t = thread;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    log.append(MutationRecord.sessionEpoch("user" + t, i));
+                    log.mutationComplete();
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        log.close();
+
+        List<MutationRecord> records = new ArrayList<>();
+        assertEquals(1600, WriteAheadLog.replay(directory, 1, records::add));
+        assertEquals(1600, records.size());
+    }
+
+    @Test
+    public void testSegmentsRollBySize() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, 1, 256);
+        for (int i = 0; i < 100; i++) {
+            log.append(MutationRecord.userDeleted("user" + i));
+            log.mutationComplete();
+        }
+        log.close();
+
+        assertTrue(WriteAheadLog.segments(directory).size() > 1);
+        List<MutationRecord> records = new ArrayList<>();
+        assertEquals(100, WriteAheadLog.replay(directory, 51, records::add));
+        assertEquals(50, records.size());
+        assertEquals("user50", records.get(0).getUsername());
+    }
+
+    @Test
+    public void testCorruptionBeforeLastSegmentFailsReplay() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, 1, 256);
+        for (int i = 0; i < 100; i++) {
+            log.append(MutationRecord.userDeleted("user" + i));
+        }
+        log.close();
+        Path first = WriteAheadLog.segments(directory).get(0);
+        byte[] bytes = Files.readAllBytes(first);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(first, bytes);
+
+        assertThrows(IOException.class, () -> WriteAheadLog.replay(directory, 1, record -> {
+        }));
+    }
+
+    @Test
+    public void testRecordRoundTrip() throws Exception {
+        MutationRecord record = MutationRecord.userStored("user\u00e9", "hash", 0.5, List.of(), 3);
+        MutationRecord decoded = MutationRecord.decode(ByteBuffer.wrap(record.encode()));
+
+        assertEquals(MutationRecord.Type.USER_STORED, decoded.getType());
+        assertArrayEquals(record.encode(), decoded.encode());
+    }
+}
@@ -0,0 +1,90 @@
+package com.alanpeinejr.scheduler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    private TimingWheel wheel;
+
+    @Before()
+    public void before() {
+        //a small wheel, so most deadlines wait out several turns
+        wheel = new TimingWheel(Duration.ofMillis(5), 8);
+    }
+
+    @After()
+    public void after() {
+        wheel.close();
+    }
+
+    @Test
+    public void testRunsAfterDelayNeverBefore() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        AtomicLong ranAfterNanos = new AtomicLong();
+        long start = System.nanoTime();
+        TimingWheel.Timeout timeout = wheel.schedule(Duration.ofMillis(100), () -> {
+            ranAfterNanos.set(System.nanoTime() - start);
+            ran.countDown();
+        });
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(ranAfterNanos.get() >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void testCancelledTaskNeverRuns() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        TimingWheel.Timeout cancelled = wheel.schedule(Duration.ofMillis(20), runs::incrementAndGet);
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(Duration.ofMillis(60), later::countDown);
+
+        assertTrue(cancelled.cancel());
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    public void testManyTasksAllRunOnce() throws InterruptedException {
+        int tasks = 10_000;
+        CountDownLatch ran = new CountDownLatch(tasks / 2);
+        AtomicInteger runs = new AtomicInteger();
+        for (int i = 0; i < tasks; i++) {
+            TimingWheel.Timeout timeout = wheel.schedule(Duration.ofMillis(i % 200), () -> {
+                runs.incrementAndGet();
+                ran.countDown();
+            });
+            if (i % 2 == 1) {
+                timeout.cancel();
+            }
+        }
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(tasks / 2, runs.get());
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopTheWheel() throws InterruptedException {
+        wheel.schedule(Duration.ZERO, () -> {
+            throw new IllegalStateException("expected");
+        });
+        CountDownLatch ran = new CountDownLatch(1);
+        wheel.schedule(Duration.ofMillis(10), ran::countDown);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,248 @@
+package com.alanpeinejr.verifier;
+
+import com.alanpeinejr.encryption.SigningEncryptionManager;
+import com.alanpeinejr.exception.ExpiredTokenException;
+import com.alanpeinejr.exception.InvalidSignatureException;
+import com.alanpeinejr.manager.Role;
+import com.alanpeinejr.manager.RoleManager;
+import com.alanpeinejr.manager.SessionChanges;
+import com.alanpeinejr.manager.TokenFormat;
+import com.alanpeinejr.manager.TokenManager;
+import com.alanpeinejr.manager.User;
+import com.alanpeinejr.manager.UserManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class TokenVerifierTest {
+
+    private static final int TOKEN_LIFETIME_IN_SECONDS = 60;
+
+    private final SigningEncryptionManager keys = new SigningEncryptionManager("k1", key(1));
+    private final TokenManager tokenManager = new TokenManager(TOKEN_LIFETIME_IN_SECONDS, TokenFormat.JSON);
+    private final Map<String, User> users = new HashMap<>();
+    private final UserManager userManager = new UserManager(users);
+    private final RoleManager roleManager = new RoleManager(new HashMap<>());
+    private final SessionChanges sessionChanges = new SessionChanges(Duration.ofSeconds(TOKEN_LIFETIME_IN_SECONDS));
+    private final AtomicReference<RevocationDigest> published = new AtomicReference<>();
+    private MutableClock clock;
+    private TokenVerifier verifier;
+
+    @Before()
+    public void before() throws Exception {
+        userManager.addListener(sessionChanges);
+        userManager.createUser("user", "password", keys);
+        userManager.createUser("other", "password", keys);
+        userManager.addRoleToUser(users.get("user"), new Role("role1"));
+        publish();
+        clock = new MutableClock(Instant.now());
+        verifier = new TokenVerifier(keys, published::get, Duration.ofHours(1), Duration.ofSeconds(30), clock);
+    }
+
+    @After()
+    public void after() {
+        verifier.close();
+    }
+
+    @Test
+    public void testValidTokenAccepted() throws Exception {
+        String token = login("user");
+
+        assertEquals("user", verifier.verify(token).getUsername());
+        assertTrue(verifier.authorize(token, "role1"));
+        assertFalse(verifier.authorize(token, "role2"));
+    }
+
+    @Test
+    public void testIncludedRolesGranted() throws Exception {
+        Role admin = roleManager.createRole("admin");
+        roleManager.createRole("editor");
+        roleManager.createRole("reader");
+        roleManager.createRole("auditor");
+        roleManager.includeRole("admin", "editor");
+        roleManager.includeRole("editor", "reader");
+        userManager.addRoleToUser(users.get("other"), admin);
+        String token = login("other");
+        publish();
+        verifier.refresh();
+
+        //the token only names admin, as AuthenticationService.authorize does the verifier grants what it includes
+        assertTrue(verifier.authorize(token, "admin"));
+        assertTrue(verifier.authorize(token, "editor"));
+        assertTrue(verifier.authorize(token, "reader"));
+        assertFalse(verifier.authorize(token, "auditor"));
+        assertFalse(verifier.authorize(login("user"), "reader"));
+
+        roleManager.excludeRole("editor", "reader");
+        publish();
+        verifier.refresh();
+        assertTrue(verifier.authorize(token, "editor"));
+        assertFalse(verifier.authorize(token, "reader"));
+    }
+
+    @Test
+    public void testRevokedTokenRejectedAfterRefresh() throws Exception {
+        String token = login("user");
+        String other = login("user");
+
+        publish(tokenManager.readTokenString(token, keys).getId());
+        //the old digest is used until the next refresh
+        verifier.verify(token);
+        verifier.refresh();
+
+        assertThrows(ExpiredTokenException.class, () -> verifier.verify(token));
+        verifier.verify(other);
+    }
+
+    @Test
+    public void testLoggedOutAndDeletedUsersRejected() throws Exception {
+        String userToken = login("user");
+        String otherToken = login("other");
+
+        userManager.invalidate("user");
+        userManager.deleteUser("other");
+        publish();
+        verifier.refresh();
+
+        assertThrows(ExpiredTokenException.class, () -> verifier.verify(userToken));
+        assertThrows(ExpiredTokenException.class, () -> verifier.verify(otherToken));
+        assertEquals(Long.valueOf(SessionChanges.DELETED), verifier.getDigest().getSessionEpochs().get("other"));
+        verifier.verify(login("user"));
+    }
+
+    @Test
+    public void testDeletedAndRecreatedUserRejected() throws Exception {
+        String oldToken = login("other");
+
+        userManager.deleteUser("other");
+        userManager.createUser("other", "password", keys);
+        publish();
+        verifier.refresh();
+
+        //the new account starts at its own epoch, so the digest tracks that rather than the deletion
+        assertEquals(Long.valueOf(users.get("other").getSessionEpoch()), verifier.getDigest().getSessionEpochs().get("other"));
+        assertThrows(ExpiredTokenException.class, () -> verifier.verify(oldToken));
+        verifier.verify(login("other"));
+    }
+
+    @Test
+    public void testTokensIssuedBeforeTrackingRejected() throws Exception {
+        String token = login("user");
+
+        published.set(new RevocationDigest(Instant.now(), Instant.now().plusSeconds(5), TOKEN_LIFETIME_IN_SECONDS, new long[0], Map.of()));
+        verifier.refresh();
+
+        assertThrows(ExpiredTokenException.class, () -> verifier.verify(token));
+    }
+
+    @Test
+    public void testExpiredTokenRejected() throws Exception {
+        String token = login("user");
+        clock.now = clock.now.plusSeconds(TOKEN_LIFETIME_IN_SECONDS + 1);
+        verifier.refresh();
+
+        assertThrows(ExpiredTokenException.class, () -> verifier.verify(token));
+    }
+
+    @Test
+    public void testForgedTokenRejected() throws Exception {
+        userManager.authenticate("user", "password", keys);
+        String forged = tokenManager.getTokenString(users.get("user"), new SigningEncryptionManager("k1", key(2)));
+
+        assertThrows(InvalidSignatureException.class, () -> verifier.verify(forged));
+    }
+
+    @Test
+    public void testStaleDigestFailsClosed() throws Exception {
+        String token = login("user");
+        RevocationDigest digest = verifier.getDigest();
+        published.set(null);
+        clock.now = clock.now.plusSeconds(31);
+
+        assertThrows(IllegalStateException.class, () -> verifier.verify(token));
+
+        TokenVerifier failing = new TokenVerifier(keys, () -> {
+            throw new IllegalStateException("service down");
+        }, Duration.ofHours(1), Duration.ofSeconds(30), clock);
+        try {
+            assertNull(failing.getDigest());
+            assertThrows(IllegalStateException.class, () -> failing.verify(token));
+            assertThrows(IllegalStateException.class, failing::refresh);
+        } finally {
+            failing.close();
+        }
+        assertSame(digest, verifier.getDigest());
+    }
+
+    @Test
+    public void testDigestJsonRoundTrip() throws Exception {
+        RevocationDigest digest = new RevocationDigest(Instant.ofEpochMilli(1_700_000_000_123L), Instant.ofEpochSecond(1_699_999_000L),
+                TOKEN_LIFETIME_IN_SECONDS, new long[]{42, -7}, Map.of("user", 3L, "other", SessionChanges.DELETED),
+                Map.of("reader", List.of("editor", "admin")));
+
+        RevocationDigest read = RevocationDigest.fromJson(digest.toJson());
+
+        assertEquals(digest.getGeneratedAt(), read.getGeneratedAt());
+        assertEquals(digest.getTrackingSince(), read.getTrackingSince());
+        assertEquals(TOKEN_LIFETIME_IN_SECONDS, read.getTokenLifetimeSeconds());
+        assertEquals(2, read.getRevokedTokenCount());
+        assertEquals(digest.getSessionEpochs(), read.getSessionEpochs());
+        assertEquals(Set.of("editor", "admin"), read.getIncludingRoles().get("reader"));
+        assertEquals(digest.toJson(), read.toJson());
+        assertThrows(IOException.class, () -> RevocationDigest.fromJson("{\"generatedAt\":1}"));
+    }
+
+    private String login(String username) throws Exception {
+        assertTrue(userManager.authenticate(username, "password", keys));
+        return tokenManager.getTokenString(users.get(username), keys);
+    }
+
+    private void publish(long... revokedIds) {
+        published.set(new RevocationDigest(Instant.now(), sessionChanges.getTrackingSince(), TOKEN_LIFETIME_IN_SECONDS,
+                revokedIds, sessionChanges.snapshot(), roleManager.getIncludingRoles()));
+    }
+
+    private static byte[] key(int seed) {
+        byte[] key = new byte[SigningEncryptionManager.MIN_KEY_BYTES];
+        Arrays.fill(key, (byte) seed);
+        return key;
+    }
+
+    private static class MutableClock extends Clock {
+        private Instant now;
+
+        private MutableClock(Instant now) {
+            this.now = now;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}